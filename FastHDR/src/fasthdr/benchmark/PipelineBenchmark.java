@@ -0,0 +1,283 @@
+/*
+	Pipeline benchmark
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import fasthdr.colorspace.ColorSpaceConverter;
+import fasthdr.io.PFS;
+import fasthdr.io.RGBE;
+import fasthdr.model.HDRChannel;
+import fasthdr.model.HDRFrame;
+import fasthdr.pde.DCTPoissonSolver;
+import fasthdr.pde.Multigrid;
+import fasthdr.tmo.Drago;
+import fasthdr.tmo.Fattal;
+import fasthdr.tmo.Linear;
+import fasthdr.tmo.Log;
+import fasthdr.tmo.TiledFattal;
+import fasthdr.util.CancelToken;
+import fasthdr.util.GaussianPyramid;
+import fasthdr.util.PixelKernels;
+import fasthdr.util.PyramidEngine;
+
+// Times each stage of the pipeline (file reads, color conversion, pyramid, Poisson solvers and every
+// TMO's full resolution tonemap) on synthetic 4:3 HDR frames generated in-process, so regressions
+// and alternative engines can be compared without test images.
+// Usage: java fasthdr.benchmark.PipelineBenchmark [--runs n] [--warmup n] [--precision p] [--filter text] [megapixels...]
+// Each case gets warm-up runs followed by timed runs; the best and median times are reported.
+// Per-run setup (copies, TMO preprocessing) is not timed. Output printed by the code under test is
+// suppressed. The 16 MP Fattal cases need a large heap, e.g. -Xmx8g
+public class PipelineBenchmark {
+
+	public static final int[] DEFAULT_MEGAPIXELS = {1, 4, 16};
+	public static final int WARMUP_RUNS = 2;
+	public static final int RUNS = 5;
+
+	// A timed operation. setup() and teardown() run before and after every run() and are not timed.
+	private static abstract class Case {
+		private final String name;
+
+		public Case(String name){
+			this.name = name;
+		}
+
+		public void setup() throws Exception {}
+		public abstract void run() throws Exception;
+		public void teardown() throws Exception {}
+	}
+
+	private static final PrintStream out = System.out;
+	private static final PrintStream quiet = new PrintStream(new OutputStream(){
+		public void write(int b){}
+	});
+
+	private static int runs = RUNS;
+	private static int warmupRuns = WARMUP_RUNS;
+	private static String filter = null;
+	private static HDRChannel.Precision precision = HDRChannel.Precision.DOUBLE;
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<Integer> megapixels = new ArrayList<Integer>();
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("--runs")){ runs = Integer.parseInt(args[++i]); }
+			else if(args[i].equals("--warmup")){ warmupRuns = Integer.parseInt(args[++i]); }
+			else if(args[i].equals("--filter")){ filter = args[++i]; }
+			else if(args[i].equals("--precision")){ precision = HDRChannel.Precision.valueOf(args[++i].toUpperCase()); }
+			else{ megapixels.add(Integer.parseInt(args[i])); }
+		}
+		if(megapixels.isEmpty()){
+			for(int mp : DEFAULT_MEGAPIXELS){ megapixels.add(mp); }
+		}
+
+		for(int mp : megapixels){
+			int width = (int)Math.round(Math.sqrt(mp * 1000000.0 * 4 / 3));
+			int height = width * 3 / 4;
+			out.println(width + "x" + height + " (" + mp + " MP, " + precision + ")");
+
+			final HDRFrame frame = createFrame(width, height);
+			File pfsFile = File.createTempFile("fasthdr-benchmark", ".pfs");
+			File hdrFile = File.createTempFile("fasthdr-benchmark", ".hdr");
+			pfsFile.deleteOnExit();
+			hdrFile.deleteOnExit();
+			try {
+				new PFS().write(pfsFile, frame);
+				new RGBE().write(hdrFile, frame);
+				for(Case c : createCases(frame, pfsFile, hdrFile)){
+					if(filter == null || c.name.contains(filter)){
+						measure(c, frame.getSize());
+					}
+				}
+			}
+			finally {
+				pfsFile.delete();
+				hdrFile.delete();
+			}
+		}
+	}
+
+	private static ArrayList<Case> createCases(final HDRFrame frame, final File pfsFile, final File hdrFile){
+		final int width = frame.getWidth();
+		final int height = frame.getHeight();
+		final CancelToken token = new CancelToken();
+
+		// Log luminance and pyramid depth as Fattal computes them
+		final HDRChannel logLuminance = new HDRChannel(width, height, "normLum", precision);
+		for(int i = 0; i < frame.getSize(); i++){
+			logLuminance.set(i, Math.log(frame.getChannel("Y").get(i) + 0.0001));
+		}
+		int levels = 0;
+		for(int side = Math.min(width, height); side >= 32; side /= 2){ levels++; }
+		final int pyramidLevels = levels;
+
+		final HDRChannel divergence = PoissonBenchmark.createDivergence(width, height);
+
+		ArrayList<Case> cases = new ArrayList<Case>();
+		cases.add(new Case("PFS.read"){
+			public void run() throws Exception { new PFS().read(pfsFile, precision); }
+		});
+		cases.add(new Case("RGBE.read"){
+			public void run() throws Exception { new RGBE().read(hdrFile, precision); }
+		});
+		cases.add(new Case("PFS.write"){
+			private File file;
+			public void setup() throws Exception {
+				file = File.createTempFile("fasthdr-benchmark", ".pfs");
+				file.deleteOnExit();
+			}
+			public void run() throws Exception { new PFS().write(file, frame); }
+		});
+		cases.add(new Case("RGBE.write"){
+			private File file;
+			public void setup() throws Exception {
+				file = File.createTempFile("fasthdr-benchmark", ".hdr");
+				file.deleteOnExit();
+			}
+			public void run() throws Exception { new RGBE().write(file, frame); }
+		});
+		addKernelCases(cases, new Case("ColorSpaceConverter.convertXYZtoRGB"){
+			private HDRFrame copy;
+			public void setup(){ copy = copyFrame(frame); }
+			public void run() throws Exception {
+				ColorSpaceConverter.convertXYZtoRGB(copy, ColorSpaceConverter.CIE_XYZ_2DEGREE, ColorSpaceConverter.SRGB);
+			}
+		});
+		cases.add(new Case("GaussianPyramid.createDownSamplePyramid"){
+			public void run(){ GaussianPyramid.createDownSamplePyramid(logLuminance, pyramidLevels); }
+		});
+		final PyramidEngine pyramidEngine = new PyramidEngine();
+		cases.add(new Case("PyramidEngine.createDownSamplePyramid"){
+			public void run(){ pyramidEngine.createDownSamplePyramid(logLuminance, pyramidLevels); }
+		});
+		cases.add(new Case("PyramidEngine.createLaplacianPyramid"){
+			public void run(){ pyramidEngine.createLaplacianPyramid(logLuminance, pyramidLevels); }
+		});
+		cases.add(new Case("Multigrid.solve"){
+			public void run(){ new Multigrid(token).solve(divergence); }
+		});
+		cases.add(new Case("DCTPoissonSolver.solve"){
+			public void run(){ new DCTPoissonSolver(token).solve(divergence); }
+		});
+		addKernelCases(cases, new Case("Linear.tonemap"){
+			private Linear tmo;
+			public void setup(){ tmo = new Linear(frame, null); }
+			public void run(){ tmo.tonemap(); }
+		});
+		addKernelCases(cases, new Case("Log.tonemap"){
+			private Log tmo;
+			public void setup(){ tmo = new Log(frame, null); }
+			public void run(){ tmo.tonemap(); }
+		});
+		addKernelCases(cases, new Case("Drago.tonemap"){
+			private Drago tmo;
+			public void setup(){ tmo = new Drago(frame, null); }
+			public void run(){ tmo.tonemap(0.85); }
+		});
+		for(final Fattal.PDESolver solver : Fattal.PDESolver.values()){
+			cases.add(new Case("Fattal.tonemap " + solver){
+				private Fattal tmo;
+				// A new Fattal per run, so the PDE is never warm started
+				public void setup(){
+					tmo = new Fattal(frame, null);
+					tmo.setPDESolver(solver);
+				}
+				public void run(){ tmo.tonemap(0.1, 0.8, 1.0, 0.001); }
+			});
+		}
+		cases.add(new Case("TiledFattal.tonemap 64 MB"){
+			public void run(){ new TiledFattal(frame, 64L * 1024 * 1024).tonemap(0.1, 0.8, 1.0, 0.001); }
+		});
+		return cases;
+	}
+
+	// Adds c twice, with the per-pixel array kernels off (get/set loops) and on
+	private static void addKernelCases(ArrayList<Case> cases, final Case c){
+		final boolean enabled = PixelKernels.isEnabled();
+		for(final boolean arrays : new boolean[] {false, true}){
+			cases.add(new Case(c.name + (arrays ? " (arrays)" : " (scalar)")){
+				public void setup() throws Exception {
+					PixelKernels.setEnabled(arrays);
+					c.setup();
+				}
+				public void run() throws Exception { c.run(); }
+				public void teardown(){ PixelKernels.setEnabled(enabled); }
+			});
+		}
+	}
+
+	private static void measure(Case c, int size) throws Exception {
+		long[] times = new long[runs];
+		System.setOut(quiet);
+		try {
+			for(int i = 0; i < warmupRuns + runs; i++){
+				c.setup();
+				long start = System.nanoTime();
+				c.run();
+				long time = System.nanoTime() - start;
+				c.teardown();
+				if(i >= warmupRuns){ times[i - warmupRuns] = time; }
+			}
+		}
+		finally {
+			System.setOut(out);
+		}
+
+		Arrays.sort(times);
+		double best = times[0] / 1e6;
+		double median = times[runs / 2] / 1e6;
+		out.println(String.format("  %-45s best %9.1f ms  median %9.1f ms  %8.2f MP/s", c.name, best, median, size / (best * 1000)));
+	}
+
+	// Smooth luminance spanning about six orders of magnitude with a grid of bright windows,
+	// and a slowly varying chromaticity
+	private static HDRFrame createFrame(int width, int height){
+		HDRFrame frame = new HDRFrame(width, height, precision);
+		HDRChannel x = frame.addChannel("X");
+		HDRChannel y = frame.addChannel("Y");
+		HDRChannel z = frame.addChannel("Z");
+		double luminance, u, v;
+		int i;
+		for(int row = 0; row < height; row++){
+			for(int col = 0; col < width; col++){
+				i = (row * width) + col;
+				u = (double)col / width;
+				v = (double)row / height;
+				luminance = Math.pow(10, 2.5 * Math.sin(3 * u) * Math.cos(2 * v) + 0.5 * Math.sin(40 * u * v));
+				if(((col / 61) + (row / 53)) % 7 == 0){ luminance *= 1000; }
+				x.set(i, luminance * (0.95 + 0.2 * Math.sin(5 * v)));
+				y.set(i, luminance);
+				z.set(i, luminance * (1.09 + 0.2 * Math.cos(7 * u)));
+			}
+		}
+		return frame;
+	}
+
+	private static HDRFrame copyFrame(HDRFrame frame){
+		HDRFrame copy = new HDRFrame(frame.getWidth(), frame.getHeight(), frame.getPrecision());
+		copy.copyAddChannelData(frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z"));
+		return copy;
+	}
+}
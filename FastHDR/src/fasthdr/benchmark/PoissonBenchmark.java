@@ -0,0 +1,113 @@
+/*
+	Poisson solver benchmark
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.benchmark;
+
+import fasthdr.model.HDRChannel;
+import fasthdr.pde.DCTPoissonSolver;
+import fasthdr.pde.Multigrid;
+import fasthdr.pde.PoissonSolver;
+import fasthdr.util.CancelToken;
+
+// Compares the Multigrid (with each smoother) and DCT Poisson solvers on synthetic square inputs.
+// Usage: java fasthdr.benchmark.PoissonBenchmark [megapixels...]   (default 4 16 64)
+// The 64 MP run needs a large heap, e.g. -Xmx8g
+public class PoissonBenchmark {
+
+	public static final int[] DEFAULT_MEGAPIXELS = {4, 16, 64};
+	public static final int RUNS = 3;
+
+	public static void main(String[] args) {
+		int[] megapixels = DEFAULT_MEGAPIXELS;
+		if(args.length > 0){
+			megapixels = new int[args.length];
+			for(int i = 0; i < args.length; i++){
+				megapixels[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		CancelToken token = new CancelToken();
+		for(int mp : megapixels){
+			int side = (int)Math.sqrt(mp * 1000000.0);
+			HDRChannel f = createDivergence(side, side);
+
+			System.out.println(side + "x" + side + " (" + mp + " MP)");
+			for(Multigrid.Smoother smoother : Multigrid.Smoother.values()){
+				run("Multigrid " + smoother, new Multigrid(token, smoother), f);
+			}
+			run("DCT", new DCTPoissonSolver(token), f);
+		}
+	}
+
+	private static void run(String name, PoissonSolver solver, HDRChannel f){
+		long best = Long.MAX_VALUE;
+		HDRChannel u = null;
+		for(int i = 0; i < RUNS; i++){
+			long start = System.currentTimeMillis();
+			u = solver.solve(f);
+			best = Math.min(best, System.currentTimeMillis() - start);
+		}
+		System.out.println("  " + name + ": " + best + " ms, relative residual " + relativeResidual(u, f));
+	}
+
+	// Divergence of a smooth synthetic log luminance field with a few sharp edges
+	static HDRChannel createDivergence(int width, int height){
+		HDRChannel u = new HDRChannel(width, height, "u");
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				double value = Math.sin(x * 0.01) * Math.cos(y * 0.013) + 0.5 * Math.sin((x + y) * 0.002);
+				if(((x / 97) + (y / 89)) % 5 == 0){ value += 1.5; }
+				u.set((y * width) + x, value);
+			}
+		}
+		HDRChannel f = new HDRChannel(width, height, "f");
+		laplacian(u, f);
+		return f;
+	}
+
+	// 5-point Laplacian with mirrored edges, the operator both solvers invert
+	private static void laplacian(HDRChannel u, HDRChannel out){
+		int width = u.getWidth();
+		int height = u.getHeight();
+		int w, n, e, s;
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				w = (x == 0 ? 0 : x - 1);
+				n = (y == 0 ? 0 : y - 1);
+				s = (y + 1 == height ? y : y + 1);
+				e = (x + 1 == width ? x : x + 1);
+				out.set((y * width) + x, u.get((y * width) + e) + u.get((y * width) + w)
+						+ u.get((n * width) + x) + u.get((s * width) + x) - 4.0 * u.get((y * width) + x));
+			}
+		}
+	}
+
+	private static double relativeResidual(HDRChannel u, HDRChannel f){
+		HDRChannel lu = new HDRChannel(u.getWidth(), u.getHeight(), "Lu");
+		laplacian(u, lu);
+		double residual = 0, norm = 0, d;
+		for(int i = 0; i < f.getSize(); i++){
+			d = f.get(i) - lu.get(i);
+			residual += d * d;
+			norm += f.get(i) * f.get(i);
+		}
+		return Math.sqrt(residual / norm);
+	}
+}
@@ -24,6 +24,8 @@ package fasthdr.colorspace;
 import fasthdr.exception.UnknownColorSpaceException;
 import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
+import fasthdr.util.Parallel;
+import fasthdr.util.PixelKernels;
 
 //Converter for XYZ <-> RGB color spaces
 
@@ -59,12 +61,9 @@ public class ColorSpaceConverter {
 		HDRChannel x = srcFrame.getChannels().get("X");
 		HDRChannel y = srcFrame.getChannels().get("Y");
 		HDRChannel z = srcFrame.getChannels().get("Z");
-		double[] xData = x.getData();
-		double[] yData = y.getData();
-		double[] zData = z.getData();
 		
 		// For each pixel convert XYZ -> RGB
-		new ColorSpaceConverter().colorSpaceMultiply(xData, yData, zData, colorSpaceMatrix, 0, xData.length - 1);
+		new ColorSpaceConverter().colorSpaceMultiply(x, y, z, colorSpaceMatrix, 0, x.getSize() - 1);
 		
 		// Re-use X, Y, Z channels as R, G, B channel, respectively
 		srcFrame.renameChannel("X", "R");
@@ -85,12 +84,9 @@ public class ColorSpaceConverter {
 		HDRChannel r = srcFrame.getChannels().get("R");
 		HDRChannel g = srcFrame.getChannels().get("G");
 		HDRChannel b = srcFrame.getChannels().get("B");
-		double[] rData = r.getData();
-		double[] gData = g.getData();
-		double[] bData = b.getData();
 		
 		// For each pixel convert XYZ -> RGB
-		new ColorSpaceConverter().colorSpaceMultiply(rData, gData, bData, colorSpaceMatrix, 0, rData.length - 1);
+		new ColorSpaceConverter().colorSpaceMultiply(r, g, b, colorSpaceMatrix, 0, r.getSize() - 1);
 		
 		// Re-use X, Y, Z channels as R, G, B channel, respectively
 		srcFrame.renameChannel("R", "X");
@@ -98,27 +94,25 @@ public class ColorSpaceConverter {
 		srcFrame.renameChannel("B", "Z");
 	}
 	
-	public void colorSpaceMultiply(final double[] aData, final double[] bData, final double[] cData, final double[][] matrix, final int a, final int b){
-    	// Base Case
-		if(b - a < 250000){
-    		for(int i = a; i <= b; i++){
-    			double aVal = aData[i];
-				double bVal = bData[i];
-				double cVal = cData[i];
-				// Multiply by conversion matrix
-				aData[i] = (matrix[0][0] * aVal) + (matrix[0][1] * bVal) + (matrix[0][2] * cVal);
-				bData[i] = (matrix[1][0] * aVal) + (matrix[1][1] * bVal) + (matrix[1][2] * cVal);
-				cData[i] = (matrix[2][0] * aVal) + (matrix[2][1] * bVal) + (matrix[2][2] * cVal);
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ colorSpaceMultiply(aData, bData, cData, matrix, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ colorSpaceMultiply(aData, bData, cData, matrix, halfSplit + 1, b); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+	public void colorSpaceMultiply(final HDRChannel aChannel, final HDRChannel bChannel, final HDRChannel cChannel, final double[][] matrix, final int a, final int b){
+		final boolean arrays = PixelKernels.supports(aChannel, bChannel, cChannel);
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				if(arrays){
+					PixelKernels.multiply(aChannel.getData(), bChannel.getData(), cChannel.getData(), matrix, start, end);
+					return;
+				}
+				for(int i = start; i <= end; i++){
+					double aVal = aChannel.get(i);
+					double bVal = bChannel.get(i);
+					double cVal = cChannel.get(i);
+					// Multiply by conversion matrix
+					aChannel.set(i, (matrix[0][0] * aVal) + (matrix[0][1] * bVal) + (matrix[0][2] * cVal));
+					bChannel.set(i, (matrix[1][0] * aVal) + (matrix[1][1] * bVal) + (matrix[1][2] * cVal));
+					cChannel.set(i, (matrix[2][0] * aVal) + (matrix[2][1] * bVal) + (matrix[2][2] * cVal));
+				}
+			}
+		});
 	}
 	
 	final private static double[][] getColorSpaceMatrix(String srcColorSpace, String destColorSpace){
@@ -0,0 +1,101 @@
+/*
+	8-bit pixel quantizer
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.colorspace;
+
+// Maps tone mapped values (nominally 0 to 1) to 8-bit pixel values, with an optional transfer
+// curve (gamma or sRGB) applied first.
+// Inverse mapping: the encoded range is stretched so there is slightly more solid black 0 and
+// solid white 255, i.e. encoded e maps to floor(255e) + 1 clamped to [0, 255] and negatives map to 0.
+// This is the mapping Fattal and Drago used to do with a binary search on a 258 entry table.
+// Here every output level c has a threshold in the linear domain (the smallest value mapped to c)
+// and a LUT over [0, 1] gives the level at the start of each cell, so a value is quantized with
+// one table lookup and usually one threshold comparison.
+public class PixelQuantizer {
+
+	public static enum Transfer {LINEAR, GAMMA, SRGB};
+
+	public static final int LUT_SIZE = 16384;
+
+	// Shared linear quantizer
+	public static final PixelQuantizer LINEAR = new PixelQuantizer(Transfer.LINEAR, 1.0);
+
+	// Shared sRGB quantizer
+	public static final PixelQuantizer SRGB = new PixelQuantizer(Transfer.SRGB, 1.0);
+
+	private final Transfer transfer;
+	private final double gamma;
+
+	// thresholds[c]: smallest linear value mapped to level c (c >= 1)
+	private final double[] thresholds = new double[256];
+	// Level of the value at the start of each LUT cell
+	private final byte[] lut = new byte[LUT_SIZE];
+
+	// Power law encoding value^(1 / gamma)
+	public static PixelQuantizer gamma(double gamma){
+		return new PixelQuantizer(Transfer.GAMMA, gamma);
+	}
+
+	private PixelQuantizer(Transfer transfer, double gamma){
+		this.transfer = transfer;
+		this.gamma = gamma;
+
+		thresholds[0] = Double.NEGATIVE_INFINITY;
+		for(int c = 1; c < 256; c++){
+			thresholds[c] = decode((c - 1) / 255.0);
+		}
+
+		int c = 0;
+		for(int cell = 0; cell < LUT_SIZE; cell++){
+			double value = (double)cell / LUT_SIZE;
+			while(c < 255 && value >= thresholds[c + 1]){ c++; }
+			lut[cell] = (byte)c;
+		}
+	}
+
+	public Transfer getTransfer(){
+		return transfer;
+	}
+
+	public double getGamma(){
+		return gamma;
+	}
+
+	// Linear value of the encoded value e
+	private double decode(double e){
+		switch(transfer){
+			case GAMMA: return Math.pow(e, gamma);
+			case SRGB: return e <= 0.04045 ? e / 12.92 : Math.pow((e + 0.055) / 1.055, 2.4);
+			default: return e;
+		}
+	}
+
+	// 8-bit level of value
+	public int quantize(double value){
+		if(value < 1.0){
+			if(value < 0.0){ return 0; }
+			int c = lut[(int)(value * LUT_SIZE)] & 0xFF;
+			while(c < 255 && value >= thresholds[c + 1]){ c++; }
+			return c;
+		}
+		// Above range and NaN are solid white
+		return 255;
+	}
+}
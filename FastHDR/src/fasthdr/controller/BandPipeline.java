@@ -0,0 +1,184 @@
+/*
+	Band by band tone mapping pipeline
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import fasthdr.exception.MalformedFileException;
+import fasthdr.io.FileFormatInterface;
+import fasthdr.io.PNGWriter;
+import fasthdr.io.ScanlineReaderInterface;
+import fasthdr.model.HDRChannel;
+import fasthdr.model.HDRFrame;
+import fasthdr.tmo.BandTMOInterface;
+
+// Streams a file through a band TMO into a PNG, so only a couple of bands are in memory whatever
+// the image size. The TMOs need global statistics (min/max, average luminance) before any pixel
+// can be mapped, so the file is read twice: pass 1 accumulates the statistics of every band,
+// pass 2 tone maps each band and appends it to the PNG.
+// The next band is read and converted to X, Y, Z on a separate thread while the current one is
+// processed.
+public class BandPipeline {
+	
+	// Target pixels per band
+	public static final int BAND_PIXELS = 1 << 20;
+	
+	// Stage timings, indices match Batch
+	public static final int READ = 0;
+	public static final int TONEMAP = 1;
+	public static final int ENCODE = 2;
+	
+	private final FileFormatInterface format;
+	private final ScanlineReaderInterface reader;
+	private final HDRChannel.Precision precision;
+	private final int bandRows;
+	private final long[] stageNanos = new long[3];
+	
+	private final ExecutorService readAhead = Executors.newSingleThreadExecutor();
+	
+	// Mapped bands would each need their own temporary file, so they are read as floats
+	public BandPipeline(File inFile, HDRChannel.Precision p) throws IOException, MalformedFileException {
+		format = FastHDR.getFormat(inFile);
+		if(format == null){
+			throw new IOException("Not a .pfs or .hdr file: " + inFile);
+		}
+		precision = p == HDRChannel.Precision.MAPPED ? HDRChannel.Precision.FLOAT : p;
+		reader = format.openScanlines(inFile, precision);
+		bandRows = bandRows(reader.getWidth());
+	}
+	
+	public static int bandRows(int width){
+		return Math.max(1, BAND_PIXELS / width);
+	}
+	
+	// Bytes held at once by a band TMO over an image of the given width: the band being read ahead
+	// and the band being processed, plus a copy for the TMOs that do not work in place
+	public static long workingSetBytes(int width, HDRChannel.Precision p){
+		int sampleBytes;
+		switch(p){
+			case DOUBLE: sampleBytes = 8; break;
+			case HALF: sampleBytes = 2; break;
+			default: sampleBytes = 4; break;
+		}
+		return (long)bandRows(width) * width * 3 * (3 * sampleBytes + 8);
+	}
+	
+	public int getWidth(){
+		return reader.getWidth();
+	}
+	
+	public int getHeight(){
+		return reader.getHeight();
+	}
+	
+	public long getStageNanos(int stage){
+		return stageNanos[stage];
+	}
+	
+	// Runs both passes and writes the PNG. Closes the input file.
+	public void run(BandTMOInterface tmo, File outFile) throws IOException, MalformedFileException {
+		PNGWriter writer = null;
+		try {
+			// Pass 1: statistics
+			Future<HDRFrame> next = readBand(0);
+			for(int row = 0; row < getHeight(); row += bandRows){
+				HDRFrame band = take(next);
+				if(row + bandRows < getHeight()){ next = readBand(row + bandRows); }
+				
+				long start = System.nanoTime();
+				tmo.accumulate(band);
+				stageNanos[TONEMAP] += System.nanoTime() - start;
+			}
+			
+			// Pass 2: tone map and encode
+			writer = new PNGWriter(outFile, getWidth(), getHeight());
+			next = readBand(0);
+			for(int row = 0; row < getHeight(); row += bandRows){
+				HDRFrame band = take(next);
+				if(row + bandRows < getHeight()){ next = readBand(row + bandRows); }
+				
+				long start = System.nanoTime();
+				HDRFrame result = tmo.tonemap(band);
+				long tonemapped = System.nanoTime();
+				writer.writeRows(result.getChannel("R"), result.getChannel("G"), result.getChannel("B"));
+				stageNanos[TONEMAP] += tonemapped - start;
+				stageNanos[ENCODE] += System.nanoTime() - tonemapped;
+			}
+			
+			long start = System.nanoTime();
+			PNGWriter finished = writer;
+			writer = null;
+			finished.close();
+			stageNanos[ENCODE] += System.nanoTime() - start;
+		}
+		finally {
+			// The band being read ahead must finish before the file is closed
+			readAhead.shutdown();
+			try {
+				readAhead.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if(writer != null){
+				try { writer.close(); } catch(IOException e) { /* Already failing */ }
+				outFile.delete();
+			}
+			reader.close();
+		}
+	}
+	
+	// Reads rows [row, row + bandRows) as X, Y, Z on the read ahead thread
+	private Future<HDRFrame> readBand(final int row){
+		return readAhead.submit(new Callable<HDRFrame>(){
+			public HDRFrame call() throws Exception {
+				long start = System.nanoTime();
+				HDRFrame band = reader.readBand(row, Math.min(bandRows, getHeight() - row));
+				FastHDR.convertToXYZ(format, band);
+				stageNanos[READ] += System.nanoTime() - start;
+				return band;
+			}
+		});
+	}
+	
+	private static HDRFrame take(Future<HDRFrame> band) throws IOException, MalformedFileException {
+		try {
+			return band.get();
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted while reading");
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException){ throw (IOException)cause; }
+			if(cause instanceof MalformedFileException){ throw (MalformedFileException)cause; }
+			if(cause instanceof RuntimeException){ throw (RuntimeException)cause; }
+			throw new IOException(cause.toString());
+		}
+	}
+}
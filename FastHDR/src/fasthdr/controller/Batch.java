@@ -0,0 +1,464 @@
+/*
+	Headless batch tone mapping
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.controller;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import fasthdr.io.BufferedImageConverter;
+import fasthdr.io.FileFormatInterface;
+import fasthdr.io.PNGWriter;
+import fasthdr.model.HDRChannel;
+import fasthdr.model.HDRFrame;
+import fasthdr.tmo.BandTMOInterface;
+import fasthdr.tmo.Drago;
+import fasthdr.tmo.Fattal;
+import fasthdr.tmo.Linear;
+import fasthdr.tmo.Log;
+import fasthdr.tmo.TiledFattal;
+import fasthdr.util.Parallel;
+
+// Tone maps .pfs and .hdr files to PNG without the GUI:
+//   java fasthdr.controller.FastHDR batch [options] <input file or directory>... <output directory>
+// Several files are in flight at once (--jobs), so one file is read or encoded while another is
+// tone mapped, and the pixel kernels of each file run on the shared Parallel pool.
+// A file only starts once its estimated working set fits in the memory budget (--memory), which
+// bounds the number of large frames held at the same time.
+// With --stream, Linear, Log and Drago read and tone map one band of rows at a time (BandPipeline),
+// so images larger than the heap can be converted.
+// With --tiled, Fattal runs tile by tile (TiledFattal) in the budget divided by the jobs, for
+// panoramas whose Fattal working set does not fit; frames that fit, or are too small to tile, run whole.
+// Use --precision mapped when the frames do not fit either.
+public class Batch {
+
+	public static final String COMMAND = "batch";
+
+	public static enum Operator {LINEAR, LOG, DRAGO, FATTAL};
+
+	// Defaults match the tool bars
+	public static final double ALPHA_DEFAULT = 0.1;
+	public static final double BETA_DEFAULT = 0.8;
+	public static final double SATURATION_DEFAULT = 1;
+	public static final double NOISE_DEFAULT = 0.001;
+	public static final double BIAS_DEFAULT = 0.85;
+	public static final int JOBS_DEFAULT = 2;
+
+	// Stage timings reported at the end
+	private static final String[] STAGES = {"read", "tonemap", "encode"};
+	private static final int READ = 0;
+	private static final int TONEMAP = 1;
+	private static final int ENCODE = 2;
+
+	private Operator operator = Operator.FATTAL;
+	private double alpha = ALPHA_DEFAULT;
+	private double beta = BETA_DEFAULT;
+	private double saturation = SATURATION_DEFAULT;
+	private double noise = NOISE_DEFAULT;
+	private double bias = BIAS_DEFAULT;
+	private Fattal.PDESolver pdeSolver = Fattal.PDESolver.MULTIGRID;
+	private HDRChannel.Precision precision = FastHDR.getPrecision();
+	private int jobs = JOBS_DEFAULT;
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+	private boolean stream = false;
+	private boolean tiled = false;
+
+	private final ArrayList<File> inputs = new ArrayList<File>();
+	// PNG written for each input
+	private final ArrayList<File> outputs = new ArrayList<File>();
+	private File outputDirectory;
+
+	// Memory budget in KB, one permit per KB
+	private Semaphore memory;
+	private final AtomicInteger nextFile = new AtomicInteger(0);
+	private final AtomicInteger failures = new AtomicInteger(0);
+	private final AtomicLong pixels = new AtomicLong(0);
+	private final AtomicLong[] stageNanos = {new AtomicLong(0), new AtomicLong(0), new AtomicLong(0)};
+
+	// Returns the process exit code: 0 on success, 1 if any file failed, 2 on bad arguments
+	public static int run(String[] args){
+		System.setProperty("java.awt.headless", "true");
+
+		Batch batch = new Batch();
+		try {
+			batch.parseArguments(args);
+		}
+		catch(IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			printUsage();
+			return 2;
+		}
+		return batch.process();
+	}
+
+	public static void printUsage(){
+		System.out.println("Usage: fasthdr batch [options] <input file or directory>... <output directory>");
+		System.out.println("  --tmo linear|log|drago|fattal   tone mapping operator (default fattal)");
+		System.out.println("  --alpha, --beta, --saturation, --noise <value>   Fattal parameters");
+		System.out.println("  --pde multigrid|dct             Fattal Poisson solver (default multigrid)");
+		System.out.println("  --bias <value>                  Drago bias");
+		System.out.println("  --precision double|float|half|mapped   channel storage");
+		System.out.println("  --jobs <n>                      files in flight (default " + JOBS_DEFAULT + ")");
+		System.out.println("  --memory <MB>                   working set budget (default 3/4 of the max heap)");
+		System.out.println("  --threads <n>                   pixel kernel threads");
+		System.out.println("  --stream                        tone map band by band in bounded memory (not fattal)");
+		System.out.println("  --tiled                         fattal tile by tile within the memory budget of each job");
+	}
+
+	private void parseArguments(String[] args){
+		ArrayList<String> paths = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++){
+			if(!args[i].startsWith("--")){
+				paths.add(args[i]);
+				continue;
+			}
+			if(args[i].equals("--stream")){
+				stream = true;
+				continue;
+			}
+			if(args[i].equals("--tiled")){
+				tiled = true;
+				continue;
+			}
+			if(i + 1 == args.length){
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+			}
+
+			String option = args[i];
+			String value = args[++i];
+			boolean known = true;
+			try {
+				if(option.equals("--tmo")){ operator = Operator.valueOf(value.toUpperCase()); }
+				else if(option.equals("--alpha")){ alpha = Double.parseDouble(value); }
+				else if(option.equals("--beta")){ beta = Double.parseDouble(value); }
+				else if(option.equals("--saturation")){ saturation = Double.parseDouble(value); }
+				else if(option.equals("--noise")){ noise = Double.parseDouble(value); }
+				else if(option.equals("--bias")){ bias = Double.parseDouble(value); }
+				else if(option.equals("--pde")){ pdeSolver = Fattal.PDESolver.valueOf(value.toUpperCase()); }
+				else if(option.equals("--precision")){ precision = HDRChannel.Precision.valueOf(value.toUpperCase()); }
+				else if(option.equals("--jobs")){ jobs = Integer.parseInt(value); }
+				else if(option.equals("--memory")){ memoryBudget = Long.parseLong(value) * 1024 * 1024; }
+				else if(option.equals("--threads")){ Parallel.setParallelism(Integer.parseInt(value)); }
+				else{ known = false; }
+			}
+			catch(IllegalArgumentException e) {
+				// Also covers NumberFormatException
+				throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+			}
+			if(!known){
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+
+		if(paths.size() < 2){
+			throw new IllegalArgumentException("Expected input files or directories and an output directory");
+		}
+		if(jobs < 1 || memoryBudget < 1024 * 1024){
+			throw new IllegalArgumentException("--jobs must be at least 1 and --memory at least 1 MB");
+		}
+		if(stream && operator == Operator.FATTAL){
+			// The gradient attenuation and the Poisson solve need the whole frame
+			throw new IllegalArgumentException("--stream is not supported by fattal");
+		}
+		if(tiled && operator != Operator.FATTAL){
+			throw new IllegalArgumentException("--tiled is only supported by fattal");
+		}
+
+		outputDirectory = new File(paths.remove(paths.size() - 1));
+		for(String path : paths){
+			File file = new File(path);
+			if(file.isDirectory()){
+				File[] children = file.listFiles();
+				if(children == null){
+					throw new IllegalArgumentException("Cannot list directory " + path);
+				}
+				Arrays.sort(children);
+				for(File child : children){
+					if(child.isFile() && FastHDR.getFormat(child) != null){ inputs.add(child); }
+				}
+			}
+			else if(FastHDR.getFormat(file) != null){
+				inputs.add(file);
+			}
+			else{
+				throw new IllegalArgumentException("Not a .pfs or .hdr file or a directory: " + path);
+			}
+		}
+		nameOutputs();
+	}
+
+	// name.png for every input, or name.hdr.png / name.pfs.png where an .hdr and a .pfs file share a
+	// name, so no two inputs write the same PNG. Inputs that would still collide (the same file name
+	// in two input directories) are rejected.
+	private void nameOutputs(){
+		// Compared ignoring case, as the output directory may be on a case insensitive file system
+		HashMap<String, Integer> baseNames = new HashMap<String, Integer>();
+		for(File input : inputs){
+			String key = baseName(input).toLowerCase();
+			Integer count = baseNames.get(key);
+			baseNames.put(key, count == null ? 1 : count + 1);
+		}
+
+		HashMap<String, File> written = new HashMap<String, File>();
+		for(File input : inputs){
+			String name = baseNames.get(baseName(input).toLowerCase()) > 1 ? input.getName() : baseName(input);
+			File previous = written.put(name.toLowerCase(), input);
+			if(previous != null){
+				throw new IllegalArgumentException("Both " + previous + " and " + input + " would be written to " + name + ".png");
+			}
+			outputs.add(new File(outputDirectory, name + ".png"));
+		}
+	}
+
+	private static String baseName(File file){
+		String name = file.getName();
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+
+	private int process(){
+		if(inputs.isEmpty()){
+			System.out.println("No .pfs or .hdr files found");
+			return 1;
+		}
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()){
+			System.out.println("Cannot create output directory " + outputDirectory);
+			return 1;
+		}
+
+		memory = new Semaphore(budgetPermits(), true);
+		long start = System.nanoTime();
+
+		ExecutorService workers = Executors.newFixedThreadPool(jobs);
+		for(int j = 0; j < jobs; j++){
+			workers.execute(new Runnable(){
+				public void run(){
+					int i;
+					while((i = nextFile.getAndIncrement()) < inputs.size()){
+						processFile(inputs.get(i), outputs.get(i));
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		try {
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch(InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		report(System.nanoTime() - start);
+		return failures.get() == 0 ? 0 : 1;
+	}
+
+	private void processFile(File inFile, File outFile){
+		String name = inFile.getName();
+		if(stream){
+			streamFile(inFile, outFile);
+			return;
+		}
+
+		int permits = 0;
+		try {
+			FileFormatInterface format = FastHDR.getFormat(inFile);
+			int[] dimensions = format.readDimensions(inFile);
+			long size = (long)dimensions[0] * dimensions[1];
+
+			// A frame larger than the whole budget runs alone. Only the permits held are released, so
+			// an interrupted acquire releases none.
+			int needed = (int)Math.max(1, Math.min(budgetPermits(), workingSetBytes(size) / 1024));
+			memory.acquire(needed);
+			permits = needed;
+
+			long t0 = System.nanoTime();
+			HDRFrame frame = FastHDR.readFrame(inFile, precision);
+			long t1 = System.nanoTime();
+
+			HDRFrame result = tonemap(frame);
+			if(result == null){
+				throw new IOException("Tone mapping was cancelled");
+			}
+			long t2 = System.nanoTime();
+
+			if(tiled){
+				// Skips the packed image, which would not fit next to a gigapixel frame
+				PNGWriter writer = new PNGWriter(outFile, result.getWidth(), result.getHeight());
+				try {
+					writer.writeRows(result.getChannel("R"), result.getChannel("G"), result.getChannel("B"));
+				}
+				finally {
+					writer.close();
+				}
+			}
+			else{
+				BufferedImage image = BufferedImageConverter.createBufferedImage(
+						result.getChannel("R"), result.getChannel("G"), result.getChannel("B"));
+				if(!ImageIO.write(image, "png", outFile)){
+					throw new IOException("No PNG writer available");
+				}
+			}
+			long t3 = System.nanoTime();
+
+			stageNanos[READ].addAndGet(t1 - t0);
+			stageNanos[TONEMAP].addAndGet(t2 - t1);
+			stageNanos[ENCODE].addAndGet(t3 - t2);
+			pixels.addAndGet(size);
+			System.out.println(name + " -> " + outFile.getName() + " (" + dimensions[0] + "x" + dimensions[1] + ", "
+					+ ((t3 - t0) / 1000000) + "ms)");
+		}
+		catch(Exception e) {
+			fail(inFile, e);
+		}
+		catch(OutOfMemoryError e) {
+			// The frame is dropped with this call, so the other files go on
+			fail(inFile, e);
+		}
+		finally {
+			memory.release(permits);
+		}
+	}
+
+	private void streamFile(File inFile, File outFile){
+		String name = inFile.getName();
+		int permits = 0;
+		try {
+			long t0 = System.nanoTime();
+			BandPipeline pipeline = new BandPipeline(inFile, precision);
+			int width = pipeline.getWidth();
+			int height = pipeline.getHeight();
+
+			int needed = (int)Math.max(1, Math.min(budgetPermits(), BandPipeline.workingSetBytes(width, precision) / 1024));
+			memory.acquire(needed);
+			permits = needed;
+
+			pipeline.run(bandTMO(), outFile);
+			long t1 = System.nanoTime();
+
+			for(int i = 0; i < STAGES.length; i++){
+				stageNanos[i].addAndGet(pipeline.getStageNanos(i));
+			}
+			pixels.addAndGet((long)width * height);
+			System.out.println(name + " -> " + outFile.getName() + " (" + width + "x" + height + ", streamed, "
+					+ ((t1 - t0) / 1000000) + "ms)");
+		}
+		catch(Exception e) {
+			fail(inFile, e);
+		}
+		catch(OutOfMemoryError e) {
+			// The frame is dropped with this call, so the other files go on
+			fail(inFile, e);
+		}
+		finally {
+			memory.release(permits);
+		}
+	}
+
+	private void fail(File inFile, Throwable e){
+		failures.incrementAndGet();
+		System.out.println("Failed " + inFile + ": " + e);
+	}
+
+	private BandTMOInterface bandTMO(){
+		switch(operator){
+			case LINEAR: return new Linear.Bands();
+			case LOG: return new Log.Bands();
+			default: return new Drago.Bands(bias);
+		}
+	}
+
+	private HDRFrame tonemap(HDRFrame frame){
+		switch(operator){
+			case LINEAR:
+				return new Linear(frame, null).tonemap();
+			case LOG:
+				return new Log(frame, null).tonemap();
+			case DRAGO:
+				return new Drago(frame, null).tonemap(bias);
+			default:
+				// Frames too small to tile, or whose working set fits the budget of a job, run whole
+				if(tiled && TiledFattal.isNeeded(frame.getWidth(), frame.getHeight(), memoryBudget / jobs)){
+					TiledFattal tiledFattal = new TiledFattal(frame, memoryBudget / jobs);
+					tiledFattal.setPDESolver(pdeSolver);
+					return tiledFattal.tonemap(alpha, beta, saturation, noise);
+				}
+				Fattal fattal = new Fattal(frame, null);
+				fattal.setPDESolver(pdeSolver);
+				return fattal.tonemap(alpha, beta, saturation, noise);
+		}
+	}
+
+	// Rough upper estimate of the bytes held while a frame of size pixels is read and tone mapped:
+	// the input frame plus the working channels of the operator in the frame precision, the channels
+	// that are always double (Fattal's divergence, Poisson solution and multigrid levels) and the
+	// packed output image.
+	// Tiled Fattal holds the input and output frames plus its share of the budget.
+	private long workingSetBytes(long size){
+		int sampleBytes;
+		switch(precision){
+			case FLOAT: sampleBytes = 4; break;
+			case HALF: sampleBytes = 2; break;
+			// Mapped samples live outside the heap
+			case MAPPED: sampleBytes = 0; break;
+			default: sampleBytes = 8; break;
+		}
+		if(tiled){
+			return size * 6 * sampleBytes + memoryBudget / jobs;
+		}
+
+		int samples, doubles;
+		switch(operator){
+			case FATTAL: samples = 12; doubles = 8; break;
+			default: samples = 6; doubles = 0; break;
+		}
+		return size * (samples * sampleBytes + doubles * 8 + 4);
+	}
+
+	private int budgetPermits(){
+		return (int)Math.min(Integer.MAX_VALUE, memoryBudget / 1024);
+	}
+
+	private void report(long wallNanos){
+		int files = inputs.size() - failures.get();
+		double megapixels = pixels.get() / 1e6;
+		double seconds = wallNanos / 1e9;
+
+		System.out.println(String.format("Batch %s: %d files (%d failed), %.1f MP in %.2fs, %.2f files/s, %.2f MP/s",
+				operator, files, failures.get(), megapixels, seconds, files / seconds, megapixels / seconds));
+
+		// Stage throughput over the time spent in that stage, summed over all jobs
+		for(int i = 0; i < STAGES.length; i++){
+			double stageSeconds = stageNanos[i].get() / 1e9;
+			System.out.println(String.format("  %-8s %8.2fs  %8.2f MP/s", STAGES[i], stageSeconds,
+					stageSeconds > 0 ? megapixels / stageSeconds : 0.0));
+		}
+	}
+}
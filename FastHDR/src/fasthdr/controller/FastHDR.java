@@ -24,16 +24,20 @@ package fasthdr.controller;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.swing.SwingUtilities;
 
 import fasthdr.colorspace.ColorSpaceConverter;
 import fasthdr.exception.MalformedFileException;
 import fasthdr.exception.UnknownColorSpaceException;
+import fasthdr.io.FileFormatInterface;
 import fasthdr.io.FileOpenTypeFilter;
 import fasthdr.io.PFS;
 import fasthdr.io.RGBE;
+import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
+import fasthdr.util.PreprocessCache;
 import fasthdr.view.FastHDRFrame;
 import fasthdr.view.ImagePanel;
 
@@ -41,24 +45,110 @@ public class FastHDR {
 	
 	private static File imageFile = null;
 	private static HDRFrame imageFrame = null; // Reference can be set but the data within this frame should never be changed
+	// File of imageFrame, hashed into cacheKey on the first getCacheKey(imageFrame)
+	private static File frameFile = null;
+	private static String cacheKey = null;
 	
 	private static ImagePanel imagePanel;
 	
+	// Storage precision of frames read by setFile. Defaults to -Dfasthdr.precision=DOUBLE|FLOAT|HALF
+	public static final String PRECISION_PROPERTY = "fasthdr.precision";
+	private static HDRChannel.Precision precision = defaultPrecision();
+	
+	private static HDRChannel.Precision defaultPrecision(){
+		String property = System.getProperty(PRECISION_PROPERTY);
+		if(property != null){
+			try { return HDRChannel.Precision.valueOf(property.trim().toUpperCase()); }
+			catch(IllegalArgumentException e) { System.out.println("Invalid " + PRECISION_PROPERTY + " value: " + property); }
+		}
+		return HDRChannel.Precision.DOUBLE;
+	}
+	
+	public static HDRChannel.Precision getPrecision(){
+		return precision;
+	}
+	
+	// Applies to the next file opened
+	public static void setPrecision(HDRChannel.Precision p){
+		precision = p;
+	}
+	
 	public static void setFile(File file) throws FileNotFoundException, IOException, MalformedFileException{
-		imageFile = file;
+		HDRFrame frame = readFrame(file, precision);
+		synchronized(FastHDR.class){
+			imageFile = file;
+			if(frame != null){
+				imageFrame = frame;
+				frameFile = file;
+				cacheKey = null;
+			}
+		}
+	}
+	
+	// Identifies the content and precision of frame for the PreprocessCache, or null if frame is no
+	// longer the current frame or the cache is disabled. The file is only hashed on the first call
+	// (from the TMO's preprocessing, off the event dispatch thread), never when it is opened.
+	public static String getCacheKey(HDRFrame frame){
+		File file;
+		synchronized(FastHDR.class){
+			if(frame == null || frame != imageFrame || !PreprocessCache.getShared().isEnabled()){
+				return null;
+			}
+			if(cacheKey != null){
+				return cacheKey;
+			}
+			file = frameFile;
+		}
 		
+		// Hashed outside the lock so opening the next file never waits for it. Two first calls at
+		// once only hash the file twice.
+		String key;
+		try {
+			key = PreprocessCache.hashFile(file) + "-" + frame.getPrecision();
+		}
+		catch(IOException e) {
+			System.out.println("Cannot hash " + file + ": " + e.getMessage());
+			return null;
+		}
+		synchronized(FastHDR.class){
+			if(frame == imageFrame){ cacheKey = key; }
+		}
+		return key;
+	}
+	
+	// Reader for the file's extension, or null if the format is not supported
+	public static FileFormatInterface getFormat(File file){
 		String fileExtension = FileOpenTypeFilter.getExtension(file);
 		if(fileExtension != null){
 			if(fileExtension.equals(PFS.getFormatType())){
-				imageFrame = new PFS().read(imageFile);
+				return new PFS();
 			}
 			else if(fileExtension.equals(RGBE.getFormatType())){
-				imageFrame = new RGBE().read(imageFile);
-				try {
-					ColorSpaceConverter.convertRGBtoXYZ(imageFrame, ColorSpaceConverter.SRGB, ColorSpaceConverter.CIE_XYZ_2DEGREE);
-				} catch (UnknownColorSpaceException e) {
-					e.printStackTrace();
-				}
+				return new RGBE();
+			}
+		}
+		return null;
+	}
+	
+	// Reads file into a frame with X, Y, Z channels. Returns null if the format is not supported.
+	public static HDRFrame readFrame(File file, HDRChannel.Precision p) throws FileNotFoundException, IOException, MalformedFileException{
+		FileFormatInterface format = getFormat(file);
+		if(format == null){
+			return null;
+		}
+		
+		HDRFrame frame = format.read(file, p);
+		convertToXYZ(format, frame);
+		return frame;
+	}
+	
+	// Converts a frame (or band) read by format to X, Y, Z in place. PFS is already X, Y, Z.
+	public static void convertToXYZ(FileFormatInterface format, HDRFrame frame){
+		if(format instanceof RGBE){
+			try {
+				ColorSpaceConverter.convertRGBtoXYZ(frame, ColorSpaceConverter.SRGB, ColorSpaceConverter.CIE_XYZ_2DEGREE);
+			} catch (UnknownColorSpaceException e) {
+				e.printStackTrace();
 			}
 		}
 	}
@@ -79,7 +169,12 @@ public class FastHDR {
 		return imagePanel;
 	}
 	
+	// "batch" as the first argument runs the headless batch tone mapper instead of the GUI
 	public static void main(String[] args) {
+		if(args.length > 0 && args[0].equals(Batch.COMMAND)){
+			System.exit(Batch.run(Arrays.copyOfRange(args, 1, args.length)));
+		}
+		
 		final FastHDRFrame frame = new FastHDRFrame();
 		
 		SwingUtilities.invokeLater(new Runnable() {
@@ -16,42 +16,32 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
     
     Email: ed.duong@gmail.com
-    Reference: pfstmo library, 
-    http://www.java2s.com/Code/Java/2D-Graphics-GUI/ConvertjavaawtimageBufferedImagetojavaawtImage.htm
+    Reference: pfstmo library
 */
 
-package fasthdr.io;/*
+package fasthdr.io;
 
-Java Media APIs: Cross-Platform Imaging, Media and Visualization
-Alejandro Terrazas
-Sams, Published November 2002, 
-ISBN 0672320940
-*/
-
-import java.awt.Component;
-import java.awt.Graphics;
-import java.awt.Image;
-import java.awt.MediaTracker;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
-public class BufferedImageConverter {
-	static public BufferedImage createBufferedImage(Image imageIn, Component comp) {
-		return createBufferedImage(imageIn, BufferedImage.TYPE_INT_ARGB, comp);
-	}
-
-	static public BufferedImage createBufferedImage(Image imageIn, int imageType, Component comp) {
-		MediaTracker mt = new MediaTracker(comp);
-		mt.addImage(imageIn, 0);
-		try {
-			mt.waitForID(0);
-		} 
-		catch (InterruptedException ie) {
-			ie.printStackTrace();
-		}
-		BufferedImage bufferedImageOut = new BufferedImage(imageIn.getWidth(null), imageIn.getHeight(null), imageType);
-		Graphics g = bufferedImageOut.getGraphics();
-		g.drawImage(imageIn, 0, 0, null);
+import fasthdr.model.HDRChannel;
+import fasthdr.util.Parallel;
 
+public class BufferedImageConverter {
+	// Packs tone mapped R, G, B channels (0-255) straight into the pixels of an RGB image.
+	// Needs no Component, so it also works headless.
+	static public BufferedImage createBufferedImage(final HDRChannel rChannel, final HDRChannel gChannel, final HDRChannel bChannel) {
+		BufferedImage bufferedImageOut = new BufferedImage(rChannel.getWidth(), rChannel.getHeight(), BufferedImage.TYPE_INT_RGB);
+		final int[] pixels = ((DataBufferInt)bufferedImageOut.getRaster().getDataBuffer()).getData();
+		
+		Parallel.range(0, rChannel.getSize() - 1, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				for(int i = start; i <= end; i++){
+					pixels[i] = ((int)rChannel.get(i)<<16) | ((int)gChannel.get(i)<<8) | (int)bChannel.get(i);
+				}
+			}
+		});
+		
 		return bufferedImageOut;
 	}
 }
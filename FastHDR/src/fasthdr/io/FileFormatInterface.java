@@ -24,9 +24,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import fasthdr.exception.MalformedFileException;
+import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
 
 public interface FileFormatInterface  {
 	public HDRFrame read(File infile) throws IOException, MalformedFileException, FileNotFoundException;
-	public void write(File outfile);
+	// Read into channels stored in the given precision
+	public HDRFrame read(File infile, HDRChannel.Precision precision) throws IOException, MalformedFileException, FileNotFoundException;
+	// Width and height from the header, without reading the pixels
+	public int[] readDimensions(File infile) throws IOException, MalformedFileException, FileNotFoundException;
+	// Band by band reader in the given precision, the file stays open until the reader is closed
+	public ScanlineReaderInterface openScanlines(File infile, HDRChannel.Precision precision) throws IOException, MalformedFileException, FileNotFoundException;
+	// Writes the frame, replacing outfile
+	public void write(File outfile, HDRFrame frame) throws IOException;
 }
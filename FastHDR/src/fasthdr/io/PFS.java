@@ -24,10 +24,16 @@ package fasthdr.io;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 
@@ -35,7 +41,9 @@ import fasthdr.exception.MalformedFileException;
 import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
 import fasthdr.model.HDRTag;
+import fasthdr.model.MappedFloatStorage;
 import fasthdr.util.DataTypeConverter;
+import fasthdr.util.Parallel;
 
 public class PFS implements FileFormatInterface {
 	
@@ -52,18 +60,25 @@ public class PFS implements FileFormatInterface {
 	public static final int NEW_LINE = 0x0a;
 	
 	public static final String FORMAT_TYPE = "pfs";
+	
+	// Largest region of channel data mapped at once
+	public static final long MAX_MAP_BYTES = 1L << 28;
+	
+	// Channel data encoded per write
+	public static final int WRITE_BLOCK_BYTES = 1 << 20;
 
 	public static String getFormatType() {
 		return FORMAT_TYPE;
 	}
 	
 	public HDRFrame read(File infile) throws IOException, MalformedFileException, FileNotFoundException {
+		return read(infile, HDRChannel.Precision.DOUBLE);
+	}
+	
+	public HDRFrame read(File infile, HDRChannel.Precision precision) throws IOException, MalformedFileException, FileNotFoundException {
 		
 		// Init.
 		FileInputStream fileInputStream = null;
-		//InputStreamReader inputStreamReader = null;
-		String line = null;
-		StringTokenizer strTok = null;
 		
 		try{
 			// Check that infile is not null.
@@ -73,89 +88,37 @@ public class PFS implements FileFormatInterface {
 			
 			// Setup file reader.
 			fileInputStream = new FileInputStream(infile);
-			//inputStreamReader = new InputStreamReader(fileInputStream, Charset.forName("UTF-8"));
-			
-			// Get header.
-			line = readLine(fileInputStream);
-			if( !line.equals(HEADER) ){
-				throw new MalformedFileException("File is missing header.");
-			}
-			
-			// Get pixel width and height.
-			int width, height;
-			strTok = new StringTokenizer(readLine(fileInputStream), " ");
-			if(strTok.countTokens() == 2){
-				width = Integer.parseInt(strTok.nextToken());
-				height = Integer.parseInt(strTok.nextToken());
-				if(width < MIN_RESOLUTION || width > MAX_RESOLUTION || height < MIN_RESOLUTION || height > MAX_RESOLUTION){
-					throw new MalformedFileException("Invalid width and/or height value(s).");
-				}
-			}
-			else{
-				throw new MalformedFileException("Missing width and/or height value(s).");
-			}
 			
-			// Get channel count.
-			strTok = new StringTokenizer(readLine(fileInputStream), " ");
-			int channelCount = Integer.parseInt(strTok.nextToken());
-			if(channelCount < MIN_CHANNEL_COUNT || channelCount > MAX_CHANNEL_COUNT){
-				throw new MalformedFileException("Invalid channel count.");
-			}
-			
-			// Create frame
-			HDRFrame frame = new HDRFrame(width, height);
+			ArrayList<String> channelNames = new ArrayList<String>();
+			ArrayList<Hashtable<String, HDRTag>> channelTags = new ArrayList<Hashtable<String, HDRTag>>();
+			HDRFrame frame = readHeader(fileInputStream, infile, precision, channelNames, channelTags);
+			int width = frame.getWidth();
+			int height = frame.getHeight();
+			int channelCount = channelNames.size();
 			
-			// Get frame tags
-			frame.setTags(readTags(fileInputStream));
+			// Channel data follows the header, one channel after another
+			long position = fileInputStream.getChannel().position();
+			long channelBytes = 4L * width * height;
 			
-			// Get channels names and tags.
-			ArrayList<String> channelNames = new ArrayList<String>();
-			for(int i=0; i<channelCount; i++){
-				line = readLine(fileInputStream);
-				if(line.length() < MIN_CHANNEL_NAME_LENGTH || line.length() > MAX_CHANNEL_NAME_LENGTH){
-					throw new MalformedFileException("Invalid channel name length.");
-				}
-				else{
-					// Create channel
-					HDRChannel channel = frame.addChannel(line);
-					channelNames.add(line);
-					
-					// Get channel tags
-					channel.setTags(readTags(fileInputStream));
+			// Map the channel data straight from the file, it is only copied if a channel is modified
+			if(precision == HDRChannel.Precision.MAPPED){
+				for(int i = 0; i < channelCount; i++){
+					HDRChannel channel = frame.addChannel(new HDRChannel(width, height, channelNames.get(i),
+							MappedFloatStorage.map(infile, position + i * channelBytes, width * height)));
+					channel.setTags(channelTags.get(i));
 				}
+				return frame;
 			}
 			
-			// End of header.
-			byte headerEnd[] = new byte[4];
-			fileInputStream.read(headerEnd, 0, 4);
-			if(!new String(headerEnd, Charset.forName("UTF-8")).equals(END_HEADER)){
-				throw new MalformedFileException("Invalid end of header.");
+			// Create channels
+			HDRChannel[] channels = new HDRChannel[channelCount];
+			for(int i = 0; i < channelCount; i++){
+				channels[i] = frame.addChannel(channelNames.get(i));
+				channels[i].setTags(channelTags.get(i));
 			}
 			
 			// Get channel data
-			for(String channelName: channelNames){
-				
-				// Channel data
-				HDRChannel channel = frame.getChannels().get(channelName);
-				double data[] = channel.getData();
-				
-				// Read channel data row by row
-				for(int j = 0; j < channel.getHeight(); j++){
-					byte buf[] = new byte[channel.getWidth() * 4];
-					fileInputStream.read(buf, 0, buf.length);
-					
-					// For each 4 elements in buf, convert it to a single float element
-					for(int k = 0; k < channel.getWidth(); k++){
-						byte bufPart[] = new byte[4];
-						bufPart[0] = (byte)buf[(k * 4)];
-						bufPart[1] = (byte)buf[(k * 4) + 1];
-						bufPart[2] = (byte)buf[(k * 4) + 2];
-						bufPart[3] = (byte)buf[(k * 4) + 3];
-						// Cast to double for increased arithmetic precision
-						data[j * channel.getWidth() + k] = (double)DataTypeConverter.cFloatToJavaFloat(bufPart);
-					}
-				}
-			}
+			readChannelData(fileInputStream.getChannel(), position, channelBytes, channels, width, height);
 			
 			fileInputStream.close();
 			fileInputStream = null;
@@ -169,6 +132,206 @@ public class PFS implements FileFormatInterface {
 		}
 	}
 	
+	// Reads the header up to the channel data. Returns a frame with the size and frame tags but no
+	// channels; the channel names and tags are added to the lists.
+	private static HDRFrame readHeader(FileInputStream fileInputStream, File infile, HDRChannel.Precision precision,
+			ArrayList<String> channelNames, ArrayList<Hashtable<String, HDRTag>> channelTags) throws IOException, MalformedFileException{
+		String line = null;
+		StringTokenizer strTok = null;
+		
+		// Get header.
+		line = readLine(fileInputStream);
+		if( !line.equals(HEADER) ){
+			throw new MalformedFileException("File is missing header.");
+		}
+		
+		// Get pixel width and height.
+		int width, height;
+		strTok = new StringTokenizer(readLine(fileInputStream), " ");
+		if(strTok.countTokens() == 2){
+			width = Integer.parseInt(strTok.nextToken());
+			height = Integer.parseInt(strTok.nextToken());
+			if(width < MIN_RESOLUTION || width > MAX_RESOLUTION || height < MIN_RESOLUTION || height > MAX_RESOLUTION){
+				throw new MalformedFileException("Invalid width and/or height value(s).");
+			}
+		}
+		else{
+			throw new MalformedFileException("Missing width and/or height value(s).");
+		}
+		
+		// Get channel count.
+		strTok = new StringTokenizer(readLine(fileInputStream), " ");
+		int channelCount = Integer.parseInt(strTok.nextToken());
+		if(channelCount < MIN_CHANNEL_COUNT || channelCount > MAX_CHANNEL_COUNT){
+			throw new MalformedFileException("Invalid channel count.");
+		}
+		
+		// Create frame
+		HDRFrame frame = new HDRFrame(width, height, precision);
+		
+		// Get frame tags
+		frame.setTags(readTags(fileInputStream));
+		
+		// Get channels names and tags.
+		for(int i=0; i<channelCount; i++){
+			line = readLine(fileInputStream);
+			if(line.length() < MIN_CHANNEL_NAME_LENGTH || line.length() > MAX_CHANNEL_NAME_LENGTH){
+				throw new MalformedFileException("Invalid channel name length.");
+			}
+			else{
+				channelNames.add(line);
+				
+				// Get channel tags
+				channelTags.add(readTags(fileInputStream));
+			}
+		}
+		
+		// End of header.
+		byte headerEnd[] = new byte[4];
+		fileInputStream.read(headerEnd, 0, 4);
+		if(!new String(headerEnd, Charset.forName("UTF-8")).equals(END_HEADER)){
+			throw new MalformedFileException("Invalid end of header.");
+		}
+		
+		long position = fileInputStream.getChannel().position();
+		if(position + 4L * width * height * channelCount > infile.length()){
+			throw new MalformedFileException("Not enough channel data.");
+		}
+		
+		return frame;
+	}
+	
+	public ScanlineReaderInterface openScanlines(File infile, final HDRChannel.Precision precision) throws IOException, MalformedFileException, FileNotFoundException {
+		if(infile == null){
+			throw new FileNotFoundException("File object is null.");
+		}
+		
+		final FileInputStream fileInputStream = new FileInputStream(infile);
+		try{
+			final ArrayList<String> channelNames = new ArrayList<String>();
+			ArrayList<Hashtable<String, HDRTag>> channelTags = new ArrayList<Hashtable<String, HDRTag>>();
+			final HDRFrame header = readHeader(fileInputStream, infile, precision, channelNames, channelTags);
+			final long position = fileInputStream.getChannel().position();
+			
+			return new ScanlineReaderInterface(){
+				public int getWidth(){
+					return header.getWidth();
+				}
+				
+				public int getHeight(){
+					return header.getHeight();
+				}
+				
+				public HDRFrame readBand(int row, int rows) throws IOException, MalformedFileException{
+					int width = header.getWidth();
+					HDRFrame band = new HDRFrame(width, rows, precision);
+					HDRChannel[] channels = new HDRChannel[channelNames.size()];
+					for(int i = 0; i < channels.length; i++){
+						channels[i] = band.addChannel(channelNames.get(i));
+					}
+					readChannelData(fileInputStream.getChannel(), position + 4L * width * row,
+							4L * width * header.getHeight(), channels, width, rows);
+					return band;
+				}
+				
+				public void close() throws IOException{
+					fileInputStream.close();
+				}
+			};
+		}
+		catch(IOException e){
+			fileInputStream.close();
+			throw e;
+		}
+		catch(MalformedFileException e){
+			fileInputStream.close();
+			throw e;
+		}
+	}
+	
+	// Decodes rows of the little endian float payload of every channel into the channel storage.
+	// position is the first row of the first channel and channelStride the bytes from one channel to
+	// the next. The payload is mapped in bands of whole rows and viewed as a FloatBuffer, so there is
+	// no per pixel allocation or byte shuffling. Bands of all channels are decoded in parallel.
+	private static void readChannelData(final FileChannel fileChannel, final long position, final long channelStride,
+			final HDRChannel[] channels, final int width, final int height) throws IOException{
+		final long rowBytes = 4L * width;
+		final int bandRows = (int)Math.max(1, MAX_MAP_BYTES / rowBytes);
+		final IOException[] error = new IOException[1];
+		
+		// Rows of all channels, channel after channel
+		Parallel.rows(0, channels.length * height - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int row = a;
+				while(row <= b){
+					int c = row / height;
+					int y = row % height;
+					int rows = Math.min(Math.min(bandRows, height - y), b - row + 1);
+					try {
+						FloatBuffer floats = fileChannel.map(FileChannel.MapMode.READ_ONLY,
+								position + c * channelStride + y * rowBytes, rows * rowBytes)
+								.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+						decode(floats, channels[c], y * width, rows * width);
+					}
+					catch(IOException e) {
+						synchronized(error){ error[0] = e; }
+						return;
+					}
+					row += rows;
+				}
+			}
+		});
+		
+		if(error[0] != null){
+			throw error[0];
+		}
+	}
+	
+	// Copies count floats into channel starting at offset
+	private static void decode(FloatBuffer floats, HDRChannel channel, int offset, int count){
+		switch(channel.getPrecision()){
+			case FLOAT:
+				floats.get(channel.getFloatData(), offset, count);
+				break;
+			case HALF:
+				short[] halfData = channel.getHalfData();
+				for(int i = 0; i < count; i++){
+					halfData[offset + i] = DataTypeConverter.floatToHalf(floats.get(i));
+				}
+				break;
+			default:
+				double[] data = channel.getData();
+				for(int i = 0; i < count; i++){
+					data[offset + i] = floats.get(i);
+				}
+				break;
+		}
+	}
+	
+	public int[] readDimensions(File infile) throws IOException, MalformedFileException, FileNotFoundException {
+		if(infile == null){
+			throw new FileNotFoundException("File object is null.");
+		}
+		
+		FileInputStream fileInputStream = new FileInputStream(infile);
+		try{
+			if( !readLine(fileInputStream).equals(HEADER) ){
+				throw new MalformedFileException("File is missing header.");
+			}
+			StringTokenizer strTok = new StringTokenizer(readLine(fileInputStream), " ");
+			if(strTok.countTokens() != 2){
+				throw new MalformedFileException("Missing width and/or height value(s).");
+			}
+			return new int[]{Integer.parseInt(strTok.nextToken()), Integer.parseInt(strTok.nextToken())};
+		}
+		catch(NumberFormatException e){
+			throw new MalformedFileException("Invalid width and/or height value(s).");
+		}
+		finally{
+			fileInputStream.close();
+		}
+	}
+	
 	public static String readLine(InputStreamReader inputStreamReader) throws IOException{
 		StringBuffer sb = new StringBuffer();
 		char c;
@@ -221,7 +384,113 @@ public class PFS implements FileFormatInterface {
 		return tags;
 	}
 
-	public void write(File outfile) {
-		// TODO Future work...
+	// Writes every channel of the frame as 32-bit floats, X, Y, Z first as pfstools does.
+	// The header is written first, then blocks of rows are encoded in parallel and written at
+	// their own position in the file.
+	public void write(File outfile, HDRFrame frame) throws IOException {
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		HDRChannel[] channels = channelOrder(frame);
+		
+		StringBuilder header = new StringBuilder();
+		header.append(HEADER).append('\n');
+		header.append(width).append(' ').append(height).append('\n');
+		header.append(channels.length).append('\n');
+		appendTags(header, frame.getTags());
+		for(HDRChannel channel : channels){
+			header.append(channel.getName()).append('\n');
+			appendTags(header, channel.getTags());
+		}
+		header.append(END_HEADER);
+		
+		FileOutputStream fileOutputStream = new FileOutputStream(outfile);
+		try{
+			FileChannel fileChannel = fileOutputStream.getChannel();
+			ByteBuffer headerBuffer = ByteBuffer.wrap(header.toString().getBytes("US-ASCII"));
+			while(headerBuffer.hasRemaining()){
+				fileChannel.write(headerBuffer);
+			}
+			writeChannelData(fileChannel, headerBuffer.limit(), 4L * width * height, channels, width, height);
+		}
+		finally{
+			fileOutputStream.close();
+		}
+	}
+	
+	// X, Y, Z, then the other channels by name
+	private static HDRChannel[] channelOrder(HDRFrame frame){
+		ArrayList<String> names = new ArrayList<String>(frame.getChannels().keySet());
+		Collections.sort(names);
+		String[] first = {"Z", "Y", "X"};
+		for(String name : first){
+			if(names.remove(name)){ names.add(0, name); }
+		}
+		
+		HDRChannel[] channels = new HDRChannel[names.size()];
+		for(int i = 0; i < channels.length; i++){
+			channels[i] = frame.getChannel(names.get(i));
+		}
+		return channels;
+	}
+	
+	private static void appendTags(StringBuilder header, Hashtable<String, HDRTag> tags){
+		if(tags == null){
+			header.append("0\n");
+			return;
+		}
+		header.append(tags.size()).append('\n');
+		for(HDRTag tag : tags.values()){
+			header.append(tag.getName()).append('=').append(tag.getValue()).append('\n');
+		}
+	}
+	
+	// Writes the channels one after another from position, in the same row bands as the reader
+	private static void writeChannelData(final FileChannel fileChannel, final long position, final long channelStride,
+			final HDRChannel[] channels, final int width, final int height) throws IOException{
+		final long rowBytes = 4L * width;
+		final int bandRows = (int)Math.max(1, WRITE_BLOCK_BYTES / rowBytes);
+		final IOException[] error = new IOException[1];
+		
+		// Rows of all channels, channel after channel
+		Parallel.rows(0, channels.length * height - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				ByteBuffer block = ByteBuffer.allocate((int)(bandRows * rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+				int row = a;
+				while(row <= b){
+					int c = row / height;
+					int y = row % height;
+					int rows = Math.min(Math.min(bandRows, height - y), b - row + 1);
+					
+					block.clear();
+					encode(channels[c], y * width, rows * width, block.asFloatBuffer());
+					block.limit((int)(rows * rowBytes));
+					try {
+						long filePosition = position + c * channelStride + y * rowBytes;
+						while(block.hasRemaining()){
+							filePosition += fileChannel.write(block, filePosition);
+						}
+					}
+					catch(IOException e) {
+						synchronized(error){ error[0] = e; }
+						return;
+					}
+					row += rows;
+				}
+			}
+		});
+		
+		if(error[0] != null){
+			throw error[0];
+		}
+	}
+	
+	private static void encode(HDRChannel channel, int offset, int count, FloatBuffer floats){
+		if(channel.getPrecision() == HDRChannel.Precision.FLOAT){
+			floats.put(channel.getFloatData(), offset, count);
+			return;
+		}
+		for(int i = 0; i < count; i++){
+			floats.put(i, (float)channel.get(offset + i));
+		}
 	}
 }
@@ -0,0 +1,159 @@
+/*
+	Streaming PNG writer
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import fasthdr.model.HDRChannel;
+
+// Writes an 8-bit RGB PNG a band of rows at a time, so the full image is never held in memory.
+// Rows use the Paeth filter, only the previous row is kept.
+public class PNGWriter {
+	
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int FILTER_PAETH = 4;
+	
+	private final DataOutputStream out;
+	private final int width;
+	private final int height;
+	private final Deflater deflater = new Deflater();
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private final CRC32 crc = new CRC32();
+	
+	private byte[] previous;
+	private byte[] current;
+	private byte[] filtered;
+	private int rowsWritten = 0;
+	
+	public PNGWriter(File file, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		previous = new byte[width * 3];
+		current = new byte[width * 3];
+		filtered = new byte[width * 3 + 1];
+		
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE));
+		try {
+			out.write(SIGNATURE);
+			byte[] header = new byte[13];
+			putInt(header, 0, width);
+			putInt(header, 4, height);
+			header[8] = 8;	// Bit depth
+			header[9] = 2;	// Truecolor
+			writeChunk("IHDR", header, header.length);
+		}
+		catch(IOException e){
+			out.close();
+			throw e;
+		}
+	}
+	
+	// Appends the rows of r, g, b (0-255), whose width must match the image
+	public void writeRows(HDRChannel r, HDRChannel g, HDRChannel b) throws IOException {
+		int rows = r.getHeight();
+		if(r.getWidth() != width || rowsWritten + rows > height){
+			throw new IllegalArgumentException("Rows do not fit the image");
+		}
+		
+		int i = 0;
+		for(int y = 0; y < rows; y++){
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+			
+			// Packed as the image panel packs pixels, so out of range values come out the same
+			for(int x = 0, p = 0; x < width; x++, i++){
+				int pixel = ((int)r.get(i)<<16) | ((int)g.get(i)<<8) | (int)b.get(i);
+				current[p++] = (byte)(pixel >> 16);
+				current[p++] = (byte)(pixel >> 8);
+				current[p++] = (byte)pixel;
+			}
+			
+			filtered[0] = FILTER_PAETH;
+			for(int p = 0; p < current.length; p++){
+				int left = p >= 3 ? current[p - 3] & 0xFF : 0;
+				int up = rowsWritten > 0 ? previous[p] & 0xFF : 0;
+				int upLeft = p >= 3 && rowsWritten > 0 ? previous[p - 3] & 0xFF : 0;
+				filtered[p + 1] = (byte)(current[p] - paeth(left, up, upLeft));
+			}
+			deflater.setInput(filtered);
+			while(!deflater.needsInput()){ deflate(); }
+			rowsWritten++;
+		}
+	}
+	
+	// Finishes the image, every row must have been written
+	public void close() throws IOException {
+		try {
+			if(rowsWritten != height){
+				throw new IOException("Only " + rowsWritten + " of " + height + " rows written");
+			}
+			deflater.finish();
+			while(!deflater.finished()){ deflate(); }
+			writeChunk("IEND", chunk, 0);
+		}
+		finally {
+			deflater.end();
+			out.close();
+		}
+	}
+	
+	// Writes one IDAT chunk of compressed data, if the deflater has any
+	private void deflate() throws IOException {
+		int length = deflater.deflate(chunk);
+		if(length > 0){ writeChunk("IDAT", chunk, length); }
+	}
+	
+	private void writeChunk(String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		crc.reset();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+	
+	private static int paeth(int left, int up, int upLeft){
+		int p = left + up - upLeft;
+		int pLeft = Math.abs(p - left);
+		int pUp = Math.abs(p - up);
+		int pUpLeft = Math.abs(p - upLeft);
+		if(pLeft <= pUp && pLeft <= pUpLeft){ return left; }
+		if(pUp <= pUpLeft){ return up; }
+		return upLeft;
+	}
+	
+	private static void putInt(byte[] buffer, int offset, int value){
+		buffer[offset] = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+}
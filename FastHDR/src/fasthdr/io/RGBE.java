@@ -24,213 +24,578 @@ package fasthdr.io;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+import fasthdr.colorspace.ColorSpaceConverter;
 import fasthdr.exception.MalformedFileException;
+import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
+import fasthdr.util.Parallel;
 
 public class RGBE implements FileFormatInterface {
 
 	public static final double WHITE_EFFICACY = 179.0;
 	public static final String FORMAT_TYPE = "hdr";
+	
+	// Largest region of the file mapped at once
+	public static final long MAX_MAP_BYTES = 1L << 30;
+	
+	// Pixels of scanlines encoded by one task, and encoded chunks gathered into one write
+	public static final int WRITE_CHUNK_PIXELS = 1 << 16;
+	public static final int WRITE_GROUP_CHUNKS = 64;
+	
+	// Inverse of the exponent table with exposure 1: values are divided by it before the usual
+	// float to RGBE conversion, so the reader gives back the written values
+	private static final double WRITE_SCALE = Math.pow(2, 16) * WHITE_EFFICACY;
 
+	private final long mapBytes;
+	
+	public RGBE(){
+		this(MAX_MAP_BYTES);
+	}
+	
+	// mapBytes: largest region of the file mapped at once (smaller windows exercise the window
+	// boundaries without multi GB files)
+	RGBE(long mapBytes){
+		this.mapBytes = mapBytes;
+	}
+	
 	public static String getFormatType() {
 		return FORMAT_TYPE;
 	}
 	
-	private double[] readRadianceHeader(File infile) throws MalformedFileException{
+	// The file mapped read-only in windows of at most mapBytes. Consecutive windows overlap by margin
+	// bytes, so a scanline (never longer than the margin) starting in a window ends in it as well.
+	// Scanlines are indexed by their offset in the file.
+	private static class MappedFile {
+		
+		private final long size;
+		private final long step;
+		private final ByteBuffer[] windows;
+		
+		public MappedFile(File infile, long mapBytes, long margin) throws IOException, MalformedFileException{
+			if(margin >= mapBytes){
+				throw new MalformedFileException("RGBE: scanlines are too wide.");
+			}
+			FileInputStream fis = new FileInputStream(infile);
+			try{
+				FileChannel fileChannel = fis.getChannel();
+				size = fileChannel.size();
+				step = mapBytes - margin;
+				int count = size <= mapBytes ? 1 : (int)(1 + (size - mapBytes + step - 1) / step);
+				windows = new ByteBuffer[count];
+				for(int k = 0; k < count; k++){
+					long start = k * step;
+					windows[k] = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(mapBytes, size - start));
+				}
+			}
+			finally{
+				// The mappings stay valid after the stream is closed
+				fis.close();
+			}
+		}
+		
+		// Window holding position and the margin bytes after it (or the end of the file)
+		public int window(long position){
+			return (int)Math.min(position / step, windows.length - 1);
+		}
+		
+		// Offset of window k in the file
+		public long start(int k){
+			return k * step;
+		}
+		
+		// Shared buffer of window k, only read with absolute gets
+		public ByteBuffer get(int k){
+			return windows[k];
+		}
+	}
+	
+	// Scanline bytes never exceed a 4 byte header and, per channel, a count byte per pixel and the
+	// pixel, plus the overshoot of the last run
+	private static long maxScanlineBytes(int width){
+		return 8L * width + 4 + 4 * 256;
+	}
+	
+	private double[] readRadianceHeader(File infile) throws MalformedFileException, IOException{
+		return readRadianceHeader(new MappedFile(infile, mapBytes, 0).get(0));
+	}
+	
+	// Maps the file in windows wide enough for the scanlines of header
+	private MappedFile mapFile(File infile, double[] header) throws IOException, MalformedFileException{
+		return new MappedFile(infile, mapBytes, maxScanlineBytes((int)header[0]));
+	}
+	
+	// Returns width, height, exposure and the offset of the first scanline
+	private double[] readRadianceHeader(ByteBuffer buffer) throws MalformedFileException{
 		int format = 0;
 		double exposure = 1.0f;
 		int width = 0;
 		int height = 0;
 		
-		try{
-			FileInputStream fis = new FileInputStream(infile);
-			
-			while(true){
-				String line = readLine(fis).trim();
-				
-				if(line.equals("")){
-					break;
-				}
-			    if(line.equals("#?RADIANCE")){
-			    	// format specifier found
-			    	format = 1;
-			    }
-			    if(line.equals("#?RGBE")){
-			    	// format specifier found
-			    	format = 1;
-			    }
-			    if(line.equals("#?AUTOPANO")){
-			    	// format specifier found
-			    	format = 1;
-			    }
-			    if( line.startsWith("#") ){ // comment found - skip
-			    	continue;
-			    }
-			    if(line.equals("FORMAT=32-bit_rle_rgbe")){
-			    	// header found
-			    	continue;
-			    }
-			    if(line.startsWith("EXPOSURE=")){
-			    	String tokens[] = line.split("EXPOSURE=");
-			    	if(tokens.length > 1){
-			    		// exposure value
-			    		exposure *= Double.parseDouble(tokens[1].trim());
-			    	}
-			    }
+		buffer.position(0);
+		while(true){
+			if(!buffer.hasRemaining()){
+				throw new MalformedFileException("RGBE: header is not terminated.");
 			}
+			String line = readLine(buffer).trim();
 			
-			// ignore wierd exposure adjustments
-			if(exposure > 1e12 || exposure < 1e-12){
-				exposure = 1.0f;
-			}
-			    
-			if(format != 1){
-				throw new MalformedFileException("RGBE format specifier not found. This file may be corrupted or unsupported.");
+			if(line.equals("")){
+				break;
 			}
+		    if(line.equals("#?RADIANCE")){
+		    	// format specifier found
+		    	format = 1;
+		    }
+		    if(line.equals("#?RGBE")){
+		    	// format specifier found
+		    	format = 1;
+		    }
+		    if(line.equals("#?AUTOPANO")){
+		    	// format specifier found
+		    	format = 1;
+		    }
+		    if( line.startsWith("#") ){ // comment found - skip
+		    	continue;
+		    }
+		    if(line.equals("FORMAT=32-bit_rle_rgbe")){
+		    	// header found
+		    	continue;
+		    }
+		    if(line.startsWith("EXPOSURE=")){
+		    	String tokens[] = line.split("EXPOSURE=");
+		    	if(tokens.length > 1){
+		    		// exposure value
+		    		exposure *= Double.parseDouble(tokens[1].trim());
+		    	}
+		    }
+		}
+		
+		// ignore wierd exposure adjustments
+		if(exposure > 1e12 || exposure < 1e-12){
+			exposure = 1.0f;
+		}
+		    
+		if(format != 1){
+			throw new MalformedFileException("RGBE format specifier not found. This file may be corrupted or unsupported.");
+		}
+
+		// image size
+		String line = readLine(buffer).trim();
+		String tokens[] = line.split("\\s");
+		
+		if(tokens.length != 4){
+			throw new MalformedFileException("RGBE: unknown image size");
+		}
+		
+		try{
+			height = Integer.parseInt(tokens[1]);
+			width = Integer.parseInt(tokens[3]);
+		}
+		catch(NumberFormatException e){
+			throw new MalformedFileException("RGBE: unknown image size");
+		}
+		
+		return new double[]{width, height, exposure, buffer.position()};
+	}
 	
-			// image size
-			String line = readLine(fis).trim();
-			String tokens[] = line.split("\\s");
+	// Linear value of each exponent byte, the mantissa bytes are multiplied by it.
+	// Same scale as rgbe2rgb: 2^(e - 128 + 8) * WHITE_EFFICACY / exposure, and 0 for e = 0.
+	private static double[] exponentTable(double exposure){
+		double[] table = new double[256];
+		for(int e = 1; e < 256; e++){
+			table[e] = Math.pow(2, e - 128 + 8) * WHITE_EFFICACY / exposure;
+		}
+		return table;
+	}
+	
+	// Offset of each scanline in the file, found by walking the run headers without decoding them
+	private static long[] indexScanlines(MappedFile file, long offset, int width, int height) throws MalformedFileException{
+		long[] offsets = new long[height];
+		long next = offset;
+		
+		for(int y = 0; y < height; y++){
+			offsets[y] = next;
+			// The scanline is read within the window holding its start
+			int k = file.window(next);
+			ByteBuffer buffer = file.get(k);
+			int limit = buffer.limit();
+			int position = (int)(next - file.start(k));
+			if(position + 4 > limit){
+				throw new MalformedFileException("RGBE: not enough scanlines.");
+			}
 			
-			if(tokens.length != 4){
-				throw new MalformedFileException("RGBE: unknown image size");
+			if(!isRunLengthEncoded(buffer, position, width)){
+				// simple scanline (not rle)
+				position += 4 * width;
+				if(position > limit){
+					throw new MalformedFileException("RGBE: not enough data to read in the simple format.");
+				}
+				next = file.start(k) + position;
+				continue;
 			}
 			
-			try{
-				height = Integer.parseInt(tokens[1]);
-				width = Integer.parseInt(tokens[3]);
+			// rle scanline, each channel is encoded separately
+			position += 4;
+			for(int ch = 0; ch < 4; ch++){
+				int peek = 0;
+				while(peek < width){
+					if(position + 2 > limit){
+						throw new MalformedFileException("RGBE: not enough data to read RLE scanline");
+					}
+					int count = buffer.get(position) & 0xFF;
+					if(count > 128){
+						// a run
+						peek += count - 128;
+						position += 2;
+					}
+					else{
+						// a non-run, at least one byte
+						count = Math.max(count, 1);
+						peek += count;
+						position += 1 + count;
+					}
+				}
+				if(peek != width){
+					throw new MalformedFileException("RGBE: difference in size while reading RLE scanline");
+				}
 			}
-			catch(NumberFormatException e){
-				e.printStackTrace();
+			if(position > limit){
+				throw new MalformedFileException("RGBE: not enough data to read RLE scanline");
 			}
+			next = file.start(k) + position;
 		}
-		catch(IOException e){
-			e.printStackTrace();
-		}
-		
-		return new double[]{width, height, exposure};
+		return offsets;
+	}
+	
+	private static boolean isRunLengthEncoded(ByteBuffer buffer, int position, int width){
+		return (buffer.get(position) & 0xFF) == 2 && (buffer.get(position + 1) & 0xFF) == 2
+				&& ((buffer.get(position + 2) & 0xFF) << 8) + (buffer.get(position + 3) & 0xFF) == width;
 	}
 	
 	public void readRadiance(File infile, int width, int height, double exposure, HDRFrame inframe) throws MalformedFileException, IOException{
-		double[] rData = inframe.getChannel("R").getData();
-		double[] gData = inframe.getChannel("G").getData();
-		double[] bData = inframe.getChannel("B").getData();
-		
-		// read image
-		// depending on format read either rle or normal (note: only rle supported)
-		byte[] scanline = new byte[width * 4];
-		FileInputStream fis = new FileInputStream(infile);
-		
-		// Skip the header
-		while(readLine(fis).trim().isEmpty() == false){}
-		readLine(fis); // Eat an additional line
-		
-		for(int y = 0 ; y < height ; y++){
-		    // read rle header
-		    byte header[] = new byte[4];
-		    fis.read(header, 0, 4);
-		    if(javaSignedByteToInt(header[0]) != 2 || javaSignedByteToInt(header[1]) != 2 || (javaSignedByteToInt(header[2]) <<8 ) + javaSignedByteToInt(header[3]) != width) {
-		    	//--- simple scanline (not rle)
-		    	int byteCount = fis.read(scanline, 4, (4 * width) - 4);
-		    	if(byteCount != (4 * width) - 4){
-		    		throw new MalformedFileException("RGBE: not enough data to read in the simple format.");
-		    	}
-		    	
-		    	//--- yes, we've read one pixel as a header
-		    	scanline[0] = header[0];
-		    	scanline[1] = header[1];
-		    	scanline[2] = header[2];
-		    	scanline[3] = header[3];
+		double[] header = readRadianceHeader(infile);
+		readRadiance(mapFile(infile, header), (long)header[3], width, height, exposure, inframe);
+	}
 	
-		    	//--- write scanline to the image
-		    	for( int x=0 ; x<width ; x++ ) {
-		    		double[] rgb = rgbe2rgb(scanline[4 * x + 0], scanline[4 * x + 1],
-											scanline[4 * x + 2], scanline[4 * x + 3], 
-											exposure);
-		    		
-		    		rData[y * width + x] = rgb[0];
-		    		gData[y * width + x] = rgb[1];
-		    		bData[y * width + x] = rgb[2];
-		    	}
-		    }
-		    else {
-		    	//--- rle scanline
+	// Decodes the scanlines starting at offset into the R, G, B channels. Scanlines are indexed in
+	// one pass, then decoded in parallel.
+	private void readRadiance(MappedFile file, long offset, int width, int height, double exposure, HDRFrame inframe) throws MalformedFileException{
+		long[] offsets = indexScanlines(file, offset, width, height);
+		decodeScanlines(file, offsets, exponentTable(exposure), width, 0, height, inframe);
+	}
 	
-		    	//--- each channel is encoded separately
-		    	for(int ch = 0; ch < 4; ch++){
-		    		int peek = 0;
-		    		while(peek < width){
-		    		    byte[] p = new byte[2];
-		    		    fis.read(p, 0, 2);
-		    		    if(javaSignedByteToInt(p[0]) > 128){
-		    		    	// a run
-		    		    	int run_len = javaSignedByteToInt(p[0]) - 128;
-
-		    		    	while(run_len > 0){
-		    		    		scanline[(width * ch) + peek++] = p[1];
-		    		    		run_len--;
-		    		    	}
-		    		    }
-		    		    else{
-		    		    	// a non-run
-		    		    	scanline[(width * ch) + peek++] = p[1];
-
-		    		    	int nonrun_len = javaSignedByteToInt(p[0]) - 1;
-		    		    	if(nonrun_len > 0){
-		    		    		//if(nonrun_len + peek > width){
-		    		    		//	nonrun_len = width - peek;
-		    		    		//}
-		    		    		fis.read(scanline, (width * ch) + peek, nonrun_len);
-		    		    		peek += nonrun_len;
-		    		    	}
-		    		    }
-		    		}
-		    		if(peek != width){
-		    			throw new MalformedFileException("RGBE: difference in size while reading RLE scanline");
-		    		}
-		    	}
-		    	//--- write scanline to the image
-		    	for(int x = 0 ; x < width ;x++){
-		    		double[] rgb = rgbe2rgb(scanline[x + width * 0], scanline[x + width * 1],
-			 								scanline[x + width * 2], scanline[x + width * 3], 
-			 								exposure);
+	// Decodes scanlines [row, row + rows) into rows 0 to rows - 1 of the frame's R, G, B channels,
+	// each task with its own views of the windows and scanline
+	private static void decodeScanlines(final MappedFile file, final long[] offsets, final double[] scale, 
+			final int width, final int row, int rows, HDRFrame inframe){
+		final HDRChannel rChannel = inframe.getChannel("R");
+		final HDRChannel gChannel = inframe.getChannel("G");
+		final HDRChannel bChannel = inframe.getChannel("B");
+		
+		Parallel.rows(0, rows - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				ByteBuffer view = null;
+				int window = -1;
+				// Channel after channel: r, g, b, e
+				byte[] scanline = new byte[width * 4];
+				double f;
+				int i, k;
+				for(int y = a; y <= b; y++){
+					k = file.window(offsets[row + y]);
+					if(k != window){
+						view = file.get(k).duplicate();
+						window = k;
+					}
+					decodeScanline(view, (int)(offsets[row + y] - file.start(k)), width, scanline);
+					
+					// write scanline to the image
+					for(int x = 0; x < width; x++){
+						f = scale[scanline[x + width * 3] & 0xFF];
+						i = y * width + x;
+						rChannel.set(i, (scanline[x] & 0xFF) * f);
+						gChannel.set(i, (scanline[x + width] & 0xFF) * f);
+						bChannel.set(i, (scanline[x + width * 2] & 0xFF) * f);
+					}
+				}
+			}
+		});
+	}
 	
-					rData[y * width + x] = rgb[0];
-					gData[y * width + x] = rgb[1];
-					bData[y * width + x] = rgb[2];
-		    	}
-		    }
+	// Decodes one indexed scanline into planar r, g, b, e bytes
+	private static void decodeScanline(ByteBuffer view, int position, int width, byte[] scanline){
+		if(!isRunLengthEncoded(view, position, width)){
+			// simple scanline, pixels are interleaved
+			for(int x = 0; x < width; x++){
+				for(int ch = 0; ch < 4; ch++){
+					scanline[(width * ch) + x] = view.get(position++);
+				}
+			}
+			return;
+		}
+		
+		view.position(position + 4);
+		for(int ch = 0; ch < 4; ch++){
+			int peek = (width * ch);
+			int end = peek + width;
+			while(peek < end){
+				int count = view.get() & 0xFF;
+				if(count > 128){
+					// a run
+					byte value = view.get();
+					for(int run = count - 128; run > 0; run--){
+						scanline[peek++] = value;
+					}
+				}
+				else{
+					// a non-run
+					count = Math.max(count, 1);
+					view.get(scanline, peek, count);
+					peek += count;
+				}
+			}
 		}
 	}
 
 	@Override
 	public HDRFrame read(File infile) throws IOException,
 			MalformedFileException, FileNotFoundException {
+		return read(infile, HDRChannel.Precision.DOUBLE);
+	}
+	
+	@Override
+	public HDRFrame read(File infile, HDRChannel.Precision precision) throws IOException,
+			MalformedFileException, FileNotFoundException {
 		
+		// The header is read from the first window, the scanlines from the windows of the whole file
 		double[] header = readRadianceHeader(infile);
+		MappedFile file = mapFile(infile, header);
 		int width = (int)header[0];
 		int height = (int)header[1];
 		double exposure = header[2];
 		
-		HDRFrame returnFrame = new HDRFrame(width, height);
+		HDRFrame returnFrame = new HDRFrame(width, height, precision);
 		returnFrame.addChannel("R");
 		returnFrame.addChannel("G");
 		returnFrame.addChannel("B");
 		
-		readRadiance(infile, width, height, exposure, returnFrame);
-		
-		
+		readRadiance(file, (long)header[3], width, height, exposure, returnFrame);
 		
 		return returnFrame;
 	}
 
 	@Override
-	public void write(File outfile) {
-		// TODO Future Work...
+	public ScanlineReaderInterface openScanlines(File infile, final HDRChannel.Precision precision) throws IOException,
+			MalformedFileException, FileNotFoundException {
+		double[] header = readRadianceHeader(infile);
+		final MappedFile file = mapFile(infile, header);
+		final int width = (int)header[0];
+		final int height = (int)header[1];
+		final double[] scale = exponentTable(header[2]);
+		final long[] offsets = indexScanlines(file, (long)header[3], width, height);
+		
+		return new ScanlineReaderInterface(){
+			public int getWidth(){
+				return width;
+			}
+			
+			public int getHeight(){
+				return height;
+			}
+			
+			public HDRFrame readBand(int row, int rows){
+				HDRFrame band = new HDRFrame(width, rows, precision);
+				band.addChannel("R");
+				band.addChannel("G");
+				band.addChannel("B");
+				decodeScanlines(file, offsets, scale, width, row, rows, band);
+				return band;
+			}
+			
+			// The mappings are released when the buffers are collected
+			public void close(){}
+		};
+	}
+	
+	@Override
+	public int[] readDimensions(File infile) throws IOException,
+			MalformedFileException, FileNotFoundException {
+		double[] header = readRadianceHeader(infile);
+		return new int[]{(int)header[0], (int)header[1]};
+	}
+	
+	// Writes the R, G, B channels, or X, Y, Z converted to sRGB, as run length encoded scanlines.
+	// Groups of scanline chunks are encoded in parallel, then written with one gathering write.
+	@Override
+	public void write(File outfile, HDRFrame frame) throws IOException {
+		final int width = frame.getWidth();
+		final int height = frame.getHeight();
+		final HDRChannel[] channels;
+		final double[][] matrix;
+		if(frame.getChannel("R") != null && frame.getChannel("G") != null && frame.getChannel("B") != null){
+			channels = new HDRChannel[]{frame.getChannel("R"), frame.getChannel("G"), frame.getChannel("B")};
+			matrix = null;
+		}
+		else if(frame.getChannel("X") != null && frame.getChannel("Y") != null && frame.getChannel("Z") != null){
+			channels = new HDRChannel[]{frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z")};
+			matrix = ColorSpaceConverter.CIE_XYZtoSRGB_RGB;
+		}
+		else{
+			throw new IllegalArgumentException("RGBE: the frame needs R, G, B or X, Y, Z channels.");
+		}
+		
+		final int chunkRows = Math.max(1, WRITE_CHUNK_PIXELS / width);
+		int chunks = (height + chunkRows - 1) / chunkRows;
+		final ByteBuffer[] encoded = new ByteBuffer[WRITE_GROUP_CHUNKS];
+		
+		FileOutputStream fileOutputStream = new FileOutputStream(outfile);
+		try{
+			FileChannel fileChannel = fileOutputStream.getChannel();
+			ByteBuffer[] header = {ByteBuffer.wrap(("#?RADIANCE\nFORMAT=32-bit_rle_rgbe\n\n-Y " + height + " +X " + width + "\n").getBytes("US-ASCII"))};
+			writeFully(fileChannel, header, 1);
+			
+			for(int group = 0; group < chunks; group += WRITE_GROUP_CHUNKS){
+				final int firstChunk = group;
+				int count = Math.min(WRITE_GROUP_CHUNKS, chunks - group);
+				Parallel.range(0, count - 1, 1, new Parallel.RangeTask(){
+					public void compute(int a, int b){
+						for(int k = a; k <= b; k++){
+							int row = (firstChunk + k) * chunkRows;
+							encoded[k] = encodeScanlines(channels, matrix, width, row, Math.min(chunkRows, height - row));
+						}
+					}
+				});
+				writeFully(fileChannel, encoded, count);
+			}
+		}
+		finally{
+			fileOutputStream.close();
+		}
+	}
+	
+	private static void writeFully(FileChannel fileChannel, ByteBuffer[] buffers, int count) throws IOException{
+		while(buffers[count - 1].hasRemaining()){
+			fileChannel.write(buffers, 0, count);
+		}
+	}
+	
+	// Encodes scanlines [row, row + rows). Scanlines narrower than 8 or wider than 32767 pixels
+	// cannot be run length encoded and are stored flat.
+	private static ByteBuffer encodeScanlines(HDRChannel[] channels, double[][] matrix, int width, int row, int rows){
+		boolean runLengthEncoded = width >= 8 && width <= 0x7FFF;
+		// Worst case of a run length encoded scanline: the 4 byte header and a count byte per 128 bytes
+		byte[] out = new byte[rows * (4 + 4 * (width + (width + 127) / 128))];
+		// Channel after channel: r, g, b, e
+		byte[] scanline = new byte[4 * width];
+		int position = 0;
+		
+		for(int y = row; y < row + rows; y++){
+			for(int x = 0; x < width; x++){
+				int i = (y * width) + x;
+				double a = channels[0].get(i), b = channels[1].get(i), c = channels[2].get(i);
+				if(matrix == null){
+					toRGBE(a, b, c, scanline, x, width);
+				}
+				else{
+					toRGBE(matrix[0][0] * a + matrix[0][1] * b + matrix[0][2] * c,
+						   matrix[1][0] * a + matrix[1][1] * b + matrix[1][2] * c,
+						   matrix[2][0] * a + matrix[2][1] * b + matrix[2][2] * c, scanline, x, width);
+				}
+			}
+			
+			if(!runLengthEncoded){
+				// simple scanline, pixels are interleaved
+				for(int x = 0; x < width; x++){
+					for(int ch = 0; ch < 4; ch++){
+						out[position++] = scanline[(width * ch) + x];
+					}
+				}
+				continue;
+			}
+			
+			out[position++] = 2;
+			out[position++] = 2;
+			out[position++] = (byte)(width >> 8);
+			out[position++] = (byte)(width & 0xFF);
+			for(int ch = 0; ch < 4; ch++){
+				position = encodeRun(scanline, width * ch, width, out, position);
+			}
+		}
+		return ByteBuffer.wrap(out, 0, position);
+	}
+	
+	// Stores one pixel in the planar scanline. Negative and NaN components are stored as 0.
+	private static void toRGBE(double r, double g, double b, byte[] scanline, int x, int width){
+		r = r > 0 ? r / WRITE_SCALE : 0;
+		g = g > 0 ? g / WRITE_SCALE : 0;
+		b = b > 0 ? b / WRITE_SCALE : 0;
+		double max = Math.max(r, Math.max(g, b));
+		if(max < 1e-32){
+			scanline[x] = scanline[width + x] = scanline[(2 * width) + x] = scanline[(3 * width) + x] = 0;
+			return;
+		}
+		
+		// max = m * 2^exponent with m in [0.5, 1), clamped to the largest exponent
+		int exponent = Math.min(Math.getExponent(max) + 1, 127);
+		double scale = Math.scalb(256.0, -exponent);
+		scanline[x] = (byte)Math.min(255, r * scale);
+		scanline[width + x] = (byte)Math.min(255, g * scale);
+		scanline[(2 * width) + x] = (byte)Math.min(255, b * scale);
+		scanline[(3 * width) + x] = (byte)(exponent + 128);
+	}
+	
+	// Radiance run length encoding of length bytes of data: runs of 4 or more equal bytes are stored
+	// as (128 + length, value), everything else as (count, bytes...). Returns the new position in out.
+	private static int encodeRun(byte[] data, int offset, int length, byte[] out, int position){
+		int current = 0;
+		while(current < length){
+			int runStart = current;
+			int runLength = 0;
+			int oldRunLength = 0;
+			while(runLength < 4 && runStart < length){
+				runStart += runLength;
+				oldRunLength = runLength;
+				runLength = 1;
+				while(runStart + runLength < length && runLength < 127
+						&& data[offset + runStart] == data[offset + runStart + runLength]){
+					runLength++;
+				}
+			}
+			// A short run just before the long one
+			if(oldRunLength > 1 && oldRunLength == runStart - current){
+				out[position++] = (byte)(128 + oldRunLength);
+				out[position++] = data[offset + current];
+				current = runStart;
+			}
+			while(current < runStart){
+				int count = Math.min(128, runStart - current);
+				out[position++] = (byte)count;
+				System.arraycopy(data, offset + current, out, position, count);
+				position += count;
+				current += count;
+			}
+			if(runLength >= 4){
+				out[position++] = (byte)(128 + runLength);
+				out[position++] = data[offset + runStart];
+				current += runLength;
+			}
+		}
+		return position;
 	}
 
+	// Reads up to the next new line, leaving the buffer after it
+	public static String readLine(ByteBuffer buffer) {
+		StringBuffer sb = new StringBuffer();
+		byte b;
+		while (buffer.hasRemaining() && (b = buffer.get()) != 0x0A) {
+			sb.append((char) b);
+		}
+		return sb.toString();
+	}
+	
 	public static String readLine(FileInputStream fis) throws IOException {
 		StringBuffer sb = new StringBuffer();
 		byte b[] = new byte[1];
@@ -0,0 +1,270 @@
+/*
+	File format round trip check
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import fasthdr.colorspace.ColorSpaceConverter;
+import fasthdr.model.HDRChannel;
+import fasthdr.model.HDRFrame;
+
+// Writes synthetic frames with the PFS and RGBE writers and reads them back with the readers:
+// PFS must give back the written values narrowed to 32-bit floats exactly, RGBE within its 8-bit
+// mantissa (relative to the largest component of the pixel).
+// The sizes cover flat (narrower than 8 or wider than 32767 pixels) and run length encoded RGBE
+// scanlines, partial PFS write blocks and RGBE write chunks and groups, and RGBE files read through
+// windows smaller than the file.
+// Usage: java fasthdr.io.RoundTripCheck. Prints every case and exits with 1 if any fails.
+public class RoundTripCheck {
+
+	// Small RGBE map windows, a few scanlines each, so the reader crosses window boundaries
+	public static final long SMALL_MAP_BYTES = 1L << 20;
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		// width x height
+		int[][] pfsSizes = {
+			{3, 3},
+			{5, 300},
+			{640, 480},
+			// 4 rows per write block, the last block is partial
+			{PFS.MAX_RESOLUTION, 10},
+			// Bands of 262 rows
+			{1000, 1001}
+		};
+		for(int[] size : pfsSizes){
+			checkPFS(size[0], size[1]);
+		}
+
+		int chunkRows = RGBE.WRITE_CHUNK_PIXELS / 1000;
+		int[][] rgbeSizes = {
+			// Flat scanlines
+			{1, 5},
+			{7, 300},
+			{40000, 3},
+			// Run length encoded scanlines, the limits included
+			{8, 50},
+			{0x7FFF, 3},
+			{640, 480},
+			// More chunks than a write group, the last chunk partial
+			{1000, (RGBE.WRITE_GROUP_CHUNKS + 1) * chunkRows + chunkRows / 2}
+		};
+		for(int[] size : rgbeSizes){
+			checkRGBE(size[0], size[1]);
+		}
+		checkRGBEfromXYZ(333, 517);
+
+		System.out.println(failures == 0 ? "All round trips passed" : failures + " round trips failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static void checkPFS(int width, int height) throws Exception {
+		HDRFrame frame = createFrame(width, height, new String[] {"X", "Y", "Z", "alpha"});
+		File file = File.createTempFile("fasthdr-roundtrip", ".pfs");
+		file.deleteOnExit();
+		try {
+			new PFS().write(file, frame);
+			for(HDRChannel.Precision precision : new HDRChannel.Precision[] {HDRChannel.Precision.DOUBLE, HDRChannel.Precision.FLOAT, HDRChannel.Precision.MAPPED}){
+				HDRFrame read = new PFS().read(file, precision);
+				int mismatches = size(read, width, height);
+				for(String name : frame.getChannels().keySet()){
+					mismatches += comparePFS(frame.getChannel(name), read.getChannel(name), 0);
+				}
+				report("PFS " + width + "x" + height + " " + precision, mismatches);
+			}
+
+			// A band in the middle through the scanline reader
+			ScanlineReaderInterface reader = new PFS().openScanlines(file, HDRChannel.Precision.DOUBLE);
+			try {
+				int row = height / 3;
+				int rows = Math.max(1, height / 2);
+				HDRFrame band = reader.readBand(row, rows);
+				int mismatches = size(band, width, rows);
+				for(String name : frame.getChannels().keySet()){
+					mismatches += comparePFS(frame.getChannel(name), band.getChannel(name), row * width);
+				}
+				report("PFS " + width + "x" + height + " band", mismatches);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static void checkRGBE(int width, int height) throws Exception {
+		HDRFrame frame = createFrame(width, height, new String[] {"R", "G", "B"});
+		File file = File.createTempFile("fasthdr-roundtrip", ".hdr");
+		file.deleteOnExit();
+		try {
+			new RGBE().write(file, frame);
+			boolean runLengthEncoded = width >= 8 && width <= 0x7FFF;
+			String encoding = runLengthEncoded ? "rle" : "flat";
+			int mismatches = runLengthEncoded == isRunLengthEncoded(file, width, height) ? 0 : 1;
+			report("RGBE " + width + "x" + height + " " + encoding + " scanlines", mismatches);
+
+			for(long mapBytes : new long[] {RGBE.MAX_MAP_BYTES, SMALL_MAP_BYTES}){
+				if(mapBytes <= 8L * width + 2048){ continue; }
+				HDRFrame read = new RGBE(mapBytes).read(file, HDRChannel.Precision.DOUBLE);
+				report("RGBE " + width + "x" + height + " " + encoding + " map " + mapBytes,
+						size(read, width, height) + compareRGBE(frame, read, 0));
+			}
+
+			ScanlineReaderInterface reader = new RGBE(SMALL_MAP_BYTES).openScanlines(file, HDRChannel.Precision.DOUBLE);
+			try {
+				int row = height / 3;
+				int rows = Math.max(1, height / 2);
+				HDRFrame band = reader.readBand(row, rows);
+				report("RGBE " + width + "x" + height + " " + encoding + " band", size(band, width, rows) + compareRGBE(frame, band, row * width));
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	// X, Y, Z frames are written converted to sRGB
+	private static void checkRGBEfromXYZ(int width, int height) throws Exception {
+		HDRFrame frame = createFrame(width, height, new String[] {"X", "Y", "Z"});
+		File file = File.createTempFile("fasthdr-roundtrip", ".hdr");
+		file.deleteOnExit();
+		try {
+			new RGBE().write(file, frame);
+			HDRFrame expected = new HDRFrame(width, height);
+			double[][] m = ColorSpaceConverter.CIE_XYZtoSRGB_RGB;
+			HDRChannel r = expected.addChannel("R"), g = expected.addChannel("G"), b = expected.addChannel("B");
+			double x, y, z;
+			for(int i = 0; i < expected.getSize(); i++){
+				x = frame.getChannel("X").get(i);
+				y = frame.getChannel("Y").get(i);
+				z = frame.getChannel("Z").get(i);
+				// Negative components are stored as 0
+				r.set(i, Math.max(0, m[0][0] * x + m[0][1] * y + m[0][2] * z));
+				g.set(i, Math.max(0, m[1][0] * x + m[1][1] * y + m[1][2] * z));
+				b.set(i, Math.max(0, m[2][0] * x + m[2][1] * y + m[2][2] * z));
+			}
+			HDRFrame read = new RGBE().read(file, HDRChannel.Precision.DOUBLE);
+			report("RGBE " + width + "x" + height + " from XYZ", size(read, width, height) + compareRGBE(expected, read, 0));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	// Values over about six orders of magnitude, with zeros and runs of equal pixels so both the runs
+	// and the literal bytes of the run length encoding are written
+	private static HDRFrame createFrame(int width, int height, String[] names){
+		HDRFrame frame = new HDRFrame(width, height);
+		Random random = new Random(width * 31L + height);
+		for(String name : names){
+			HDRChannel channel = frame.addChannel(name);
+			double value = 0;
+			for(int i = 0; i < frame.getSize(); i++){
+				int x = i % width;
+				if((x / 16) % 3 == 0){
+					// Run, the value of the first pixel of the 16
+					if(x % 16 == 0){ value = Math.pow(10, 6 * random.nextDouble() - 2); }
+				}
+				else if(random.nextInt(50) == 0){
+					value = 0;
+				}
+				else{
+					value = Math.pow(10, 6 * random.nextDouble() - 2);
+				}
+				channel.set(i, value);
+			}
+		}
+		return frame;
+	}
+
+	private static int size(HDRFrame frame, int width, int height){
+		if(frame.getWidth() == width && frame.getHeight() == height){ return 0; }
+		System.out.println("    size " + frame.getWidth() + "x" + frame.getHeight() + ", expected " + width + "x" + height);
+		return 1;
+	}
+
+	// Exact match of the 32-bit floats, read holds the pixels of written starting at offset
+	private static int comparePFS(HDRChannel written, HDRChannel read, int offset){
+		if(read == null){
+			System.out.println("    channel " + written.getName() + " missing");
+			return 1;
+		}
+		int mismatches = 0;
+		for(int i = 0; i < read.getSize(); i++){
+			if((float)written.get(offset + i) != (float)read.get(i)){
+				if(mismatches == 0){ System.out.println("    " + written.getName() + "[" + (offset + i) + "] " + (float)written.get(offset + i) + " read " + read.get(i)); }
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+
+	// A component is stored as an 8-bit mantissa of the exponent of the largest one, so it is read
+	// back within 1/128 of the largest component, rounded down
+	private static int compareRGBE(HDRFrame written, HDRFrame read, int offset){
+		String[] names = {"R", "G", "B"};
+		int mismatches = 0;
+		for(int i = 0; i < read.getSize(); i++){
+			double max = 0;
+			for(String name : names){
+				max = Math.max(max, written.getChannel(name).get(offset + i));
+			}
+			for(String name : names){
+				double expected = written.getChannel(name).get(offset + i);
+				double value = read.getChannel(name).get(i);
+				if(value > expected * (1 + 1e-12) || expected - value > max / 128){
+					if(mismatches == 0){ System.out.println("    " + name + "[" + (offset + i) + "] " + expected + " read " + value); }
+					mismatches++;
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	// True if the first scanline has the run length encoding header
+	private static boolean isRunLengthEncoded(File file, int width, int height) throws IOException {
+		int headerBytes = ("#?RADIANCE\nFORMAT=32-bit_rle_rgbe\n\n-Y " + height + " +X " + width + "\n").length();
+		byte[] bytes = new byte[headerBytes + 4];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			if(fis.read(bytes) != bytes.length){ return false; }
+		}
+		finally {
+			fis.close();
+		}
+		return bytes[headerBytes] == 2 && bytes[headerBytes + 1] == 2
+				&& ((bytes[headerBytes + 2] & 0xFF) << 8) + (bytes[headerBytes + 3] & 0xFF) == width;
+	}
+
+	private static void report(String name, int mismatches){
+		System.out.println(String.format("  %-45s %s", name, mismatches == 0 ? "ok" : mismatches + " mismatches"));
+		if(mismatches != 0){ failures++; }
+	}
+}
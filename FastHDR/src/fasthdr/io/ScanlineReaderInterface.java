@@ -0,0 +1,38 @@
+/*
+	Scanline band reader interface
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.io;
+
+import java.io.IOException;
+
+import fasthdr.exception.MalformedFileException;
+import fasthdr.model.HDRFrame;
+
+// Reads an image a band of scanlines at a time, so only the bands in use are held in memory.
+// Bands can be read in any order and more than once.
+public interface ScanlineReaderInterface {
+	public int getWidth();
+	public int getHeight();
+	
+	// Rows [row, row + rows) as a frame of width x rows holding the file's channels
+	public HDRFrame readBand(int row, int rows) throws IOException, MalformedFileException;
+	
+	public void close() throws IOException;
+}
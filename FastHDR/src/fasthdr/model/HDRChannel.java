@@ -21,27 +21,87 @@
 
 package fasthdr.model;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Hashtable;
 
+import fasthdr.util.DataTypeConverter;
+import fasthdr.util.Parallel;
+
 public class HDRChannel {
+	
+	// Storage precision of the channel data. Arithmetic is always carried out in double precision,
+	// FLOAT and HALF only change how samples are stored (4 and 2 bytes per sample instead of 8).
+	// HALF has a range of +-65504 and about 3 decimal digits, it is only suitable for data that is
+	// already normalized.
+	// MAPPED stores 4 byte floats off-heap in a memory-mapped scratch file (see MappedFloatStorage)
+	// for images that do not fit in the heap.
+	public static enum Precision {DOUBLE, FLOAT, HALF, MAPPED};
+	
 	private int width;
 	private int height;
 	private int size;
 	private String name;
+	private Precision precision;
 	private double[] data;
+	private float[] floatData;
+	private short[] halfData;
+	private MappedFloatStorage mappedData;
 	
 	private Hashtable<String, HDRTag> tags;
 	
 	// Named Channel
 	public HDRChannel(int width, int height, String name){
+		this(width, height, name, Precision.DOUBLE);
+	}
+	
+	// Named Channel with a given storage precision
+	public HDRChannel(int width, int height, String name, Precision precision){
+		this.width = width;
+		this.height = height;
+		this.size = width * height;
+		this.name = name;
+		allocate(precision, width * height);
+		tags = new Hashtable<String, HDRTag>();
+	}
+	
+	// Named MAPPED channel over existing storage (e.g. channel data mapped from a file)
+	public HDRChannel(int width, int height, String name, MappedFloatStorage storage){
 		this.width = width;
 		this.height = height;
 		this.size = width * height;
 		this.name = name;
-		data = new double[width * height];
+		this.precision = Precision.MAPPED;
+		this.mappedData = storage;
 		tags = new Hashtable<String, HDRTag>();
 	}
 	
+	private void allocate(Precision p, int length){
+		precision = p;
+		data = null;
+		floatData = null;
+		halfData = null;
+		mappedData = null;
+		switch(p){
+			case FLOAT: floatData = new float[length]; break;
+			case HALF: halfData = new short[length]; break;
+			case MAPPED:
+				try { mappedData = MappedFloatStorage.allocate(length); }
+				catch(IOException e) { throw new IllegalStateException("Cannot map scratch file for channel " + name + ": " + e.getMessage(), e); }
+				break;
+			default: data = new double[length]; break;
+		}
+	}
+	
+	private int capacity(){
+		switch(precision){
+			case FLOAT: return floatData.length;
+			case HALF: return halfData.length;
+			case MAPPED: return mappedData.length();
+			default: return data.length;
+		}
+	}
+	
 	public int getWidth() {
 		return width;
 	}
@@ -82,25 +142,72 @@ public class HDRChannel {
 		tags = tagSet;
 	}
 	
-	public void setAllData(double value){
-		for(int i = 0; i < size; i++){
-			data[i] = value;
+	public Precision getPrecision(){
+		return precision;
+	}
+	
+	// Sample at index i, widened to double
+	public double get(int i){
+		switch(precision){
+			case FLOAT: return floatData[i];
+			case HALF: return DataTypeConverter.halfToFloat(halfData[i]);
+			case MAPPED: return mappedData.get(i);
+			default: return data[i];
+		}
+	}
+	
+	// Store value at index i, narrowing it to the channel precision
+	public void set(int i, double value){
+		switch(precision){
+			case FLOAT: floatData[i] = (float)value; break;
+			case HALF: halfData[i] = DataTypeConverter.floatToHalf((float)value); break;
+			case MAPPED: mappedData.set(i, (float)value); break;
+			default: data[i] = value; break;
 		}
 	}
 	
+	// value as set() would store it, widened back to double
+	public double narrow(double value){
+		switch(precision){
+			case FLOAT: return (float)value;
+			case HALF: return DataTypeConverter.halfToFloat(DataTypeConverter.floatToHalf((float)value));
+			case MAPPED: return (float)value;
+			default: return value;
+		}
+	}
+	
+	public void setAllData(final double value){
+		switch(precision){
+			case FLOAT: Arrays.fill(floatData, 0, size, (float)value); break;
+			case HALF: Arrays.fill(halfData, 0, size, DataTypeConverter.floatToHalf((float)value)); break;
+			case MAPPED: mappedData.fill((float)value); break;
+			default: Arrays.fill(data, 0, size, value); break;
+		}
+	}
+	
+	// Copy the size and data of channelToCopy, converting to this channel's precision
 	public void copyChannelData(HDRChannel channelToCopy){
 		width = channelToCopy.getWidth();
 		height = channelToCopy.getHeight();
 		size = channelToCopy.getSize();
 		
-		double[] srcData = channelToCopy.getData();
-		
 		// If data is already of the same size then do not re-allocate memory
-		if(data.length != srcData.length){
-			data  = new double[size];
+		if(capacity() != size){
+			allocate(precision, size);
 		}
 		
-		copyData(srcData, data, 0, size - 1);
+		copyData(channelToCopy, this, 0, size - 1);
+	}
+	
+	// Change the size to width x height, keeping the storage when it is large enough. The contents
+	// are undefined afterwards.
+	public void reshape(int width, int height){
+		this.width = width;
+		this.height = height;
+		this.size = width * height;
+		if(capacity() < size){
+			allocate(precision, size);
+		}
 	}
 	
 	public void copyChannel(HDRChannel channelToCopy){
@@ -110,37 +217,67 @@ public class HDRChannel {
 		size = channelToCopy.getSize();
 		name = channelToCopy.getName();		
 		tags = new Hashtable<String, HDRTag>();
-		data  = new double[size];
+		allocate(channelToCopy.getPrecision(), size);
 		
 		for(String tagName: channelToCopy.getTags().keySet()){
 			HDRTag tag = channelToCopy.getTags().get(tagName);
 			tags.put(new String(tag.getName()), new HDRTag(new String(tag.getName()), new String(tag.getValue())));
 		}
 
-		double[] srcData = channelToCopy.getData();
-		
-		copyData(srcData, data, 0, size - 1);
+		copyData(channelToCopy, this, 0, size - 1);
 	}
 	
+	// Backing array of a DOUBLE precision channel
 	public double[] getData() {
+		if(precision != Precision.DOUBLE){
+			throw new IllegalStateException("Channel " + name + " is stored in " + precision + " precision.");
+		}
 		return data;
 	}
 	
-	private static int COPY_DATA_BASE_CASE = 250000;
-	private void copyData(final double[] src, final double[] des, final int a, final int b){
-		// Base Case
-		if(b - a < COPY_DATA_BASE_CASE){
-    		for(int i = a; i <= b; i++){
-    			des[i] = src[i];
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ copyData(src, des, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ copyData(src, des, halfSplit + 1, b); }}; 
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+	// Backing array of a FLOAT precision channel
+	public float[] getFloatData() {
+		if(precision != Precision.FLOAT){
+			throw new IllegalStateException("Channel " + name + " is stored in " + precision + " precision.");
+		}
+		return floatData;
+	}
+	
+	// Backing array of a HALF precision channel (IEEE 754 binary16 bit patterns)
+	public short[] getHalfData() {
+		if(precision != Precision.HALF){
+			throw new IllegalStateException("Channel " + name + " is stored in " + precision + " precision.");
+		}
+		return halfData;
+	}
+	
+	// Backing storage of a MAPPED channel
+	public MappedFloatStorage getMappedData() {
+		if(precision != Precision.MAPPED){
+			throw new IllegalStateException("Channel " + name + " is stored in " + precision + " precision.");
+		}
+		return mappedData;
+	}
+	
+	private static void copyData(final HDRChannel src, final HDRChannel des, final int a, final int b){
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				int length = end - start + 1;
+				// Same precision: straight array copy
+				if(src.precision == des.precision){
+					switch(des.precision){
+						case FLOAT: System.arraycopy(src.floatData, start, des.floatData, start, length); break;
+						case HALF: System.arraycopy(src.halfData, start, des.halfData, start, length); break;
+						case MAPPED: des.mappedData.copy(src.mappedData, start, end); break;
+						default: System.arraycopy(src.data, start, des.data, start, length); break;
+					}
+					return;
+				}
+				// Convert between precisions
+				for(int i = start; i <= end; i++){
+					des.set(i, src.get(i));
+				}
+			}
+		});
 	}
 }
@@ -23,18 +23,27 @@ package fasthdr.model;
 
 import java.util.Hashtable;
 
+import fasthdr.util.Parallel;
+
 public class HDRFrame {
 	private int width;
 	private int height;
 	private int size;
+	private HDRChannel.Precision precision;
 	
 	private Hashtable<String, HDRTag> tags;
 	private Hashtable<String, HDRChannel> channels;
 	
 	public HDRFrame(int width, int height){
+		this(width, height, HDRChannel.Precision.DOUBLE);
+	}
+	
+	// Frame whose channels are created with the given storage precision
+	public HDRFrame(int width, int height, HDRChannel.Precision precision){
 		this.width = width;
 		this.height = height;
 		this.size = width * height;
+		this.precision = precision;
 		tags = new Hashtable<String, HDRTag>();
 		channels = new Hashtable<String, HDRChannel>();
 	}
@@ -63,6 +72,10 @@ public class HDRFrame {
 		this.size = size;
 	}
 	
+	public HDRChannel.Precision getPrecision() {
+		return precision;
+	}
+	
 	public Hashtable<String, HDRTag> getTags(){
 		return tags;
 	}
@@ -84,7 +97,7 @@ public class HDRFrame {
 	}
 	
 	public HDRChannel addChannel(String name){
-		HDRChannel channel = new HDRChannel(width, height, name);
+		HDRChannel channel = new HDRChannel(width, height, name, precision);
 		channels.put(name, channel);
 		return channel;
 	}
@@ -104,15 +117,16 @@ public class HDRFrame {
 		channels.put(des, channel);
 	}
 	
-	// Copy and Add aChannel, bChannel and cChannel to this HDRFrame
+	// Copy and Add aChannel, bChannel and cChannel to this HDRFrame. The copies keep the precision of the originals.
 	public void copyAddChannelData(HDRChannel aChannel, HDRChannel bChannel, HDRChannel cChannel) {
 		// All Channels must have the same size!
-		HDRChannel newAChannel = new HDRChannel(aChannel.getWidth(), aChannel.getHeight(), aChannel.getName());
-		HDRChannel newBChannel = new HDRChannel(bChannel.getWidth(), bChannel.getHeight(), bChannel.getName());
-		HDRChannel newCChannel = new HDRChannel(cChannel.getWidth(), cChannel.getHeight(), cChannel.getName());
+		HDRChannel newAChannel = new HDRChannel(aChannel.getWidth(), aChannel.getHeight(), aChannel.getName(), aChannel.getPrecision());
+		HDRChannel newBChannel = new HDRChannel(bChannel.getWidth(), bChannel.getHeight(), bChannel.getName(), bChannel.getPrecision());
+		HDRChannel newCChannel = new HDRChannel(cChannel.getWidth(), cChannel.getHeight(), cChannel.getName(), cChannel.getPrecision());
 		
-		copyMultipleChannels(aChannel.getData(), bChannel.getData(), cChannel.getData(),
-							 newAChannel.getData(), newBChannel.getData(), newCChannel.getData(), 0, aChannel.getSize() - 1);
+		newAChannel.copyChannelData(aChannel);
+		newBChannel.copyChannelData(bChannel);
+		newCChannel.copyChannelData(cChannel);
 		
 		addChannel(newAChannel);
 		addChannel(newBChannel);
@@ -122,48 +136,28 @@ public class HDRFrame {
 	// Copy aChannel, bChannel and cChannel to an existing channel with name aDes, bDes, cDes
 	public void copyChannelData(HDRChannel aChannel, HDRChannel bChannel, HDRChannel cChannel, String aDes, String bDes, String cDes) {
 		// aChannel, bChannel, cChannel MUST have size <= to aDes, bDes and cDes
-		HDRChannel aDestChannel = channels.get(aDes);
-		HDRChannel bDestChannel = channels.get(bDes);
-		HDRChannel cDestChannel = channels.get(cDes);
-		
-		copyMultipleChannels(aChannel.getData(), bChannel.getData(), cChannel.getData(),
-							 aDestChannel.getData(), bDestChannel.getData(), cDestChannel.getData(), 0, aChannel.getSize() - 1);
+		channels.get(aDes).copyChannelData(aChannel);
+		channels.get(bDes).copyChannelData(bChannel);
+		channels.get(cDes).copyChannelData(cChannel);
 	}
 	
 	public void copyChannel(final double[] src, final double[] des, final int a, final int b){
-		// Base Case
-		if(b - a < 2000000){
-    		for(int i = a; i <= b; i++){ des[i] = src[i]; }
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ copyChannel(src, des, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ copyChannel(src, des, halfSplit + 1, b); }};
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				System.arraycopy(src, start, des, start, end - start + 1);
+			}
+		});
 	}
 	
 	public void copyMultipleChannels(final double[] aSrcData, final double[] bSrcData, final double[] cSrcData, 
 			 final double[] aDesData, final double[] bDesData, final double[] cDesData, final int a, final int b){
-		// Base Case
-		if(b - a < 300000){
-			for(int i = a; i <= b; i++){
-				aDesData[i] = aSrcData[i];
-				bDesData[i] = bSrcData[i];
-				cDesData[i] = cSrcData[i];
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				int length = end - start + 1;
+				System.arraycopy(aSrcData, start, aDesData, start, length);
+				System.arraycopy(bSrcData, start, bDesData, start, length);
+				System.arraycopy(cSrcData, start, cDesData, start, length);
 			}
-		return;
-		}
-		// Recurse
-		final int halfSplit = (b - a) / 2 + a;
-		Thread t1 = new Thread(){ public void run(){ copyMultipleChannels(aSrcData, bSrcData, cSrcData, aDesData, bDesData, cDesData, a, halfSplit); }};
-		Thread t2 = new Thread(){ public void run(){ copyMultipleChannels(aSrcData, bSrcData, cSrcData, aDesData, bDesData, cDesData, halfSplit + 1, b); }};    	
-		t1.start(); t2.start();
-		try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-		try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
-
-	
 }
@@ -0,0 +1,154 @@
+/*
+	Memory-mapped float storage
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+// Off-heap float samples backed by memory-mapped files, so that images larger than the heap
+// can be paged in and out by the OS. Samples are little-endian 32 bit floats, which is the
+// layout of PFS channel data, so a PFS file can be mapped without copying.
+// A single mapping is limited to 2GB, so the samples are split into chunks of 2^CHUNK_SHIFT floats.
+public class MappedFloatStorage {
+
+	// Directory for scratch files. Defaults to java.io.tmpdir, set with -Dfasthdr.scratch=DIR
+	public static final String SCRATCH_PROPERTY = "fasthdr.scratch";
+
+	private static final int CHUNK_SHIFT = 28;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int length;
+	private volatile FloatBuffer[] chunks;
+	// Read-only mappings of an input file are copied to a scratch file on the first write
+	private volatile boolean readOnly;
+
+	private MappedFloatStorage(int length, FloatBuffer[] chunks, boolean readOnly){
+		this.length = length;
+		this.chunks = chunks;
+		this.readOnly = readOnly;
+	}
+
+	// Zero filled storage in a new scratch file
+	public static MappedFloatStorage allocate(int length) throws IOException{
+		return new MappedFloatStorage(length, mapScratch(length), false);
+	}
+
+	// Read-only view of length floats stored at position in file. The file is not modified,
+	// writing to the storage copies it to a scratch file first.
+	public static MappedFloatStorage map(File file, long position, int length) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			return new MappedFloatStorage(length, map(raf.getChannel(), FileChannel.MapMode.READ_ONLY, position, length), true);
+		}
+		finally{
+			raf.close();
+		}
+	}
+
+	private static FloatBuffer[] mapScratch(int length) throws IOException{
+		String dir = System.getProperty(SCRATCH_PROPERTY);
+		File file = File.createTempFile("fasthdr", ".scratch", dir == null ? null : new File(dir));
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			raf.setLength(4L * length);
+			return map(raf.getChannel(), FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+		finally{
+			raf.close();
+			// The mapping stays valid after the file is unlinked (except on Windows, see deleteOnExit)
+			file.delete();
+		}
+	}
+
+	private static FloatBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long position, int length) throws IOException{
+		FloatBuffer[] chunks = new FloatBuffer[(int)(((long)length + CHUNK_SIZE - 1) >> CHUNK_SHIFT)];
+		for(int k = 0; k < chunks.length; k++){
+			int count = Math.min(CHUNK_SIZE, length - (k << CHUNK_SHIFT));
+			chunks[k] = channel.map(mode, position + 4L * ((long)k << CHUNK_SHIFT), 4L * count)
+							   .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+		return chunks;
+	}
+
+	public int length(){
+		return length;
+	}
+
+	public boolean isReadOnly(){
+		return readOnly;
+	}
+
+	public float get(int i){
+		return chunks[i >>> CHUNK_SHIFT].get(i & CHUNK_MASK);
+	}
+
+	public void set(int i, float value){
+		if(readOnly){ makeWritable(); }
+		chunks[i >>> CHUNK_SHIFT].put(i & CHUNK_MASK, value);
+	}
+
+	public void fill(float value){
+		if(readOnly){ makeWritable(); }
+		for(int i = 0; i < length; i++){
+			chunks[i >>> CHUNK_SHIFT].put(i & CHUNK_MASK, value);
+		}
+	}
+
+	// Bulk copy of the range [a, b] from src
+	public void copy(MappedFloatStorage src, int a, int b){
+		if(readOnly){ makeWritable(); }
+		FloatBuffer[] srcChunks = src.chunks;
+		int i = a;
+		while(i <= b){
+			int offset = i & CHUNK_MASK;
+			int count = Math.min(b - i + 1, CHUNK_SIZE - offset);
+			FloatBuffer from = srcChunks[i >>> CHUNK_SHIFT].duplicate();
+			from.position(offset).limit(offset + count);
+			FloatBuffer to = chunks[i >>> CHUNK_SHIFT].duplicate();
+			to.position(offset);
+			to.put(from);
+			i += count;
+		}
+	}
+
+	private synchronized void makeWritable(){
+		if(!readOnly){ return; }
+		try{
+			FloatBuffer[] copy = mapScratch(length);
+			for(int k = 0; k < chunks.length; k++){
+				FloatBuffer from = chunks[k].duplicate();
+				from.clear();
+				copy[k].duplicate().put(from);
+			}
+			chunks = copy;
+			readOnly = false;
+		}
+		catch(IOException e){
+			throw new IllegalStateException("Cannot create scratch file: " + e.getMessage(), e);
+		}
+	}
+}
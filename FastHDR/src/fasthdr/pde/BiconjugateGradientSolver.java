@@ -21,16 +21,16 @@
 
 package fasthdr.pde;
 
-import fasthdr.util.CancelSignal;
+import fasthdr.util.CancelToken;
 
 public class BiconjugateGradientSolver {
 	
 	public static final double EPS = 1.0e-12;
 	
-	private CancelSignal cancelSignal;
+	private CancelToken cancelToken;
 	
-	public BiconjugateGradientSolver(CancelSignal signal){
-		cancelSignal = signal;
+	public BiconjugateGradientSolver(CancelToken token){
+		cancelToken = token;
 	}
 	
 	public void linearBiconjugteGradient(int n, double[] b, double[] x, int itol, double tol, int itmax, int rows, int cols){	
@@ -42,7 +42,6 @@ public class BiconjugateGradientSolver {
 		//padArray(b, newB, 1, b.length);
 		//padArray(x, newX, 1, x.length);
 		for(int j = 1; j <= n; j++){
-			if(cancelSignal.isCancelled()){ return; }
 			newB[j] = b[j - 1];
 			newX[j] = x[j - 1];
 		}
@@ -67,7 +66,6 @@ public class BiconjugateGradientSolver {
 		
 		//setR_RR(newB, r, rr, 0, n - 1);
 		for(int j = 1; j <= n; j++) {
-			if(cancelSignal.isCancelled()){ return; }
 			r[j] = newB[j] - r[j];
 			rr[j] = r[j];
 		}
@@ -96,7 +94,7 @@ public class BiconjugateGradientSolver {
 		asolve(n, r, z, 0, rows, cols);        
 
 		while(iter <= itmax) {
-			if(cancelSignal.isCancelled()){ return; }
+			if(cancelToken.isCancelled()){ return; }
 			iter++;
 			zm1nrm = znrm;
 			asolve(n, rr, zz, 1, rows, cols);
@@ -104,14 +102,12 @@ public class BiconjugateGradientSolver {
 			bknum[0] = 0;
 			//setBKNUM(z, rr, bknum, 1, n - 1);
 			for(int j = 1; j <= n; j++){
-				if(cancelSignal.isCancelled()){ return; }
 				bknum[0] += z[j] * rr[j];
 			}
 			
 			if(iter == 1) {
 				//setP_PP(z, zz, p, pp, 1, n - 1);
 				for(int j = 1; j <= n; j++) {
-					if(cancelSignal.isCancelled()){ return; }
 					p[j] = z[j];
 					pp[j] = zz[j];
 				}
@@ -120,7 +116,6 @@ public class BiconjugateGradientSolver {
 				bk = bknum[0] / bkden;
 				//setP_PP_2(bk, z, zz, p, pp, 1, n - 1);
 				for(int j = 1; j <= n; j++) {
-					if(cancelSignal.isCancelled()){ return; }
 					p[j] = bk * p[j] + z[j];
 					pp[j] = bk * pp[j] + zz[j];
 				}
@@ -132,7 +127,6 @@ public class BiconjugateGradientSolver {
 			akden[0] = 0;
 			//setAKDEN(z, pp, akden, 1, n - 1);
 			for(int j = 1; j <= n; j++){ 
-				if(cancelSignal.isCancelled()){ return; }
 				akden[0] += z[j] * pp[j];
 			}
 			
@@ -141,7 +135,6 @@ public class BiconjugateGradientSolver {
 			
 			//setNewX_R_RR(ak, p, z, zz, newX, r, rr, 1, n - 1);
 			for(int j = 1; j <= n; j++) {
-				if(cancelSignal.isCancelled()){ return; }
 				newX[j] += ak * p[j];
 				r[j] -= ak * z[j];
 				rr[j] -= ak * zz[j];
@@ -180,8 +173,8 @@ public class BiconjugateGradientSolver {
 		
 		// Copy results back to x, removing the single element offset
 		//unpadArray(newX, x, 1, n - 1);
+		if(cancelToken.isCancelled()){ return; }
 		for(int j = 1; j <= n; j++){
-			if(cancelSignal.isCancelled()){ return; }
 			x[j - 1] = newX[j];
 		}
 	}
@@ -189,11 +182,10 @@ public class BiconjugateGradientSolver {
 	// Needs fixing
 	private static int PAD_ARRAY_BASE_CASE = 250000;
 	private void padArray(final double[] src, final double[] des, final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < PAD_ARRAY_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			des[i] = src[i - 1];
     		}
     		return;
@@ -210,11 +202,10 @@ public class BiconjugateGradientSolver {
 	// Needs fixing
 	private static int UNPAD_ARRAY_BASE_CASE = 250000;
 	private void unpadArray(final double[] src, final double[] des, final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < UNPAD_ARRAY_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			des[i - 1] = src[i];
     		}
     		return;
@@ -231,11 +222,10 @@ public class BiconjugateGradientSolver {
 	// Needs fixing
 	private static int SET_R_RR_BASE_CASE = 250000;
 	private void setR_RR(final double[] newB, final double[] r, final double[] rr, final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < SET_R_RR_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			r[i] = newB[i] - r[i];
     			rr[i] = r[i];
     		}
@@ -253,11 +243,10 @@ public class BiconjugateGradientSolver {
 	// Needs fixing
 	private static int SET_BKNUM_BASE_CASE = 250000;
 	private void setBKNUM(final double[] z, final double[] rr, final double[] bknum, final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < SET_BKNUM_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			bknum[0] += z[i] * rr[i];
     		}
     		return;
@@ -276,11 +265,10 @@ public class BiconjugateGradientSolver {
 	private void setP_PP(final double[] z, final double[] zz, 
 			final double[] p, final double[] pp, 
 			final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < SET_P_PP_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			p[i] = z[i];
 				pp[i] = zz[i];
     		}
@@ -300,11 +288,10 @@ public class BiconjugateGradientSolver {
 	private void setP_PP_2(final double bk, final double[] z, final double[] zz, 
 			final double[] p, final double[] pp, 
 			final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < SET_P_PP_2_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			p[i] = bk * p[i] + z[i];
 				pp[i] = bk * pp[i] + zz[i];
     		}
@@ -323,11 +310,10 @@ public class BiconjugateGradientSolver {
 	private static int SET_AKDEN_BASE_CASE = 250000;
 	private void setAKDEN(final double[] z, final double[] pp, final double[] akden, 
 			final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < SET_AKDEN_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			akden[0] += z[i] * pp[i];
     		}
     		return;
@@ -346,11 +332,10 @@ public class BiconjugateGradientSolver {
 	private void setNewX_R_RR(final double ak, final double[] p, final double[] z, final double[] zz, final double[] newX,
 			final double[] r, final double[] rr,
 			final int a, final int b){
-		if(cancelSignal.isCancelled()){ return; }
+		if(cancelToken.isCancelled()){ return; }
 		// Base Case
 		if(b - a < SET_NEWX_R_RR_BASE_CASE){
     		for(int i = a; i <= b; i++){
-    			if(cancelSignal.isCancelled()){ return; }
     			newX[i] += ak * p[i];
 				r[i] -= ak * z[i];
 				rr[i] -= ak * zz[i];
@@ -368,8 +353,8 @@ public class BiconjugateGradientSolver {
 	
 	private void asolve(int n, double b[], double x[], int itrnsp, int rows, int cols) {
 		for(int r = 0; r < rows; r++) {
+			if(cancelToken.isCancelled()){ return; }
 			for(int c = 0; c < cols; c++) {
-				if(cancelSignal.isCancelled()){ return; }
 				x[(r * cols) + c + 1] = -4 * b[(r * cols) + c + 1];
 			}
 		}
@@ -377,8 +362,8 @@ public class BiconjugateGradientSolver {
 	
 	private void atimes(long n, double[] x, double[] res, int itrnsp, int rows, int cols) {
 		for(int r = 1; r < rows - 1; r++) {
+			if(cancelToken.isCancelled()){ return; }
 			for(int c = 1; c < cols - 1; c++) {
-				if(cancelSignal.isCancelled()){ return; }
 				// Core/Center
 				res[(r * cols) + c + 1] = x[((r - 1) * cols) + c + 1] 
 				                      + x[((r + 1) * cols) + c + 1] 
@@ -389,7 +374,6 @@ public class BiconjugateGradientSolver {
 		}
 		
 		for(int r = 1; r < rows - 1; r++) {
-			if(cancelSignal.isCancelled()){ return; }
 			// Left edge
 			res[(r * cols) + 1] = x[((r - 1) * cols) + 1] 
 			                      + x[((r + 1) * cols) + 1] 
@@ -404,7 +388,6 @@ public class BiconjugateGradientSolver {
 		}
 		
 		for(int c = 1; c < cols - 1; c++) {
-			if(cancelSignal.isCancelled()){ return; }
 			// Top edge
 			res[c + 1] = x[cols + c + 1] 
 			             + x[c] 
@@ -443,7 +426,6 @@ public class BiconjugateGradientSolver {
 		if(itol <= 3) {
 			ans = 0.0;
 			for(i = 1; i <= n; i++) {
-				if(cancelSignal.isCancelled()){ return 0; }
 				ans = ans + (sx[i] * sx[i]);
 			}
 			return Math.sqrt(ans);
@@ -451,7 +433,6 @@ public class BiconjugateGradientSolver {
 		else {
 			isamax = 1;
 			for(i = 1; i <= n; i++) {
-				if(cancelSignal.isCancelled()){ return 0; }
 				if(Math.abs(sx[i]) > Math.abs(sx[isamax])) {
 					isamax = i;
 				}
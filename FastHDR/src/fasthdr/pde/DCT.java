@@ -0,0 +1,251 @@
+/*
+	Discrete cosine transform
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.pde;
+
+// 1D DCT-II and its inverse (DCT-III) of a fixed length n in O(n log n) time.
+// The DCT is computed with a single complex FFT of length n after reordering the input (Makhoul 1980).
+// Lengths that are not a power of two use Bluestein's algorithm: the FFT is rewritten as a
+// convolution and evaluated with power of two FFTs.
+// The tables are read-only once built, so one DCT can be shared by several threads as long as
+// each thread uses its own Workspace.
+public class DCT {
+
+	private final int n;
+	private final boolean powerOfTwo;
+
+	// Twiddle factors e^(-i pi k / 2n) for the DCT post/pre processing
+	private final double[] shiftCos;
+	private final double[] shiftSin;
+
+	// Radix-2 FFT of length m (m = n, or the Bluestein convolution length)
+	private final int m;
+	private final double[] fftCos;
+	private final double[] fftSin;
+	private final int[] bitReverse;
+
+	// Bluestein chirp e^(-i pi k^2 / n) and the FFT of its conjugate (zero padded to m)
+	private final double[] chirpRe;
+	private final double[] chirpIm;
+	private final double[] kernelRe;
+	private final double[] kernelIm;
+
+	// Per-thread scratch buffers
+	public class Workspace {
+		private final double[] re = new double[m];
+		private final double[] im = new double[m];
+		private final double[] tmp = new double[n];
+	}
+
+	public DCT(int length){
+		n = length;
+		powerOfTwo = Integer.bitCount(n) == 1;
+
+		shiftCos = new double[n];
+		shiftSin = new double[n];
+		for(int k = 0; k < n; k++){
+			shiftCos[k] = Math.cos(Math.PI * k / (2.0 * n));
+			shiftSin[k] = -Math.sin(Math.PI * k / (2.0 * n));
+		}
+
+		if(powerOfTwo){
+			m = n;
+		}
+		else{
+			m = Integer.highestOneBit(2 * n - 1) << 1;
+		}
+
+		fftCos = new double[m / 2];
+		fftSin = new double[m / 2];
+		for(int k = 0; k < m / 2; k++){
+			fftCos[k] = Math.cos(2 * Math.PI * k / m);
+			fftSin[k] = -Math.sin(2 * Math.PI * k / m);
+		}
+		bitReverse = new int[m];
+		int bits = Integer.numberOfTrailingZeros(m);
+		for(int k = 0; k < m; k++){
+			bitReverse[k] = bits == 0 ? 0 : Integer.reverse(k) >>> (32 - bits);
+		}
+
+		if(powerOfTwo){
+			chirpRe = null;
+			chirpIm = null;
+			kernelRe = null;
+			kernelIm = null;
+		}
+		else{
+			chirpRe = new double[n];
+			chirpIm = new double[n];
+			for(int k = 0; k < n; k++){
+				// k^2 mod 2n keeps the angle small and accurate for large k
+				long k2 = ((long)k * k) % (2L * n);
+				chirpRe[k] = Math.cos(Math.PI * k2 / n);
+				chirpIm[k] = -Math.sin(Math.PI * k2 / n);
+			}
+			kernelRe = new double[m];
+			kernelIm = new double[m];
+			kernelRe[0] = chirpRe[0];
+			kernelIm[0] = -chirpIm[0];
+			for(int k = 1; k < n; k++){
+				kernelRe[k] = kernelRe[m - k] = chirpRe[k];
+				kernelIm[k] = kernelIm[m - k] = -chirpIm[k];
+			}
+			fft(kernelRe, kernelIm);
+		}
+	}
+
+	public int getLength(){
+		return n;
+	}
+
+	public Workspace createWorkspace(){
+		return new Workspace();
+	}
+
+	// In-place DCT-II: X[k] = sum x[i] cos(pi k (2i + 1) / 2n)
+	public void forward(double[] data, int offset, Workspace ws){
+		double[] re = ws.re;
+		double[] im = ws.im;
+
+		// Even samples in order followed by odd samples in reverse order
+		for(int i = 0; 2 * i < n; i++){
+			re[i] = data[offset + 2 * i];
+		}
+		for(int i = 0; 2 * i + 1 < n; i++){
+			re[n - 1 - i] = data[offset + 2 * i + 1];
+		}
+		for(int i = 0; i < n; i++){
+			im[i] = 0;
+		}
+
+		transform(ws);
+
+		// X[k] = Re(e^(-i pi k / 2n) V[k])
+		for(int k = 0; k < n; k++){
+			data[offset + k] = re[k] * shiftCos[k] - im[k] * shiftSin[k];
+		}
+	}
+
+	// In-place inverse of forward: x[i] = X[0] / n + 2 / n sum_k>0 X[k] cos(pi k (2i + 1) / 2n)
+	public void inverse(double[] data, int offset, Workspace ws){
+		double[] re = ws.re;
+		double[] im = ws.im;
+
+		// V[k] = e^(i pi k / 2n) (X[k] - i X[n - k]), conjugated so the forward FFT computes the inverse
+		re[0] = data[offset];
+		im[0] = 0;
+		double a, b;
+		for(int k = 1; k < n; k++){
+			a = data[offset + k];
+			b = -data[offset + n - k];
+			re[k] = a * shiftCos[k] + b * shiftSin[k];
+			im[k] = -(b * shiftCos[k] - a * shiftSin[k]);
+		}
+
+		transform(ws);
+
+		double[] tmp = ws.tmp;
+		for(int i = 0; i < n; i++){
+			tmp[i] = re[i] / n;
+		}
+		for(int i = 0; 2 * i < n; i++){
+			data[offset + 2 * i] = tmp[i];
+		}
+		for(int i = 0; 2 * i + 1 < n; i++){
+			data[offset + 2 * i + 1] = tmp[n - 1 - i];
+		}
+	}
+
+	// Forward complex FFT of the first n entries of ws.re, ws.im
+	private void transform(Workspace ws){
+		if(powerOfTwo){
+			fft(ws.re, ws.im);
+			return;
+		}
+
+		// Bluestein: X[k] = chirp[k] * sum x[i] chirp[i] conj(chirp[k - i])
+		double[] re = ws.re;
+		double[] im = ws.im;
+		double r, i;
+		for(int k = 0; k < n; k++){
+			r = re[k];
+			i = im[k];
+			re[k] = r * chirpRe[k] - i * chirpIm[k];
+			im[k] = r * chirpIm[k] + i * chirpRe[k];
+		}
+		for(int k = n; k < m; k++){
+			re[k] = 0;
+			im[k] = 0;
+		}
+
+		fft(re, im);
+
+		// Pointwise multiply by the kernel, then inverse FFT via conjugation
+		for(int k = 0; k < m; k++){
+			r = re[k] * kernelRe[k] - im[k] * kernelIm[k];
+			i = re[k] * kernelIm[k] + im[k] * kernelRe[k];
+			re[k] = r;
+			im[k] = -i;
+		}
+
+		fft(re, im);
+
+		for(int k = 0; k < n; k++){
+			r = re[k] / m;
+			i = -im[k] / m;
+			re[k] = r * chirpRe[k] - i * chirpIm[k];
+			im[k] = r * chirpIm[k] + i * chirpRe[k];
+		}
+	}
+
+	// In-place iterative radix-2 FFT of length m
+	private void fft(double[] re, double[] im){
+		int j;
+		double t;
+		for(int k = 0; k < m; k++){
+			j = bitReverse[k];
+			if(j > k){
+				t = re[k]; re[k] = re[j]; re[j] = t;
+				t = im[k]; im[k] = im[j]; im[j] = t;
+			}
+		}
+
+		int half, step, index;
+		double wr, wi, xr, xi;
+		for(int size = 2; size <= m; size <<= 1){
+			half = size >> 1;
+			step = m / size;
+			for(int start = 0; start < m; start += size){
+				for(int k = 0; k < half; k++){
+					index = k * step;
+					wr = fftCos[index];
+					wi = fftSin[index];
+					j = start + k + half;
+					xr = re[j] * wr - im[j] * wi;
+					xi = re[j] * wi + im[j] * wr;
+					re[j] = re[start + k] - xr;
+					im[j] = im[start + k] - xi;
+					re[start + k] += xr;
+					im[start + k] += xi;
+				}
+			}
+		}
+	}
+}
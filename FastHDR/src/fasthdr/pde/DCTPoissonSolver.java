@@ -0,0 +1,139 @@
+/*
+	DCT Poisson solver
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.pde;
+
+import fasthdr.model.HDRChannel;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
+
+// Direct Poisson solver in O(n log n) time, where n is the number of pixels.
+// The cosine basis of the DCT-II diagonalizes the Neumann Laplacian used by Multigrid, so
+// Lu = f is solved exactly by transforming f, dividing each coefficient by the eigenvalue
+//   (2cos(pi kx / width) - 2) + (2cos(pi ky / height) - 2)
+// and transforming back. The solution is only unique up to a constant; the constant (zero
+// frequency) term is set to 0, which Fattal's normalization removes anyway.
+public class DCTPoissonSolver implements PoissonSolver {
+
+	// Columns are transformed in blocks so each row read touches whole cache lines
+	public static final int COLUMN_BLOCK = 8;
+
+	private CancelToken cancelToken;
+
+	public DCTPoissonSolver(CancelToken token){
+		cancelToken = token;
+	}
+
+	// A direct solve has no use for an initial guess
+	public HDRChannel solve(HDRChannel channel, HDRChannel initialGuess){
+		return solve(channel);
+	}
+
+	public HDRChannel solve(HDRChannel channel){
+		final int width = channel.getWidth();
+		final int height = channel.getHeight();
+
+		HDRChannel solution = new HDRChannel(width, height, "pde");
+		solution.copyChannelData(channel);
+		final double[] data = solution.getData();
+
+		final DCT rowDCT = new DCT(width);
+		final DCT columnDCT = height == width ? rowDCT : new DCT(height);
+
+		// Forward transform
+		transformRows(data, rowDCT, width, height, true);
+		if(cancelToken.isCancelled()){ return null; }
+		transformColumns(data, columnDCT, width, height, true);
+		if(cancelToken.isCancelled()){ return null; }
+
+		// Divide by the eigenvalues of the Laplacian
+		final double[] xEigen = new double[width];
+		final double[] yEigen = new double[height];
+		for(int x = 0; x < width; x++){ xEigen[x] = 2 * Math.cos(Math.PI * x / width) - 2; }
+		for(int y = 0; y < height; y++){ yEigen[y] = 2 * Math.cos(Math.PI * y / height) - 2; }
+
+		Parallel.rows(0, height - 1, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < width; x++){
+						double eigen = xEigen[x] + yEigen[y];
+						data[(y * width) + x] = eigen == 0 ? 0 : data[(y * width) + x] / eigen;
+					}
+				}
+			}
+		});
+		if(cancelToken.isCancelled()){ return null; }
+
+		// Inverse transform
+		transformColumns(data, columnDCT, width, height, false);
+		if(cancelToken.isCancelled()){ return null; }
+		transformRows(data, rowDCT, width, height, false);
+		if(cancelToken.isCancelled()){ return null; }
+
+		return solution;
+	}
+
+	private void transformRows(final double[] data, final DCT dct, final int width, final int height, final boolean forward){
+		Parallel.rows(0, height - 1, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				DCT.Workspace ws = dct.createWorkspace();
+				for(int y = a; y <= b; y++){
+					if(cancelToken.isCancelled()){ return; }
+					if(forward){ dct.forward(data, y * width, ws); }
+					else{ dct.inverse(data, y * width, ws); }
+				}
+			}
+		});
+	}
+
+	private void transformColumns(final double[] data, final DCT dct, final int width, final int height, final boolean forward){
+		int blocks = (width + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+		Parallel.range(0, blocks - 1, Math.max(1, Parallel.MIN_PIXEL_GRAIN / (height * COLUMN_BLOCK)), cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				DCT.Workspace ws = dct.createWorkspace();
+				double[] columns = new double[COLUMN_BLOCK * height];
+				for(int block = a; block <= b; block++){
+					if(cancelToken.isCancelled()){ return; }
+					int x0 = block * COLUMN_BLOCK;
+					int count = Math.min(COLUMN_BLOCK, width - x0);
+
+					// Gather the block of columns, one column after another
+					for(int y = 0; y < height; y++){
+						for(int c = 0; c < count; c++){
+							columns[(c * height) + y] = data[(y * width) + x0 + c];
+						}
+					}
+
+					for(int c = 0; c < count; c++){
+						if(forward){ dct.forward(columns, c * height, ws); }
+						else{ dct.inverse(columns, c * height, ws); }
+					}
+
+					// Scatter back
+					for(int y = 0; y < height; y++){
+						for(int c = 0; c < count; c++){
+							data[(y * width) + x0 + c] = columns[(c * height) + y];
+						}
+					}
+				}
+			}
+		});
+	}
+}
@@ -22,12 +22,13 @@
 package fasthdr.pde;
 
 import fasthdr.model.HDRChannel;
-import fasthdr.util.CancelSignal;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
 
 // Multigrid partial differential equation framework for solving in O(n) time, where n is the number of pixels
 // Open Source: pde.cpp of pfstmo library
 // Steps to MG can be found: http://www.imtek.uni-freiburg.de/simulation/mathematica/IMSweb/imsTOC/Lectures%20and%20Tips/Simulation%20I/HTMLLinks/MultiGrid_introDocu_26.html
-public class Multigrid {
+public class Multigrid implements PoissonSolver {
 
 	public static final int MIN_SIZE = 16;
 	public static final int MODYF = 0;
@@ -35,13 +36,52 @@ public class Multigrid {
 	public static final int BICONJUGATE_GRADIENT_STEPS = 20;
 	public static final int V_CYCLES = 2;
 	
-	private CancelSignal cancelSignal;
+	// Smoothers. The relaxation smoothers work in place on the level buffers and allocate nothing,
+	// they take RELAXATION_SWEEPS sweeps per smoothing step and COARSEST_SWEEPS on the coarsest grid.
+	public static enum Smoother {BICONJUGATE_GRADIENT, RED_BLACK_GAUSS_SEIDEL, WEIGHTED_JACOBI};
+	public static final int RELAXATION_SWEEPS = 2;
+	public static final int COARSEST_SWEEPS = 50;
+	public static final int RELAXATION_V_CYCLES = 6;
 	
-	public Multigrid(CancelSignal signal){
-		cancelSignal = signal;
+	// The finest grid is cycled until the relative residual |f - Lu| / |f| is below the tolerance
+	public static final double DEFAULT_TOLERANCE = 1e-5;
+	public static final int MAX_V_CYCLES = 20;
+	public static final double JACOBI_WEIGHT = 0.8;
+	
+	private CancelToken cancelToken;
+	private Smoother smoother;
+	private double tolerance = DEFAULT_TOLERANCE;
+	private int lastCycles = 0;
+	
+	public Multigrid(CancelToken token){
+		this(token, Smoother.RED_BLACK_GAUSS_SEIDEL);
+	}
+	
+	public Multigrid(CancelToken token, Smoother smoother){
+		cancelToken = token;
+		this.smoother = smoother;
+	}
+	
+	public double getTolerance(){
+		return tolerance;
+	}
+	
+	public void setTolerance(double tol){
+		tolerance = tol;
+	}
+	
+	// Number of V-cycles on the finest grid in the last solve
+	public int getCycles(){
+		return lastCycles;
 	}
 	
 	public HDRChannel solve(HDRChannel channel){
+		return solve(channel, null);
+	}
+	
+	// Warm start: with an initial guess the coarse grid nested iterations are skipped and the
+	// finest grid is cycled from the guess until the residual tolerance is met.
+	public HDRChannel solve(HDRChannel channel, HDRChannel initialGuess){
 		int width = channel.getWidth();
 		int height = channel.getHeight();
 		
@@ -69,7 +109,13 @@ public class Multigrid {
 		// Target functions in cycles (approximate solution error)
 		HDRChannel[] VF = new HDRChannel[levels + 1];
 		
+		// Defects and interpolated corrections, allocated once per level
+		HDRChannel[] D = new HDRChannel[levels + 1];
+		HDRChannel[] C = new HDRChannel[levels + 1];
+		
 		VF[0] = new HDRChannel(width, height, "VF");
+		D[0] = new HDRChannel(width, height, "defects");
+		C[0] = new HDRChannel(width, height, "c");
 		
 		RHS[0] = new HDRChannel(1, 1, "RHS");
 		RHS[0].copyChannelData(channel);
@@ -80,13 +126,15 @@ public class Multigrid {
 		int sY = height;
 		
 		for(k = 0; k < levels; k++){
-			if(cancelSignal.isCancelled()){ return null; }
+			if(cancelToken.isCancelled()){ return null; }
 			sX = (sX / 2) + MODYF;
 			sY = (sY / 2) + MODYF;
 			
 			RHS[k + 1] = new HDRChannel(sX, sY, "RHS");
 			IU[k + 1] = new HDRChannel(sX, sY, "IU");
 			VF[k + 1] = new HDRChannel(sX, sY, "VF");
+			D[k + 1] = new HDRChannel(sX, sY, "defects");
+			C[k + 1] = new HDRChannel(sX, sY, "c");
 			
 			restrict(RHS[k], RHS[k+1]);
 		}
@@ -94,102 +142,219 @@ public class Multigrid {
 		// 2. find exact solution at the coarsest-grid (k=levels)
 		IU[levels].setAllData(0);
 		
+		// Relaxation smoothers are cheap but weaker than BiCG, they need more cycles
+		int cycles = smoother == Smoother.BICONJUGATE_GRADIENT ? V_CYCLES : RELAXATION_V_CYCLES;
+		
+		boolean warmStart = initialGuess != null && initialGuess.getWidth() == width && initialGuess.getHeight() == height;
+		if(warmStart){
+			IU[0].copyChannelData(initialGuess);
+		}
+		double norm = norm(RHS[0]);
+		lastCycles = 0;
+		
 		// 3. nested iterations
-		for(k = levels - 1; k >= 0; k--){
-			if(cancelSignal.isCancelled()){ return null; }
+		for(k = warmStart ? 0 : levels - 1; k >= 0; k--){
+			if(cancelToken.isCancelled()){ return null; }
 			// 4. interpolate solution from last coarse-grid to finer-grid
 			// interpolate from level k+1 to level k (finer-grid)
-			prolongate(IU[k+1], IU[k]);
+			if(!warmStart){
+				prolongate(IU[k+1], IU[k]);
+			}
 		
 			// 4.1. first target function is the equation target function (following target functions are the defect)
 			VF[k].copyChannelData(RHS[k]);
 			
-			// 5. V-cycle (twice repeated)
-			for(cycle = 0; cycle < V_CYCLES; cycle++){
+			// 5. V-cycle (fixed count on the coarse grids, until the tolerance on the finest grid)
+			for(cycle = 0; cycle < (k == 0 ? MAX_V_CYCLES : cycles); cycle++){
+				if(k == 0){
+					calculate_defect(D[0], IU[0], VF[0]);
+					if(norm == 0 || norm(D[0]) / norm <= tolerance){ break; }
+					lastCycles++;
+				}
 				
 				// 6. downward stroke of V
 				for(k2 = k; k2 < levels; k2++ ){
-					if(cancelSignal.isCancelled()){ return null; }
+					if(cancelToken.isCancelled()){ return null; }
 					// 7. pre-smoothing of initial solution using target function zero for initial guess at smoothing (except for level k when iu contains prolongated result)
 					if(k2 != k){
 						IU[k2].setAllData(0);
 					}
 				
 					for(i=0 ; i < SMOOTHING_ITERATIONS; i++ ){
-						if(cancelSignal.isCancelled()){ return null; }
-						smooth(IU[k2], VF[k2]);
+						if(cancelToken.isCancelled()){ return null; }
+						smooth(IU[k2], VF[k2], D[k2], RELAXATION_SWEEPS);
 					}
 				
 					// 8. calculate defect at level
 					//    d[k2] = Lh * ~u[k2] - f[k2]
-					HDRChannel D = new HDRChannel(IU[k2].getWidth(), IU[k2].getHeight(), "defects");
-					calculate_defect(D, IU[k2], VF[k2]);
+					calculate_defect(D[k2], IU[k2], VF[k2]);
 				
 					// 9. restrict defect as target function for next coarser-grid
 					//    def -> f[k2+1]
-					restrict(D, VF[k2 + 1]);
+					restrict(D[k2], VF[k2 + 1]);
 				}
 				
 				// 10. solve on coarsest-grid (target function is the defect) iu[levels] should contain solution for the f[levels] - last defect, iu will now be the correction
 				IU[levels].setAllData(0);
+				if(smoother != Smoother.BICONJUGATE_GRADIENT){
+					smooth(IU[levels], VF[levels], D[levels], COARSEST_SWEEPS);
+				}
 				
 				// 11. upward stroke of V
 				for(k2 = levels - 1; k2 >= k; k2--){
-					if(cancelSignal.isCancelled()){ return null; }
+					if(cancelToken.isCancelled()){ return null; }
 					// 12. interpolate correction from last coarser-grid to finer-grid
 					//     iu[k2+1] -> cor
-					HDRChannel C = new HDRChannel(IU[k2].getWidth(), IU[k2].getHeight(), "c");
-					prolongate(IU[k2 + 1], C);
+					prolongate(IU[k2 + 1], C[k2]);
 				
 					// 13. add interpolated correction to initial solution at level k2
-					add_correction(IU[k2], C);
+					add_correction(IU[k2], C[k2]);
 				
 					// 14. post-smoothing of current solution using target function
 					for(i=0; i < SMOOTHING_ITERATIONS; i++){
-						smooth(IU[k2], VF[k2]);
+						smooth(IU[k2], VF[k2], D[k2], RELAXATION_SWEEPS);
 					}
 				}
 			} //--- end of V-cycle
 		}
 		
+		// The solution is only unique up to a constant, which the relaxation lets drift.
+		// Remove the mean so the result matches the DCT solver and exp(u) stays in range.
+		double[] solution = IU[0].getData();
+		double mean = 0;
+		for(i = 0; i < IU[0].getSize(); i++){
+			mean += solution[i];
+		}
+		mean /= IU[0].getSize();
+		for(i = 0; i < IU[0].getSize(); i++){
+			solution[i] -= mean;
+		}
+		
 		return IU[0];
 	}
+	
+	private double norm(HDRChannel channel) {
+		double[] data = channel.getData();
+		double sum = 0;
+		for(int i = 0; i < channel.getSize(); i++){
+			sum += data[i] * data[i];
+		}
+		return Math.sqrt(sum);
+	}
 
 	private void add_correction(HDRChannel channel, HDRChannel correction) {
-		double[] channelData = channel.getData();
-		double[] correctionData = correction.getData();
-		for(int i = 0; i < correction.getSize(); i++){
-			if(cancelSignal.isCancelled()){ return; }
-			channelData[i] = channelData[i] + correctionData[i];
-		}
+		final double[] channelData = channel.getData();
+		final double[] correctionData = correction.getData();
+		Parallel.range(0, correction.getSize() - 1, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int i = a; i <= b; i++){
+					channelData[i] = channelData[i] + correctionData[i];
+				}
+			}
+		});
 	}
 
 	private void calculate_defect(HDRChannel d, HDRChannel u, HDRChannel f) {
-		int width = f.getWidth();
-		int height = f.getHeight();
+		final int width = f.getWidth();
+		final int height = f.getHeight();
 		
-		double[] dData = d.getData();
-		double[] uData = u.getData();
-		double[] fData = f.getData();
-		int w, n, e, s;
-		for(int y = 0 ; y < height ; y++)
-			for(int x = 0 ; x < width ; x++) {
-				if(cancelSignal.isCancelled()){ return; }
-				w = (x == 0 ? 0 : x - 1);
-				n = (y == 0 ? 0 : y - 1);
-				s = (y + 1 == height ? y : y + 1);
-				e = (x + 1 == width ? x : x + 1);
-				dData[(y * width) + x] = fData[(y * width) + x] 
-				                         - (uData[(y * width) + e] 
-				                         + uData[(y * width) + w] 
-				                         + uData[(n * width) + x] 
-				                         + uData[(s * width) + x] 
-				                         - 4.0 * uData[(y * width) + x]);
-	    }
+		final double[] dData = d.getData();
+		final double[] uData = u.getData();
+		final double[] fData = f.getData();
+		Parallel.rows(0, height - 1, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int w, n, e, s;
+				for(int y = a ; y <= b ; y++){
+					for(int x = 0 ; x < width ; x++) {
+						w = (x == 0 ? 0 : x - 1);
+						n = (y == 0 ? 0 : y - 1);
+						s = (y + 1 == height ? y : y + 1);
+						e = (x + 1 == width ? x : x + 1);
+						dData[(y * width) + x] = fData[(y * width) + x] 
+						                         - (uData[(y * width) + e] 
+						                         + uData[(y * width) + w] 
+						                         + uData[(n * width) + x] 
+						                         + uData[(s * width) + x] 
+						                         - 4.0 * uData[(y * width) + x]);
+					}
+				}
+			}
+		});
 	}
 
-	private void smooth(HDRChannel u, HDRChannel f) {
-		new BiconjugateGradientSolver(cancelSignal).linearBiconjugteGradient(u.getSize(), f.getData(), u.getData(), 1, 0.001, BICONJUGATE_GRADIENT_STEPS, u.getHeight(), u.getWidth());
+	// Smooth u towards the solution of Lu = f. temp is a scratch buffer of the same size (used by Jacobi).
+	private void smooth(HDRChannel u, HDRChannel f, HDRChannel temp, int sweeps) {
+		switch(smoother){
+			case RED_BLACK_GAUSS_SEIDEL:
+				for(int i = 0; i < sweeps; i++){
+					if(cancelToken.isCancelled()){ return; }
+					redBlackSweep(u, f, 0);
+					redBlackSweep(u, f, 1);
+				}
+				break;
+			case WEIGHTED_JACOBI:
+				for(int i = 0; i < sweeps; i++){
+					if(cancelToken.isCancelled()){ return; }
+					jacobiSweep(u, f, temp);
+				}
+				break;
+			default:
+				new BiconjugateGradientSolver(cancelToken).linearBiconjugteGradient(u.getSize(), f.getData(), u.getData(), 1, 0.001, BICONJUGATE_GRADIENT_STEPS, u.getHeight(), u.getWidth());
+				break;
+		}
+	}
+	
+	// Gauss-Seidel update of the pixels where (x + y) % 2 == color. The 4 neighbours of such a pixel
+	// all have the other color, so the rows can be updated in parallel.
+	// With mirrored edges a missing neighbour equals the centre, so the stencil becomes
+	// sum(neighbours inside the image) - count * u = f
+	private void redBlackSweep(HDRChannel u, HDRChannel f, final int color) {
+		final int width = u.getWidth();
+		final int height = u.getHeight();
+		final double[] uData = u.getData();
+		final double[] fData = f.getData();
+		Parallel.rows(0, height - 1, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = (y + color) & 1; x < width; x += 2){
+						relax(uData, fData, uData, width, height, x, y, 1.0);
+					}
+				}
+			}
+		});
+	}
+	
+	// Weighted Jacobi: every pixel is updated from the previous iterate held in temp
+	private void jacobiSweep(HDRChannel u, HDRChannel f, HDRChannel temp) {
+		final int width = u.getWidth();
+		final int height = u.getHeight();
+		final double[] uData = u.getData();
+		final double[] fData = f.getData();
+		final double[] tData = temp.getData();
+		System.arraycopy(uData, 0, tData, 0, u.getSize());
+		Parallel.rows(0, height - 1, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < width; x++){
+						relax(uData, fData, tData, width, height, x, y, JACOBI_WEIGHT);
+					}
+				}
+			}
+		});
+	}
+	
+	// u(x, y) += weight * (point solution from the neighbours in src - u(x, y))
+	private static void relax(double[] uData, double[] fData, double[] src, int width, int height, int x, int y, double weight) {
+		int index = (y * width) + x;
+		double sum = 0;
+		int count = 0;
+		if(x > 0){ sum += src[index - 1]; count++; }
+		if(x + 1 < width){ sum += src[index + 1]; count++; }
+		if(y > 0){ sum += src[index - width]; count++; }
+		if(y + 1 < height){ sum += src[index + width]; count++; }
+		if(count == 0){ return; }
+		double value = (sum - fData[index]) / count;
+		uData[index] = src[index] + weight * (value - src[index]);
 	}
 	
 	public double fractionPart(double d){
@@ -218,13 +383,13 @@ public class Multigrid {
 		double pixVal, weight, fx, fy, fval, ix, iy;
 		
 		for(y = 0, sy = -dy / 2; y < outRows; y++, sy += dy){
+			if(cancelToken.isCancelled()){ return; }
 			for(x = 0, sx = -dx / 2; x < outCols; x++, sx += dx){
 				pixVal = 0;
 				weight = 0;
 				
 				for(ix = Math.max(0, Math.ceil(sx - filterSize)); ix <= Math.min(Math.floor(sx + filterSize), inCols - 1); ix++){
 					for(iy = Math.max(0, Math.ceil(sy - filterSize)); iy <= Math.min(Math.floor(sy + filterSize), inRows - 1); iy++) {
-						if(cancelSignal.isCancelled()){ return; }
 						fx = Math.abs(sx - ix);
 						fy = Math.abs(sy - iy);
 
@@ -251,6 +416,10 @@ public class Multigrid {
 	
 	  	double filterSize = 0.5;
 	  	
+	  	// The stencil is not divided by the grid spacing, so a coarse grid equation needs its target
+	  	// scaled by the ratio of pixel areas (about 4) to match the fine grid equation.
+	  	double scale = ratioWidth * ratioHeight;
+	  	
 	  	double sy, sx;
 	  	int x, y;
 	  	
@@ -258,6 +427,7 @@ public class Multigrid {
 		double[] outData = out.getData();
 	  	
 	  	for(y = 0, sy = ratioHeight / 2 - 0.5; y < outHeight; y++, sy += ratioHeight){
+	  		if(cancelToken.isCancelled()){ return; }
 	  		for(x = 0, sx = ratioWidth/ 2 - 0.5; x < outWidth; x++, sx += ratioWidth) {
 
 	  			double pixVal = 0;
@@ -265,13 +435,12 @@ public class Multigrid {
 	  			
 	  			for(double ix = Math.max(0, Math.ceil(sx - ratioWidth * filterSize)); ix <= Math.min(Math.floor(sx + ratioWidth * filterSize), inWidth - 1); ix++){
 	  				for(double iy = Math.max(0, Math.ceil(sy - ratioWidth * filterSize)); iy <= Math.min(Math.floor(sy + ratioWidth * filterSize), inHeight - 1); iy++){
-	  					if(cancelSignal.isCancelled()){ return; }
 	  					pixVal = pixVal + inData[(int)(iy * inWidth) + (int)ix];
 	  					w++;
 	  				}
 	  			}
 	  			
-	  			outData[(y * outWidth) + x] = pixVal / w;
+	  			outData[(y * outWidth) + x] = scale * pixVal / w;
 	  		}
 		}
 	}
@@ -1,5 +1,5 @@
 /*
-	Cancel signal object
+	Poisson solver interface
     Copyright (C) 2009 Edward Duong
 
     This program is free software: you can redistribute it and/or modify
@@ -18,25 +18,15 @@
     Email: ed.duong@gmail.com
 */
 
-package fasthdr.util;
+package fasthdr.pde;
 
-public class CancelSignal {
-	private boolean cancel; 
-	
-	public CancelSignal(boolean init){
-		cancel = init;
-	}
-	
-	public synchronized void cancel(){
-		cancel = true;
-	}
-	
-	public synchronized void resume(){
-		cancel = false;
-	}
-	
-	public boolean isCancelled(){
-		// Synchronizing this method is far too expensive and it is not important. 
-		return cancel;
-	}
+import fasthdr.model.HDRChannel;
+
+// Solves the Poisson equation Lu = f, where L is the 5-point Laplacian with Neumann boundary
+// conditions (edge pixels are mirrored). Returns u, or null if the solve was cancelled.
+public interface PoissonSolver {
+	public HDRChannel solve(HDRChannel channel);
+	// initialGuess is an approximate solution (e.g. the solution for the previous parameters),
+	// iterative solvers start from it. It is ignored if null or of a different size.
+	public HDRChannel solve(HDRChannel channel, HDRChannel initialGuess);
 }
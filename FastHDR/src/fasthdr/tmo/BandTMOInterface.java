@@ -0,0 +1,34 @@
+/*
+	Band by band tone mapping interface
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.tmo;
+
+import fasthdr.model.HDRFrame;
+
+// A TMO that is per pixel once a few global statistics are known, so a frame can be tone mapped one
+// band of rows at a time: every band is passed to accumulate in row order, then every band to tonemap.
+// Both calls may overwrite the band's channels.
+public interface BandTMOInterface {
+	// First pass, gathers the statistics of an X, Y, Z band
+	public void accumulate(HDRFrame band);
+	
+	// Second pass, returns a frame holding the band's R, G, B (0-255)
+	public HDRFrame tonemap(HDRFrame band);
+}
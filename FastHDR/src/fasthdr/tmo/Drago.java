@@ -22,182 +22,300 @@
 package fasthdr.tmo;
 
 import fasthdr.colorspace.ColorSpaceConverter;
+import fasthdr.colorspace.PixelQuantizer;
 import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
-import fasthdr.util.GaussianPyramid;
-import fasthdr.util.Subsampler;
-import fasthdr.view.ImagePanel;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
+import fasthdr.util.PixelKernels;
+import fasthdr.util.PreprocessCache;
 
 
 public class Drago {
 	
+	// Pixels between cancellation checks in the array kernel
+	private static final int CANCEL_BLOCK = 4096;
+	
 	//////Read only. Do not modify contents. //////
 	// Full TMO
 	private final HDRFrame frame;
-	private final ImagePanel displayPanel;
-	private final int lumSize;
-	private final double lumPixFloor[];
+	private final TMOOutputInterface displayPanel;
 	private final double maxLuminance;
 	private final double avgLuminance;
 	private final double divider;
-	
-	// Preview TMO
-	private final HDRChannel[] xChannelSubsamples;
-	private final HDRChannel[] yChannelSubsamples;
-	private final HDRChannel[] zChannelSubsamples;
 	///////////////////////////////////////////////
 	
-	private double biasP;
+	// Cancels headless tonemap(...) calls, the previews use the token of their request
+	private volatile CancelToken cancelToken = new CancelToken();
+	private final ProgressiveRenderer renderer;
 	
-	private boolean cancel = false;
-	private Thread thread = null;
+	// Final encode to 8-bit pixel values
+	private volatile PixelQuantizer pixelQuantizer = PixelQuantizer.LINEAR;
+	
+	// panel may be null when only tonemap(bias) is used (headless), the preview is then skipped
+	public Drago(HDRFrame inFrame, TMOOutputInterface panel){
+		this(inFrame, panel, null);
+	}
 	
-	public Drago(HDRFrame inFrame, ImagePanel panel){
+	// cacheKey identifies the content of the frame (see FastHDR.getCacheKey). If not null the
+	// preprocessing is shared through the PreprocessCache.
+	public Drago(HDRFrame inFrame, TMOOutputInterface panel, String cacheKey){
 		long start = System.currentTimeMillis();
-		// PREPROCESS
 		frame = inFrame;
 		displayPanel = panel;
 		
-		HDRChannel xChannel = frame.getChannel("X");
+		// PREPROCESS
+		String key = cacheKey == null ? null : cacheKey + "/drago";
+		PreprocessCache.Entry entry = key == null ? null : PreprocessCache.getShared().get(key);
+		boolean cached = entry != null;
+		if(!cached){
+			entry = preprocess(frame);
+			if(key != null){ PreprocessCache.getShared().put(key, entry); }
+		}
+		
+		// Unpack, see preprocess
+		double[] values = entry.getValues();
+		avgLuminance = values[0];
+		maxLuminance = values[1];
+		divider = values[2];
+		renderer = displayPanel == null ? null : new ProgressiveRenderer("Drago", displayPanel, frame.getWidth(), frame.getHeight());
+		
+		System.out.println("Drago Preprocess: " + (System.currentTimeMillis() - start) + (cached ? " (cached)" : ""));
+	}
+	
+	// values: average luminance, normalized maximum luminance and divider. The previews sample the
+	// frame itself, so there are no channels.
+	private static PreprocessCache.Entry preprocess(HDRFrame frame){
 		HDRChannel yChannel = frame.getChannel("Y");
-		HDRChannel zChannel = frame.getChannel("Z");
 		
-		double[] yData = yChannel.getData();
 		int size = frame.getSize();
 		
 		// PREPROCESS TMO
 		// Calculate average luminance and maximum luminance
 		double max = 0;
 		double avg = 0;
+		double lum;
 		for(int i = 0 ; i < size; i++) {
-			avg += Math.log(yData[i] + 1e-4);
-			max = (yData[i] > max) ? yData[i] : max ;
+			lum = yChannel.get(i);
+			avg += Math.log(lum + 1e-4);
+			max = (lum > max) ? lum : max ;
 		}
-		avgLuminance = Math.exp(avg / size);
+		double avgLuminance = Math.exp(avg / size);
 		
 		// Normalize
-		maxLuminance = max / avgLuminance;
+		double maxLuminance = max / avgLuminance;
 		
 		// Set divider
+		double divider = Math.log10(maxLuminance + 1.0);
+		double[] values = {avgLuminance, maxLuminance, divider};
+		return new PreprocessCache.Entry(new HDRChannel[0], values);
+	}
+	
+	// Statistics only, used by Bands: no frame and no preview
+	private Drago(double avgLum, double max){
+		frame = null;
+		displayPanel = null;
+		avgLuminance = avgLum;
+		maxLuminance = max / avgLuminance;
 		divider = Math.log10(maxLuminance + 1.0);
+		renderer = null;
+	}
+	
+	// Band by band Drago TMO: the average and maximum luminance of every band, then the same TMO as tonemap(bias)
+	public static class Bands implements BandTMOInterface {
 		
-		// Inverse mapping: linear
-		// It is preference to have slightly more solid black 0 and solid white 255 in spectrum
-		// by stretching a mapping
-		// In the future: This can be preprocessed on application startup instead.
-		lumSize = 258;
-		lumPixFloor = new double[lumSize];
+		private final double bias;
+		private double avg = 0;
+		private double max = 0;
+		private long size = 0;
+		private Drago drago = null;
 		
-		for(int p = 1; p < lumSize; p++) {				
-			lumPixFloor[p] = (double)(p - 1) / 255;
+		public Bands(double bias){
+			this.bias = bias;
 		}
 		
-		// PREPROCESS PREVIEW
-		yChannelSubsamples = Subsampler.quadrantDownSample(yChannel);
-		xChannelSubsamples = Subsampler.quadrantDownSample(xChannel);
-		zChannelSubsamples = Subsampler.quadrantDownSample(zChannel);
+		public void accumulate(HDRFrame band){
+			HDRChannel yChannel = band.getChannel("Y");
+			int bandSize = band.getSize();
+			double lum;
+			for(int i = 0 ; i < bandSize; i++) {
+				lum = yChannel.get(i);
+				avg += Math.log(lum + 1e-4);
+				max = (lum > max) ? lum : max ;
+			}
+			size += bandSize;
+		}
 		
-		System.out.println("Drago Preprocess: " + (System.currentTimeMillis() - start));
+		public HDRFrame tonemap(HDRFrame band){
+			if(drago == null){ drago = new Drago(Math.exp(avg / size), max); }
+			return drago.tonemap(band.getChannel("X"), band.getChannel("Y"), band.getChannel("Z"), bias);
+		}
 	}
 	
+	// Renders the previews and then the full image on the display panel, cancelling the rendering in progress
 	public void performTMOwithPreview(double bias){
-		if(frame == null){ return; }
-		if(thread != null && thread.isAlive()){ cancel(); }
+		if(frame == null || renderer == null){ return; }
+		renderer.start(new DragoRequest(bias));
+	}
+	
+	// Tone maps the full frame on the calling thread, without a preview. Returns R, G, B (0-255).
+	public HDRFrame tonemap(double bias){
+		return tonemap(frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z"), bias);
+	}
+	
+	// The full frame rendered region by region, the same pixels as tonemap(bias) packed for display
+	public TileSource createTileSource(double bias){
+		return new Tiles(Math.log(bias) / -0.693147, pixelQuantizer); // Log(base e)(0.5)
+	}
+	
+	private class Tiles implements TileSource {
 		
-		thread = new Thread(new DragoTMOwithPreview(bias));
-		thread.start();
+		private final double biasP;
+		private final PixelQuantizer quantizer;
+		
+		public Tiles(double biasP, PixelQuantizer quantizer){
+			this.biasP = biasP;
+			this.quantizer = quantizer;
+		}
+		
+		public int getWidth(){ return frame.getWidth(); }
+		public int getHeight(){ return frame.getHeight(); }
+		
+		public void render(int x, int y, int width, int height, int step, int[] pixels, int offset, int scan){
+			HDRChannel xChannel = frame.getChannel("X");
+			HDRChannel yChannel = frame.getChannel("Y");
+			HDRChannel zChannel = frame.getChannel("Z");
+			double[] rgb = new double[3];
+			int frameWidth = frame.getWidth();
+			int i, p;
+			for(int row = 0; row < height; row++){
+				i = ((y + (row * step)) * frameWidth) + x;
+				p = offset + (row * scan);
+				for(int col = 0; col < width; col++, i += step, p++){
+					dragoPixel(biasP, quantizer, xChannel.get(i), yChannel.get(i), zChannel.get(i), ColorSpaceConverter.CIE_XYZtoSRGB_RGB, rgb);
+					// Narrowed as tonemap stores them
+					pixels[p] = Linear.pack(xChannel.narrow(rgb[0]), xChannel.narrow(rgb[1]), xChannel.narrow(rgb[2]));
+				}
+			}
+		}
 	}
 	
-	// Cancel TMO and preview
+	public PixelQuantizer getPixelQuantizer(){
+		return pixelQuantizer;
+	}
+	
+	// Takes effect on the next performTMOwithPreview
+	public void setPixelQuantizer(PixelQuantizer quantizer){
+		pixelQuantizer = quantizer;
+	}
+	
+	// Cancel TMO and preview, without waiting for the rendering to stop
 	public void cancel(){
-		cancel = true;
-		try { thread.join(); } 
-		catch (InterruptedException e) { e.printStackTrace(); }
-		cancel = false;
-		thread = null;
+		if(renderer != null){ renderer.cancel(); }
+		cancelToken.cancel();
+		cancelToken = new CancelToken();
 	}
 	
-	public class DragoTMOwithPreview implements Runnable{
+	// The previews and full image for one bias. Scale k samples every 2^k th pixel of every 2^k th row,
+	// so the even pixels of the even rows of a scale are the pixels of the coarser scale and are copied
+	// from it: every pixel is tone mapped once over all the scales. The full image is left to the display,
+	// which renders what it shows through a TileSource.
+	private class DragoRequest implements ProgressiveRenderer.Request {
 		
-		private final double bias;
+		private final double biasP;
+		
+		// R, G, B of the last scale rendered
+		private HDRFrame coarser = null;
 		
-		public DragoTMOwithPreview(double b){ 
-			bias = b;
+		public DragoRequest(double bias){
+			biasP = Math.log(bias) / -0.693147; // Log(base e)(0.5)
 		}
 		
-		// Perform TMO with NO preview
-		/*@Override
-		public void run() {
-			HDRFrame resultFrame1 = tonemap(bias, frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z"));
-			displayPanel.setImage(resultFrame1.getChannel("R"), resultFrame1.getChannel("G"), resultFrame1.getChannel("B"));
-		}*/
+		public int getCoarsestScale(){
+			return ProgressiveRenderer.MAX_SCALE;
+		}
 		
-		@Override
-		public void run() {
-			long start = System.currentTimeMillis();
-			
-			// TMO top left pixels
-			HDRFrame resultFrame1 = tonemap(xChannelSubsamples[0], yChannelSubsamples[0], zChannelSubsamples[0], bias);
-			if(cancel == true){ return; }
-			
-			// Display preview
-			displayPanel.setImage(GaussianPyramid.upSample(resultFrame1.getChannel("R")), 
-					  GaussianPyramid.upSample(resultFrame1.getChannel("G")), 
-					  GaussianPyramid.upSample(resultFrame1.getChannel("B")));
-			
-			System.out.println("Drago Preview: " + (System.currentTimeMillis() - start));
-			
-			start = System.currentTimeMillis();
-			// TMO top right pixels (We could reconstruct the image incrementally with 
-			// Subsampler.quadrantPartialReconstruction(...)), apply a Gaussian blur
-			// and re-display (for a slightly more accurate preview). I find the results 
-			// of doing so are not worth the extra computation.
-			HDRFrame resultFrame2 = tonemap(xChannelSubsamples[1], yChannelSubsamples[1], zChannelSubsamples[1], bias);
-			if(cancel == true){ return; }
-			
-			// TMO bottom left pixels
-			HDRFrame resultFrame3 = tonemap(xChannelSubsamples[2], yChannelSubsamples[2], zChannelSubsamples[2], bias);
-			if(cancel == true){ return; }
-			
-			// TMO bottom right pixels
-			HDRFrame resultFrame4 = tonemap(xChannelSubsamples[3], yChannelSubsamples[3], zChannelSubsamples[3], bias);
-			if(cancel == true){ return; }
-			
-			// Re-construct full image
-			if(cancel == true){ return; }
-			HDRChannel fullR = Subsampler.quadrantUpSample(resultFrame1.getChannel("R"), resultFrame2.getChannel("R"), 
-					resultFrame3.getChannel("R"), resultFrame4.getChannel("R"));
-			
-			if(cancel == true){ return; }
-			HDRChannel fullG = Subsampler.quadrantUpSample(resultFrame1.getChannel("G"), resultFrame2.getChannel("G"), 
-					resultFrame3.getChannel("G"), resultFrame4.getChannel("G"));
-			
-			if(cancel == true){ return; }
-			HDRChannel fullB = Subsampler.quadrantUpSample(resultFrame1.getChannel("B"), resultFrame2.getChannel("B"), 
-					resultFrame3.getChannel("B"), resultFrame4.getChannel("B"));
+		public TileSource getTileSource(){
+			return new Tiles(biasP, pixelQuantizer);
+		}
+		
+		public HDRFrame render(int scale, CancelToken token){
+			HDRChannel xChannel = frame.getChannel("X");
+			HDRChannel yChannel = frame.getChannel("Y");
+			HDRChannel zChannel = frame.getChannel("Z");
+			int step = 1 << scale;
+			int width = (frame.getWidth() + step - 1) / step;
+			int height = (frame.getHeight() + step - 1) / step;
 			
+			HDRFrame result = new HDRFrame(width, height);
+			result.addChannel(new HDRChannel(width, height, "R", xChannel.getPrecision()));
+			result.addChannel(new HDRChannel(width, height, "G", xChannel.getPrecision()));
+			result.addChannel(new HDRChannel(width, height, "B", xChannel.getPrecision()));
 			
-			// Display fully tmo'ed image
-			displayPanel.setImage(fullR, fullG, fullB);
-			System.out.println("Drago Full: " + (System.currentTimeMillis() - start));
+			dragoSamples(token, biasP, xChannel, yChannel, zChannel, step, coarser, result, ColorSpaceConverter.CIE_XYZtoSRGB_RGB);
+			if(token.isCancelled() == true){ return null; }
+			coarser = result;
+			return result;
 		}
 	}
 	
+	// Drago TMO of every step th pixel of every step th row of x, y, z into the R, G, B of result.
+	// Pixels at even positions of coarser (the result for twice the step, or null) are copied from it.
+	private void dragoSamples(final CancelToken cancelToken, final double biasP, 
+			final HDRChannel x, final HDRChannel y, final HDRChannel z, final int step, final HDRFrame coarser, final HDRFrame result,
+			final double[][] conversionMatrix){
+		final int frameWidth = x.getWidth();
+		final int width = result.getWidth();
+		final HDRChannel r = result.getChannel("R");
+		final HDRChannel g = result.getChannel("G");
+		final HDRChannel b = result.getChannel("B");
+		final HDRChannel coarseR = coarser == null ? null : coarser.getChannel("R");
+		final HDRChannel coarseG = coarser == null ? null : coarser.getChannel("G");
+		final HDRChannel coarseB = coarser == null ? null : coarser.getChannel("B");
+		final int coarseWidth = coarser == null ? 0 : coarser.getWidth();
+		final PixelQuantizer quantizer = pixelQuantizer;
+		Parallel.rows(0, result.getHeight() - 1, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				double[] rgb = new double[3];
+				int index, coarseIndex, frameIndex;
+				for(int row = start; row <= end; row++){
+					for(int col = 0; col < width; col++){
+						index = (row * width) + col;
+						if(coarseR != null && (row & 1) == 0 && (col & 1) == 0){
+							coarseIndex = ((row / 2) * coarseWidth) + (col / 2);
+							r.set(index, coarseR.get(coarseIndex));
+							g.set(index, coarseG.get(coarseIndex));
+							b.set(index, coarseB.get(coarseIndex));
+							continue;
+						}
+						frameIndex = (row * step * frameWidth) + (col * step);
+						dragoPixel(biasP, quantizer, x.get(frameIndex), y.get(frameIndex), z.get(frameIndex), conversionMatrix, rgb);
+						r.set(index, rgb[0]);
+						g.set(index, rgb[1]);
+						b.set(index, rgb[2]);
+					}
+				}
+			}
+		});
+	}
+	
 	private HDRFrame tonemap(HDRChannel xChannel, HDRChannel yChannel, HDRChannel zChannel, double b){
+		CancelToken cancelToken = this.cancelToken;
+		
 		// Copy original data
 		HDRFrame newFrame = new HDRFrame(xChannel.getWidth(), xChannel.getHeight());
 		newFrame.copyAddChannelData(xChannel, yChannel, zChannel);
 		
-		double[] newXData = newFrame.getChannel("X").getData();
-		double[] newYData = newFrame.getChannel("Y").getData();
-		double[] newZData = newFrame.getChannel("Z").getData();
+		HDRChannel newX = newFrame.getChannel("X");
+		HDRChannel newY = newFrame.getChannel("Y");
+		HDRChannel newZ = newFrame.getChannel("Z");
 		
 		// Apply Drago TMO
-		biasP = Math.log(b) / -0.693147; // Log(base e)(0.5)
+		double biasP = Math.log(b) / -0.693147; // Log(base e)(0.5)
 		
-		dragoTMO(biasP, newYData, newXData, newYData, newZData, ColorSpaceConverter.CIE_XYZtoSRGB_RGB, 0, newXData.length - 1);
+		dragoTMO(cancelToken, biasP, newX, newY, newZ, ColorSpaceConverter.CIE_XYZtoSRGB_RGB, 0, newX.getSize() - 1);
 		
-		if(cancel == true){ return null; }
+		if(cancelToken.isCancelled() == true){ return null; }
 		
 		// Rename the X, Y, Z channel to R, G, B, respectively
 		newFrame.renameChannel("X", "R");
@@ -206,57 +324,85 @@ public class Drago {
 		return newFrame;
 	}
 	
-	private static int DRAGO_BASE_CASE = 250000;
-	private void dragoTMO(final double biasP, final double[] y, 
-			final double[] newXData, final double[] newYData, final double[] newZData,
+	private void dragoTMO(final CancelToken cancelToken, final double biasP, 
+			final HDRChannel newX, final HDRChannel newY, final HDRChannel newZ,
 			final double[][] conversionMatrix, final int a, final int b){
-		if(cancel == true){ return; }
-		// Base Case
-		if(b - a < DRAGO_BASE_CASE){
-			double luminanceAvgRatio = 0;
-			double newLum = 0;
-			double aVal, bVal, cVal;
-    		for(int i = a; i <= b; i++){
-    			if(cancel == true){ return; }
-    			// Core Drago Equation
-    			luminanceAvgRatio = y[i] / avgLuminance;
-    			newLum = (Math.log(luminanceAvgRatio + 1.0) / Math.log(2.0 + Math.pow(luminanceAvgRatio / maxLuminance, biasP) * 8.0)) / divider;
-				
-    			// Re-scale to new luminance
-    			double scale = newLum / newYData[i];
-    			newXData[i] *= scale;
-    			newYData[i] *= scale;
-    			newZData[i] *= scale;
-    			
-    			// XYZ colorspace to RGB conversion
-    			aVal = newXData[i];
-				bVal = newYData[i];
-				cVal = newZData[i];
-				// Multiply by conversion matrix
-				newXData[i] = (conversionMatrix[0][0] * aVal) + (conversionMatrix[0][1] * bVal) + (conversionMatrix[0][2] * cVal);
-				newYData[i] = (conversionMatrix[1][0] * aVal) + (conversionMatrix[1][1] * bVal) + (conversionMatrix[1][2] * cVal);
-				newZData[i] = (conversionMatrix[2][0] * aVal) + (conversionMatrix[2][1] * bVal) + (conversionMatrix[2][2] * cVal);
-				
-				// WARNING: at this point newXData, newYData, newZData now represent the R, G, B channel respectively
+		final boolean arrays = PixelKernels.supports(newX, newY, newZ);
+		final PixelQuantizer quantizer = pixelQuantizer;
+		Parallel.range(a, b, cancelToken, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				if(arrays){
+					dragoTMO(cancelToken, biasP, newX.getData(), newY.getData(), newZ.getData(), conversionMatrix, start, end);
+					return;
+				}
+				double[] rgb = new double[3];
+				for(int i = start; i <= end; i++){
+					// newY still holds the original luminance
+					dragoPixel(biasP, quantizer, newX.get(i), newY.get(i), newZ.get(i), conversionMatrix, rgb);
+					
+					// WARNING: from here newX, newY, newZ hold the R, G, B channel respectively
+					newX.set(i, rgb[0]);
+					newY.set(i, rgb[1]);
+					newZ.set(i, rgb[2]);
+				}
+			}
+		});
+	}
+	
+	// Drago TMO of one X, Y, Z pixel into rgb (0-255)
+	private void dragoPixel(double biasP, PixelQuantizer quantizer, double xVal, double yVal, double zVal, 
+			double[][] conversionMatrix, double[] rgb){
+		// Core Drago Equation
+		double luminanceAvgRatio = yVal / avgLuminance;
+		double newLum = (Math.log(luminanceAvgRatio + 1.0) / Math.log(2.0 + Math.pow(luminanceAvgRatio / maxLuminance, biasP) * 8.0)) / divider;
+		
+		// Re-scale to new luminance
+		double scale = newLum / yVal;
+		xVal *= scale;
+		yVal *= scale;
+		zVal *= scale;
+		
+		// XYZ colorspace to RGB conversion
+		// Multiply by conversion matrix
+		double rVal = (conversionMatrix[0][0] * xVal) + (conversionMatrix[0][1] * yVal) + (conversionMatrix[0][2] * zVal);
+		double gVal = (conversionMatrix[1][0] * xVal) + (conversionMatrix[1][1] * yVal) + (conversionMatrix[1][2] * zVal);
+		double bVal = (conversionMatrix[2][0] * xVal) + (conversionMatrix[2][1] * yVal) + (conversionMatrix[2][2] * zVal);
+		
+		// Inverse pixel mapping to solid black 0 - solid white 255
+		rgb[0] = quantizer.quantize(rVal);
+		rgb[1] = quantizer.quantize(gVal);
+		rgb[2] = quantizer.quantize(bVal);
+	}
+	
+	// dragoTMO over the backing arrays of DOUBLE channels, same operations without the per sample
+	// precision switch and matrix lookups. Cancellation is checked once per block of pixels.
+	private void dragoTMO(final CancelToken cancelToken, final double biasP, final double[] x, final double[] y, final double[] z,
+			final double[][] conversionMatrix, final int start, final int end){
+		final double m00 = conversionMatrix[0][0], m01 = conversionMatrix[0][1], m02 = conversionMatrix[0][2];
+		final double m10 = conversionMatrix[1][0], m11 = conversionMatrix[1][1], m12 = conversionMatrix[1][2];
+		final double m20 = conversionMatrix[2][0], m21 = conversionMatrix[2][1], m22 = conversionMatrix[2][2];
+		final double avgLum = avgLuminance;
+		final double maxLum = maxLuminance;
+		final double div = divider;
+		final PixelQuantizer quantizer = pixelQuantizer;
+		double luminanceAvgRatio, newLum, scale, xVal, yVal, zVal;
+		for(int blockStart = start; blockStart <= end; blockStart += CANCEL_BLOCK){
+			if(cancelToken.isCancelled() == true){ return; }
+			int blockEnd = Math.min(end, blockStart + CANCEL_BLOCK - 1);
+			for(int i = blockStart; i <= blockEnd; i++){
+				yVal = y[i];
+				luminanceAvgRatio = yVal / avgLum;
+				newLum = (Math.log(luminanceAvgRatio + 1.0) / Math.log(2.0 + Math.pow(luminanceAvgRatio / maxLum, biasP) * 8.0)) / div;
 				
-				// Inverse pixel mapping
-				newXData[i] = ColorSpaceConverter.pixelBinarySearch(newXData[i], lumPixFloor, lumSize);
-				newYData[i] = ColorSpaceConverter.pixelBinarySearch(newYData[i], lumPixFloor, lumSize);
-				newZData[i] = ColorSpaceConverter.pixelBinarySearch(newZData[i], lumPixFloor, lumSize);
+				scale = newLum / yVal;
+				xVal = x[i] * scale;
+				yVal *= scale;
+				zVal = z[i] * scale;
 				
-				// Clamp to solid black and solid white
-				if(newXData[i] < 0){ newXData[i] = 0; } else if(newXData[i] > 255){ newXData[i] = 255; }
-				if(newYData[i] < 0){ newYData[i] = 0; } else if(newYData[i] > 255){ newYData[i] = 255; }
-				if(newZData[i] < 0){ newZData[i] = 0; } else if(newZData[i] > 255){ newZData[i] = 255; }
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ dragoTMO(biasP, y, newXData, newYData, newZData, conversionMatrix, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ dragoTMO(biasP, y, newXData, newYData, newZData, conversionMatrix, halfSplit + 1, b); }}; 
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+				x[i] = quantizer.quantize((m00 * xVal) + (m01 * yVal) + (m02 * zVal));
+				y[i] = quantizer.quantize((m10 * xVal) + (m11 * yVal) + (m12 * zVal));
+				z[i] = quantizer.quantize((m20 * xVal) + (m21 * yVal) + (m22 * zVal));
+			}
+		}
 	}
 }
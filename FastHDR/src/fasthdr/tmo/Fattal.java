@@ -21,87 +21,136 @@
 
 package fasthdr.tmo;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Hashtable;
 
 import fasthdr.colorspace.ColorSpaceConverter;
+import fasthdr.colorspace.PixelQuantizer;
 import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
+import fasthdr.pde.DCTPoissonSolver;
 import fasthdr.pde.Multigrid;
-import fasthdr.util.CancelSignal;
-import fasthdr.util.GaussianBlur;
+import fasthdr.pde.PoissonSolver;
+import fasthdr.util.CancelToken;
 import fasthdr.util.GaussianPyramid;
-import fasthdr.view.ImagePanel;
+import fasthdr.util.Parallel;
+import fasthdr.util.Percentile;
+import fasthdr.util.PreprocessCache;
+import fasthdr.util.PyramidEngine;
 
 public class Fattal {
 	
 	private static final int MIN_GAUSSIAN_PYRAMID = 32;
-	private static final int PREVIEW_PIXEL_LIMIT = 250000;
+	
+	// Backends for the Poisson equation. MULTIGRID is iterative, DCT is a direct O(n log n) solve.
+	public static enum PDESolver {MULTIGRID, DCT};
 	
 	//////Read only variables. Do not modify contents. //////
 	// Full TMO
 	private final HDRFrame frame;
-	private final ImagePanel displayPanel;
-	private final int lumSize;
-	private final double lumPixFloor[];
-	private int pyramidLevels = 0;
+	private final TMOOutputInterface displayPanel;
+	private final int pyramidLevels;
 	private final HDRChannel normalizedLuminance;
 	private final HDRChannel[] gradients;
 	private final double[] avgGradients;
 	
-	// Preview TMO
-	private HDRChannel xPreviewChannel;
-	private HDRChannel yPreviewChannel;
-	private HDRChannel zPreviewChannel;
-	private int previewPyramidLevels;
-	private final HDRChannel normalizedLuminancePreview;
-	private final HDRChannel[] gradientsPreview;
-	private final double[] avgGradientsPreview;
+	// Progressive previews. Index scale - 1 holds the X, Y, Z and normalized luminance at 1 / 2^scale
+	// of the width and height. The normalized luminance is level scale of the full Gaussian pyramid,
+	// so the gradients of its own pyramid are the full gradients from index scale up.
+	private final int previewScales;
+	private final HDRChannel[][] previewChannels;
 	///////////////////////////////////////////////
 	
-	private CancelSignal cancelSignal;
-	private Thread thread = null;
+	// Cancels headless tonemap(...) calls, the previews use the token of their request
+	private volatile CancelToken cancelToken;
+	private final ProgressiveRenderer renderer;
+	
+	// Final encode to 8-bit pixel values
+	private volatile PixelQuantizer pixelQuantizer = PixelQuantizer.LINEAR;
+	private volatile PDESolver pdeSolver = PDESolver.MULTIGRID;
 	
-	public Fattal(HDRFrame inFrame, ImagePanel panel){
+	// Last PDE solution per resolution ("widthxheight"), used as the initial guess of the next solve.
+	// Consecutive parameter values give nearly identical divergence fields, so the warm started
+	// solve only needs a few V-cycles.
+	private final Hashtable<String, HDRChannel> previousSolutions = new Hashtable<String, HDRChannel>();
+	
+	// panel may be null when only tonemap(...) is used (headless), the preview is then skipped
+	public Fattal(HDRFrame inFrame, TMOOutputInterface panel){
+		this(inFrame, panel, null);
+	}
+	
+	// cacheKey identifies the content of the frame (see FastHDR.getCacheKey). If not null the
+	// preprocessing is shared through the PreprocessCache.
+	public Fattal(HDRFrame inFrame, TMOOutputInterface panel, String cacheKey){
 		long start = System.currentTimeMillis();
 		
-		cancelSignal = new CancelSignal(false);
+		cancelToken = new CancelToken();
 		
-		// PREPROCESS TMO
 		frame = inFrame;
 		displayPanel = panel;
 		
+		// PREPROCESS TMO and PREVIEW
+		String key = cacheKey == null ? null : cacheKey + "/fattal" + (displayPanel != null ? "+progressive" : "");
+		PreprocessCache.Entry entry = key == null ? null : PreprocessCache.getShared().get(key);
+		boolean cached = entry != null;
+		if(!cached){
+			entry = preprocess(frame, displayPanel != null);
+			if(key != null){ PreprocessCache.getShared().put(key, entry); }
+		}
+		
+		// Unpack, see pack
+		double[] values = entry.getValues();
+		HDRChannel[] channels = entry.getChannels();
+		pyramidLevels = (int)values[0];
+		previewScales = (int)values[1];
+		normalizedLuminance = channels[0];
+		gradients = Arrays.copyOfRange(channels, 1, 1 + pyramidLevels);
+		avgGradients = Arrays.copyOfRange(values, 2, 2 + pyramidLevels);
+		previewChannels = new HDRChannel[previewScales][];
+		for(int scale = 1; scale <= previewScales; scale++){
+			int c = 1 + pyramidLevels + 4 * (scale - 1);
+			previewChannels[scale - 1] = Arrays.copyOfRange(channels, c, c + 4);
+		}
+		renderer = displayPanel == null ? null : new ProgressiveRenderer("Fattal", displayPanel, frame.getWidth(), frame.getHeight());
+		
+		System.out.println("Fattal Preprocess: " + (System.currentTimeMillis() - start) + "ms" + (cached ? " (cached)" : ""));
+	}
+	
+	// Normalized log luminance, its Gaussian pyramid gradients and their averages, and the inputs of
+	// the progressive previews
+	private static PreprocessCache.Entry preprocess(HDRFrame frame, boolean preview){
 		HDRChannel xChannel = frame.getChannel("X");
 		HDRChannel yChannel = frame.getChannel("Y");
 		HDRChannel zChannel = frame.getChannel("Z");
 		
-		double[] yData = yChannel.getData();
-		
 		int width = xChannel.getWidth();
 		int height = xChannel.getHeight();
 		int size = xChannel.getSize();
 		
 		// Y-Channel in CIEL XYZ is the luminance channel
-		double minLuminance = yData.length > 0 ? yData[0] : 0;
-		double maxLuminance = yData.length > 0 ? yData[0] : 0;
+		double minLuminance = size > 0 ? yChannel.get(0) : 0;
+		double maxLuminance = size > 0 ? yChannel.get(0) : 0;
 		
 		// Find the min and max luminance values
+		double lum;
 		for(int i = 0; i < size; i++){
-			if(yData[i] < minLuminance){ minLuminance = yData[i]; }
-			if(yData[i] > maxLuminance){ maxLuminance = yData[i]; }
+			lum = yChannel.get(i);
+			if(lum < minLuminance){ minLuminance = lum; }
+			if(lum > maxLuminance){ maxLuminance = lum; }
 		}
 		
 		// Luminance normalized to range 0-100 then apply log (base e). Range should be roughly within -4 to 2.
-		normalizedLuminance = new HDRChannel(width, height, "normLum");
-		double[] normalizedLuminanceData = normalizedLuminance.getData();
+		// Intermediate channels are stored in the same precision as the frame.
+		HDRChannel normalizedLuminance = new HDRChannel(width, height, "normLum", yChannel.getPrecision());
 		
 		for(int i = 0; i < size; i++){
-			normalizedLuminanceData[i] = Math.log(100.0 * (yData[i] / maxLuminance) + 0.0001);
+			normalizedLuminance.set(i, Math.log(100.0 * (yChannel.get(i) / maxLuminance) + 0.0001));
 		}
 		
 		// Create gaussian pyramids.
 		// Select minWidthHeight to be the min(width, height)
 		int minWidthHeight = Math.min(width, height);
+		int pyramidLevels = 0;
 		
 		while(minWidthHeight >= MIN_GAUSSIAN_PYRAMID){
 			pyramidLevels++;
@@ -109,111 +158,66 @@ public class Fattal {
 		}
 		
 		// Create Gaussian blur pyramid.
-		HDRChannel[] pyramid = GaussianPyramid.createDownSamplePyramid(normalizedLuminance, pyramidLevels);
+		HDRChannel[] pyramid = new PyramidEngine().createDownSamplePyramid(normalizedLuminance, pyramidLevels);
 		
 		// Calculate average gradients at each pyramid level.
-		gradients = new HDRChannel[pyramidLevels];
-		avgGradients = new double[pyramidLevels];
+		HDRChannel[] gradients = new HDRChannel[pyramidLevels];
+		double[] avgGradients = new double[pyramidLevels];
 		
 		for(int i = 0; i < pyramidLevels; i++){
-			gradients[i] = new HDRChannel(pyramid[i].getWidth(), pyramid[i].getHeight(), "grads");
+			gradients[i] = new HDRChannel(pyramid[i].getWidth(), pyramid[i].getHeight(), "grads", pyramid[i].getPrecision());
 			avgGradients[i] = calculateGradients(pyramid[i], gradients[i], i);
 		}
 		
-		// Inverse mapping: linear
-		// It is preference to have slightly more solid black 0 and solid white 255 in spectrum
-		// by stretching a mapping
-		lumSize = 258;
-		lumPixFloor = new double[lumSize];
-		
-		for(int p = 1; p < lumSize; p++) {				
-			lumPixFloor[p] = (double)(p - 1) / 255;
-		}
-		
-		// PREPROCESS PREVIEW
-		previewPyramidLevels = 0;
-		int newWidth = width;
-		int newHeight = height;
-		
-		// Estimate an appropriate preview image size
-		while(newWidth * newHeight >= PREVIEW_PIXEL_LIMIT){
-			previewPyramidLevels++;
-			newWidth = newWidth / 2;
-			newHeight = newHeight / 2;
-		}
-		
-		System.out.println("Preview LEVELS " + previewPyramidLevels);
-		
-		// Copy original channels to preview channels
-		xPreviewChannel = new HDRChannel(xChannel.getWidth(), xChannel.getHeight(), xChannel.getName());
-		yPreviewChannel = new HDRChannel(yChannel.getWidth(), yChannel.getHeight(), yChannel.getName());
-		zPreviewChannel = new HDRChannel(zChannel.getWidth(), zChannel.getHeight(), zChannel.getName());
-		
-		xPreviewChannel.copyChannelData(xChannel);
-		yPreviewChannel.copyChannelData(yChannel);
-		zPreviewChannel.copyChannelData(zChannel);
-		
-		// Down sample the preview channels. This halves their width and height per iteration
-		for(int i = 0; i < previewPyramidLevels; i++){
+		// PREPROCESS PREVIEWS
+		// Every preview scale needs at least one pyramid level of its own
+		int previewScales = preview ? Math.min(ProgressiveRenderer.MAX_SCALE, pyramidLevels - 1) : 0;
+		if(previewScales < 0){ previewScales = 0; }
+		
+		// X, Y, Z halved once per scale, each from the scale below
+		HDRChannel[] previewChannels = new HDRChannel[4 * previewScales];
+		HDRChannel xPreviewChannel = xChannel;
+		HDRChannel yPreviewChannel = yChannel;
+		HDRChannel zPreviewChannel = zChannel;
+		for(int scale = 1; scale <= previewScales; scale++){
 			xPreviewChannel = GaussianPyramid.downSample(xPreviewChannel);
 			yPreviewChannel = GaussianPyramid.downSample(yPreviewChannel);
 			zPreviewChannel = GaussianPyramid.downSample(zPreviewChannel);
+			int c = 4 * (scale - 1);
+			previewChannels[c] = xPreviewChannel;
+			previewChannels[c + 1] = yPreviewChannel;
+			previewChannels[c + 2] = zPreviewChannel;
+			previewChannels[c + 3] = pyramid[scale];
 		}
 		
-		// Preprocess preview images
-		// Reusing variables declarations
-		yData = yPreviewChannel.getData();
-		
-		width = xPreviewChannel.getWidth();
-		height = xPreviewChannel.getHeight();
-		size = xPreviewChannel.getSize();
-		
-		// Y-Channel in CIEL XYZ is the luminance channel
-		minLuminance = yData.length > 0 ? yData[0] : 0;
-		maxLuminance = yData.length > 0 ? yData[0] : 0;
-		
-		// Find the min and max luminance values
-		for(int i = 0; i < size; i++){
-			if(yData[i] < minLuminance){ minLuminance = yData[i]; }
-			if(yData[i] > maxLuminance){ maxLuminance = yData[i]; }
-		}
-		
-		// Luminance normalized to range 0-100 then apply log (base e). Range should be roughly within -4 to 2.
-		normalizedLuminancePreview = new HDRChannel(width, height, "normLum");
-		double[] normalizedLuminanceDataPreview = normalizedLuminancePreview.getData();
-		
-		for(int i = 0; i < size; i++){
-			normalizedLuminanceDataPreview[i] = Math.log(100.0 * (yData[i] / maxLuminance) + 0.0001);
-		}
-		
-		// Preview should use the same pyramid level for the preview as the original image.
-		// Create Gaussian blur pyramid.
-		pyramid = GaussianPyramid.createDownSamplePyramid(normalizedLuminancePreview, pyramidLevels);
-		
-		// Calculate average gradients at each pyramid level.
-		gradientsPreview = new HDRChannel[pyramidLevels];
-		avgGradientsPreview = new double[pyramidLevels];
-		
-		for(int i = 0; i < pyramidLevels; i++){
-			gradientsPreview[i] = new HDRChannel(pyramid[i].getWidth(), pyramid[i].getHeight(), "grads");
-			avgGradientsPreview[i] = calculateGradients(pyramid[i], gradientsPreview[i], i);
-		}
-		
-		System.out.println("Fattal Preprocess: " + (System.currentTimeMillis() - start) + "ms");
+		return pack(pyramidLevels, normalizedLuminance, gradients, avgGradients, previewScales, previewChannels);
 	}
 	
-	private double calculateGradients(HDRChannel pyramidSlice, HDRChannel gradient, int i) {
+	// values: pyramid levels, preview scales, average gradients
+	// channels: normalized luminance, gradients, then X, Y, Z and normalized luminance of every preview scale
+	private static PreprocessCache.Entry pack(int pyramidLevels, HDRChannel normalizedLuminance, 
+			HDRChannel[] gradients, double[] avgGradients, int previewScales, HDRChannel[] previewChannels){
+		double[] values = new double[2 + pyramidLevels];
+		HDRChannel[] channels = new HDRChannel[1 + pyramidLevels + previewChannels.length];
+		
+		values[0] = pyramidLevels;
+		values[1] = previewScales;
+		System.arraycopy(avgGradients, 0, values, 2, pyramidLevels);
+		channels[0] = normalizedLuminance;
+		System.arraycopy(gradients, 0, channels, 1, pyramidLevels);
+		System.arraycopy(previewChannels, 0, channels, 1 + pyramidLevels, previewChannels.length);
+		return new PreprocessCache.Entry(channels, values);
+	}
+	
+	static double calculateGradients(HDRChannel pyramidSlice, HDRChannel gradient, int i) {
 		int width = pyramidSlice.getWidth();
 		int height = pyramidSlice.getHeight();
 		int size = pyramidSlice.getSize();
 		
-		double pyramidData[] = pyramidSlice.getData();
-		double gradientData[] = gradient.getData();
-		
 		double divider = Math.pow(2.0, i+1);
 		double avgGradient = 0.0;
 
-		double gx, gy;
+		double gx, gy, magnitude;
 		int w, n, e, s;
 		
 		int y, x;
@@ -225,14 +229,15 @@ public class Fattal {
 				e = (x + 1 == width ? x : x + 1);
 				
 				// X-Axis and Y-Axis gradient
-				gx = (pyramidData[(y * width) + w] - pyramidData[(y * width) + e]) / divider;
-				gy = (pyramidData[(s * width) + x] - pyramidData[(n * width) + x]) / divider;
+				gx = (pyramidSlice.get((y * width) + w) - pyramidSlice.get((y * width) + e)) / divider;
+				gy = (pyramidSlice.get((s * width) + x) - pyramidSlice.get((n * width) + x)) / divider;
 				
 				// Store the gradient data
-				gradientData[(y * width) + x] = Math.sqrt(gx * gx + gy * gy);
+				magnitude = Math.sqrt(gx * gx + gy * gy);
+				gradient.set((y * width) + x, magnitude);
 				
 				// Accumulate gradient value
-				avgGradient += gradientData[(y * width) + x];
+				avgGradient += magnitude;
 			}
 		}
 		
@@ -240,95 +245,108 @@ public class Fattal {
 		return avgGradient / size;
 	}
 	
+	// Renders the previews and then the full image on the display panel, cancelling the rendering in progress
 	public void performTMOwithPreview(double param_alpha, double param_beta, double param_saturate, double param_noise){
-		if(frame == null){ return; }
-		if(thread != null && thread.isAlive()){ cancel(); }
-		
-		thread = new Thread(new FattalTMOwithPreview(param_alpha, param_beta, param_saturate, param_noise, cancelSignal));
-		thread.start();
+		if(frame == null || renderer == null){ return; }
+		renderer.start(new FattalRequest(param_alpha, param_beta, param_saturate, param_noise));
+	}
+	
+	// Tone maps the full frame on the calling thread, without a preview. Returns R, G, B (0-255),
+	// or null if cancelled.
+	public HDRFrame tonemap(double param_alpha, double param_beta, double param_saturate, double param_noise){
+		return tonemap(cancelToken, frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z"), 
+				gradients, avgGradients, pyramidLevels, normalizedLuminance, null,
+				param_alpha, param_beta, param_saturate, param_noise);
+	}
+	
+	public PDESolver getPDESolver(){
+		return pdeSolver;
+	}
+	
+	// Takes effect on the next performTMOwithPreview
+	public void setPDESolver(PDESolver solver){
+		pdeSolver = solver;
+	}
+	
+	public PixelQuantizer getPixelQuantizer(){
+		return pixelQuantizer;
+	}
+	
+	// Takes effect on the next performTMOwithPreview
+	public void setPixelQuantizer(PixelQuantizer quantizer){
+		pixelQuantizer = quantizer;
 	}
 	
-	// Cancel TMO and preview
+	// Cancel TMO and preview, without waiting for the rendering to stop
 	public void cancel(){
-		cancelSignal.cancel();
-		try { thread.join(); } 
-		catch (InterruptedException e) { e.printStackTrace(); }
-		cancelSignal.resume();
-		thread = null;
+		if(renderer != null){ renderer.cancel(); }
+		cancelToken.cancel();
+		cancelToken = new CancelToken();
 	}
 	
-	public class FattalTMOwithPreview implements Runnable{
+	// The previews and full image for one set of parameters. A scale rendered for the first time starts
+	// its PDE solve from the up sampled solution of the coarser scale.
+	private class FattalRequest implements ProgressiveRenderer.Request {
 		
 		// User params
-		private double param_alpha;
-		private double param_beta;
-		private double param_saturate;
-		private double param_noise;
-		private CancelSignal cancelSignal;
+		private final double param_alpha;
+		private final double param_beta;
+		private final double param_saturate;
+		private final double param_noise;
 		
-		public FattalTMOwithPreview(double alpha, double beta, double colorSat, double noiseReduc, CancelSignal signal){ 
+		// PDE solution of the last scale rendered
+		private HDRChannel coarserSolution = null;
+		
+		public FattalRequest(double alpha, double beta, double colorSat, double noiseReduc){ 
 			param_alpha = alpha;
 			param_beta = beta;
 			param_saturate = colorSat;
 			param_noise = noiseReduc;
-			cancelSignal = signal;
 		}
 		
-		@Override
-		public void run() {
-			long start = System.currentTimeMillis();
-			// TMO preview
-			HDRFrame previewFrame = tonemap(xPreviewChannel, yPreviewChannel, zPreviewChannel, 
-					gradientsPreview, avgGradientsPreview, pyramidLevels, normalizedLuminancePreview,
-					param_alpha, param_beta, param_saturate, param_noise);
-			if(cancelSignal.isCancelled() == true){ return; }
-			
-			// Display preview
-			HDRChannel rPreviewChannel = previewFrame.getChannel("R");
-			HDRChannel gPreviewChannel = previewFrame.getChannel("G");
-			HDRChannel bPreviewChannel = previewFrame.getChannel("B");
-			
-			double[] rData = rPreviewChannel.getData();
-			double[] gData = gPreviewChannel.getData();
-			double[] bData = bPreviewChannel.getData();
-			
-			// Increase brightness by 10%
-			for(int k = 0; k < rPreviewChannel.getSize(); k++){
-				if(rData[k] * 1.16 < 255){ rData[k] = rData[k] * (1 + 0.075 * previewPyramidLevels); }
-				if(gData[k] * 1.16 < 255){ gData[k] = gData[k] * (1 + 0.075 * previewPyramidLevels); }
-				if(bData[k] * 1.16 < 255){ bData[k] = bData[k] * (1 + 0.075 * previewPyramidLevels); }
+		public int getCoarsestScale(){
+			return previewScales;
+		}
+		
+		// The PDE needs the whole frame
+		public TileSource getTileSource(){
+			return null;
+		}
+		
+		public HDRFrame render(int scale, CancelToken token){
+			HDRChannel[] solution = new HDRChannel[1];
+			HDRFrame result;
+			if(scale == 0){
+				result = tonemap(token, frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z"), 
+						gradients, avgGradients, pyramidLevels, normalizedLuminance, coarserSolution,
+						param_alpha, param_beta, param_saturate, param_noise, solution);
 			}
-			
-			for(int k = 0; k < previewPyramidLevels; k++){
-				if(cancelSignal.isCancelled() == true){ return; }
-				rPreviewChannel = GaussianBlur.gaussianBlur(GaussianPyramid.upSample(rPreviewChannel));
-				gPreviewChannel = GaussianBlur.gaussianBlur(GaussianPyramid.upSample(gPreviewChannel));
-				bPreviewChannel = GaussianBlur.gaussianBlur(GaussianPyramid.upSample(bPreviewChannel));
+			else{
+				// The pyramid of the scale is the top of the full pyramid
+				HDRChannel[] channels = previewChannels[scale - 1];
+				result = tonemap(token, channels[0], channels[1], channels[2], 
+						Arrays.copyOfRange(gradients, scale, pyramidLevels), Arrays.copyOfRange(avgGradients, scale, pyramidLevels), 
+						pyramidLevels - scale, channels[3], coarserSolution,
+						param_alpha, param_beta, param_saturate, param_noise, solution);
 			}
-
-			// Display preview image
-			displayPanel.setImage(rPreviewChannel, gPreviewChannel, bPreviewChannel);
-			if(cancelSignal.isCancelled() == true){ return; }
-			
-			System.out.println("Fattal Preview: " + (System.currentTimeMillis() - start) + "ms");
-			
-			start = System.currentTimeMillis();
-			// TMO full image
-			HDRFrame fullFrame = tonemap(frame.getChannel("X"), frame.getChannel("Y"), frame.getChannel("Z"), 
-					gradients, avgGradients, pyramidLevels, normalizedLuminance,
-					param_alpha, param_beta, param_saturate, param_noise);
-			if(cancelSignal.isCancelled() == true){ return; }
-			
-			// Display full image
-			displayPanel.setImage(fullFrame.getChannel("R"), fullFrame.getChannel("G"), fullFrame.getChannel("B"));
-			
-			System.out.println("Fattal Full: " + (System.currentTimeMillis() - start) + "ms");
+			coarserSolution = solution[0];
+			return result;
 		}
 	}
 	
-	private HDRFrame tonemap(HDRChannel xChannel, HDRChannel yChannel, HDRChannel zChannel, 
-			HDRChannel[] grads, double[] avgGrads, int pyramidLvls, HDRChannel normLum,
+	private HDRFrame tonemap(CancelToken cancelToken, HDRChannel xChannel, HDRChannel yChannel, HDRChannel zChannel, 
+			HDRChannel[] grads, double[] avgGrads, int pyramidLvls, HDRChannel normLum, HDRChannel coarserSolution,
 			double alpha, double beta, double colorSat, double noiseReduc){
+		return tonemap(cancelToken, xChannel, yChannel, zChannel, grads, avgGrads, pyramidLvls, normLum, coarserSolution, 
+				alpha, beta, colorSat, noiseReduc, new HDRChannel[1]);
+	}
+	
+	// The initial guess of the PDE solve is the solution of the previous call at this resolution (closest
+	// when only the parameters changed), or else the up sample of coarserSolution, the solution at half
+	// the width and height (null if none). The solution is returned in solution[0].
+	private HDRFrame tonemap(CancelToken cancelToken, HDRChannel xChannel, HDRChannel yChannel, HDRChannel zChannel, 
+			HDRChannel[] grads, double[] avgGrads, int pyramidLvls, HDRChannel normLum, HDRChannel coarserSolution,
+			double alpha, double beta, double colorSat, double noiseReduc, HDRChannel[] solution){
 		int width = xChannel.getWidth();
 		int height = xChannel.getHeight();
 		int size = xChannel.getSize();
@@ -337,48 +355,58 @@ public class Fattal {
 		HDRFrame newFrame = new HDRFrame(xChannel.getWidth(), xChannel.getHeight());
 		newFrame.copyAddChannelData(xChannel, yChannel, zChannel);
 		
-		double[] newXData = newFrame.getChannel("X").getData();
-		double[] newYData = newFrame.getChannel("Y").getData();
-		double[] newZData = newFrame.getChannel("Z").getData();
+		HDRChannel newX = newFrame.getChannel("X");
+		HDRChannel newY = newFrame.getChannel("Y");
+		HDRChannel newZ = newFrame.getChannel("Z");
 		
 		// Calculate scaling factor matrix.
-		HDRChannel scalingFactor = calculateScalingFactors(grads, avgGrads, pyramidLvls, alpha, beta, noiseReduc);
-		if(cancelSignal.isCancelled() == true){ return null; }
+		HDRChannel scalingFactor = calculateScalingFactors(cancelToken, grads, avgGrads, pyramidLvls, alpha, beta, noiseReduc, null);
+		if(cancelToken.isCancelled() == true){ return null; }
 		
-		double[] gradientXAxisData = new double[width * height];
-		double[] gradientYAxisData = new double[width * height];
+		HDRChannel gradientXAxis = new HDRChannel(width, height, "gradX", normLum.getPrecision());
+		HDRChannel gradientYAxis = new HDRChannel(width, height, "gradY", normLum.getPrecision());
 		
 		// Attenuate gradients
-		attenuateGradients(normLum.getData(), gradientXAxisData, gradientYAxisData, scalingFactor.getData(), width, height, 0, height - 1);
-		if(cancelSignal.isCancelled() == true){ return null; }
+		attenuateGradients(cancelToken, normLum, gradientXAxis, gradientYAxis, scalingFactor, width, height, 0, height - 1);
+		if(cancelToken.isCancelled() == true){ return null; }
 		
 		// Calculate Divergence
 		// Section 5: Implementation
 		HDRChannel gradientDivergence = new HDRChannel(width, height, "gradDiv");
 		
-		calculateDivergence(gradientDivergence.getData(), gradientXAxisData, gradientYAxisData, width, 0, height - 1);
-		if(cancelSignal.isCancelled() == true){ return null; }
+		calculateDivergence(cancelToken, gradientDivergence, gradientXAxis, gradientYAxis, width, 0, height - 1);
+		if(cancelToken.isCancelled() == true){ return null; }
 		
-		// Solve partial differential equation using Multigrid framework with a PDE Biconjugate Gradient solver
+		// Solve partial differential equation using either the Multigrid framework with a PDE Biconjugate Gradient solver
+		// or the direct DCT solver
 		long pdeStart = System.currentTimeMillis();
-		HDRChannel pdeSolution = new Multigrid(cancelSignal).solve(gradientDivergence);
-		if(cancelSignal.isCancelled() == true){ return null; }
-		System.out.println("Fattal PDE: " + (System.currentTimeMillis() - pdeStart));
-		
-		copyExpLuminanceChannel(newYData, pdeSolution.getData(), 0, size -1);
-		if(cancelSignal.isCancelled() == true){ return null; }
+		// The solve is a stage of its own, cancelled with the render
+		CancelToken pdeToken = cancelToken.child();
+		PoissonSolver solver = pdeSolver == PDESolver.DCT ? new DCTPoissonSolver(pdeToken) : new Multigrid(pdeToken);
+		String resolution = width + "x" + height;
+		HDRChannel initialGuess = previousSolutions.get(resolution);
+		if(initialGuess == null && coarserSolution != null){ initialGuess = upSampleBlur(coarserSolution, width, height); }
+		HDRChannel pdeSolution = solver.solve(gradientDivergence, initialGuess);
+		if(cancelToken.isCancelled() == true){ return null; }
+		previousSolutions.put(resolution, pdeSolution);
+		solution[0] = pdeSolution;
+		System.out.println("Fattal PDE: " + (System.currentTimeMillis() - pdeStart) 
+				+ (solver instanceof Multigrid ? " (" + ((Multigrid)solver).getCycles() + " V-cycles)" : ""));
+		
+		copyExpLuminanceChannel(cancelToken, newY, pdeSolution, 0, size -1);
+		if(cancelToken.isCancelled() == true){ return null; }
 		    
 		// Remove min/max values and re-normalize.
 		long sortStart = System.currentTimeMillis();
-		double[] minMaxPair = findMaxMinPercentile(newYData, 0.001, 0.995);
-		if(cancelSignal.isCancelled() == true){ return null; }
+		double[] minMaxPair = findMaxMinPercentile(newY, 0.001, 0.995);
+		if(cancelToken.isCancelled() == true){ return null; }
 		minMaxPair[1] = minMaxPair[1] - minMaxPair[0];
-		System.out.println("Fattal Pixel Sort: " + (System.currentTimeMillis() - sortStart));
+		System.out.println("Fattal Percentile: " + (System.currentTimeMillis() - sortStart));
 		
 		long reconStart = System.currentTimeMillis();
-		reconstruct(yChannel.getData(), newXData, newYData, newZData, 
+		reconstruct(cancelToken, pixelQuantizer, yChannel, newX, newY, newZ, 
 				minMaxPair, colorSat, ColorSpaceConverter.CIE_XYZtoSRGB_RGB, 0, size - 1);
-		if(cancelSignal.isCancelled() == true){ return null; }
+		if(cancelToken.isCancelled() == true){ return null; }
 		System.out.println("Fattal Image Reconstruction: " + (System.currentTimeMillis() - reconStart));
 		
 		// Rename the X, Y, Z channel to R, G, B, respectively
@@ -388,7 +416,10 @@ public class Fattal {
 		return newFrame;
 	}
 	
-	private HDRChannel calculateScalingFactors(HDRChannel[] gradients, double[] avgGradients, int levels, double alpha, double beta, double noise_reduc) {
+	// coarser is the scaling factor of the level above the top of gradients (e.g. from a coarser
+	// pyramid), or null to start from 1
+	static HDRChannel calculateScalingFactors(CancelToken cancelToken, HDRChannel[] gradients, double[] avgGradients, int levels, 
+			double alpha, double beta, double noise_reduc, HDRChannel coarser) {
 		// Section 4: Gradient attenuation function
 		// Propagate (linear interpolation) the scaling factor for each pixel starting at the top (smallest resolution) of the pyramid 
 		// down to the base (full sized resolution).
@@ -399,10 +430,15 @@ public class Fattal {
 		HDRChannel[] scalingFactors = new HDRChannel[levels];
 		
 		// Beginning with top of the pyramid (smallest sized resolution)
-		scalingFactors[levels - 1] = new HDRChannel(width, height, "scalingFactors");
-		
-		// Initialize bottomFI to 1
-		scalingFactors[levels - 1].setAllData(1);
+		if(coarser == null){
+			scalingFactors[levels - 1] = new HDRChannel(width, height, "scalingFactors", gradients[levels - 1].getPrecision());
+			
+			// Initialize bottomFI to 1
+			scalingFactors[levels - 1].setAllData(1);
+		}
+		else{
+			scalingFactors[levels - 1] = upSampleBlur(coarser, width, height);
+		}
 		
 		// Compute the scaling factor at each level of the pyramid starting at the top
 		int k;
@@ -410,12 +446,10 @@ public class Fattal {
 			
 			width = gradients[k].getWidth();
 			height = gradients[k].getHeight();
-			double[] gradientData = gradients[k].getData();
-			double[] scalingFactorData = scalingFactors[k].getData();
 			
 			/*for(int y = 0; y < height; y++){
 				for(int x = 0; x < width; x++){
-					if(cancelSignal.isCancelled()){ return null; }
+					if(cancelToken.isCancelled()){ return null; }
 					double a = alpha * avgGradients[k];
 					double value = 1.0;
 					
@@ -429,26 +463,15 @@ public class Fattal {
 				}
 			}*/
 			
-			calculateScalingFactors(gradientData, scalingFactorData, avgGradients[k], alpha, beta, noise_reduc, 0, width * height - 1);
-			if(cancelSignal.isCancelled() == true){ return null; }
-			
-			// If this is not the base level of the pyramid, initialize the next level
-			if(k > 1){
-				width = gradients[k - 1].getWidth();
-				height = gradients[k - 1].getHeight();
-				scalingFactors[k-1] = new HDRChannel(width, height, "scalingFactors");
-			}
+			calculateScalingFactors(cancelToken, gradients[k], scalingFactors[k], avgGradients[k], alpha, beta, noise_reduc, 0, width * height - 1);
+			if(cancelToken.isCancelled() == true){ return null; }
 			
 			if(k > 0){
-				// Up-sample the current level, apply a Gaussian blur and store the results in the next level.
+				// Up-sample the current level, apply a Gaussian blur and store the results in the next level
+				// (a new channel of the next level's size, the only one allocated per level).
 				// Up-sampling will double the width and height using linear interpolation and pointwise
 				// multiplication (Section 4)
-				boolean padWidth = false;
-				boolean padHeight = false;
-				// Down samples (dividing width and height by 2) causes channels to lose 1 pixel row and/or column, add it back.
-				if(k > 1 && scalingFactors[k-1].getWidth() != scalingFactors[k].getWidth() * 2){ padWidth = true; }
-				if(k > 1 && scalingFactors[k-1].getHeight() != scalingFactors[k].getHeight() * 2){ padHeight = true; }
-				scalingFactors[k-1] = GaussianBlur.gaussianBlur(GaussianPyramid.upSample(scalingFactors[k], padWidth, padHeight));
+				scalingFactors[k-1] = upSampleBlur(scalingFactors[k], gradients[k-1].getWidth(), gradients[k-1].getHeight());
 			}
 		}
 		
@@ -456,196 +479,141 @@ public class Fattal {
 		return scalingFactors[0];
 	}
 	
-	private static int SCALING_FACTOR_BASE_CASE = 250000;
-	private void calculateScalingFactors(final double[] gradientData, final double[] scalingFactorData, 
+	// Up-samples channel to width x height (twice its size, plus one) and blurs it
+	private static HDRChannel upSampleBlur(HDRChannel channel, int width, int height){
+		// Down samples (dividing width and height by 2) causes channels to lose 1 pixel row and/or column,
+		// the up sample is padded to add it back. Expanding into a new (zero) channel needs no intermediates.
+		HDRChannel upSampled = new HDRChannel(width, height, channel.getName(), channel.getPrecision());
+		PyramidEngine.expand(channel, upSampled, 1);
+		return upSampled;
+	}
+	
+	private static void calculateScalingFactors(final CancelToken cancelToken, final HDRChannel gradient, final HDRChannel scalingFactor, 
 			final double avgGradients, final double alpha, final double beta, final double noise_reduc,
 			final int a, final int b){
-		if(cancelSignal.isCancelled() == true){ return; }
-		// Base Case
-		if(b - a < SCALING_FACTOR_BASE_CASE){
-    		double avgGradientAlpha, value, gradientNoise;
-			for(int i = a; i <= b; i++){
-				if(cancelSignal.isCancelled() == true){ return; }
-				avgGradientAlpha = alpha * avgGradients;
-				value = 1.0;
-				
-				// Attenuation threshold
-				if(gradientData[i] > 0.0001){
-					// Attenuation equation phi (Section 4)
-					gradientNoise = gradientData[i] + noise_reduc;
-					value = avgGradientAlpha / gradientNoise * Math.pow(gradientNoise / avgGradientAlpha, beta);
-					scalingFactorData[i] *= value; 
-    			}
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ calculateScalingFactors(gradientData, scalingFactorData, avgGradients, alpha, beta, noise_reduc, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ calculateScalingFactors(gradientData, scalingFactorData, avgGradients, alpha, beta, noise_reduc, halfSplit + 1, b); }}; 
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		Parallel.range(a, b, cancelToken, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				double avgGradientAlpha, value, gradientNoise, gradientValue;
+				for(int i = start; i <= end; i++){
+					avgGradientAlpha = alpha * avgGradients;
+					value = 1.0;
+					
+					// Attenuation threshold
+					gradientValue = gradient.get(i);
+					if(gradientValue > 0.0001){
+						// Attenuation equation phi (Section 4)
+						gradientNoise = gradientValue + noise_reduc;
+						value = avgGradientAlpha / gradientNoise * Math.pow(gradientNoise / avgGradientAlpha, beta);
+						scalingFactor.set(i, scalingFactor.get(i) * value); 
+					}
+				}
+			}
+		});
 	}
 	
-	private static int ATTENUATE_GRADIENT_BASE_CASE_ROWS = 1000;
-	private void attenuateGradients(final double[] normLumData, final double[] gradientXAxisData, final double[] gradientYAxisData,
-			final double[] scalingFactorData, final int width, final int height,
+	static void attenuateGradients(final CancelToken cancelToken, final HDRChannel normLum, final HDRChannel gradientXAxis, final HDRChannel gradientYAxis,
+			final HDRChannel scalingFactor, final int width, final int height,
 			final int rowStart, final int rowEnd){
-		if(cancelSignal.isCancelled() == true){ return; }
-		// Base Case
-		if(rowEnd - rowStart < ATTENUATE_GRADIENT_BASE_CASE_ROWS){
-			int x, y, s, e;
-			for(y = rowStart; y <= rowEnd; y++){
-				for(x = 0; x < width; x++ ){
-					if(cancelSignal.isCancelled() == true){ return; }
-					// Edge case guard
-					s = (y + 1 == height ? y : y + 1);
-					e = (x + 1 == width ? x : x + 1);    // Right neighbor pixel
-					gradientXAxisData[(y * width) + x] = (normLumData[(y * width) + e] - normLumData[(y * width) + x]) * scalingFactorData[(y * width) + x];
-														 // Bottom neighbor pixel
-					gradientYAxisData[(y * width) + x] = (normLumData[(s * width) + x] - normLumData[(y * width) + x]) * scalingFactorData[(y * width) + x];
+		Parallel.rows(rowStart, rowEnd, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int x, y, s, e, index;
+				double center, scale;
+				for(y = a; y <= b; y++){
+					for(x = 0; x < width; x++ ){
+						// Edge case guard
+						s = (y + 1 == height ? y : y + 1);
+						e = (x + 1 == width ? x : x + 1);    // Right neighbor pixel
+						index = (y * width) + x;
+						center = normLum.get(index);
+						scale = scalingFactor.get(index);
+						gradientXAxis.set(index, (normLum.get((y * width) + e) - center) * scale);
+												 // Bottom neighbor pixel
+						gradientYAxis.set(index, (normLum.get((s * width) + x) - center) * scale);
+					}
 				}
 			}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (rowEnd - rowStart) / 2 + rowStart;
-    	Thread t1 = new Thread(){ public void run(){ attenuateGradients(normLumData, gradientXAxisData, gradientYAxisData, scalingFactorData, width, height, rowStart, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ attenuateGradients(normLumData, gradientXAxisData, gradientYAxisData, scalingFactorData, width, height, halfSplit + 1, rowEnd); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 	
-	private static int DIVERGENCE_BASE_CASE_ROWS = 1000;
-	private void calculateDivergence(final double[] gradientDivergenceData, 
-			final double[] gradientXAxisData, final double[] gradientYAxisData,
+	static void calculateDivergence(final CancelToken cancelToken, final HDRChannel gradientDivergence, 
+			final HDRChannel gradientXAxis, final HDRChannel gradientYAxis,
 			final int width, final int rowStart, final int rowEnd){
-		if(cancelSignal.isCancelled() == true){ return; }
-		// Base Case
-		if(rowEnd - rowStart < DIVERGENCE_BASE_CASE_ROWS){
-			int index, x, y;
-			for(y = rowStart; y <= rowEnd; y++){
-				for(x = 0; x < width; x++ ){
-					if(cancelSignal.isCancelled() == true){ return; }
-					// Equation DivG
-					index = (y * width) + x;
-					gradientDivergenceData[index] = gradientXAxisData[index] + gradientYAxisData[index];
-					// Non-edge cases
-					if( x > 0 ){ gradientDivergenceData[index] = gradientDivergenceData[index] - gradientXAxisData[index - 1]; }
-					if( y > 0 ){ gradientDivergenceData[index] = gradientDivergenceData[index] - gradientYAxisData[index - width]; }
+		Parallel.rows(rowStart, rowEnd, width, cancelToken, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int index, x, y;
+				double divergence;
+				for(y = a; y <= b; y++){
+					for(x = 0; x < width; x++ ){
+						// Equation DivG
+						index = (y * width) + x;
+						divergence = gradientXAxis.get(index) + gradientYAxis.get(index);
+						// Non-edge cases
+						if( x > 0 ){ divergence = divergence - gradientXAxis.get(index - 1); }
+						if( y > 0 ){ divergence = divergence - gradientYAxis.get(index - width); }
+						gradientDivergence.set(index, divergence);
+					}
 				}
 			}
-    		return;
-    	}
-		// Recurse
-		final int halfSplit = (rowEnd - rowStart) / 2 + rowStart;
-    	Thread t1 = new Thread(){ public void run(){ calculateDivergence(gradientDivergenceData, gradientXAxisData, gradientYAxisData, width, rowStart, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ calculateDivergence(gradientDivergenceData, gradientXAxisData, gradientYAxisData, width, halfSplit + 1, rowEnd); }}; 
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 	
-	private double[] findMaxMinPercentile(double[] luminanceData, double minPercent, double maxPercent) {
-
-		int size = luminanceData.length;
-
-		// Include all non-zero luminance values 
-		ArrayList<Double> luminanceValues = new ArrayList<Double>(size);
-		for(int i = 0; i < size; i++){
-			if(cancelSignal.isCancelled()){ return null; }
-			if(luminanceData[i] != 0.0){
-				luminanceValues.add(luminanceData[i]);
-			}
-		}
-		
-		// Sort luminance values
-		Collections.sort(luminanceValues);
-		
-		// Return the min and max value at the percent
-		double[] minMaxPair = new double[2];
-		minMaxPair[0] = luminanceValues.get((int)(minPercent * size));
-		minMaxPair[1] = luminanceValues.get((int)(maxPercent * size));
-		return minMaxPair;
+	static double[] findMaxMinPercentile(HDRChannel luminance, double minPercent, double maxPercent) {
+		// Min and max over the non-zero luminance values at the percent
+		return Percentile.percentiles(luminance, true, minPercent, maxPercent);
 	}
 	
-	private static int COPY_EXPONENTIATE_LUMINANCE_CHANNEL_BASE_CASE = 250000;
-	private void copyExpLuminanceChannel(final double[] newYData, final double[] data, 
+	static void copyExpLuminanceChannel(final CancelToken cancelToken, final HDRChannel newY, final HDRChannel solution, 
 			final int a, final int b){
-		if(cancelSignal.isCancelled() == true){ return; }
-		// Base Case
-		if(b - a < COPY_EXPONENTIATE_LUMINANCE_CHANNEL_BASE_CASE){
-			for(int i = a; i <= b; i++){
-				if(cancelSignal.isCancelled() == true){ return; }
-				// Exponentiate the solution
-				newYData[i] = Math.exp(data[i]) - 0.0001;
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ copyExpLuminanceChannel(newYData, data, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ copyExpLuminanceChannel(newYData, data, halfSplit + 1, b); }}; 
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		Parallel.range(a, b, cancelToken, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				for(int i = start; i <= end; i++){
+					// Exponentiate the solution
+					newY.set(i, Math.exp(solution.get(i)) - 0.0001);
+				}
+			}
+		});
 	}
 	
-	private static int RECONSTRUCT_BASE_CASE = 250000;
-	private void reconstruct(final double[] yData, final double[] newXData, final double[] newYData, final double[] newZData,
+	static void reconstruct(final CancelToken cancelToken, final PixelQuantizer pixelQuantizer, final HDRChannel y, final HDRChannel newX, final HDRChannel newY, final HDRChannel newZ,
 			final double[] minMaxPair, final double colorSat, final double[][] conversionMatrix, 
 			final int a, final int b){
-		if(cancelSignal.isCancelled() == true){ return; }
-		// Base Case
-		if(b - a < RECONSTRUCT_BASE_CASE){
-			double aVal, bVal, cVal;
-			for(int i = a; i <= b; i++){
-				if(cancelSignal.isCancelled() == true){ return; }
-				// (L - Lmin) / Lmax
-				newYData[i] = (newYData[i] - minMaxPair[0]) / minMaxPair[1];
-				// Clamp minimum luminance
-				if( newYData[i] <= 0.0 ){
-					newYData[i] = 0.0001;
+		Parallel.range(a, b, cancelToken, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				double lum, xVal, yVal, zVal, rVal, gVal, bVal;
+				for(int i = start; i <= end; i++){
+					lum = y.get(i);
+					
+					// (L - Lmin) / Lmax
+					yVal = (newY.get(i) - minMaxPair[0]) / minMaxPair[1];
+					// Clamp minimum luminance
+					if( yVal <= 0.0 ){
+						yVal = 0.0001;
+					}
+					
+					// Section 5: C out equation
+					// Re-scale the non-luminance components: X and Z
+					// Adjust luminance for X and Z channels
+					xVal = Math.pow(newX.get(i) / lum, colorSat) * yVal;
+					zVal = Math.pow(newZ.get(i) / lum, colorSat) * yVal;
+					
+					// XYZ colorspace to RGB conversion
+					// Multiply by conversion matrix
+					rVal = (conversionMatrix[0][0] * xVal) + (conversionMatrix[0][1] * yVal) + (conversionMatrix[0][2] * zVal);
+					gVal = (conversionMatrix[1][0] * xVal) + (conversionMatrix[1][1] * yVal) + (conversionMatrix[1][2] * zVal);
+					bVal = (conversionMatrix[2][0] * xVal) + (conversionMatrix[2][1] * yVal) + (conversionMatrix[2][2] * zVal);
+					
+					// Inverse pixel mapping to solid black 0 - solid white 255
+					rVal = pixelQuantizer.quantize(rVal);
+					gVal = pixelQuantizer.quantize(gVal);
+					bVal = pixelQuantizer.quantize(bVal);
+					
+					// WARNING: from here newX, newY, newZ hold the R, G, B channel respectively
+					newX.set(i, rVal);
+					newY.set(i, gVal);
+					newZ.set(i, bVal);
 				}
-				
-				// Section 5: C out equation
-				// Re-scale the non-luminance components: X and Z
-				// Adjust luminance for X and Z channels
-				newXData[i] = Math.pow(newXData[i] / yData[i], colorSat) * newYData[i];
-				newZData[i] = Math.pow(newZData[i] / yData[i], colorSat) * newYData[i];
-				
-				// XYZ colorspace to RGB conversion
-    			aVal = newXData[i];
-				bVal = newYData[i];
-				cVal = newZData[i];
-				// Multiply by conversion matrix
-				newXData[i] = (conversionMatrix[0][0] * aVal) + (conversionMatrix[0][1] * bVal) + (conversionMatrix[0][2] * cVal);
-				newYData[i] = (conversionMatrix[1][0] * aVal) + (conversionMatrix[1][1] * bVal) + (conversionMatrix[1][2] * cVal);
-				newZData[i] = (conversionMatrix[2][0] * aVal) + (conversionMatrix[2][1] * bVal) + (conversionMatrix[2][2] * cVal);
-				
-				// WARNING: at this point newX, newY, newZ now represent the R, G, B channel respectively
-				
-				// Inverse pixel mapping
-				newXData[i] = ColorSpaceConverter.pixelBinarySearch(newXData[i], lumPixFloor, lumSize);
-				newYData[i] = ColorSpaceConverter.pixelBinarySearch(newYData[i], lumPixFloor, lumSize);
-				newZData[i] = ColorSpaceConverter.pixelBinarySearch(newZData[i], lumPixFloor, lumSize);
-				
-				// Clamp to solid black and solid white
-				if(newXData[i] < 0){ newXData[i] = 0; } else if(newXData[i] > 255){ newXData[i] = 255; }
-				if(newYData[i] < 0){ newYData[i] = 0; } else if(newYData[i] > 255){ newYData[i] = 255; }
-				if(newZData[i] < 0){ newZData[i] = 0; } else if(newZData[i] > 255){ newZData[i] = 255; }
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ reconstruct(yData, newXData, newYData, newZData, minMaxPair, colorSat, conversionMatrix, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ reconstruct(yData, newXData, newYData, newZData, minMaxPair, colorSat, conversionMatrix, halfSplit + 1, b); }}; 
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+			}
+		});
 	}
 	
 }
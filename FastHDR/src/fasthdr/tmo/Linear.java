@@ -25,7 +25,10 @@ import fasthdr.colorspace.ColorSpaceConverter;
 import fasthdr.exception.UnknownColorSpaceException;
 import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
-import fasthdr.view.ImagePanel;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
+import fasthdr.util.PixelKernels;
+import fasthdr.util.RenderScheduler;
 
 public class Linear {
 
@@ -37,128 +40,282 @@ public class Linear {
 	private final HDRChannel xChannel;
 	private final HDRChannel yChannel;
 	private final HDRChannel zChannel;
-	private final ImagePanel displayPanel;
+	private final TMOOutputInterface displayPanel;
 	private final int size;
 	///////////////////////////////////////////////
 
 	private HDRFrame reusableFrame = null;
-	private Thread thread = null;
 	
-	public Linear(HDRFrame fr, ImagePanel panel){
+	// panel may be null when only tonemap() is used (headless)
+	public Linear(HDRFrame fr, TMOOutputInterface panel){
 		frame = fr;
 		displayPanel = panel;
 		xChannel = frame.getChannel("X");
 		yChannel = frame.getChannel("Y");
 		zChannel = frame.getChannel("Z");
 		size = frame.getSize();
-		
-		// Generate resusable frame with channel copies
-		reusableFrame = new HDRFrame(frame.getWidth(), frame.getHeight());
-		reusableFrame.copyAddChannelData(xChannel, yChannel, zChannel);
 	}
 	
+	// Queued on the shared RenderScheduler, superseding the render in progress. Returns immediately.
 	public void performTMO(){
 		if(frame == null){
 			return;
 		}
 		
-		thread = new Thread(new LinearRunnable());
-		thread.start();
+		RenderScheduler.getShared().submit(this, RenderScheduler.Priority.FULL, new LinearJob());
 	}
 	
 	public void cancelTMO() {
-		
+		RenderScheduler.getShared().cancel(this);
 	}
 	
-	public class LinearRunnable implements Runnable{
+	public class LinearJob implements RenderScheduler.Job {
 		@Override
-		public void run() {
+		public void run(CancelToken token) {
 			long start = System.currentTimeMillis();
 			
-			// Prepare and clean-up the resuableFrame
-			// Re-use channels R, G, B for X, Y, Z if they exist, otherwise X, Y, Z should already exist
-			if(reusableFrame.getChannel("R") != null){ reusableFrame.renameChannel("R", "X"); }
-			if(reusableFrame.getChannel("G") != null){ reusableFrame.renameChannel("G", "Y"); }
-			if(reusableFrame.getChannel("B") != null){ reusableFrame.renameChannel("B", "Z"); }
-			
-			// Copy original frame data
-			reusableFrame.copyChannelData(xChannel, yChannel, zChannel, "X", "Y", "Z");
-			
-			try {
-				ColorSpaceConverter.convertXYZtoRGB(reusableFrame, ColorSpaceConverter.CIE_XYZ_2DEGREE, ColorSpaceConverter.SRGB);
-			} 
-			catch (UnknownColorSpaceException e) {
-				e.printStackTrace();
+			// The panel renders the pixels it shows
+			TileSource tiles = createTileSource();
+			if(token.isCancelled() == true){ return; }
+			displayPanel.setTileSource(tiles);
+			System.out.println("Linear Min/Max: " + (System.currentTimeMillis() - start));
+		}
+	}
+	
+	// Tone maps the full frame on the calling thread. Returns the reusable frame holding R, G, B (0-255),
+	// which is overwritten by the next call.
+	// Two passes: XYZ -> RGB into the reusable channels with the min/max, then the shift and re-scale.
+	public synchronized HDRFrame tonemap(){
+		// The reusable R, G, B channels, written straight from X, Y, Z, are only needed here: the panel
+		// renders its tiles without them
+		if(reusableFrame == null){ reusableFrame = createRGBFrame(xChannel); }
+		HDRChannel rChannel = reusableFrame.getChannel("R");
+		HDRChannel gChannel = reusableFrame.getChannel("G");
+		HDRChannel bChannel = reusableFrame.getChannel("B");
+		
+		double minMaxPairs[] = convertMinMax(xChannel, yChannel, zChannel, rChannel, gChannel, bChannel, 0, size - 1);
+		
+		// Shift all data to 0 and re-scale r, g and b value to 0-255 range 
+		shiftRescale(rChannel, gChannel, bChannel, minMaxPairs, 0, size - 1);
+		
+		return reusableFrame;
+	}
+	
+	// The min/max pass only, the pixels are rendered as they are displayed
+	public Tiles createTileSource(){
+		return new Tiles(xChannel, yChannel, zChannel, convertMinMax(xChannel, yChannel, zChannel, null, null, null, 0, size - 1));
+	}
+	
+	// The shift, re-scale and packing of tonemap() into ARGB pixels for any region, given the min/max of the frame
+	public static class Tiles implements TileSource {
+		
+		private final HDRChannel xChannel;
+		private final HDRChannel yChannel;
+		private final HDRChannel zChannel;
+		private final double[] minMaxPairs;
+		
+		private Tiles(HDRChannel x, HDRChannel y, HDRChannel z, double[] minMax){
+			xChannel = x;
+			yChannel = y;
+			zChannel = z;
+			minMaxPairs = minMax;
+		}
+		
+		public int getWidth(){ return xChannel.getWidth(); }
+		public int getHeight(){ return xChannel.getHeight(); }
+		
+		public void render(int x, int y, int width, int height, int step, int[] pixels, int offset, int scan){
+			// v + (min * -1) is v - min, so this is the same expression as shiftRescale
+			final double rMin = minMaxPairs[0], rRange = minMaxPairs[1] - minMaxPairs[0];
+			final double gMin = minMaxPairs[2], gRange = minMaxPairs[3] - minMaxPairs[2];
+			final double bMin = minMaxPairs[4], bRange = minMaxPairs[5] - minMaxPairs[4];
+			final boolean arrays = PixelKernels.supports(xChannel, yChannel, zChannel);
+			final double[] xData = arrays ? xChannel.getData() : null;
+			final double[] yData = arrays ? yChannel.getData() : null;
+			final double[] zData = arrays ? zChannel.getData() : null;
+			final double[] rgb = new double[3];
+			final int frameWidth = xChannel.getWidth();
+			int i, p;
+			for(int row = 0; row < height; row++){
+				i = ((y + (row * step)) * frameWidth) + x;
+				p = offset + (row * scan);
+				for(int col = 0; col < width; col++, i += step, p++){
+					if(arrays){
+						toRGB(xData[i], yData[i], zData[i], rgb);
+						pixels[p] = pack(RANGE_MAX * (rgb[0] - rMin) / rRange, RANGE_MAX * (rgb[1] - gMin) / gRange, RANGE_MAX * (rgb[2] - bMin) / bRange);
+						continue;
+					}
+					// Narrowed where tonemap() stores, so both give the same pixels at every precision
+					toRGB(xChannel.get(i), yChannel.get(i), zChannel.get(i), rgb);
+					narrow(xChannel, rgb);
+					pixels[p] = pack(xChannel.narrow(RANGE_MAX * (rgb[0] - rMin) / rRange), xChannel.narrow(RANGE_MAX * (rgb[1] - gMin) / gRange), 
+							xChannel.narrow(RANGE_MAX * (rgb[2] - bMin) / bRange));
+				}
 			}
-			
-			double[] rData = reusableFrame.getChannel("R").getData();
-			double[] gData = reusableFrame.getChannel("G").getData();
-			double[] bData = reusableFrame.getChannel("B").getData();
-			
-			// Find min/max r, g and b values.
-			// There is a faster min/max algo that could be implemented
-			double minMaxPairs[] = new double[6];
+		}
+	}
+	
+	// Band by band Linear TMO: the min/max of every band, then the same shift and re-scale as tonemap()
+	public static class Bands implements BandTMOInterface {
+		
+		private final double minMaxPairs[] = new double[6];
+		
+		public Bands(){
 			minMaxPairs[0] = Double.MAX_VALUE;
 			minMaxPairs[2] = Double.MAX_VALUE;
 			minMaxPairs[4] = Double.MAX_VALUE;
-			findMinMax(rData, gData, bData, minMaxPairs, 0, size - 1);
-			
-			// Shift all data to 0 and re-scale r, g and b value to 0-255 range 
-			shiftRescale(rData, gData, bData, minMaxPairs, 0, size - 1);
-			
-			displayPanel.setImage(reusableFrame.getChannel("R"), reusableFrame.getChannel("G"), reusableFrame.getChannel("B"));
-			System.out.println("Linear Full: " + (System.currentTimeMillis() - start));
+		}
+		
+		public void accumulate(HDRFrame band){
+			// Only the min/max is needed, the band itself is left as read
+			double bandMinMax[] = convertMinMax(band.getChannel("X"), band.getChannel("Y"), band.getChannel("Z"), null, null, null, 0, band.getSize() - 1);
+			mergeMinMax(minMaxPairs, bandMinMax);
+		}
+		
+		public HDRFrame tonemap(HDRFrame band){
+			convertXYZtoRGB(band);
+			shiftRescale(band.getChannel("R"), band.getChannel("G"), band.getChannel("B"), minMaxPairs, 0, band.getSize() - 1);
+			return band;
 		}
 	}
 	
-	private void findMinMax(final double[] aData, final double[] bData, final double[] cData, final double[] minMaxPairs, final int a, final int b){
-		// minMaxPairs[0] stores aData min, minMaxPairs[1] stores aData max
-    	// minMaxPairs[2] stores bData min, minMaxPairs[3] stores bData max
-    	// minMaxPairs[4] stores cData min, minMaxPairs[5] stores cData max
-		if(b - a < 2000000){
-			for(int i = a; i <= b; i++){
-				// Set min
-				if(aData[i] < minMaxPairs[0]){ minMaxPairs[0] = aData[i]; }
-				if(bData[i] < minMaxPairs[2]){ minMaxPairs[2] = bData[i]; }
-				if(cData[i] < minMaxPairs[4]){ minMaxPairs[4] = cData[i]; }
-				
-				// Set max
-				if(aData[i] > minMaxPairs[1]){ minMaxPairs[1] = aData[i]; }
-				if(bData[i] > minMaxPairs[3]){ minMaxPairs[3] = bData[i]; }
-				if(cData[i] > minMaxPairs[5]){ minMaxPairs[5] = cData[i]; }
+	static void convertXYZtoRGB(HDRFrame frame){
+		try {
+			ColorSpaceConverter.convertXYZtoRGB(frame, ColorSpaceConverter.CIE_XYZ_2DEGREE, ColorSpaceConverter.SRGB);
+		} 
+		catch (UnknownColorSpaceException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// A frame of empty R, G, B channels with the size and precision of channel
+	static HDRFrame createRGBFrame(HDRChannel channel){
+		HDRFrame rgbFrame = new HDRFrame(channel.getWidth(), channel.getHeight());
+		rgbFrame.addChannel(new HDRChannel(channel.getWidth(), channel.getHeight(), "R", channel.getPrecision()));
+		rgbFrame.addChannel(new HDRChannel(channel.getWidth(), channel.getHeight(), "G", channel.getPrecision()));
+		rgbFrame.addChannel(new HDRChannel(channel.getWidth(), channel.getHeight(), "B", channel.getPrecision()));
+		return rgbFrame;
+	}
+	
+	// XYZ -> sRGB of one pixel, the same products and sums as ColorSpaceConverter.colorSpaceMultiply
+	static void toRGB(double xVal, double yVal, double zVal, double[] rgb){
+		final double[][] matrix = ColorSpaceConverter.CIE_XYZtoSRGB_RGB;
+		rgb[0] = (matrix[0][0] * xVal) + (matrix[0][1] * yVal) + (matrix[0][2] * zVal);
+		rgb[1] = (matrix[1][0] * xVal) + (matrix[1][1] * yVal) + (matrix[1][2] * zVal);
+		rgb[2] = (matrix[2][0] * xVal) + (matrix[2][1] * yVal) + (matrix[2][2] * zVal);
+	}
+	
+	// rgb as channel would store it
+	static void narrow(HDRChannel channel, double[] rgb){
+		rgb[0] = channel.narrow(rgb[0]);
+		rgb[1] = channel.narrow(rgb[1]);
+		rgb[2] = channel.narrow(rgb[2]);
+	}
+	
+	// Packs r, g and b (0-255) the way ImagePanel does
+	static int pack(double r, double g, double b){
+		return (0xff<<24) | ((int)r<<16) | ((int)g<<8) | (int)b;
+	}
+	
+	// Converts X, Y, Z to sRGB over [a, b] and returns the r, g and b min/max pairs. The converted values
+	// are stored in r, g and b, or dropped when they are null. Either way the min/max is of the values
+	// narrowed to the precision of X, as the later passes read them back from channels of that precision.
+	static double[] convertMinMax(final HDRChannel xChannel, final HDRChannel yChannel, final HDRChannel zChannel, 
+			final HDRChannel rChannel, final HDRChannel gChannel, final HDRChannel bChannel, final int a, final int b){
+		// minMaxPairs[0] stores r min, minMaxPairs[1] stores r max
+		// minMaxPairs[2] stores g min, minMaxPairs[3] stores g max
+		// minMaxPairs[4] stores b min, minMaxPairs[5] stores b max
+		final boolean store = rChannel != null;
+		final boolean arrays = PixelKernels.supports(xChannel, yChannel, zChannel) && (!store || PixelKernels.supports(rChannel, gChannel, bChannel));
+		return Parallel.reduce(a, b, new Parallel.ReduceTask<double[]>(){
+			public double[] compute(int start, int end){
+				double rMin = Double.MAX_VALUE, rMax = -Double.MAX_VALUE;
+				double gMin = Double.MAX_VALUE, gMax = -Double.MAX_VALUE;
+				double bMin = Double.MAX_VALUE, bMax = -Double.MAX_VALUE;
+				final double[] xData = arrays ? xChannel.getData() : null;
+				final double[] yData = arrays ? yChannel.getData() : null;
+				final double[] zData = arrays ? zChannel.getData() : null;
+				final double[] rData = arrays && store ? rChannel.getData() : null;
+				final double[] gData = arrays && store ? gChannel.getData() : null;
+				final double[] bData = arrays && store ? bChannel.getData() : null;
+				final double[] rgb = new double[3];
+				double rVal, gVal, bVal;
+				for(int i = start; i <= end; i++){
+					if(arrays){ toRGB(xData[i], yData[i], zData[i], rgb); }
+					else{
+						toRGB(xChannel.get(i), yChannel.get(i), zChannel.get(i), rgb);
+						narrow(xChannel, rgb);
+					}
+					rVal = rgb[0];
+					gVal = rgb[1];
+					bVal = rgb[2];
+					
+					if(store){
+						if(arrays){
+							rData[i] = rVal;
+							gData[i] = gVal;
+							bData[i] = bVal;
+						}
+						else{
+							rChannel.set(i, rVal);
+							gChannel.set(i, gVal);
+							bChannel.set(i, bVal);
+						}
+					}
+					
+					// Set min
+					if(rVal < rMin){ rMin = rVal; }
+					if(gVal < gMin){ gMin = gVal; }
+					if(bVal < bMin){ bMin = bVal; }
+					
+					// Set max
+					if(rVal > rMax){ rMax = rVal; }
+					if(gVal > gMax){ gMax = gVal; }
+					if(bVal > bMax){ bMax = bVal; }
+				}
+				return new double[] {rMin, rMax, gMin, gMax, bMin, bMax};
+			}
+			
+			public double[] combine(double[] left, double[] right){
+				mergeMinMax(left, right);
+				return left;
 			}
-    		return;
-    	}
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ findMinMax(aData, bData, cData, minMaxPairs, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ findMinMax(aData, bData, cData, minMaxPairs, halfSplit + 1, b); }};
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-	}
-	
-	private void shiftRescale(final double[] aData, final double[] bData, final double[] cData, final double[] minMaxPairs, final int a, final int b){
-		// minMaxPairs[0] stores aData min, minMaxPairs[1] stores aData max
-    	// minMaxPairs[2] stores bData min, minMaxPairs[3] stores bData max
-    	// minMaxPairs[4] stores cData min, minMaxPairs[5] stores cData max
-		if(b - a < 2000000){
-			for(int i = a; i <= b; i++){
-				if(minMaxPairs[0] < 0){ aData[i] = RANGE_MAX * (aData[i] + (minMaxPairs[0] * -1)) / (minMaxPairs[1] + (minMaxPairs[0] * -1)); }
-				else{ aData[i] = RANGE_MAX * (aData[i] - minMaxPairs[0]) / (minMaxPairs[1] - minMaxPairs[0]); }
-				
-				if(minMaxPairs[2] < 0){ bData[i] = RANGE_MAX * (bData[i] + (minMaxPairs[2] * -1)) / (minMaxPairs[3] + (minMaxPairs[2] * -1)); }
-				else{ bData[i] = RANGE_MAX * (bData[i] - minMaxPairs[2]) / (minMaxPairs[3] - minMaxPairs[2]); }
-				
-				if(minMaxPairs[4] < 0){ cData[i] = RANGE_MAX * (cData[i] + (minMaxPairs[4] * -1)) / (minMaxPairs[5] + (minMaxPairs[4] * -1)); }
-				else{ cData[i] = RANGE_MAX * (cData[i] - minMaxPairs[4]) / (minMaxPairs[5] - minMaxPairs[4]); }
+		});
+	}
+	
+	// Widens minMaxPairs to include the pairs in other
+	static void mergeMinMax(double[] minMaxPairs, double[] other){
+		for(int i = 0; i < 6; i += 2){
+			if(other[i] < minMaxPairs[i]){ minMaxPairs[i] = other[i]; }
+			if(other[i + 1] > minMaxPairs[i + 1]){ minMaxPairs[i + 1] = other[i + 1]; }
+		}
+	}
+	
+	private static void shiftRescale(final HDRChannel aChannel, final HDRChannel bChannel, final HDRChannel cChannel, final double[] minMaxPairs, final int a, final int b){
+		// minMaxPairs[0] stores aChannel min, minMaxPairs[1] stores aChannel max
+    	// minMaxPairs[2] stores bChannel min, minMaxPairs[3] stores bChannel max
+    	// minMaxPairs[4] stores cChannel min, minMaxPairs[5] stores cChannel max
+		final boolean arrays = PixelKernels.supports(aChannel, bChannel, cChannel);
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				if(arrays){
+					// v + (min * -1) is v - min, so both branches below are the same expression
+					PixelKernels.shiftRescale(aChannel.getData(), minMaxPairs[0], minMaxPairs[1], RANGE_MAX, start, end);
+					PixelKernels.shiftRescale(bChannel.getData(), minMaxPairs[2], minMaxPairs[3], RANGE_MAX, start, end);
+					PixelKernels.shiftRescale(cChannel.getData(), minMaxPairs[4], minMaxPairs[5], RANGE_MAX, start, end);
+					return;
+				}
+				for(int i = start; i <= end; i++){
+					if(minMaxPairs[0] < 0){ aChannel.set(i, RANGE_MAX * (aChannel.get(i) + (minMaxPairs[0] * -1)) / (minMaxPairs[1] + (minMaxPairs[0] * -1))); }
+					else{ aChannel.set(i, RANGE_MAX * (aChannel.get(i) - minMaxPairs[0]) / (minMaxPairs[1] - minMaxPairs[0])); }
+					
+					if(minMaxPairs[2] < 0){ bChannel.set(i, RANGE_MAX * (bChannel.get(i) + (minMaxPairs[2] * -1)) / (minMaxPairs[3] + (minMaxPairs[2] * -1))); }
+					else{ bChannel.set(i, RANGE_MAX * (bChannel.get(i) - minMaxPairs[2]) / (minMaxPairs[3] - minMaxPairs[2])); }
+					
+					if(minMaxPairs[4] < 0){ cChannel.set(i, RANGE_MAX * (cChannel.get(i) + (minMaxPairs[4] * -1)) / (minMaxPairs[5] + (minMaxPairs[4] * -1))); }
+					else{ cChannel.set(i, RANGE_MAX * (cChannel.get(i) - minMaxPairs[4]) / (minMaxPairs[5] - minMaxPairs[4])); }
+				}
 			}
-    		return;
-    	}
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ shiftRescale(aData, bData, cData, minMaxPairs, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ shiftRescale(aData, bData, cData, minMaxPairs, halfSplit + 1, b); }};
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 }
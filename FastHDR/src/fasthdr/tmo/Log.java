@@ -21,11 +21,12 @@
 
 package fasthdr.tmo;
 
-import fasthdr.colorspace.ColorSpaceConverter;
-import fasthdr.exception.UnknownColorSpaceException;
 import fasthdr.model.HDRChannel;
 import fasthdr.model.HDRFrame;
-import fasthdr.view.ImagePanel;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
+import fasthdr.util.PixelKernels;
+import fasthdr.util.RenderScheduler;
 
 public class Log {
 
@@ -37,161 +38,191 @@ public class Log {
 	private final HDRChannel xChannel;
 	private final HDRChannel yChannel;
 	private final HDRChannel zChannel;
-	private final ImagePanel displayPanel;
+	private final TMOOutputInterface displayPanel;
 	private final int size;
 	///////////////////////////////////////////////
 	
 	private HDRFrame reusableFrame = null;
-	private Thread thread = null;
 	
-	public Log(HDRFrame fr, ImagePanel panel){
+	// panel may be null when only tonemap() is used (headless)
+	public Log(HDRFrame fr, TMOOutputInterface panel){
 		frame = fr;
 		displayPanel = panel;
 		xChannel = frame.getChannel("X");
 		yChannel = frame.getChannel("Y");
 		zChannel = frame.getChannel("Z");
 		size = frame.getSize();
-		
-		// Generate resusable frame with channel copies
-		reusableFrame = new HDRFrame(frame.getWidth(), frame.getHeight());
-		reusableFrame.copyAddChannelData(xChannel, yChannel, zChannel);
 	}
 	
+	// Queued on the shared RenderScheduler, superseding the render in progress. Returns immediately.
 	public void performTMO(){
 		if(frame == null){
 			return;
 		}
 		
-		thread = new Thread(new LogRunnable());
-		thread.start();
+		RenderScheduler.getShared().submit(this, RenderScheduler.Priority.FULL, new LogJob());
 	}
 	
 	public void cancelTMO() {
-		
+		RenderScheduler.getShared().cancel(this);
 	}
 	
-	public class LogRunnable implements Runnable{
+	public class LogJob implements RenderScheduler.Job {
 		@Override
-		public void run() {
+		public void run(CancelToken token) {
 			long start = System.currentTimeMillis();
 			
-			// Prepare and clean-up the resuableFrame
-			// Re-use channels R, G, B for X, Y, Z if they exist, otherwise X, Y, Z should already exist
-			if(reusableFrame.getChannel("R") != null){ reusableFrame.renameChannel("R", "X"); }
-			if(reusableFrame.getChannel("G") != null){ reusableFrame.renameChannel("G", "Y"); }
-			if(reusableFrame.getChannel("B") != null){ reusableFrame.renameChannel("B", "Z"); }
-			
-			// Copy original frame data
-			reusableFrame.copyChannelData(xChannel, yChannel, zChannel, "X", "Y", "Z");
-			
-			try {
-				ColorSpaceConverter.convertXYZtoRGB(reusableFrame, ColorSpaceConverter.CIE_XYZ_2DEGREE, ColorSpaceConverter.SRGB);
-			} 
-			catch (UnknownColorSpaceException e) {
-				e.printStackTrace();
+			// The panel renders the pixels it shows
+			TileSource tiles = createTileSource();
+			if(token.isCancelled() == true){ return; }
+			displayPanel.setTileSource(tiles);
+			System.out.println("Log Min/Max: " + (System.currentTimeMillis() - start));
+		}
+	}
+	
+	// Tone maps the full frame on the calling thread. Returns the reusable frame holding R, G, B (0-255),
+	// which is overwritten by the next call.
+	// Two passes: XYZ -> RGB into the reusable channels with the min/max, then the shift, log and re-scale.
+	public synchronized HDRFrame tonemap(){
+		// The reusable R, G, B channels, written straight from X, Y, Z, are only needed here: the panel
+		// renders its tiles without them
+		if(reusableFrame == null){ reusableFrame = Linear.createRGBFrame(xChannel); }
+		HDRChannel rChannel = reusableFrame.getChannel("R");
+		HDRChannel gChannel = reusableFrame.getChannel("G");
+		HDRChannel bChannel = reusableFrame.getChannel("B");
+		
+		double minMaxPairs[] = Linear.convertMinMax(xChannel, yChannel, zChannel, rChannel, gChannel, bChannel, 0, size - 1);
+		
+		// The max after the shift and log, log is increasing so no pass is needed to find it
+		logMax(minMaxPairs);
+		
+		// Shift all data to 0, take log(base e) and re-scale to 0-255 range
+		shiftLogRescale(rChannel, gChannel, bChannel, minMaxPairs, 0, size - 1);
+		
+		return reusableFrame;
+	}
+	
+	// The min/max pass only, the pixels are rendered as they are displayed
+	public Tiles createTileSource(){
+		double minMaxPairs[] = Linear.convertMinMax(xChannel, yChannel, zChannel, null, null, null, 0, size - 1);
+		logMax(minMaxPairs);
+		return new Tiles(xChannel, yChannel, zChannel, minMaxPairs);
+	}
+	
+	// The shift, log, re-scale and packing of tonemap() into ARGB pixels for any region, given the min and log max
+	// of the frame
+	public static class Tiles implements TileSource {
+		
+		private final HDRChannel xChannel;
+		private final HDRChannel yChannel;
+		private final HDRChannel zChannel;
+		private final double[] minMaxPairs;
+		
+		private Tiles(HDRChannel x, HDRChannel y, HDRChannel z, double[] minMax){
+			xChannel = x;
+			yChannel = y;
+			zChannel = z;
+			minMaxPairs = minMax;
+		}
+		
+		public int getWidth(){ return xChannel.getWidth(); }
+		public int getHeight(){ return xChannel.getHeight(); }
+		
+		public void render(int x, int y, int width, int height, int step, int[] pixels, int offset, int scan){
+			// v + (min * -1) is v - min, so this is the same expression as shiftLogRescale
+			final double rMin = minMaxPairs[0], rMax = minMaxPairs[1];
+			final double gMin = minMaxPairs[2], gMax = minMaxPairs[3];
+			final double bMin = minMaxPairs[4], bMax = minMaxPairs[5];
+			final boolean arrays = PixelKernels.supports(xChannel, yChannel, zChannel);
+			final double[] xData = arrays ? xChannel.getData() : null;
+			final double[] yData = arrays ? yChannel.getData() : null;
+			final double[] zData = arrays ? zChannel.getData() : null;
+			final double[] rgb = new double[3];
+			final int frameWidth = xChannel.getWidth();
+			int i, p;
+			for(int row = 0; row < height; row++){
+				i = ((y + (row * step)) * frameWidth) + x;
+				p = offset + (row * scan);
+				for(int col = 0; col < width; col++, i += step, p++){
+					if(arrays){
+						Linear.toRGB(xData[i], yData[i], zData[i], rgb);
+						pixels[p] = Linear.pack(RANGE_MAX * Math.log(rgb[0] - rMin) / rMax, RANGE_MAX * Math.log(rgb[1] - gMin) / gMax, RANGE_MAX * Math.log(rgb[2] - bMin) / bMax);
+						continue;
+					}
+					// Narrowed where tonemap() stores, so both give the same pixels at every precision
+					Linear.toRGB(xChannel.get(i), yChannel.get(i), zChannel.get(i), rgb);
+					Linear.narrow(xChannel, rgb);
+					pixels[p] = Linear.pack(xChannel.narrow(RANGE_MAX * xChannel.narrow(Math.log(rgb[0] - rMin)) / rMax), 
+							xChannel.narrow(RANGE_MAX * xChannel.narrow(Math.log(rgb[1] - gMin)) / gMax), 
+							xChannel.narrow(RANGE_MAX * xChannel.narrow(Math.log(rgb[2] - bMin)) / bMax));
+				}
 			}
-			
-			double[] rData = reusableFrame.getChannel("R").getData();
-			double[] gData = reusableFrame.getChannel("G").getData();
-			double[] bData = reusableFrame.getChannel("B").getData();
-			
-			// Find min/max r, g and b values.
-			// There is a faster min/max algo that could be implemented
-			double minMaxPairs[] = new double[6];
+		}
+	}
+	
+	// Band by band Log TMO: the min/max of every band, then the same shift, log and re-scale as tonemap()
+	public static class Bands implements BandTMOInterface {
+		
+		private final double minMaxPairs[] = new double[6];
+		private boolean logMax = false;
+		
+		public Bands(){
 			minMaxPairs[0] = Double.MAX_VALUE;
 			minMaxPairs[2] = Double.MAX_VALUE;
 			minMaxPairs[4] = Double.MAX_VALUE;
-			findMinMax(rData, gData, bData, minMaxPairs, 0, size - 1);
-			
-			// Shift all data to 0, take log(base e)
-			shiftLog(rData, gData, bData, minMaxPairs, 0, size - 1);
-			
-			// Re-calculate max for r, g, and b.
-			if(minMaxPairs[0] < 0){ minMaxPairs[1] = Math.log(minMaxPairs[1] + (minMaxPairs[0] * -1)); }
-			else{ minMaxPairs[1] = Math.log(minMaxPairs[1] - minMaxPairs[0]); }
-			
-			if(minMaxPairs[2] < 0){ minMaxPairs[3] = Math.log(minMaxPairs[3] + (minMaxPairs[2] * -1)); }
-			else{ minMaxPairs[3] = Math.log(minMaxPairs[3] - minMaxPairs[2]); }
-			
-			if(minMaxPairs[4] < 0){ minMaxPairs[5] = Math.log(minMaxPairs[5] + (minMaxPairs[4] * -1)); }
-			else{ minMaxPairs[5] = Math.log(minMaxPairs[5] - minMaxPairs[4]); }
-			
-			// Re-scale to 0-255 range
-			rescale(rData, gData, bData, minMaxPairs, 0, size - 1);
-			
-			displayPanel.setImage(reusableFrame.getChannel("R"), reusableFrame.getChannel("G"), reusableFrame.getChannel("B"));
-			System.out.println("Log Full: " + (System.currentTimeMillis() - start));
 		}
-	}
-	
-	private void findMinMax(final double[] aData, final double[] bData, final double[] cData, final double[] minMaxPairs, final int a, final int b){
-		// minMaxPairs[0] stores aData min, minMaxPairs[1] stores aData max
-    	// minMaxPairs[2] stores bData min, minMaxPairs[3] stores bData max
-    	// minMaxPairs[4] stores cData min, minMaxPairs[5] stores cData max
-		if(b - a < 2000000){
-			for(int i = a; i <= b; i++){
-				// Set min
-				if(aData[i] < minMaxPairs[0]){ minMaxPairs[0] = aData[i]; }
-				if(bData[i] < minMaxPairs[2]){ minMaxPairs[2] = bData[i]; }
-				if(cData[i] < minMaxPairs[4]){ minMaxPairs[4] = cData[i]; }
-				
-				// Set max
-				if(aData[i] > minMaxPairs[1]){ minMaxPairs[1] = aData[i]; }
-				if(bData[i] > minMaxPairs[3]){ minMaxPairs[3] = bData[i]; }
-				if(cData[i] > minMaxPairs[5]){ minMaxPairs[5] = cData[i]; }
+		
+		public void accumulate(HDRFrame band){
+			// Only the min/max is needed, the band itself is left as read
+			double bandMinMax[] = Linear.convertMinMax(band.getChannel("X"), band.getChannel("Y"), band.getChannel("Z"), null, null, null, 0, band.getSize() - 1);
+			Linear.mergeMinMax(minMaxPairs, bandMinMax);
+		}
+		
+		public HDRFrame tonemap(HDRFrame band){
+			// The max is only replaced by its log once every band has been accumulated
+			if(!logMax){
+				logMax(minMaxPairs);
+				logMax = true;
 			}
-    		return;
-    	}
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ findMinMax(aData, bData, cData, minMaxPairs, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ findMinMax(aData, bData, cData, minMaxPairs, halfSplit + 1, b); }};
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+			Linear.convertXYZtoRGB(band);
+			shiftLogRescale(band.getChannel("R"), band.getChannel("G"), band.getChannel("B"), minMaxPairs, 0, band.getSize() - 1);
+			return band;
+		}
 	}
 	
-	private void shiftLog(final double[] aData, final double[] bData, final double[] cData, final double[] minMaxPairs, final int a, final int b){
-		// minMaxPairs[0] stores aData min, minMaxPairs[1] stores aData max
-    	// minMaxPairs[2] stores bData min, minMaxPairs[3] stores bData max
-    	// minMaxPairs[4] stores cData min, minMaxPairs[5] stores cData max
-		if(b - a < 2000000){
-			for(int i = a; i <= b; i++){
-				if(minMaxPairs[0] < 0){ aData[i] = Math.log(aData[i] + (minMaxPairs[0] * -1)); }
-				else{ aData[i] = Math.log(aData[i] - minMaxPairs[0]); }
-				
-				if(minMaxPairs[2] < 0){ bData[i] = Math.log(bData[i] + (minMaxPairs[2] * -1)); }
-				else{ bData[i] = Math.log(bData[i] - minMaxPairs[2]); }
-				
-				if(minMaxPairs[4] < 0){ cData[i] = Math.log(cData[i] + (minMaxPairs[4] * -1)); }
-				else{ cData[i] = Math.log(cData[i] - minMaxPairs[4]); }
-			}
-    		return;
-    	}
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ shiftLog(aData, bData, cData, minMaxPairs, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ shiftLog(aData, bData, cData, minMaxPairs, halfSplit + 1, b); }};
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+	// Replaces the r, g and b max by the log of the shifted max
+	private static void logMax(double[] minMaxPairs){
+		if(minMaxPairs[0] < 0){ minMaxPairs[1] = Math.log(minMaxPairs[1] + (minMaxPairs[0] * -1)); }
+		else{ minMaxPairs[1] = Math.log(minMaxPairs[1] - minMaxPairs[0]); }
+		
+		if(minMaxPairs[2] < 0){ minMaxPairs[3] = Math.log(minMaxPairs[3] + (minMaxPairs[2] * -1)); }
+		else{ minMaxPairs[3] = Math.log(minMaxPairs[3] - minMaxPairs[2]); }
+		
+		if(minMaxPairs[4] < 0){ minMaxPairs[5] = Math.log(minMaxPairs[5] + (minMaxPairs[4] * -1)); }
+		else{ minMaxPairs[5] = Math.log(minMaxPairs[5] - minMaxPairs[4]); }
 	}
 	
-	private void rescale(final double[] aData, final double[] bData, final double[] cData, final double[] minMaxPairs, final int a, final int b){
-		// minMaxPairs[0] stores aData min, minMaxPairs[1] stores aData max
-    	// minMaxPairs[2] stores bData min, minMaxPairs[3] stores bData max
-    	// minMaxPairs[4] stores cData min, minMaxPairs[5] stores cData max
-		if(b - a < 2000000){
-			for(int i = a; i <= b; i++){
-				aData[i] = RANGE_MAX * aData[i] / minMaxPairs[1];
-				bData[i] = RANGE_MAX * bData[i] / minMaxPairs[3];
-				cData[i] = RANGE_MAX * cData[i] / minMaxPairs[5];
+	private static void shiftLogRescale(final HDRChannel aChannel, final HDRChannel bChannel, final HDRChannel cChannel, final double[] minMaxPairs, final int a, final int b){
+		// minMaxPairs[0] stores aChannel min, minMaxPairs[1] stores the log of the shifted aChannel max
+		// minMaxPairs[2] stores bChannel min, minMaxPairs[3] stores the log of the shifted bChannel max
+		// minMaxPairs[4] stores cChannel min, minMaxPairs[5] stores the log of the shifted cChannel max
+		final boolean arrays = PixelKernels.supports(aChannel, bChannel, cChannel);
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				if(arrays){
+					PixelKernels.shiftLogRescale(aChannel.getData(), minMaxPairs[0], minMaxPairs[1], RANGE_MAX, start, end);
+					PixelKernels.shiftLogRescale(bChannel.getData(), minMaxPairs[2], minMaxPairs[3], RANGE_MAX, start, end);
+					PixelKernels.shiftLogRescale(cChannel.getData(), minMaxPairs[4], minMaxPairs[5], RANGE_MAX, start, end);
+					return;
+				}
+				// v + (min * -1) is v - min, so this is the same expression for a negative min.
+				// The log is narrowed as the separate shift/log pass stored it.
+				for(int i = start; i <= end; i++){
+					aChannel.set(i, RANGE_MAX * aChannel.narrow(Math.log(aChannel.get(i) - minMaxPairs[0])) / minMaxPairs[1]);
+					bChannel.set(i, RANGE_MAX * bChannel.narrow(Math.log(bChannel.get(i) - minMaxPairs[2])) / minMaxPairs[3]);
+					cChannel.set(i, RANGE_MAX * cChannel.narrow(Math.log(cChannel.get(i) - minMaxPairs[4])) / minMaxPairs[5]);
+				}
 			}
-    		return;
-    	}
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ rescale(aData, bData, cData, minMaxPairs, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ rescale(aData, bData, cData, minMaxPairs, halfSplit + 1, b); }};
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 }
@@ -0,0 +1,105 @@
+/*
+	Progressive multi-resolution renderer
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.tmo;
+
+import fasthdr.model.HDRFrame;
+import fasthdr.util.CancelToken;
+import fasthdr.util.RenderScheduler;
+
+// Renders a TMO coarse to fine: at 1/64, 1/16 and 1/4 of the pixels (scales 3, 2 and 1, each halving
+// the width and height of the next) and then in full (scale 0). Every level is handed to the output
+// as soon as it is ready, stretched to the full size, and a request may reuse what it computed for
+// the coarser levels when it renders the finer ones. Requests of per-pixel TMOs hand over a TileSource
+// in place of the full level, so the output renders only the part it shows.
+// Every level is a job of the shared RenderScheduler, previews before full images, queuing the next
+// level when it is done. A new request supersedes the one in progress without waiting for it: the
+// running level stops at its next check and the levels left are never queued. As the scheduler runs
+// one job at a time, a level of an older request is never displayed after one of a newer request.
+public class ProgressiveRenderer {
+
+	// Coarsest scale rendered, 1/64 of the pixels
+	public static final int MAX_SCALE = 3;
+
+	// A TMO with its parameters, rendered level by level on the scheduler's thread
+	public interface Request {
+		// Coarsest scale worth rendering, from 0 (full resolution only) to MAX_SCALE
+		public int getCoarsestScale();
+		// R, G, B (0-255) at 1 / 2^scale of the width and height, or null if cancelled. Called once
+		// per scale, from getCoarsestScale() down to 0.
+		public HDRFrame render(int scale, CancelToken token);
+		// The full image rendered on demand, or null to render scale 0 like the others
+		public TileSource getTileSource();
+	}
+
+	private final String name;
+	private final TMOOutputInterface output;
+	private final int width;
+	private final int height;
+	private final RenderScheduler scheduler = RenderScheduler.getShared();
+
+	// name prefixes the timings printed per level. width and height are those of the full image.
+	public ProgressiveRenderer(String name, TMOOutputInterface output, int width, int height){
+		this.name = name;
+		this.output = output;
+		this.width = width;
+		this.height = height;
+	}
+
+	// Supersedes the request in progress with request. Returns immediately.
+	public void start(Request request){
+		scheduler.submit(this, RenderScheduler.Priority.PREVIEW, new Level(request, Math.min(request.getCoarsestScale(), MAX_SCALE)));
+	}
+
+	// Cancels the request in progress, if any. Returns immediately.
+	public void cancel(){
+		scheduler.cancel(this);
+	}
+
+	// One level of a request, queues the next finer one when it is done
+	private class Level implements RenderScheduler.Job {
+		
+		private final Request request;
+		private final int scale;
+		
+		public Level(Request request, int scale){
+			this.request = request;
+			this.scale = scale;
+		}
+		
+		public void run(CancelToken token){
+			long start = System.currentTimeMillis();
+			TileSource tiles = scale == 0 ? request.getTileSource() : null;
+			if(tiles != null){
+				output.setTileSource(tiles);
+				return;
+			}
+			HDRFrame result = request.render(scale, token);
+			if(result == null || token.isCancelled() == true){ return; }
+			output.setImage(result.getChannel("R"), result.getChannel("G"), result.getChannel("B"), width, height);
+			System.out.println(name + " 1/" + (1 << (2 * scale)) + ": " + (System.currentTimeMillis() - start) + "ms");
+			
+			if(scale > 0){
+				scheduler.submit(ProgressiveRenderer.this, scale > 1 ? RenderScheduler.Priority.PREVIEW : RenderScheduler.Priority.FULL, 
+						new Level(request, scale - 1), token);
+			}
+		}
+	}
+}
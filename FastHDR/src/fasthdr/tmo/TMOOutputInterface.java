@@ -0,0 +1,32 @@
+/*
+	Tone mapped output interface
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.tmo;
+
+import fasthdr.model.HDRChannel;
+
+// Receives the R, G, B channels (0-255) produced by a TMO, both previews and the full image.
+// Per-pixel TMOs hand over a TileSource instead, so only what is on screen gets rendered.
+public interface TMOOutputInterface {
+	public void setImage(HDRChannel r, HDRChannel g, HDRChannel b);
+	// A reduced resolution rendering, shown stretched to displayWidth x displayHeight
+	public void setImage(HDRChannel r, HDRChannel g, HDRChannel b, int displayWidth, int displayHeight);
+	public void setTileSource(TileSource source);
+}
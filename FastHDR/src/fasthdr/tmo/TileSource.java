@@ -0,0 +1,34 @@
+/*
+	Tone mapped image rendered on demand
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.tmo;
+
+// The full resolution output of a per-pixel TMO, rendered region by region as the display needs it.
+// The global statistics of the TMO (min/max, average luminance) are computed when the source is
+// created, so any region can be rendered on its own, from any thread and concurrently with others.
+public interface TileSource {
+	public int getWidth();
+	public int getHeight();
+	// Packs the ARGB pixels (0xAARRGGBB) of a width x height region into pixels, starting at offset with
+	// scan entries between the starts of two rows (as MemoryImageSource lays them out). The region
+	// samples every step th pixel of every step th row from (x, y): pixel (col, row) of the region is
+	// pixel (x + col * step, y + row * step) of the image. Zoomed out views use steps above 1.
+	public void render(int x, int y, int width, int height, int step, int[] pixels, int offset, int scan);
+}
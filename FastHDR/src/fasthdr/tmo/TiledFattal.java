@@ -0,0 +1,548 @@
+/*
+	Tiled Fattal Tone mapping algorithm.
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.tmo;
+
+import java.util.ArrayList;
+
+import fasthdr.colorspace.ColorSpaceConverter;
+import fasthdr.colorspace.PixelQuantizer;
+import fasthdr.model.HDRChannel;
+import fasthdr.model.HDRFrame;
+import fasthdr.pde.DCTPoissonSolver;
+import fasthdr.pde.Multigrid;
+import fasthdr.pde.PoissonSolver;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
+import fasthdr.util.PyramidEngine;
+
+// Fattal for frames whose working channels do not fit in memory (gigapixel panoramas).
+// The working set is bounded by a memory budget instead of the frame size:
+// - The frame is cut into tiles whose cores are extended by a halo. Each tile builds the fine levels
+//   of its own pyramid, and one more: pyramid level coarseLevels (1/f of the width and height,
+//   f = 2^coarseLevels), whose cores are put together into that level of the whole frame. Its
+//   pyramid gives the scaling factors of the coarse levels for the whole frame.
+// - Each tile starts the scaling factors of its fine levels from its crop of the coarse ones, then
+//   attenuates its gradients and solves its own Poisson equation.
+// - The attenuated gradients are integrated into differences of block means and the resulting
+//   coarse Poisson equation is solved once for the whole frame. The low frequencies of each tile
+//   solution are replaced by that coarse solution, so the tiles agree on the overall luminance,
+//   and the tiles are blended with linear ramps across the halos.
+// Each tile is computed three times (average gradients and coarse level, coarse gradients, solution)
+// to trade time for memory. The input frame and the output frame are not part of the budget, use
+// MAPPED precision when they do not fit in the heap either.
+// The pyramids and scaling factors in the tile cores are those of Fattal on the whole frame. The
+// result is close to, but not the same as, Fattal on the whole frame as the tile solutions differ
+// from the whole one at low frequencies the coarse solution only approximates.
+public class TiledFattal {
+
+	// Rough bytes per pixel of a tile or coarse image while it is processed: pyramid, gradients,
+	// scaling factors, attenuated gradients, divergence and the Poisson solver levels
+	public static final int BYTES_PER_PIXEL = 160;
+	public static final int MIN_HALO = 64;
+
+	private static final int MIN_GAUSSIAN_PYRAMID = 32;
+	// Smallest side with the two pyramid levels needed to tile
+	public static final int MIN_SIDE = 2 * MIN_GAUSSIAN_PYRAMID;
+
+	// A tile: the core [coreX0, coreX1) x [coreY0, coreY1) is the part it owns, the region
+	// [x0, x1) x [y0, y1) adds the halo and is what gets computed
+	private static class Tile {
+		int coreX0, coreY0, coreX1, coreY1;
+		int x0, y0, x1, y1;
+
+		int getWidth(){ return x1 - x0; }
+		int getHeight(){ return y1 - y0; }
+	}
+
+	private final HDRFrame frame;
+	private final int width;
+	private final int height;
+	// Precision of the working channels, mapped frames work in float
+	private final HDRChannel.Precision precision;
+
+	private final int pyramidLevels;
+	// Fine pyramid levels computed per tile, the coarse image stands for the level above
+	private final int coarseLevels;
+	private final int factor;
+	private final int coarseWidth;
+	private final int coarseHeight;
+	// Size of pyramid level coarseLevels of the whole frame, which the coarse scaling factors start from
+	private final int scalingWidth;
+	private final int scalingHeight;
+	private final int halo;
+	private final ArrayList<Tile> tiles = new ArrayList<Tile>();
+	// Level buffers shared by the coarse pyramid and every tile pyramid
+	private final PyramidEngine pyramidEngine = new PyramidEngine();
+
+	private final CancelToken cancelToken = new CancelToken();
+	private volatile PixelQuantizer pixelQuantizer = PixelQuantizer.LINEAR;
+	private volatile Fattal.PDESolver pdeSolver = Fattal.PDESolver.MULTIGRID;
+
+	// memoryBudget: bytes for the working channels
+	public TiledFattal(HDRFrame inFrame, long memoryBudget){
+		frame = inFrame;
+		width = frame.getWidth();
+		height = frame.getHeight();
+		HDRChannel.Precision p = frame.getChannel("Y").getPrecision();
+		precision = p == HDRChannel.Precision.MAPPED ? HDRChannel.Precision.FLOAT : p;
+
+		// Same pyramid depth as Fattal
+		int levels = 0;
+		for(int side = Math.min(width, height); side >= MIN_GAUSSIAN_PYRAMID; side /= 2){ levels++; }
+		if(levels < 2){
+			throw new IllegalArgumentException("Tiled Fattal needs at least " + MIN_SIDE + " pixels on each side");
+		}
+		pyramidLevels = levels;
+
+		// The coarse image gets a quarter of the budget
+		int c = 1;
+		while(c < pyramidLevels - 1 && coarsePixels(1 << c) * BYTES_PER_PIXEL > memoryBudget / 4){ c++; }
+		coarseLevels = c;
+		factor = 1 << c;
+		coarseWidth = (width + factor - 1) / factor;
+		coarseHeight = (height + factor - 1) / factor;
+		scalingWidth = width / factor;
+		scalingHeight = height / factor;
+
+		// Halo and tile cores are multiples of the factor, so every tile pyramid lines up with the
+		// coarse image. Cores are at least twice as wide as the blending ramps (2 * halo).
+		halo = Math.max(2 * factor, roundUp(MIN_HALO, factor));
+		int region = (int)Math.min(Integer.MAX_VALUE, Math.sqrt(memoryBudget / 2.0 / BYTES_PER_PIXEL));
+		int core = Math.max((region - 2 * halo) / factor * factor, 4 * halo + 2 * factor);
+
+		int[] columns = boundaries(width, core);
+		int[] rows = boundaries(height, core);
+		for(int j = 0; j + 1 < rows.length; j++){
+			for(int i = 0; i + 1 < columns.length; i++){
+				Tile tile = new Tile();
+				tile.coreX0 = columns[i];
+				tile.coreX1 = columns[i + 1];
+				tile.coreY0 = rows[j];
+				tile.coreY1 = rows[j + 1];
+				tile.x0 = Math.max(0, tile.coreX0 - halo);
+				tile.x1 = Math.min(width, tile.coreX1 + halo);
+				tile.y0 = Math.max(0, tile.coreY0 - halo);
+				tile.y1 = Math.min(height, tile.coreY1 + halo);
+				tiles.add(tile);
+			}
+		}
+	}
+
+	// False when Fattal on the whole frame should be used instead: the frame is too small to tile, or
+	// its working channels fit in memoryBudget and tiling would only cost time and accuracy
+	public static boolean isNeeded(int width, int height, long memoryBudget){
+		if(Math.min(width, height) < MIN_SIDE){ return false; }
+		return (long)width * height * BYTES_PER_PIXEL > memoryBudget;
+	}
+
+	private long coarsePixels(int f){
+		return (long)((width + f - 1) / f) * ((height + f - 1) / f);
+	}
+
+	private static int roundUp(int value, int multiple){
+		return (value + multiple - 1) / multiple * multiple;
+	}
+
+	// Core boundaries along a side of the given length: evenly spread, multiples of the factor
+	private int[] boundaries(int length, int core){
+		int count = Math.max(1, (length + core - 1) / core);
+		int[] bounds = new int[count + 1];
+		for(int i = 1; i < count; i++){
+			bounds[i] = (int)Math.round((double)i * length / count / factor) * factor;
+		}
+		bounds[count] = length;
+		return bounds;
+	}
+
+	public int getTileCount(){
+		return tiles.size();
+	}
+
+	public int getCoarseFactor(){
+		return factor;
+	}
+
+	public Fattal.PDESolver getPDESolver(){
+		return pdeSolver;
+	}
+
+	public void setPDESolver(Fattal.PDESolver solver){
+		pdeSolver = solver;
+	}
+
+	public PixelQuantizer getPixelQuantizer(){
+		return pixelQuantizer;
+	}
+
+	public void setPixelQuantizer(PixelQuantizer quantizer){
+		pixelQuantizer = quantizer;
+	}
+
+	// Stops a running tonemap, which then returns null
+	public void cancel(){
+		cancelToken.cancel();
+	}
+
+	// Tone maps the frame on the calling thread. Returns R, G, B (0-255), or null if cancelled.
+	public HDRFrame tonemap(double alpha, double beta, double colorSat, double noiseReduc){
+		long start = System.currentTimeMillis();
+		HDRChannel yChannel = frame.getChannel("Y");
+
+		// Pass 1: average gradients of the fine levels over the tile cores, and pyramid level
+		// coarseLevels of the whole frame from those of the cores
+		final double maxLuminance = maxLuminance(yChannel);
+		HDRChannel coarseLuminance = new HDRChannel(scalingWidth, scalingHeight, "normLum", precision);
+		double[] avgGradients = new double[coarseLevels];
+		long[] counts = new long[coarseLevels];
+		for(Tile tile : tiles){
+			HDRChannel[] tilePyramid = tilePyramid(tile, tileLuminance(tile, yChannel, maxLuminance), yChannel, maxLuminance, coarseLevels + 1);
+			copyCore(tile, tilePyramid[coarseLevels], coarseLuminance);
+			HDRChannel[] gradients = tileGradients(tilePyramid);
+			for(int j = 0; j < coarseLevels; j++){
+				int levelWidth = gradients[j].getWidth();
+				int levelHeight = gradients[j].getHeight();
+				int xa = (tile.coreX0 - tile.x0) >> j;
+				int ya = (tile.coreY0 - tile.y0) >> j;
+				int xb = tile.coreX1 == width ? levelWidth : Math.min(levelWidth, (tile.coreX1 - tile.x0) >> j);
+				int yb = tile.coreY1 == height ? levelHeight : Math.min(levelHeight, (tile.coreY1 - tile.y0) >> j);
+				for(int y = ya; y < yb; y++){
+					for(int x = xa; x < xb; x++){
+						avgGradients[j] += gradients[j].get((y * levelWidth) + x);
+					}
+				}
+				counts[j] += (long)Math.max(0, xb - xa) * Math.max(0, yb - ya);
+			}
+			if(cancelToken.isCancelled() == true){ return null; }
+		}
+		for(int j = 0; j < coarseLevels; j++){
+			avgGradients[j] /= Math.max(1, counts[j]);
+		}
+
+		// Scaling factors of the coarse levels, the top of every tile pyramid
+		HDRChannel[] pyramid = pyramidEngine.createDownSamplePyramid(coarseLuminance, pyramidLevels - coarseLevels);
+		coarseLuminance = null;
+		HDRChannel[] coarseGradients = new HDRChannel[pyramid.length];
+		double[] coarseAvgGradients = new double[pyramid.length];
+		for(int j = 0; j < pyramid.length; j++){
+			coarseGradients[j] = new HDRChannel(pyramid[j].getWidth(), pyramid[j].getHeight(), "grads", precision);
+			coarseAvgGradients[j] = Fattal.calculateGradients(pyramid[j], coarseGradients[j], coarseLevels + j);
+		}
+		pyramid = null;
+		HDRChannel coarseScaling = Fattal.calculateScalingFactors(cancelToken, coarseGradients, coarseAvgGradients,
+				coarseGradients.length, alpha, beta, noiseReduc, null);
+		coarseGradients = null;
+		if(cancelToken.isCancelled() == true){ return null; }
+		System.out.println("Tiled Fattal " + tiles.size() + " tiles, coarse 1/" + factor + ": " + (System.currentTimeMillis() - start) + "ms");
+
+		// Pass 2: attenuated gradients restricted to the coarse grid, whose divergence is solved there
+		HDRChannel coarseGradX = new HDRChannel(coarseWidth, coarseHeight, "gradX");
+		HDRChannel coarseGradY = new HDRChannel(coarseWidth, coarseHeight, "gradY");
+		for(Tile tile : tiles){
+			HDRChannel[] gradients = attenuatedGradients(tile, yChannel, maxLuminance, coarseScaling, avgGradients, alpha, beta, noiseReduc);
+			if(gradients == null){ return null; }
+			restrictGradients(tile, gradients[0], gradients[1], coarseGradX, coarseGradY);
+		}
+		HDRChannel coarseDivergence = new HDRChannel(coarseWidth, coarseHeight, "gradDiv");
+		Fattal.calculateDivergence(cancelToken, coarseDivergence, coarseGradX, coarseGradY, coarseWidth, 0, coarseHeight - 1);
+		coarseGradX = null;
+		coarseGradY = null;
+		HDRChannel coarseSolution = createSolver().solve(coarseDivergence);
+		if(coarseSolution == null || cancelToken.isCancelled() == true){ return null; }
+		System.out.println("Tiled Fattal coarse PDE: " + (System.currentTimeMillis() - start) + "ms");
+
+		// Pass 3: tile solutions, blended into the Y channel of a copy of the frame
+		HDRFrame newFrame = new HDRFrame(width, height, frame.getPrecision());
+		newFrame.copyAddChannelData(frame.getChannel("X"), yChannel, frame.getChannel("Z"));
+		HDRChannel newX = newFrame.getChannel("X");
+		HDRChannel newY = newFrame.getChannel("Y");
+		HDRChannel newZ = newFrame.getChannel("Z");
+		newY.setAllData(0);
+		for(Tile tile : tiles){
+			HDRChannel[] gradients = attenuatedGradients(tile, yChannel, maxLuminance, coarseScaling, avgGradients, alpha, beta, noiseReduc);
+			if(gradients == null){ return null; }
+			HDRChannel divergence = new HDRChannel(tile.getWidth(), tile.getHeight(), "gradDiv");
+			Fattal.calculateDivergence(cancelToken, divergence, gradients[0], gradients[1], tile.getWidth(), 0, tile.getHeight() - 1);
+			gradients = null;
+			HDRChannel solution = createSolver().solve(divergence);
+			if(solution == null || cancelToken.isCancelled() == true){ return null; }
+			blend(tile, solution, coarseSolution, newY);
+		}
+		System.out.println("Tiled Fattal PDE: " + (System.currentTimeMillis() - start) + "ms");
+
+		int size = newY.getSize();
+		Fattal.copyExpLuminanceChannel(cancelToken, newY, newY, 0, size - 1);
+		if(cancelToken.isCancelled() == true){ return null; }
+
+		// Remove min/max values and re-normalize.
+		double[] minMaxPair = Fattal.findMaxMinPercentile(newY, 0.001, 0.995);
+		minMaxPair[1] = minMaxPair[1] - minMaxPair[0];
+
+		Fattal.reconstruct(cancelToken, pixelQuantizer, yChannel, newX, newY, newZ,
+				minMaxPair, colorSat, ColorSpaceConverter.CIE_XYZtoSRGB_RGB, 0, size - 1);
+		if(cancelToken.isCancelled() == true){ return null; }
+		System.out.println("Tiled Fattal Full: " + (System.currentTimeMillis() - start) + "ms");
+
+		// Rename the X, Y, Z channel to R, G, B, respectively
+		newFrame.renameChannel("X", "R");
+		newFrame.renameChannel("Y", "G");
+		newFrame.renameChannel("Z", "B");
+		return newFrame;
+	}
+
+	// Every solve (the coarse grid, then each tile) is a stage with a child token of the render
+	private PoissonSolver createSolver(){
+		CancelToken token = cancelToken.child();
+		return pdeSolver == Fattal.PDESolver.DCT ? new DCTPoissonSolver(token) : new Multigrid(token);
+	}
+
+	private double maxLuminance(final HDRChannel yChannel){
+		final double[] max = {yChannel.get(0)};
+		Parallel.rows(0, height - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				double local = yChannel.get(a * width);
+				for(int i = a * width; i < (b + 1) * width; i++){
+					local = Math.max(local, yChannel.get(i));
+				}
+				synchronized(max){
+					max[0] = Math.max(max[0], local);
+				}
+			}
+		});
+		return max[0];
+	}
+
+	// Fattal's normalized log luminance
+	private static double normalizedLuminance(double lum, double maxLuminance){
+		return Math.log(100.0 * (lum / maxLuminance) + 0.0001);
+	}
+
+	// Copies the core of tile from level, its pyramid level coarseLevels, into coarse, the same level
+	// of the whole frame. The halo is at least twice the factor, wider than the blur of the levels
+	// below, and cores start on multiples of the factor, so the core values are those of the pyramid
+	// of the whole frame.
+	private void copyCore(Tile tile, HDRChannel level, HDRChannel coarse){
+		int levelWidth = level.getWidth();
+		int cropX = tile.x0 / factor;
+		int cropY = tile.y0 / factor;
+		int xb = tile.coreX1 == width ? scalingWidth : tile.coreX1 / factor;
+		int yb = tile.coreY1 == height ? scalingHeight : tile.coreY1 / factor;
+		for(int y = tile.coreY0 / factor; y < yb; y++){
+			for(int x = tile.coreX0 / factor; x < xb; x++){
+				coarse.set((y * scalingWidth) + x, level.get(((y - cropY) * levelWidth) + x - cropX));
+			}
+		}
+	}
+
+	private HDRChannel tileLuminance(final Tile tile, final HDRChannel yChannel, final double maxLuminance){
+		final int tileWidth = tile.getWidth();
+		final HDRChannel normLum = new HDRChannel(tileWidth, tile.getHeight(), "normLum", precision);
+		Parallel.rows(0, tile.getHeight() - 1, tileWidth, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < tileWidth; x++){
+						normLum.set((y * tileWidth) + x, normalizedLuminance(yChannel.get(((tile.y0 + y) * width) + tile.x0 + x), maxLuminance));
+					}
+				}
+			}
+		});
+		return normLum;
+	}
+
+	// Pyramid of normLum, the normalized log luminance of tile. The blur of the pyramid wraps the
+	// first and last pixels of a row to the rows above and below, so at the left and right edges of
+	// the frame it reads the other edge: a tile on one edge is built with a strip along the other,
+	// wide enough for the levels of the edge to be those of the whole frame.
+	private HDRChannel[] tilePyramid(Tile tile, HDRChannel normLum, HDRChannel yChannel, double maxLuminance, int levels){
+		boolean left = tile.x0 == 0;
+		boolean right = tile.x1 == width;
+		if(left == right){
+			return pyramidEngine.createDownSamplePyramid(normLum, levels);
+		}
+		Tile strip = new Tile();
+		strip.x0 = left ? (width - halo) / factor * factor : 0;
+		strip.x1 = left ? width : halo;
+		strip.y0 = tile.y0;
+		strip.y1 = tile.y1;
+		HDRChannel stripLum = tileLuminance(strip, yChannel, maxLuminance);
+		if(left){
+			return pyramidEngine.createDownSamplePyramids(normLum, stripLum, levels)[0];
+		}
+		return pyramidEngine.createDownSamplePyramids(stripLum, normLum, levels)[1];
+	}
+
+	// Gradient magnitudes of the fine pyramid levels of a tile
+	private HDRChannel[] tileGradients(HDRChannel[] pyramid){
+		HDRChannel[] gradients = new HDRChannel[coarseLevels];
+		for(int j = 0; j < coarseLevels; j++){
+			gradients[j] = new HDRChannel(pyramid[j].getWidth(), pyramid[j].getHeight(), "grads", precision);
+			Fattal.calculateGradients(pyramid[j], gradients[j], j);
+		}
+		return gradients;
+	}
+
+	// Attenuated X and Y gradients over the tile region, or null if cancelled
+	private HDRChannel[] attenuatedGradients(Tile tile, HDRChannel yChannel, double maxLuminance, HDRChannel coarseScaling,
+			double[] avgGradients, double alpha, double beta, double noiseReduc){
+		int tileWidth = tile.getWidth();
+		int tileHeight = tile.getHeight();
+		HDRChannel normLum = tileLuminance(tile, yChannel, maxLuminance);
+		HDRChannel[] gradients = tileGradients(tilePyramid(tile, normLum, yChannel, maxLuminance, coarseLevels));
+
+		// Coarse scaling factors under the tile: the level above the top of the tile pyramid
+		int cropX = tile.x0 / factor;
+		int cropY = tile.y0 / factor;
+		int cropWidth = tileWidth / factor;
+		int cropHeight = tileHeight / factor;
+		HDRChannel crop = new HDRChannel(cropWidth, cropHeight, "scalingFactors", precision);
+		for(int y = 0; y < cropHeight; y++){
+			for(int x = 0; x < cropWidth; x++){
+				crop.set((y * cropWidth) + x, coarseScaling.get(((cropY + y) * scalingWidth) + cropX + x));
+			}
+		}
+
+		HDRChannel scalingFactor = Fattal.calculateScalingFactors(cancelToken, gradients, avgGradients, coarseLevels,
+				alpha, beta, noiseReduc, crop);
+		if(cancelToken.isCancelled() == true){ return null; }
+		gradients = null;
+
+		HDRChannel gradientXAxis = new HDRChannel(tileWidth, tileHeight, "gradX", precision);
+		HDRChannel gradientYAxis = new HDRChannel(tileWidth, tileHeight, "gradY", precision);
+		Fattal.attenuateGradients(cancelToken, normLum, gradientXAxis, gradientYAxis, scalingFactor, tileWidth, tileHeight, 0, tileHeight - 1);
+		if(cancelToken.isCancelled() == true){ return null; }
+		return new HDRChannel[] {gradientXAxis, gradientYAxis};
+	}
+
+	// Coarse gradients of the blocks in the tile core: the difference between the mean of the next
+	// block and the mean of the block, integrated from the fine gradients. Each step between the two
+	// blocks is crossed by min(m + 1, 2f - 1 - m) of the f row segments joining them, so steps on a
+	// block boundary count as much as steps inside a block.
+	// Block means of a curl free field then satisfy the coarse Poisson equation exactly.
+	private void restrictGradients(final Tile tile, final HDRChannel gradientXAxis, final HDRChannel gradientYAxis,
+			final HDRChannel coarseGradX, final HDRChannel coarseGradY){
+		final int tileWidth = tile.getWidth();
+		// Cores start on block boundaries, so every coarse row belongs to a single worker
+		Parallel.range(tile.coreY0 / factor, (tile.coreY1 - 1) / factor, 1, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int x, y, m, xa, ya, blockHeight, cell;
+				double weight, sumX, sumY;
+				for(int cy = a; cy <= b; cy++){
+					ya = cy * factor;
+					blockHeight = Math.min(height, ya + factor) - ya;
+					for(int cx = tile.coreX0 / factor; cx <= (tile.coreX1 - 1) / factor; cx++){
+						xa = cx * factor;
+						sumX = 0;
+						sumY = 0;
+						for(m = 0; m < 2 * factor - 1; m++){
+							weight = Math.min(m + 1, 2 * factor - 1 - m);
+							// Steps along X within the rows of the block
+							if(cx + 1 < coarseWidth && xa + m + 1 < width){
+								for(y = ya; y < ya + blockHeight; y++){
+									sumX += weight * gradientXAxis.get(((y - tile.y0) * tileWidth) + xa + m - tile.x0);
+								}
+							}
+							// Steps along Y within the columns of the block
+							if(cy + 1 < coarseHeight && ya + m + 1 < height){
+								for(x = xa; x < Math.min(width, xa + factor); x++){
+									sumY += weight * gradientYAxis.get(((ya + m - tile.y0) * tileWidth) + x - tile.x0);
+								}
+							}
+						}
+						cell = (cy * coarseWidth) + cx;
+						coarseGradX.set(cell, sumX / (factor * blockHeight));
+						coarseGradY.set(cell, sumY / (factor * (Math.min(width, xa + factor) - xa)));
+					}
+				}
+			}
+		});
+	}
+
+	// Replaces the block means of the tile solution with the coarse solution (interpolated between
+	// block centers) and adds the weighted result to out
+	private void blend(final Tile tile, final HDRChannel solution, HDRChannel coarseSolution, final HDRChannel out){
+		final int tileWidth = tile.getWidth();
+		int tileHeight = tile.getHeight();
+		final int cellsX = (tileWidth + factor - 1) / factor;
+		final int cellsY = (tileHeight + factor - 1) / factor;
+
+		final double[] correction = new double[cellsX * cellsY];
+		for(int y = 0; y < tileHeight; y++){
+			for(int x = 0; x < tileWidth; x++){
+				correction[((y / factor) * cellsX) + (x / factor)] -= solution.get((y * tileWidth) + x);
+			}
+		}
+		for(int cy = 0; cy < cellsY; cy++){
+			for(int cx = 0; cx < cellsX; cx++){
+				int cells = (Math.min(tileWidth, (cx + 1) * factor) - (cx * factor)) * (Math.min(tileHeight, (cy + 1) * factor) - (cy * factor));
+				int i = (cy * cellsX) + cx;
+				correction[i] = correction[i] / cells
+						+ coarseSolution.get(((tile.y0 / factor + cy) * coarseWidth) + tile.x0 / factor + cx);
+			}
+		}
+
+		final double[] weightX = new double[tileWidth];
+		for(int x = 0; x < tileWidth; x++){
+			weightX[x] = ramp(tile.x0 + x, tile.coreX0, tile.coreX1, width);
+		}
+
+		Parallel.rows(0, tileHeight - 1, tileWidth, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int i, x0, x1, y0, y1, index;
+				double u, v, fx, fy, value;
+				for(int y = a; y <= b; y++){
+					double weightY = ramp(tile.y0 + y, tile.coreY0, tile.coreY1, height);
+					if(weightY <= 0){ continue; }
+
+					// Bilinear interpolation between block centers, clamped at the region edges
+					v = Math.min(Math.max((y + 0.5) / factor - 0.5, 0), cellsY - 1);
+					y0 = (int)v;
+					y1 = Math.min(y0 + 1, cellsY - 1);
+					fy = v - y0;
+					for(int x = 0; x < tileWidth; x++){
+						if(weightX[x] <= 0){ continue; }
+						u = Math.min(Math.max((x + 0.5) / factor - 0.5, 0), cellsX - 1);
+						x0 = (int)u;
+						x1 = Math.min(x0 + 1, cellsX - 1);
+						fx = u - x0;
+						value = (1 - fy) * ((1 - fx) * correction[(y0 * cellsX) + x0] + fx * correction[(y0 * cellsX) + x1])
+								+ fy * ((1 - fx) * correction[(y1 * cellsX) + x0] + fx * correction[(y1 * cellsX) + x1]);
+
+						i = (y * tileWidth) + x;
+						index = ((tile.y0 + y) * width) + tile.x0 + x;
+						out.set(index, out.get(index) + weightX[x] * weightY * (solution.get(i) + value));
+					}
+				}
+			}
+		});
+	}
+
+	// Blending weight at position p of a tile whose core is [coreStart, coreEnd) along a side of the
+	// given length: ramps across [boundary - halo, boundary + halo) at inner boundaries, so the weights
+	// of neighbouring tiles add up to 1
+	private double ramp(int p, int coreStart, int coreEnd, int length){
+		if(coreStart > 0 && p < coreStart + halo){
+			return (p - (coreStart - halo) + 0.5) / (2.0 * halo);
+		}
+		if(coreEnd < length && p >= coreEnd - halo){
+			return ((coreEnd + halo) - p - 0.5) / (2.0 * halo);
+		}
+		return 1.0;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+	Cancellation token
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+// Cooperative cancellation of a render. The flag is volatile, so a cancel from any thread (the event
+// dispatch thread, the RenderScheduler) is seen by every worker at its next check.
+// Tokens form a tree: child() gives a stage of a pipeline (e.g. the PDE solve of a TMO) its own token,
+// cancelled with its parent or alone, without cancelling the rest of the pipeline.
+// Work checks the token per row, per block of pixels or per Parallel chunk (see Parallel.range with a
+// token), never per pixel: a check reads one volatile per level of the tree.
+public class CancelToken {
+	
+	private final CancelToken parent;
+	private volatile boolean cancelled = false;
+	
+	public CancelToken(){
+		this(null);
+	}
+	
+	private CancelToken(CancelToken parent){
+		this.parent = parent;
+	}
+	
+	// A token cancelled when this one is, which can also be cancelled on its own
+	public CancelToken child(){
+		return new CancelToken(this);
+	}
+	
+	public void cancel(){
+		cancelled = true;
+	}
+	
+	public boolean isCancelled(){
+		return cancelled || (parent != null && parent.isCancelled());
+	}
+}
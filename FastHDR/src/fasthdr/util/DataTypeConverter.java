@@ -35,4 +35,70 @@ public class DataTypeConverter {
 		
 		return ByteBuffer.wrap(jBytes).getFloat();
 	}
+	
+	// IEEE 754 binary16 (half precision) -> float. Every half value is decoded once into a table.
+	private static final float[] HALF_TO_FLOAT = new float[65536];
+	static {
+		for(int h = 0; h < 65536; h++){
+			HALF_TO_FLOAT[h] = decodeHalf(h);
+		}
+	}
+	
+	public static float halfToFloat(short half){
+		return HALF_TO_FLOAT[half & 0xffff];
+	}
+	
+	private static float decodeHalf(int h){
+		int sign = (h & 0x8000) << 16;
+		int exp = (h >>> 10) & 0x1f;
+		int mant = h & 0x3ff;
+		
+		// Zero and subnormals: mant * 2^-24
+		if(exp == 0){
+			float f = mant / 16777216.0f;
+			return sign != 0 ? -f : f;
+		}
+		// Infinity and NaN
+		if(exp == 31){
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+		}
+		// Normal: re-bias the exponent from 15 to 127
+		return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+	}
+	
+	// float -> IEEE 754 binary16 (half precision), rounding to nearest even.
+	// Values beyond +-65504 become infinity.
+	public static short floatToHalf(float value){
+		int f = Float.floatToRawIntBits(value);
+		int sign = (f >>> 16) & 0x8000;
+		int abs = f & 0x7fffffff;
+		
+		// Infinity and NaN
+		if(abs >= 0x7f800000){
+			return (short)(sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+		}
+		// Overflow (>= 65520 rounds to infinity)
+		if(abs >= 0x477ff000){
+			return (short)(sign | 0x7c00);
+		}
+		// Subnormal half or zero (< 2^-14)
+		if(abs < 0x38800000){
+			// Below half of the smallest subnormal
+			if(abs < 0x33000000){
+				return (short)sign;
+			}
+			int mant = (abs & 0x7fffff) | 0x800000;
+			int shift = 126 - (abs >>> 23);
+			int half = mant >>> shift;
+			int rem = mant & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if(rem > halfway || (rem == halfway && (half & 1) != 0)){ half++; }
+			return (short)(sign | half);
+		}
+		// Normal: re-bias the exponent from 127 to 15 and drop 13 mantissa bits
+		int half = (abs - 0x38000000) >>> 13;
+		int rem = abs & 0x1fff;
+		if(rem > 0x1000 || (rem == 0x1000 && (half & 1) != 0)){ half++; }
+		return (short)(sign | half);
+	}
 }
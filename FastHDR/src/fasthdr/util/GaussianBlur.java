@@ -28,48 +28,66 @@ public class GaussianBlur {
 	public static HDRChannel gaussianBlur(HDRChannel channel){
 		int width = channel.getWidth();
 		int height = channel.getHeight();
-
-		int size = channel.getSize();
-		double data[] = channel.getData();
 		
-		int x, y;
+		// Intermediate X-axis blur is stored in the same precision as the channel
+		HDRChannel blurX = new HDRChannel(width, height, channel.getName(), channel.getPrecision());
+		
+		// We return a Channel with the same name as the inputted channel but blurred
+		HDRChannel blurredChannel = new HDRChannel(width, height, channel.getName(), channel.getPrecision());
 		
-		double blurXData[] = new double[size];
+		gaussianBlur(channel, blurX, blurredChannel);
+		
+		return blurredChannel;
+	}
+	
+	// Blurs channel into des, through blurX for the intermediate X-axis blur. blurX and des have the size
+	// of channel, and des may be channel itself. Both passes walk rows, so every access is sequential.
+	public static void gaussianBlur(final HDRChannel channel, final HDRChannel blurX, final HDRChannel des){
+		final int width = channel.getWidth();
+		final int height = channel.getHeight();
 		
 		// X-axis blur.
-		for(y = 0; y < height; y++){
-			for(x = 1; x < width - 1; x++){
-				// Avg the adjacent pixels. Center pixel weighted 2x, neighbors weighted 1x
-				int centerIndex = (y * width) + x;
-				blurXData[centerIndex] = ((2 * data[centerIndex]) + data[centerIndex - 1] + data[centerIndex + 1]) / 4.0;
+		Parallel.rows(0, height - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 1; x < width - 1; x++){
+						// Avg the adjacent pixels. Center pixel weighted 2x, neighbors weighted 1x
+						int centerIndex = (y * width) + x;
+						blurX.set(centerIndex, ((2 * channel.get(centerIndex)) + channel.get(centerIndex - 1) + channel.get(centerIndex + 1)) / 4.0);
+					}
+					// Avg the left and right edge cases. Center pixel weighted 3x, neighbors weighted 1x
+					int leftEdgeIndex = y * width;
+					int rightEdgeIndex = (y * width) + width - 1;
+					blurX.set(leftEdgeIndex, ((3 * channel.get(leftEdgeIndex)) + channel.get(leftEdgeIndex + 1)) / 4.0);
+					blurX.set(rightEdgeIndex, (3 * channel.get(rightEdgeIndex) + channel.get(rightEdgeIndex - 1)) / 4.0);
+				}
 			}
-			// Avg the left and right edge cases. Center pixel weighted 3x, neighbors weighted 1x
-			int leftEdgeIndex = y * width;
-			int rightEdgeIndex = (y * width) + width - 1;
-			blurXData[leftEdgeIndex] = ((3 * data[leftEdgeIndex]) + data[leftEdgeIndex + 1]) / 4.0;
-			blurXData[rightEdgeIndex] = (3 * data[rightEdgeIndex] + data[rightEdgeIndex - 1]) / 4.0;
-		}
-
-		// We return a Channel with the same name as the inputted channel but blurred
-		HDRChannel blurredChannel = new HDRChannel(width, height, channel.getName());
-		double blurredChannelData[] = blurredChannel.getData();
+		});
 		
-		// Y-axis blur.
-		for(x = 0; x < width; x++){
-			for(y = 1; y < height - 1; y++){
-				
-				// Avg the adjacent pixels. Center pixel weighted 2x, neighbors weighted 1x
-				int centerIndex = (y * width) + x;
-				blurredChannelData[centerIndex] = ((2 * blurXData[centerIndex]) + blurXData[centerIndex - 1] + blurXData[centerIndex + 1]) / 4.0;
+		// Y-axis blur, row by row rather than column by column. The results are those of the column loop
+		// it replaces: the top and bottom rows are averaged with the row below/above, the other rows
+		// with the pixels at centerIndex - 1 and centerIndex + 1.
+		Parallel.rows(0, height - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < width; x++){
+						int centerIndex = (y * width) + x;
+						if(y == 0){
+							// Avg the top edge case. Center pixel weighted 3x, neighbor weighted 1x
+							des.set(centerIndex, (3 * blurX.get(centerIndex) + blurX.get(centerIndex + width)) / 4.0);
+						}
+						else if(y == height - 1){
+							// Avg the bottom edge case. Center pixel weighted 3x, neighbor weighted 1x
+							des.set(centerIndex, (3 * blurX.get(centerIndex) + blurX.get(centerIndex - width)) / 4.0);
+						}
+						else{
+							// Avg the adjacent pixels. Center pixel weighted 2x, neighbors weighted 1x
+							des.set(centerIndex, ((2 * blurX.get(centerIndex)) + blurX.get(centerIndex - 1) + blurX.get(centerIndex + 1)) / 4.0);
+						}
+					}
+				}
 			}
-			// Avg the top and bottom edge cases. Center pixel weighted 3x, neighbors weighted 1x
-			int topEdgeIndex = x;
-			int bottomEdgeIndex = ((height - 1) * width) + x;
-			blurredChannelData[topEdgeIndex] = (3 * blurXData[topEdgeIndex] + blurXData[topEdgeIndex + width]) / 4.0;
-			blurredChannelData[bottomEdgeIndex] = (3 * blurXData[bottomEdgeIndex] + blurXData[bottomEdgeIndex - width]) / 4.0;
-		}
-		
-		return blurredChannel;
+		});
 	}
 	
 	/*private void gaussianBlur(final double[] rData, final double[] gData, final double[] bData, final int a, final int b){
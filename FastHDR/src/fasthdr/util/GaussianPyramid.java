@@ -28,31 +28,8 @@ public class GaussianPyramid {
 		// Create a pyramid from a given channel. Base at index 0 contains the largest resolution.
 		// Each other index (up to levels-1) will contain width / 2 and height / 2, where width and height
 		// are width and heights from the channel at index-1.
-		
-		int width = channel.getWidth();
-		int height = channel.getHeight();
-		
-		// Construct array of HDRChannels. 
-		// Index 0 is pyramid slice (k - levels). 
-		// The highest index is the pyramid level k.
-		HDRChannel[] pyramid = new HDRChannel[levels];
-		
-		// Pyramid base
-		pyramid[0] = new HDRChannel(width, height, channel.getName());
-		pyramid[0].copyChannelData(channel);
-		
-		// Blur the base
-		HDRChannel blurredChannel = GaussianBlur.gaussianBlur(pyramid[0]);
-		
-		// For each pyramid level store and down sample the parent.
-		// pyramid at index 0 has full resolution image, each level
-		// halves the width and height.
-		for(int i = 1; i < levels; i++){
-			pyramid[i] = downSample(blurredChannel);
-			blurredChannel = GaussianBlur.gaussianBlur(pyramid[i]);
-		}
-		
-		return pyramid;
+		// Callers building pyramids repeatedly should keep their own PyramidEngine to reuse the levels.
+		return new PyramidEngine().createDownSamplePyramid(channel, levels);
 	}
 	
 	public static HDRChannel[] createUpSamplePyramid(HDRChannel channel, int levels) {
@@ -70,7 +47,7 @@ public class GaussianPyramid {
 		HDRChannel[] pyramid = new HDRChannel[levels];
 		
 		// Pyramid base
-		pyramid[0] = new HDRChannel(width, height, channel.getName());
+		pyramid[0] = new HDRChannel(width, height, channel.getName(), channel.getPrecision());
 		pyramid[0].copyChannelData(channel);
 		
 		// Blur the base
@@ -93,44 +70,34 @@ public class GaussianPyramid {
 		int halfHeight = channel.getHeight() / 2;
 		
 		int width = channel.getWidth();
-		double data[] = channel.getData();
 		
 		// Down sampled channel
-		HDRChannel downSampleChannel = new HDRChannel(halfWidth, halfHeight, channel.getName());
-		double downSampleChannelData[] = downSampleChannel.getData();
+		HDRChannel downSampleChannel = new HDRChannel(halfWidth, halfHeight, channel.getName(), channel.getPrecision());
 		
-		new GaussianPyramid().downSample(data, downSampleChannelData, 
+		new GaussianPyramid().downSample(channel, downSampleChannel, 
 				halfWidth, halfHeight, width, 
 				0, halfHeight - 1);
 		
 		return downSampleChannel;
 	}
 	
-	private void downSample(final double[] src, final double[] des, 
+	private void downSample(final HDRChannel src, final HDRChannel des, 
 			final int halfWidth, final int halfHeight, final int width,
 			final int rowStart, final int rowEnd){
-		// Base Case (200 or less rows of an image. ~200 * doubleWidth = no. pixels)
-		if(rowEnd - rowStart < 1000){
-			for(int y = rowStart; y <= rowEnd; y++){
-				for(int x = 0; x < halfWidth; x++){
-					// Index mapping for the downSampleChannel <-> Original channel
-					int halfIndex = (y * halfWidth) + x;
-					int index = (2 * y * width) + (2 * x);
-					
-					// Sample the four corresponding pixels from data and map it to a single pixel
-					des[halfIndex] = (src[index] + src[index + 1] + src[index + width] + src[index + width + 1]) / 4.0;
+		Parallel.rows(rowStart, rowEnd, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < halfWidth; x++){
+						// Index mapping for the downSampleChannel <-> Original channel
+						int halfIndex = (y * halfWidth) + x;
+						int index = (2 * y * width) + (2 * x);
+						
+						// Sample the four corresponding pixels from data and map it to a single pixel
+						des.set(halfIndex, (src.get(index) + src.get(index + 1) + src.get(index + width) + src.get(index + width + 1)) / 4.0);
+					}
 				}
 			}
-
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (rowEnd - rowStart) / 2 + rowStart;
-    	Thread t1 = new Thread(){ public void run(){ downSample(src, des, halfWidth, halfHeight, width, rowStart, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ downSample(src, des, halfWidth, halfHeight, width, halfSplit + 1, rowEnd); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 	
 	public static HDRChannel upSample(HDRChannel channel) {
@@ -147,49 +114,39 @@ public class GaussianPyramid {
 		
 		int width = channel.getWidth();
 		int height = channel.getHeight();
-		double data[] = channel.getData();
 		
 		// Up sampled channel
-		HDRChannel upSampleChannel = new HDRChannel(doubleWidth, doubleHeight, channel.getName());
-		double upSampleChannelData[] = upSampleChannel.getData();
+		HDRChannel upSampleChannel = new HDRChannel(doubleWidth, doubleHeight, channel.getName(), channel.getPrecision());
 		
-		new GaussianPyramid().upSample(data, upSampleChannelData, 
+		new GaussianPyramid().upSample(channel, upSampleChannel, 
 				doubleWidth, doubleHeight, width, height, 
 				0, doubleHeight - 1);
 		
 		return upSampleChannel;
 	}
 	
-	private void upSample(final double[] src, final double[] des, 
+	private void upSample(final HDRChannel src, final HDRChannel des, 
 			final int doubleWidth, final int doubleHeight, final int width, final int height, 
 			final int rowStart, final int rowEnd){
-		// Base Case (200 or less rows of an image. ~200 * doubleWidth = no. pixels)
-		if(rowEnd - rowStart < 2000){
-			for(int y = rowStart; y <= rowEnd; y++){
-    			for(int x = 0; x < doubleWidth; x++){
-	    			// Index mapping for the downSampleChannel <-> Original channel
-					int doubleIndex = (y * doubleWidth) + x;
-					int newX = x / 2;
-					int newY = y / 2;
-					
-					newX = newX < width ? newX : width - 1;
-					newY = newY < height ? newY : height - 1;
-					
-					int index = (newY * width) + (newX);
-					
-					// Extrapolate pixel information for four pixels from a single pixel in data
-					des[doubleIndex] = src[index];
-    			}
-    		}
-
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (rowEnd - rowStart) / 2 + rowStart;
-    	Thread t1 = new Thread(){ public void run(){ upSample(src, des, doubleWidth, doubleHeight, width, height, rowStart, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ upSample(src, des, doubleWidth, doubleHeight, width, height, halfSplit + 1, rowEnd); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		Parallel.rows(rowStart, rowEnd, doubleWidth, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < doubleWidth; x++){
+						// Index mapping for the downSampleChannel <-> Original channel
+						int doubleIndex = (y * doubleWidth) + x;
+						int newX = x / 2;
+						int newY = y / 2;
+						
+						newX = newX < width ? newX : width - 1;
+						newY = newY < height ? newY : height - 1;
+						
+						int index = (newY * width) + (newX);
+						
+						// Extrapolate pixel information for four pixels from a single pixel in data
+						des.set(doubleIndex, src.get(index));
+					}
+				}
+			}
+		});
 	}
 }
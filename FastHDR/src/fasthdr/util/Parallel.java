@@ -0,0 +1,221 @@
+/*
+	Shared parallel runtime
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Process-wide work-stealing pool shared by every divide-and-conquer kernel.
+// Kernels describe their work as an inclusive range [a, b] (pixels or rows) and the
+// range is split recursively until a chunk is small enough to run on a single worker.
+// The pool size defaults to the number of cores and can be set with -Dfasthdr.threads=N
+// Ranges run with a CancelToken check it once per chunk: once cancelled, the chunks not started yet
+// are skipped, so the tasks themselves only need to check it per row, if at all.
+public class Parallel {
+
+	public static final String THREADS_PROPERTY = "fasthdr.threads";
+
+	// Smallest chunk worth handing to another worker (in pixels)
+	public static final int MIN_PIXEL_GRAIN = 16384;
+
+	// Number of chunks per worker. More than one chunk per worker lets idle workers steal
+	// from busy ones when the work per pixel is uneven.
+	public static final int SPLITS_PER_THREAD = 4;
+
+	private static ForkJoinPool pool = new ForkJoinPool(defaultParallelism());
+
+	public interface RangeTask {
+		// Process the inclusive range [a, b]
+		public void compute(int a, int b);
+	}
+
+	public interface ReduceTask<T> {
+		// Reduce the inclusive range [a, b], which may be empty (b < a)
+		public T compute(int a, int b);
+		// Merge the results of two adjacent ranges, left before right
+		public T combine(T left, T right);
+	}
+
+	private static int defaultParallelism(){
+		int threads = Runtime.getRuntime().availableProcessors();
+		String property = System.getProperty(THREADS_PROPERTY);
+		if(property != null){
+			try { threads = Integer.parseInt(property.trim()); }
+			catch(NumberFormatException e) { System.out.println("Invalid " + THREADS_PROPERTY + " value: " + property); }
+		}
+		return threads < 1 ? 1 : threads;
+	}
+
+	public static synchronized ForkJoinPool getPool(){
+		return pool;
+	}
+
+	public static int getParallelism(){
+		return getPool().getParallelism();
+	}
+
+	// Replace the shared pool. Work already submitted to the old pool runs to completion.
+	public static synchronized void setParallelism(int threads){
+		if(threads < 1){ threads = 1; }
+		if(threads == pool.getParallelism()){ return; }
+		ForkJoinPool old = pool;
+		pool = new ForkJoinPool(threads);
+		old.shutdown();
+	}
+
+	// Split threshold for a range of count elements: enough chunks to keep every worker busy,
+	// but never smaller than minGrain elements.
+	public static int grain(int count, int minGrain){
+		int grain = count / (getParallelism() * SPLITS_PER_THREAD);
+		return Math.max(Math.max(minGrain, grain), 1);
+	}
+
+	// Run task over the inclusive pixel range [a, b]
+	public static void range(int a, int b, RangeTask task){
+		range(a, b, MIN_PIXEL_GRAIN, task);
+	}
+
+	// Run task over the inclusive range [a, b], splitting no finer than minGrain elements
+	public static void range(int a, int b, int minGrain, RangeTask task){
+		range(a, b, minGrain, null, task);
+	}
+
+	// Run task over the inclusive pixel range [a, b] until token is cancelled
+	public static void range(int a, int b, CancelToken token, RangeTask task){
+		range(a, b, MIN_PIXEL_GRAIN, token, task);
+	}
+
+	// Run task over the inclusive range [a, b], splitting no finer than minGrain elements, until token
+	// (may be null) is cancelled. A range started by an interrupted thread cancels token, so an
+	// interrupt stops the work like a cancel does.
+	public static void range(int a, int b, int minGrain, CancelToken token, RangeTask task){
+		if(b < a){ return; }
+		if(token != null){
+			if(Thread.currentThread().isInterrupted()){ token.cancel(); }
+			if(token.isCancelled()){ return; }
+		}
+		int grain = grain(b - a + 1, minGrain);
+
+		// Small ranges are not worth the hand-off
+		if(b - a < grain){
+			task.compute(a, b);
+			return;
+		}
+
+		RangeAction action = new RangeAction(task, token, a, b, grain);
+		if(ForkJoinTask.inForkJoinPool()){ action.invoke(); }
+		else{ getPool().invoke(action); }
+	}
+
+	// Run task over the inclusive row range [rowStart, rowEnd] of an image of the given width
+	public static void rows(int rowStart, int rowEnd, int width, RangeTask task){
+		rows(rowStart, rowEnd, width, null, task);
+	}
+
+	// Run task over the inclusive row range [rowStart, rowEnd] of an image of the given width until
+	// token is cancelled
+	public static void rows(int rowStart, int rowEnd, int width, CancelToken token, RangeTask task){
+		range(rowStart, rowEnd, Math.max(1, MIN_PIXEL_GRAIN / Math.max(1, width)), token, task);
+	}
+
+	// Reduce the inclusive pixel range [a, b]. Every chunk returns its own partial result and the
+	// partials are combined pairwise as the splits join, so no state is shared between workers.
+	public static <T> T reduce(int a, int b, ReduceTask<T> task){
+		return reduce(a, b, MIN_PIXEL_GRAIN, task);
+	}
+
+	// Reduce the inclusive range [a, b], splitting no finer than minGrain elements
+	public static <T> T reduce(int a, int b, int minGrain, ReduceTask<T> task){
+		int grain = grain(Math.max(b - a + 1, 0), minGrain);
+
+		// Small (or empty) ranges are not worth the hand-off
+		if(b - a < grain){ return task.compute(a, b); }
+
+		ReduceAction<T> action = new ReduceAction<T>(task, a, b, grain);
+		if(ForkJoinTask.inForkJoinPool()){ return action.invoke(); }
+		return getPool().invoke(action);
+	}
+
+	private static class RangeAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RangeTask task;
+		private final CancelToken token;
+		private final int a;
+		private final int b;
+		private final int grain;
+
+		public RangeAction(RangeTask task, CancelToken token, int a, int b, int grain){
+			this.task = task;
+			this.token = token;
+			this.a = a;
+			this.b = b;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if(token != null && token.isCancelled()){ return; }
+			// Base Case
+			if(b - a < grain){
+				task.compute(a, b);
+				return;
+			}
+			// Recurse
+			int halfSplit = (b - a) / 2 + a;
+			invokeAll(new RangeAction(task, token, a, halfSplit, grain), new RangeAction(task, token, halfSplit + 1, b, grain));
+		}
+	}
+
+	private static class ReduceAction<T> extends RecursiveTask<T> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ReduceTask<T> task;
+		private final int a;
+		private final int b;
+		private final int grain;
+
+		public ReduceAction(ReduceTask<T> task, int a, int b, int grain){
+			this.task = task;
+			this.a = a;
+			this.b = b;
+			this.grain = grain;
+		}
+
+		@Override
+		protected T compute() {
+			// Base Case
+			if(b - a < grain){
+				return task.compute(a, b);
+			}
+			// Recurse: fork the right half, reduce the left half on this worker
+			int halfSplit = (b - a) / 2 + a;
+			ReduceAction<T> right = new ReduceAction<T>(task, halfSplit + 1, b, grain);
+			right.fork();
+			T left = new ReduceAction<T>(task, a, halfSplit, grain).compute();
+			return task.combine(left, right.join());
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+	Percentile selection
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+import java.util.Arrays;
+
+import fasthdr.model.HDRChannel;
+
+// Exact percentiles of a channel in O(n) time without sorting or boxing.
+// Each sample is mapped to a 64 bit key with the same ordering as the double values (the IEEE 754
+// bits with negatives flipped). The keys are selected 16 bits at a time with parallel histograms,
+// the top 16 bits (sign, exponent and 4 mantissa bits) act as a log-domain histogram with 16 bins
+// per octave. Once the bin holding the wanted rank is small enough its samples are sorted directly.
+public class Percentile {
+
+	private static final int BITS = 16;
+	private static final int BINS = 1 << BITS;
+
+	// Bins small enough to finish with a sort
+	private static final int CANDIDATE_LIMIT = 1 << 16;
+
+	// Each chunk allocates its own histogram, so chunks are kept large
+	private static final int HISTOGRAM_GRAIN = 1 << 18;
+
+	// Value at fraction (0 to 1) of the sorted samples. NaNs, and zeros if skipZeros, are ignored.
+	public static double percentile(HDRChannel channel, boolean skipZeros, double fraction){
+		return percentiles(channel, skipZeros, fraction)[0];
+	}
+
+	// Values at each fraction (0 to 1) of the sorted samples. NaNs, and zeros if skipZeros, are ignored.
+	// Returns 0 for every fraction if no sample is counted.
+	public static double[] percentiles(HDRChannel channel, boolean skipZeros, double... fractions){
+		double[] result = new double[fractions.length];
+
+		// Top level histogram is shared by every fraction
+		int[] histogram = histogram(channel, skipZeros, 64 - BITS, 0, 0);
+		long count = 0;
+		for(int i = 0; i < BINS; i++){ count += histogram[i]; }
+		if(count == 0){ return result; }
+
+		for(int f = 0; f < fractions.length; f++){
+			long rank = (long)(fractions[f] * count);
+			if(rank < 0){ rank = 0; }
+			if(rank > count - 1){ rank = count - 1; }
+			result[f] = select(channel, skipZeros, histogram, rank);
+		}
+		return result;
+	}
+
+	// Sample of the given rank, refining the key prefix 16 bits at a time
+	private static double select(HDRChannel channel, boolean skipZeros, int[] topHistogram, long rank){
+		int[] histogram = topHistogram;
+		long prefix = 0;
+		int prefixBits = 0;
+		while(true){
+			// Find the bin containing rank
+			int bin = 0;
+			while(rank >= histogram[bin]){
+				rank -= histogram[bin];
+				bin++;
+			}
+			prefix = (prefix << BITS) | bin;
+			prefixBits += BITS;
+
+			if(prefixBits == 64){ return fromKey(prefix); }
+			if(histogram[bin] <= CANDIDATE_LIMIT){
+				double[] candidates = gather(channel, skipZeros, prefixBits, prefix, histogram[bin]);
+				Arrays.sort(candidates);
+				return candidates[(int)rank];
+			}
+			histogram = histogram(channel, skipZeros, 64 - prefixBits - BITS, prefixBits, prefix);
+		}
+	}
+
+	// Histogram of key bits [shift, shift + 16) of the samples whose top prefixBits bits equal prefix
+	private static int[] histogram(final HDRChannel channel, final boolean skipZeros,
+			final int shift, final int prefixBits, final long prefix){
+		final int[] histogram = new int[BINS];
+		Parallel.range(0, channel.getSize() - 1, HISTOGRAM_GRAIN, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				int[] local = new int[BINS];
+				double value;
+				long key;
+				for(int i = a; i <= b; i++){
+					value = channel.get(i);
+					if(value != value || (skipZeros && value == 0.0)){ continue; }
+					key = toKey(value);
+					if(prefixBits > 0 && (key >>> (64 - prefixBits)) != prefix){ continue; }
+					local[(int)((key >>> shift) & (BINS - 1))]++;
+				}
+				synchronized(histogram){
+					for(int i = 0; i < BINS; i++){ histogram[i] += local[i]; }
+				}
+			}
+		});
+		return histogram;
+	}
+
+	// The count samples whose top prefixBits key bits equal prefix
+	private static double[] gather(HDRChannel channel, boolean skipZeros, int prefixBits, long prefix, int count){
+		double[] candidates = new double[count];
+		int n = 0;
+		double value;
+		for(int i = 0; i < channel.getSize(); i++){
+			value = channel.get(i);
+			if(value != value || (skipZeros && value == 0.0)){ continue; }
+			if((toKey(value) >>> (64 - prefixBits)) == prefix){ candidates[n++] = value; }
+		}
+		return candidates;
+	}
+
+	// Order preserving key: unsigned comparison of keys matches comparison of the values
+	private static long toKey(double value){
+		long bits = Double.doubleToLongBits(value);
+		return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+	}
+
+	private static double fromKey(long key){
+		return Double.longBitsToDouble(key < 0 ? key ^ Long.MIN_VALUE : ~key);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+	Per-pixel array kernels
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+import fasthdr.model.HDRChannel;
+
+// Per-pixel kernels over the backing arrays of DOUBLE channels. The loops are kept free of branches
+// and indirections (no double[][] lookups, no per sample precision switch, constants in locals) so
+// the JIT unrolls them and uses packed SIMD instructions for the arithmetic.
+// Every kernel does the same operations in the same order as the get/set loop it replaces, so
+// results are identical.
+// Callers check supports(...) and fall back to their get/set loops for other precisions, or for
+// every channel when run with -Dfasthdr.kernels=scalar (e.g. to compare the two in the benchmark).
+public class PixelKernels {
+
+	public static final String KERNELS_PROPERTY = "fasthdr.kernels";
+
+	private static volatile boolean enabled = !"scalar".equalsIgnoreCase(System.getProperty(KERNELS_PROPERTY));
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	public static void setEnabled(boolean value){
+		enabled = value;
+	}
+
+	// True if the array kernels can run on all the channels
+	public static boolean supports(HDRChannel... channels){
+		if(!enabled){ return false; }
+		for(HDRChannel channel : channels){
+			if(channel.getPrecision() != HDRChannel.Precision.DOUBLE){ return false; }
+		}
+		return true;
+	}
+
+	// (a, b, c) = matrix * (a, b, c) over the inclusive range [start, end]
+	public static void multiply(double[] a, double[] b, double[] c, double[][] matrix, int start, int end){
+		final double m00 = matrix[0][0], m01 = matrix[0][1], m02 = matrix[0][2];
+		final double m10 = matrix[1][0], m11 = matrix[1][1], m12 = matrix[1][2];
+		final double m20 = matrix[2][0], m21 = matrix[2][1], m22 = matrix[2][2];
+		double aVal, bVal, cVal;
+		for(int i = start; i <= end; i++){
+			aVal = a[i];
+			bVal = b[i];
+			cVal = c[i];
+			a[i] = (m00 * aVal) + (m01 * bVal) + (m02 * cVal);
+			b[i] = (m10 * aVal) + (m11 * bVal) + (m12 * cVal);
+			c[i] = (m20 * aVal) + (m21 * bVal) + (m22 * cVal);
+		}
+	}
+
+	// data = scale * (data - min) / (max - min) over [start, end]
+	public static void shiftRescale(double[] data, double min, double max, double scale, int start, int end){
+		final double range = max - min;
+		for(int i = start; i <= end; i++){
+			data[i] = scale * (data[i] - min) / range;
+		}
+	}
+
+	// data = scale * log(data - min) / max over [start, end], the shift, log and re-scale of the Log TMO
+	public static void shiftLogRescale(double[] data, double min, double max, double scale, int start, int end){
+		for(int i = start; i <= end; i++){
+			data[i] = scale * Math.log(data[i] - min) / max;
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+	Preprocessing cache
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fasthdr.model.HDRChannel;
+
+// Keeps the preprocessing of the TMOs (pyramids, gradients, luminance statistics, preview
+// subsamples) so reopening an image or switching back to an operator skips it.
+// Entries are keyed by the content of the image file (see hashFile) plus whatever the TMO adds
+// (operator, preview), so a changed file never hits a stale entry.
+// The least recently used entries are dropped once the memory budget is exceeded. With a spill
+// directory they are written there first and read back on the next miss.
+//   -Dfasthdr.cache.mb=N    memory budget (default 1/4 of the max heap, 0 disables the cache)
+//   -Dfasthdr.cache.dir=D   spill directory (default none)
+//   -Dfasthdr.cache.diskmb=N  spill directory budget (default 2048)
+public class PreprocessCache {
+
+	public static final String MEMORY_PROPERTY = "fasthdr.cache.mb";
+	public static final String DIRECTORY_PROPERTY = "fasthdr.cache.dir";
+	public static final String DISK_PROPERTY = "fasthdr.cache.diskmb";
+	public static final long DISK_BUDGET_DEFAULT = 2048L << 20;
+
+	private static final int SPILL_MAGIC = 0x46484331;	// "FHC1"
+	private static final String SPILL_SUFFIX = ".cache";
+	private static final int SPILL_BLOCK = 1 << 16;
+
+	// Region of the file hashed at once
+	private static final long HASH_BLOCK = 1L << 26;
+
+	private static PreprocessCache shared = null;
+
+	// Preprocessed channels and values of one TMO. Read only once cached, the channels are shared
+	// by every TMO instance that gets the entry.
+	public static class Entry {
+		private final HDRChannel[] channels;
+		private final double[] values;
+
+		public Entry(HDRChannel[] channels, double[] values){
+			this.channels = channels;
+			this.values = values;
+		}
+
+		public HDRChannel[] getChannels(){
+			return channels;
+		}
+
+		public double[] getValues(){
+			return values;
+		}
+
+		// Heap bytes held by the entry
+		public long getBytes(){
+			long bytes = 8L * values.length;
+			for(HDRChannel channel : channels){
+				bytes += (long)channel.getSize() * sampleBytes(channel.getPrecision());
+			}
+			return bytes;
+		}
+	}
+
+	private final long memoryBudget;
+	private final File directory;
+	private final long diskBudget;
+	private long memoryBytes = 0;
+
+	// Access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// directory may be null for a memory only cache
+	public PreprocessCache(long memoryBudget, File directory, long diskBudget){
+		this.memoryBudget = memoryBudget;
+		this.directory = directory;
+		this.diskBudget = diskBudget;
+	}
+
+	// Process-wide cache configured from the system properties
+	public static synchronized PreprocessCache getShared(){
+		if(shared == null){
+			long memory = Runtime.getRuntime().maxMemory() / 4;
+			long disk = DISK_BUDGET_DEFAULT;
+			try {
+				String property = System.getProperty(MEMORY_PROPERTY);
+				if(property != null){ memory = Long.parseLong(property.trim()) << 20; }
+				property = System.getProperty(DISK_PROPERTY);
+				if(property != null){ disk = Long.parseLong(property.trim()) << 20; }
+			}
+			catch(NumberFormatException e) {
+				System.out.println("Invalid cache size: " + e.getMessage());
+			}
+
+			String path = System.getProperty(DIRECTORY_PROPERTY);
+			File directory = null;
+			if(path != null){
+				directory = new File(path);
+				if(!directory.isDirectory() && !directory.mkdirs()){
+					System.out.println("Cannot create cache directory " + path);
+					directory = null;
+				}
+			}
+			shared = new PreprocessCache(memory, directory, disk);
+		}
+		return shared;
+	}
+
+	// False with a memory budget of 0: nothing is ever stored, so callers can skip computing keys
+	public boolean isEnabled(){
+		return memoryBudget > 0;
+	}
+
+	// Returns the entry, from memory or the spill directory, or null
+	public Entry get(String key){
+		synchronized(this){
+			Entry entry = entries.get(key);
+			if(entry != null || directory == null){ return entry; }
+		}
+
+		// Read outside the lock, a concurrent put of the same key only duplicates the work
+		File file = spillFile(key);
+		if(!file.isFile()){ return null; }
+		try {
+			Entry entry = readEntry(file);
+			file.setLastModified(System.currentTimeMillis());
+			put(key, entry);
+			return entry;
+		}
+		catch(IOException e) {
+			System.out.println("Cannot read cache file " + file + ": " + e.getMessage());
+			file.delete();
+			return null;
+		}
+	}
+
+	public void put(String key, Entry entry){
+		if(memoryBudget <= 0){ return; }
+
+		Entry[] evicted;
+		String[] evictedKeys;
+		synchronized(this){
+			Entry old = entries.put(key, entry);
+			if(old != null){ memoryBytes -= old.getBytes(); }
+			memoryBytes += entry.getBytes();
+
+			// Drop the least recently used entries, an entry larger than the budget is dropped as well
+			int count = 0;
+			evicted = new Entry[entries.size()];
+			evictedKeys = new String[entries.size()];
+			Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+			while(memoryBytes > memoryBudget && iterator.hasNext()){
+				Map.Entry<String, Entry> eldest = iterator.next();
+				memoryBytes -= eldest.getValue().getBytes();
+				evictedKeys[count] = eldest.getKey();
+				evicted[count++] = eldest.getValue();
+				iterator.remove();
+			}
+		}
+
+		if(directory == null){ return; }
+		for(int i = 0; i < evicted.length && evicted[i] != null; i++){
+			spill(evictedKeys[i], evicted[i]);
+		}
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+		memoryBytes = 0;
+	}
+
+	public synchronized long getMemoryBytes(){
+		return memoryBytes;
+	}
+
+	// Hex SHA-1 of the file's content
+	public static String hashFile(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 is not available");
+		}
+
+		FileInputStream fileInputStream = new FileInputStream(file);
+		try {
+			FileChannel fileChannel = fileInputStream.getChannel();
+			long size = fileChannel.size();
+			for(long position = 0; position < size; position += HASH_BLOCK){
+				MappedByteBuffer block = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_BLOCK, size - position));
+				digest.update(block);
+			}
+		}
+		finally {
+			fileInputStream.close();
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest()){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	private static int sampleBytes(HDRChannel.Precision precision){
+		switch(precision){
+			case FLOAT: return 4;
+			case HALF: return 2;
+			// Off-heap
+			case MAPPED: return 0;
+			default: return 8;
+		}
+	}
+
+	private File spillFile(String key){
+		// Keys are hashes and operator names, anything else is replaced
+		return new File(directory, key.replaceAll("[^A-Za-z0-9_.+-]", "_") + SPILL_SUFFIX);
+	}
+
+	private void spill(String key, Entry entry){
+		File file = spillFile(key);
+		if(file.isFile()){
+			file.setLastModified(System.currentTimeMillis());
+			return;
+		}
+
+		File temporary = new File(directory, file.getName() + ".tmp" + Thread.currentThread().getId());
+		try {
+			writeEntry(temporary, entry);
+			if(!temporary.renameTo(file)){
+				temporary.delete();
+			}
+		}
+		catch(IOException e) {
+			System.out.println("Cannot write cache file " + file + ": " + e.getMessage());
+			temporary.delete();
+			return;
+		}
+		trimDirectory();
+	}
+
+	// Deletes the oldest spill files until the directory fits its budget
+	private synchronized void trimDirectory(){
+		File[] files = directory.listFiles();
+		if(files == null){ return; }
+		Arrays.sort(files, new Comparator<File>(){
+			public int compare(File a, File b){
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+
+		long total = 0;
+		for(File file : files){
+			if(file.getName().endsWith(SPILL_SUFFIX)){ total += file.length(); }
+		}
+		for(int i = 0; i < files.length && total > diskBudget; i++){
+			if(files[i].getName().endsWith(SPILL_SUFFIX)){
+				total -= files[i].length();
+				files[i].delete();
+			}
+		}
+	}
+
+	// Values, then each channel's name, size, precision and samples. Mapped channels are stored as
+	// floats and read back as FLOAT.
+	private static void writeEntry(File file, Entry entry) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		ByteBuffer buffer = ByteBuffer.allocate(SPILL_BLOCK);
+		try {
+			out.writeInt(SPILL_MAGIC);
+			out.writeInt(entry.values.length);
+			for(double value : entry.values){ out.writeDouble(value); }
+
+			out.writeInt(entry.channels.length);
+			for(HDRChannel channel : entry.channels){
+				HDRChannel.Precision precision = channel.getPrecision();
+				if(precision == HDRChannel.Precision.MAPPED){ precision = HDRChannel.Precision.FLOAT; }
+				out.writeUTF(channel.getName());
+				out.writeInt(channel.getWidth());
+				out.writeInt(channel.getHeight());
+				out.writeUTF(precision.name());
+				writeSamples(out, channel, precision, buffer);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static Entry readEntry(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		ByteBuffer buffer = ByteBuffer.allocate(SPILL_BLOCK);
+		try {
+			if(in.readInt() != SPILL_MAGIC){
+				throw new IOException("Not a cache file");
+			}
+			double[] values = new double[in.readInt()];
+			for(int i = 0; i < values.length; i++){ values[i] = in.readDouble(); }
+
+			HDRChannel[] channels = new HDRChannel[in.readInt()];
+			for(int c = 0; c < channels.length; c++){
+				String name = in.readUTF();
+				int width = in.readInt();
+				int height = in.readInt();
+				HDRChannel.Precision precision;
+				try {
+					precision = HDRChannel.Precision.valueOf(in.readUTF());
+				}
+				catch(IllegalArgumentException e) {
+					throw new IOException("Unknown precision");
+				}
+				if(precision == HDRChannel.Precision.MAPPED){
+					throw new IOException("Mapped channels are stored as floats");
+				}
+
+				HDRChannel channel = new HDRChannel(width, height, name, precision);
+				readSamples(in, channel, buffer);
+				channels[c] = channel;
+			}
+			return new Entry(channels, values);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// Samples are copied through buffer a block at a time
+	private static void writeSamples(DataOutputStream out, HDRChannel channel, HDRChannel.Precision precision, ByteBuffer buffer) throws IOException {
+		int sampleBytes = sampleBytes(precision);
+		int blockSamples = buffer.capacity() / sampleBytes;
+		for(int offset = 0; offset < channel.getSize(); offset += blockSamples){
+			int count = Math.min(blockSamples, channel.getSize() - offset);
+			buffer.clear();
+			switch(channel.getPrecision()){
+				case FLOAT: buffer.asFloatBuffer().put(channel.getFloatData(), offset, count); break;
+				case HALF: buffer.asShortBuffer().put(channel.getHalfData(), offset, count); break;
+				case MAPPED:
+					FloatBuffer floats = buffer.asFloatBuffer();
+					for(int i = 0; i < count; i++){ floats.put(i, (float)channel.get(offset + i)); }
+					break;
+				default: buffer.asDoubleBuffer().put(channel.getData(), offset, count); break;
+			}
+			out.write(buffer.array(), 0, count * sampleBytes);
+		}
+	}
+	
+	private static void readSamples(DataInputStream in, HDRChannel channel, ByteBuffer buffer) throws IOException {
+		int sampleBytes = sampleBytes(channel.getPrecision());
+		int blockSamples = buffer.capacity() / sampleBytes;
+		for(int offset = 0; offset < channel.getSize(); offset += blockSamples){
+			int count = Math.min(blockSamples, channel.getSize() - offset);
+			in.readFully(buffer.array(), 0, count * sampleBytes);
+			buffer.clear();
+			switch(channel.getPrecision()){
+				case FLOAT: buffer.asFloatBuffer().get(channel.getFloatData(), offset, count); break;
+				case HALF: buffer.asShortBuffer().get(channel.getHalfData(), offset, count); break;
+				default: buffer.asDoubleBuffer().get(channel.getData(), offset, count); break;
+			}
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+	Gaussian and Laplacian pyramid engine
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+import fasthdr.model.HDRChannel;
+
+// Builds Gaussian and Laplacian pyramids in level buffers that are kept between calls. A buffer is
+// only re-allocated when a level grows or changes precision, so an engine used for a full image
+// and then its preview (or for tile after tile) allocates once.
+// Every level is computed in one parallel pass over its rows that blurs and decimates the level
+// below (the blur of GaussianBlur then the 2x2 average of GaussianPyramid.downSample), keeping only
+// a few rows of the blur per worker. Results are identical to the separate blur and down sample.
+// The pyramid returned by a call is overwritten by the next call on the same engine.
+public class PyramidEngine {
+
+	private HDRChannel[] buffers = new HDRChannel[0];
+	// Buffers of the right pyramid of createDownSamplePyramids
+	private PyramidEngine right = null;
+
+	// Gaussian pyramid of channel. Index 0 is a copy of channel, every other index halves the width
+	// and height of the one below.
+	public synchronized HDRChannel[] createDownSamplePyramid(HDRChannel channel, int levels){
+		HDRChannel[] pyramid = levels(channel, levels);
+		copy(channel, pyramid[0]);
+		for(int i = 1; i < levels; i++){
+			blurDownSample(pyramid[i - 1], pyramid[i]);
+		}
+		return pyramid;
+	}
+
+	// Gaussian pyramids of two regions of the same rows of an image, the first (left) starting at the
+	// first column of the image and the second (right) ending at its last column, both starting on a
+	// multiple of 2^(levels - 1). The levels are built side by side so that, where the blur wraps
+	// from the end of a row to the start of the next (see RowWindow.blurY), each reads the other
+	// region as the pyramid of the whole image does. Index 0 holds the pyramid of left, 1 that of right.
+	public synchronized HDRChannel[][] createDownSamplePyramids(HDRChannel leftChannel, HDRChannel rightChannel, int levels){
+		if(right == null){ right = new PyramidEngine(); }
+		HDRChannel[] leftPyramid = levels(leftChannel, levels);
+		HDRChannel[] rightPyramid = right.levels(rightChannel, levels);
+		copy(leftChannel, leftPyramid[0]);
+		copy(rightChannel, rightPyramid[0]);
+		for(int i = 1; i < levels; i++){
+			// The first pixel of a left row wraps to the end of the right row above, the last pixel of
+			// a right row to the start of the left row below
+			double[] before = wrapColumn(rightPyramid[i - 1], false, -1);
+			double[] after = wrapColumn(leftPyramid[i - 1], true, 1);
+			blurDownSample(leftPyramid[i - 1], leftPyramid[i], before, null);
+			blurDownSample(rightPyramid[i - 1], rightPyramid[i], null, after);
+		}
+		return new HDRChannel[][] {leftPyramid, rightPyramid};
+	}
+
+	// Laplacian pyramid of channel. Index i holds Gaussian level i minus the expansion (up sample and
+	// blur) of Gaussian level i + 1; the last index holds the last Gaussian level.
+	public synchronized HDRChannel[] createLaplacianPyramid(HDRChannel channel, int levels){
+		HDRChannel[] pyramid = createDownSamplePyramid(channel, levels);
+		// In place from the base up: level i + 1 is still Gaussian when level i is replaced
+		for(int i = 0; i < levels - 1; i++){
+			expand(pyramid[i + 1], pyramid[i], -1);
+		}
+		return pyramid;
+	}
+
+	// Inverse of createLaplacianPyramid, in place from the top down. Returns index 0, the reconstruction.
+	public static HDRChannel collapseLaplacianPyramid(HDRChannel[] pyramid){
+		for(int i = pyramid.length - 2; i >= 0; i--){
+			expand(pyramid[i + 1], pyramid[i], 1);
+		}
+		return pyramid[0];
+	}
+
+	// Level buffers sized for a pyramid of channel
+	private HDRChannel[] levels(HDRChannel channel, int levels){
+		if(buffers.length < levels){
+			HDRChannel[] grown = new HDRChannel[levels];
+			System.arraycopy(buffers, 0, grown, 0, buffers.length);
+			buffers = grown;
+		}
+		HDRChannel[] pyramid = new HDRChannel[levels];
+		int width = channel.getWidth();
+		int height = channel.getHeight();
+		for(int i = 0; i < levels; i++){
+			if(buffers[i] == null || buffers[i].getPrecision() != channel.getPrecision()){
+				buffers[i] = new HDRChannel(width, height, channel.getName(), channel.getPrecision());
+			}
+			else{
+				buffers[i].reshape(width, height);
+				buffers[i].setName(channel.getName());
+			}
+			pyramid[i] = buffers[i];
+			width = width / 2;
+			height = height / 2;
+		}
+		return pyramid;
+	}
+
+	private static void copy(final HDRChannel src, final HDRChannel des){
+		Parallel.range(0, src.getSize() - 1, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				for(int i = a; i <= b; i++){
+					des.set(i, src.get(i));
+				}
+			}
+		});
+	}
+
+	// des = downSample(gaussianBlur(src)) in one pass. Every worker Y-blurs the two source rows under
+	// each output row and averages them, X-blurring each source row once into a window of four rows.
+	// Intermediate values are narrowed as the separate passes store them.
+	public static void blurDownSample(HDRChannel src, HDRChannel des){
+		blurDownSample(src, des, null, null);
+	}
+
+	// blurDownSample with the X-blurred values the first pixel of row r takes from the end of the row
+	// above (before[r]) and the last pixel from the start of the row below (after[r]) given, each
+	// null to read them from src
+	private static void blurDownSample(final HDRChannel src, final HDRChannel des, final double[] before, final double[] after){
+		final int width = src.getWidth();
+		final int halfWidth = des.getWidth();
+		final int halfHeight = des.getHeight();
+		if(halfWidth == 0 || halfHeight == 0){ return; }
+
+		Parallel.rows(0, halfHeight - 1, 2 * width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				RowWindow window = new RowWindow(src, before, after);
+				double[] top = new double[width];
+				double[] bottom = new double[width];
+				for(int y = a; y <= b; y++){
+					window.blurY(2 * y, top);
+					window.blurY(2 * y + 1, bottom);
+					for(int x = 0; x < halfWidth; x++){
+						// Sample the four corresponding pixels and map them to a single pixel
+						des.set((y * halfWidth) + x, (top[2 * x] + top[2 * x + 1] + bottom[2 * x] + bottom[2 * x + 1]) / 4.0);
+					}
+				}
+			}
+		});
+	}
+
+	// fine += sign * gaussianBlur(upSample(coarse)), the up sample padded to the size of fine.
+	// Rows of the up sample repeat coarse rows, so every worker X-blurs each coarse row it needs once.
+	public static void expand(final HDRChannel coarse, final HDRChannel fine, final double sign){
+		final int width = fine.getWidth();
+		final int height = fine.getHeight();
+
+		Parallel.rows(0, height - 1, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				RowWindow window = new RowWindow(coarse, fine);
+				double[] blurred = new double[width];
+				int index;
+				for(int y = a; y <= b; y++){
+					window.blurY(y, blurred);
+					for(int x = 0; x < width; x++){
+						index = (y * width) + x;
+						fine.set(index, fine.get(index) + sign * blurred[x]);
+					}
+				}
+			}
+		});
+	}
+
+	// Rows of the Gaussian blur of an image, for one worker. The image is either a channel or the up
+	// sample of a coarse channel to the size of a finer one. X-blurred rows are kept in a window of
+	// four slots (row r in slot r % 4), enough for the rows around two consecutive rows.
+	private static class RowWindow {
+
+		private final HDRChannel channel;
+		private final HDRChannel coarse;
+		private final int width;
+		private final int height;
+		private final double[][] blurX;
+		private final int[] held = {-1, -1, -1, -1};
+		private final double[] upSampled;
+		// Values the rows wrap to in place of the neighbouring rows, null to read those
+		private final double[] before;
+		private final double[] after;
+
+		// Rows of the blur of channel, see blurDownSample for before and after
+		public RowWindow(HDRChannel channel, double[] before, double[] after){
+			this.channel = channel;
+			this.coarse = null;
+			this.width = channel.getWidth();
+			this.height = channel.getHeight();
+			this.blurX = new double[4][width];
+			this.upSampled = null;
+			this.before = before;
+			this.after = after;
+		}
+
+		// Rows of the blur of coarse up sampled to the size of fine, narrowed to the precision of fine
+		public RowWindow(HDRChannel coarse, HDRChannel fine){
+			this.channel = fine;
+			this.coarse = coarse;
+			this.width = fine.getWidth();
+			this.height = fine.getHeight();
+			this.blurX = new double[4][width];
+			this.upSampled = new double[width];
+			this.before = null;
+			this.after = null;
+		}
+
+		// Y-blur of row r
+		public void blurY(int r, double[] out){
+			double[] center = rowX(r);
+			if(r == 0){
+				// Top edge. Center pixel weighted 3x, neighbor weighted 1x
+				double[] below = rowX(r + 1);
+				for(int x = 0; x < width; x++){ out[x] = channel.narrow((3 * center[x] + below[x]) / 4.0); }
+			}
+			else if(r == height - 1){
+				// Bottom edge. Center pixel weighted 3x, neighbor weighted 1x
+				double[] above = rowX(r - 1);
+				for(int x = 0; x < width; x++){ out[x] = channel.narrow((3 * center[x] + above[x]) / 4.0); }
+			}
+			else{
+				// Center pixel weighted 2x, neighbors (index - 1 and + 1, see GaussianBlur) weighted 1x.
+				// The first and last pixels of the row take theirs from the end of the row above and
+				// the start of the row below.
+				double first = before == null ? rowX(r - 1)[width - 1] : before[r];
+				double last = after == null ? rowX(r + 1)[0] : after[r];
+				for(int x = 1; x < width - 1; x++){ out[x] = channel.narrow(((2 * center[x]) + center[x - 1] + center[x + 1]) / 4.0); }
+				out[0] = channel.narrow(((2 * center[0]) + first + (width > 1 ? center[1] : last)) / 4.0);
+				if(width > 1){ out[width - 1] = channel.narrow(((2 * center[width - 1]) + center[width - 2] + last) / 4.0); }
+			}
+		}
+
+		// X-blur of row r. Rows of an up sample are keyed by the coarse row they repeat.
+		private double[] rowX(int r){
+			int key = coarse == null ? r : Math.min(r / 2, coarse.getHeight() - 1);
+			double[] row = blurX[key & 3];
+			if(held[key & 3] != key){
+				if(coarse == null){
+					blurRowX(channel, r * width, width, row);
+				}
+				else{
+					int coarseWidth = coarse.getWidth();
+					for(int x = 0; x < width; x++){
+						upSampled[x] = coarse.get((key * coarseWidth) + Math.min(x / 2, coarseWidth - 1));
+					}
+					blurRow(upSampled, width, row, channel);
+				}
+				held[key & 3] = key;
+			}
+			return row;
+		}
+	}
+
+	// X-blurred first (or last) pixel of row r + shift of channel at index r, 0 where that row is
+	// outside channel
+	private static double[] wrapColumn(HDRChannel channel, boolean first, int shift){
+		int width = channel.getWidth();
+		int height = channel.getHeight();
+		double[] column = new double[height];
+		for(int r = Math.max(0, -shift); r < Math.min(height, height - shift); r++){
+			int start = (r + shift) * width;
+			column[r] = first == true
+					? channel.narrow(((3 * channel.get(start)) + channel.get(start + 1)) / 4.0)
+					: channel.narrow((3 * channel.get(start + width - 1) + channel.get(start + width - 2)) / 4.0);
+		}
+		return column;
+	}
+
+	// X-blur of the width samples of channel from index start, narrowed to the channel precision
+	private static void blurRowX(HDRChannel channel, int start, int width, double[] out){
+		for(int x = 1; x < width - 1; x++){
+			// Avg the adjacent pixels. Center pixel weighted 2x, neighbors weighted 1x
+			out[x] = channel.narrow(((2 * channel.get(start + x)) + channel.get(start + x - 1) + channel.get(start + x + 1)) / 4.0);
+		}
+		// Avg the left and right edge cases. Center pixel weighted 3x, neighbors weighted 1x
+		out[0] = channel.narrow(((3 * channel.get(start)) + channel.get(start + 1)) / 4.0);
+		out[width - 1] = channel.narrow((3 * channel.get(start + width - 1) + channel.get(start + width - 2)) / 4.0);
+	}
+
+	// X-blur of row, narrowed to the precision of channel
+	private static void blurRow(double[] row, int width, double[] out, HDRChannel channel){
+		for(int x = 1; x < width - 1; x++){
+			out[x] = channel.narrow(((2 * row[x]) + row[x - 1] + row[x + 1]) / 4.0);
+		}
+		out[0] = channel.narrow(((3 * row[0]) + row[1]) / 4.0);
+		out[width - 1] = channel.narrow((3 * row[width - 1] + row[width - 2]) / 4.0);
+	}
+}
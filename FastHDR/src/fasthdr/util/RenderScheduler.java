@@ -0,0 +1,151 @@
+/*
+	Render scheduler
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Runs the interactive rendering jobs (previews, full images, display tiles, TMO preprocessing) one
+// at a time on a single worker thread; every job parallelizes itself through Parallel.
+// Jobs are submitted under a key, the object they render for. A key has at most one chain of jobs: a
+// new submit drops the job of that key still queued and cancels the running one, so a burst of slider
+// changes renders only the latest value and nothing ever waits for the superseded work to stop.
+// A job may queue the next step of its chain with its token (e.g. the next resolution), which is
+// dropped if the chain was cancelled meanwhile. Queued PREVIEW jobs run before FULL jobs, so the
+// first preview of new parameters never waits behind a full resolution image.
+// submit and cancel only queue jobs and cancel tokens, they are safe to call from the event dispatch thread.
+public class RenderScheduler {
+
+	public enum Priority { PREVIEW, FULL }
+
+	public interface Job {
+		// Returns early once token is cancelled
+		public void run(CancelToken token);
+	}
+
+	private static class Task {
+		private final Object key;
+		private final Priority priority;
+		private final Job job;
+		private final CancelToken token;
+
+		public Task(Object key, Priority priority, Job job, CancelToken token){
+			this.key = key;
+			this.priority = priority;
+			this.job = job;
+			this.token = token;
+		}
+	}
+
+	private static RenderScheduler shared = null;
+
+	// Oldest first
+	private final ArrayList<Task> queue = new ArrayList<Task>();
+	// Token of the current chain of every key with a job queued or running
+	private final HashMap<Object, CancelToken> tokens = new HashMap<Object, CancelToken>();
+
+	public RenderScheduler(String name){
+		Thread worker = new Thread(new Runnable(){
+			public void run(){ work(); }
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public static synchronized RenderScheduler getShared(){
+		if(shared == null){ shared = new RenderScheduler("FastHDR render"); }
+		return shared;
+	}
+
+	// Starts a new chain for key, superseding the queued and running jobs of key
+	public synchronized void submit(Object key, Priority priority, Job job){
+		cancel(key);
+		CancelToken token = new CancelToken();
+		tokens.put(key, token);
+		queue.add(new Task(key, priority, job, token));
+		notifyAll();
+	}
+
+	// Queues the next job of the chain of token. Returns false, queuing nothing, if the chain was cancelled.
+	public synchronized boolean submit(Object key, Priority priority, Job job, CancelToken token){
+		if(token.isCancelled() == true || tokens.get(key) != token){ return false; }
+		queue.add(new Task(key, priority, job, token));
+		notifyAll();
+		return true;
+	}
+
+	// Drops the queued job of key and cancels the running one, without waiting for it
+	public synchronized void cancel(Object key){
+		CancelToken token = tokens.remove(key);
+		if(token != null){ token.cancel(); }
+		for(int i = queue.size() - 1; i >= 0; i--){
+			if(queue.get(i).key == key){ queue.remove(i); }
+		}
+	}
+
+	private void work(){
+		while(true){
+			Task task;
+			synchronized(this){
+				while(queue.isEmpty()){
+					try {
+						wait();
+					}
+					catch(InterruptedException e){
+						return;
+					}
+				}
+				task = next();
+			}
+			try {
+				if(task.token.isCancelled() == false){ task.job.run(task.token); }
+			}
+			catch(Throwable e){
+				// A failed job (including an OutOfMemoryError on a large render) must not stop the
+				// rendering of the others
+				e.printStackTrace();
+			}
+			finally {
+				synchronized(this){
+					finish(task);
+				}
+			}
+		}
+	}
+
+	// Removes and returns the oldest job of the highest priority
+	private Task next(){
+		int best = 0;
+		for(int i = 1; i < queue.size(); i++){
+			if(queue.get(i).priority.ordinal() < queue.get(best).priority.ordinal()){ best = i; }
+		}
+		return queue.remove(best);
+	}
+
+	// Forgets the key of a chain that queued no next job
+	private void finish(Task task){
+		if(tokens.get(task.key) != task.token){ return; }
+		for(Task queued : queue){
+			if(queued.key == task.key){ return; }
+		}
+		tokens.remove(task.key);
+	}
+}
@@ -34,57 +34,44 @@ public class Subsampler {
 		int halfHeight = channel.getHeight() / 2;
 		
 		int width = channel.getWidth();
-		double data[] = channel.getData();
 		
 		// Down sampled channel
 		HDRChannel downSampleChannels[] = new HDRChannel[4];
-		downSampleChannels[0] = new HDRChannel(halfWidth, halfHeight, channel.getName());
-		downSampleChannels[1] = new HDRChannel(halfWidth, halfHeight, channel.getName());
-		downSampleChannels[2] = new HDRChannel(halfWidth, halfHeight, channel.getName());
-		downSampleChannels[3] = new HDRChannel(halfWidth, halfHeight, channel.getName());
-		
-		double topLeftData[] = downSampleChannels[0].getData();
-		double topRightData[] = downSampleChannels[1].getData();
-		double bottomLeftData[] = downSampleChannels[2].getData();
-		double bottomRightData[] = downSampleChannels[3].getData();
+		downSampleChannels[0] = new HDRChannel(halfWidth, halfHeight, channel.getName(), channel.getPrecision());
+		downSampleChannels[1] = new HDRChannel(halfWidth, halfHeight, channel.getName(), channel.getPrecision());
+		downSampleChannels[2] = new HDRChannel(halfWidth, halfHeight, channel.getName(), channel.getPrecision());
+		downSampleChannels[3] = new HDRChannel(halfWidth, halfHeight, channel.getName(), channel.getPrecision());
 		
 		// Sample the four corresponding pixels from data and map it to a single pixel
-		quadrantPartition(data, topLeftData, topRightData, bottomLeftData, bottomRightData, 
-						  halfWidth, halfHeight, width, 0, (halfWidth * halfHeight) - 1);
+		quadrantPartition(channel, downSampleChannels[0], downSampleChannels[1], downSampleChannels[2], downSampleChannels[3], 
+						  halfWidth, halfHeight, width, 0, halfHeight - 1);
 		
 		return downSampleChannels;
 	}
 	
-	private static void quadrantPartition(final double[] data, 
-			final double[] topLeftData, final double[] topRightData, 
-			final double[] bottomLeftData, final double[] bottomRightData,
+	private static void quadrantPartition(final HDRChannel data, 
+			final HDRChannel topLeftData, final HDRChannel topRightData, 
+			final HDRChannel bottomLeftData, final HDRChannel bottomRightData,
 			final int halfWidth, final int halfHeight, final int width,
-			final int a, final int b){
-    	// Base Case
-		if(b - a < 250000){
-			// For each pixel
-			for(int y = 0; y < halfHeight; y++){
-				for(int x = 0; x < halfWidth; x++){
-					// Index mapping for the downSampleChannel <-> Original channel
-					int halfIndex = (y * halfWidth) + x;
-					int index = (2 * y * width) + (2 * x);
-					
-					// Sample the four corresponding pixels from data and map it to a single pixel
-					topLeftData[halfIndex] = data[index];
-					topRightData[halfIndex] = data[index + 1];
-					bottomLeftData[halfIndex] = data[index + width];
-					bottomRightData[halfIndex] = data[index + width + 1];
+			final int rowStart, final int rowEnd){
+		Parallel.rows(rowStart, rowEnd, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				// For each pixel
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < halfWidth; x++){
+						// Index mapping for the downSampleChannel <-> Original channel
+						int halfIndex = (y * halfWidth) + x;
+						int index = (2 * y * width) + (2 * x);
+						
+						// Sample the four corresponding pixels from data and map it to a single pixel
+						topLeftData.set(halfIndex, data.get(index));
+						topRightData.set(halfIndex, data.get(index + 1));
+						bottomLeftData.set(halfIndex, data.get(index + width));
+						bottomRightData.set(halfIndex, data.get(index + width + 1));
+					}
 				}
 			}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ quadrantPartition(data, topLeftData, topRightData, bottomLeftData, bottomRightData, halfWidth, halfHeight, width, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ quadrantPartition(data, topLeftData, topRightData, bottomLeftData, bottomRightData, halfWidth, halfHeight, width, halfSplit + 1, b); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 	
 	public static HDRChannel quadrantUpSample(HDRChannel topLeft, HDRChannel topRight, HDRChannel bottomLeft, HDRChannel bottomRight) {
@@ -94,46 +81,37 @@ public class Subsampler {
 		int width = topLeft.getWidth() * 2;
 		
 		// Up sampled channel
-		HDRChannel upSampleChannel = new HDRChannel(topLeft.getWidth() * 2, topLeft.getHeight() * 2, topLeft.getName());
-		double upSampleChannelData[] = upSampleChannel.getData();
+		HDRChannel upSampleChannel = new HDRChannel(topLeft.getWidth() * 2, topLeft.getHeight() * 2, topLeft.getName(), topLeft.getPrecision());
 		
-		quadrantReconstruction(upSampleChannelData, topLeft.getData(), topRight.getData(), bottomLeft.getData(), bottomRight.getData(), 
-							   halfWidth, halfHeight, width, 0, (halfWidth * halfHeight) - 1);
+		quadrantReconstruction(upSampleChannel, topLeft, topRight, bottomLeft, bottomRight, 
+							   halfWidth, halfHeight, width, 0, halfHeight - 1);
 		
 		return upSampleChannel;
 	}
 	
-	private static void quadrantReconstruction(final double[] data, 
-			final double[] topLeftData, final double[] topRightData, 
-			final double[] bottomLeftData, final double[] bottomRightData,
+	private static void quadrantReconstruction(final HDRChannel data, 
+			final HDRChannel topLeftData, final HDRChannel topRightData, 
+			final HDRChannel bottomLeftData, final HDRChannel bottomRightData,
 			final int halfWidth, final int halfHeight, final int width,
-			final int a, final int b){
-    	// Base Case
-		if(b - a < 250000){
-			// For each pixel
-			for(int y = 0; y < halfHeight; y++){
-				for(int x = 0; x < halfWidth; x++){
-					// Index mapping for the downSampleChannel <-> Original channel
-					int halfIndex = (y * halfWidth) + x;
-					int index = (2 * y * width) + (2 * x);
-					
-					// Sample the four corresponding pixels from data and map it to a single pixel
-					data[index] = topLeftData[halfIndex];
-					data[index + 1] = topRightData[halfIndex];
-					data[index + width] = bottomLeftData[halfIndex];
-					data[index + width + 1] = bottomRightData[halfIndex];
+			final int rowStart, final int rowEnd){
+		Parallel.rows(rowStart, rowEnd, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				// For each pixel
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < halfWidth; x++){
+						// Index mapping for the downSampleChannel <-> Original channel
+						int halfIndex = (y * halfWidth) + x;
+						int index = (2 * y * width) + (2 * x);
+						
+						// Sample the four corresponding pixels from data and map it to a single pixel
+						data.set(index, topLeftData.get(halfIndex));
+						data.set(index + 1, topRightData.get(halfIndex));
+						data.set(index + width, bottomLeftData.get(halfIndex));
+						data.set(index + width + 1, bottomRightData.get(halfIndex));
+					}
 				}
 			}
-			
-			return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ quadrantReconstruction(data, topLeftData, topRightData, bottomLeftData, bottomRightData, halfWidth, halfHeight, width, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ quadrantReconstruction(data, topLeftData, topRightData, bottomLeftData, bottomRightData, halfWidth, halfHeight, width, halfSplit + 1, b); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
 	
 	public static void quadrantPartialReconstruction(HDRChannel dataQuad, HDRChannel dest, Quadrant q) {
@@ -142,37 +120,29 @@ public class Subsampler {
 		
 		int width = dest.getWidth();
 
-		quadrantPartialReconstruction(dataQuad.getData(), dest.getData(), q,
-							   halfWidth, halfHeight, width, 0, (halfWidth * halfHeight) - 1);
+		quadrantPartialReconstruction(dataQuad, dest, q,
+							   halfWidth, halfHeight, width, 0, halfHeight - 1);
 	}
 	
-	private static void quadrantPartialReconstruction(final double[] dataQuad, final double[] dest, final Quadrant q,
-			final int halfWidth, final int halfHeight, final int width, final int a, final int b){
-    	// Base Case
-		if(b - a < 250000){
-			// For each pixel
-			for(int y = 0; y < halfHeight; y++){
-				for(int x = 0; x < halfWidth; x++){
-					// Index mapping for the downSampleChannel <-> Original channel
-					int halfIndex = (y * halfWidth) + x;
-					int index = (2 * y * width) + (2 * x);
-					
-					// Sample the four corresponding pixels from data and map it to a single pixel
-					if(q == Quadrant.TOPLEFT){ dest[index] = dataQuad[halfIndex]; }
-					else if(q == Quadrant.TOPRIGHT){ dest[index + 1] = dataQuad[halfIndex]; }
-					else if(q == Quadrant.BOTTOMLEFT){ dest[index + width] = dataQuad[halfIndex]; }
-					else if(q == Quadrant.BOTTOMRIGHT){ dest[index + width + 1] = dataQuad[halfIndex]; }
+	private static void quadrantPartialReconstruction(final HDRChannel dataQuad, final HDRChannel dest, final Quadrant q,
+			final int halfWidth, final int halfHeight, final int width, final int rowStart, final int rowEnd){
+		Parallel.rows(rowStart, rowEnd, width, new Parallel.RangeTask(){
+			public void compute(int a, int b){
+				// For each pixel
+				for(int y = a; y <= b; y++){
+					for(int x = 0; x < halfWidth; x++){
+						// Index mapping for the downSampleChannel <-> Original channel
+						int halfIndex = (y * halfWidth) + x;
+						int index = (2 * y * width) + (2 * x);
+						
+						// Sample the four corresponding pixels from data and map it to a single pixel
+						if(q == Quadrant.TOPLEFT){ dest.set(index, dataQuad.get(halfIndex)); }
+						else if(q == Quadrant.TOPRIGHT){ dest.set(index + 1, dataQuad.get(halfIndex)); }
+						else if(q == Quadrant.BOTTOMLEFT){ dest.set(index + width, dataQuad.get(halfIndex)); }
+						else if(q == Quadrant.BOTTOMRIGHT){ dest.set(index + width + 1, dataQuad.get(halfIndex)); }
+					}
 				}
 			}
-			
-			return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ quadrantPartialReconstruction(dataQuad, dest, q, halfWidth, halfHeight, width, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ quadrantPartialReconstruction(dataQuad, dest, q, halfWidth, halfHeight, width, halfSplit + 1, b); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+		});
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+/*
+	Display mipmap
+    Copyright (C) 2009 Edward Duong
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+    Email: ed.duong@gmail.com
+*/
+
+package fasthdr.view;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+
+import fasthdr.util.Parallel;
+
+// Packed RGB pixels of a tone mapped image and its reductions: every level is the 2x2 box average of
+// the one above (rounded up in size, the last row and column averaged with themselves), down to
+// MIN_SIZE. The panel draws the smallest level that is still at least as large as the image on screen,
+// so zooming out costs no more than drawing a window of pixels.
+// Every level is a TYPE_INT_RGB image over its pixel array, so the pixels written are the pixels drawn
+// and saved, without a copy. A mipmap is reused for the next image of the same size: write level 0
+// and update().
+public class DisplayMipmap {
+
+	// Levels are reduced until the larger side is at most this
+	public static final int MIN_SIZE = 64;
+
+	// Masks of TYPE_INT_RGB, the alpha byte of the packed pixels is ignored
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+	private final int[][] pixels;
+	private final int[] widths;
+	private final int[] heights;
+	private final BufferedImage[] images;
+
+	// An empty mipmap, level 0 is written through getPixels(0) before update()
+	public DisplayMipmap(int width, int height){
+		this(new int[width * height], width, height);
+	}
+
+	// Keeps a reference to pixels as level 0, the other levels are built in parallel
+	private DisplayMipmap(int[] pixels, int width, int height){
+		int levels = levels(width, height);
+		this.pixels = new int[levels][];
+		widths = new int[levels];
+		heights = new int[levels];
+		images = new BufferedImage[levels];
+		for(int level = 0; level < levels; level++){
+			widths[level] = level == 0 ? width : (widths[level - 1] + 1) / 2;
+			heights[level] = level == 0 ? height : (heights[level - 1] + 1) / 2;
+			this.pixels[level] = level == 0 ? pixels : new int[widths[level] * heights[level]];
+			images[level] = wrap(this.pixels[level], widths[level], heights[level]);
+		}
+		update();
+	}
+
+	// A TYPE_INT_RGB image over pixels (0xAARRGGBB or 0x00RRGGBB, row by row), nothing is copied
+	public static BufferedImage wrap(int[] pixels, int width, int height){
+		DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+		return new BufferedImage(RGB, Raster.createPackedRaster(buffer, width, height, width, RGB.getMasks(), null), false, null);
+	}
+
+	// Rebuilds the reductions from level 0
+	public void update(){
+		for(int level = 1; level < pixels.length; level++){
+			reduce(pixels[level - 1], widths[level - 1], heights[level - 1], pixels[level], widths[level], heights[level]);
+		}
+	}
+
+	// Number of levels of a width x height image, level 0 included
+	public static int levels(int width, int height){
+		int levels = 1;
+		for(int side = Math.max(width, height); side > MIN_SIZE; side = (side + 1) / 2){ levels++; }
+		return levels;
+	}
+
+	// Level to draw an image at zoom (1 is actual size): the deepest whose scale, 1 / 2^level, is at least zoom
+	public static int selectLevel(double zoom, int levels){
+		int level = 0;
+		while(level < levels - 1 && 1.0 / (1 << (level + 1)) >= zoom){ level++; }
+		return level;
+	}
+
+	public int getLevels(){
+		return pixels.length;
+	}
+
+	public int getWidth(int level){
+		return widths[level];
+	}
+
+	public int getHeight(int level){
+		return heights[level];
+	}
+
+	public int[] getPixels(int level){
+		return pixels[level];
+	}
+
+	public BufferedImage getImage(int level){
+		return images[level];
+	}
+
+	// 2x2 box average of every channel of src into des, row by row in parallel
+	private static void reduce(final int[] src, final int srcWidth, final int srcHeight, final int[] des, final int desWidth, int desHeight){
+		Parallel.rows(0, desHeight - 1, desWidth, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				int top, bottom, left, right, a, b, c, d;
+				for(int row = start; row <= end; row++){
+					top = (2 * row) * srcWidth;
+					bottom = Math.min((2 * row) + 1, srcHeight - 1) * srcWidth;
+					for(int col = 0; col < desWidth; col++){
+						left = 2 * col;
+						right = Math.min(left + 1, srcWidth - 1);
+						a = src[top + left];
+						b = src[top + right];
+						c = src[bottom + left];
+						d = src[bottom + right];
+						des[(row * desWidth) + col] = (0xff<<24) 
+								| (((((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2) << 16)
+								| (((((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2) << 8)
+								| (((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2);
+					}
+				}
+			}
+		});
+	}
+}
@@ -26,12 +26,11 @@ import java.awt.FlowLayout;
 import java.awt.ItemSelectable;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
+import javax.swing.ButtonGroup;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -39,13 +38,14 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JToolBar;
 
 import fasthdr.controller.FastHDR;
 import fasthdr.exception.MalformedFileException;
-import fasthdr.io.BufferedImageConverter;
 import fasthdr.io.FileOpenTypeFilter;
 import fasthdr.io.FileSaveTypeFilter;
+import fasthdr.model.HDRChannel;
 
 public class FastHDRFrame extends JFrame {
 
@@ -61,8 +61,11 @@ public class FastHDRFrame extends JFrame {
 	private JMenuItem menu_file_save;
 	private JMenuItem menu_file_exit;
 	
-	private JMenuItem menu_view_placeholder;
-	private JMenuItem menu_tools_placeholder;
+	private JMenuItem menu_view_zoomIn;
+	private JMenuItem menu_view_zoomOut;
+	private JMenuItem menu_view_actualSize;
+	private JMenuItem menu_view_fitToWindow;
+	private JMenu menu_tools_precision;
 	private JMenuItem menu_help_about;
 	
 	//Create a file chooser
@@ -158,14 +161,13 @@ public class FastHDRFrame extends JFrame {
 				EventQueue.invokeLater(new Runnable() { 
 					@Override
 					public void run() { 
-						if(imagePanel.getImage() != null){
+						if(imagePanel.hasImage()){
 							int returnVal = fileSaver.showSaveDialog(frame);
 							if(returnVal == JFileChooser.APPROVE_OPTION) {
 								try {
 									File outFile = fileSaver.getSelectedFile();
 									
-										BufferedImage bi = BufferedImageConverter.createBufferedImage(imagePanel.getImage(), frame);
-									    ImageIO.write(bi, "png", outFile);
+										imagePanel.write(outFile, "png");
 								} 
 								catch (IOException e) {
 									e.printStackTrace();
@@ -199,13 +201,58 @@ public class FastHDRFrame extends JFrame {
 		
 		// Setup the "View" menu bar.
 		JMenu menu_view = new JMenu("View");
-		menu_view_placeholder = new JMenuItem("Placeholder...");
-		menu_view.add(menu_view_placeholder);
+		menu_view_zoomIn = new JMenuItem("Zoom In");
+		menu_view_zoomIn.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				imagePanel.zoomIn();
+			}
+		});
+		menu_view_zoomOut = new JMenuItem("Zoom Out");
+		menu_view_zoomOut.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				imagePanel.zoomOut();
+			}
+		});
+		menu_view_actualSize = new JMenuItem("Actual Size");
+		menu_view_actualSize.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				imagePanel.actualSize();
+			}
+		});
+		menu_view_fitToWindow = new JMenuItem("Fit to Window");
+		menu_view_fitToWindow.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				imagePanel.fitToWindow();
+			}
+		});
+		menu_view.add(menu_view_zoomIn);
+		menu_view.add(menu_view_zoomOut);
+		menu_view.addSeparator();
+		menu_view.add(menu_view_actualSize);
+		menu_view.add(menu_view_fitToWindow);
 		
 		// Setup the "Tools" menu bar.
 		JMenu menu_tools = new JMenu("Tools");
-		menu_tools_placeholder = new JMenuItem("Placeholder...");
-		menu_tools.add(menu_tools_placeholder);
+		// Storage precision used for the next opened file
+		menu_tools_precision = new JMenu("Precision");
+		ButtonGroup precisionGroup = new ButtonGroup();
+		for(final HDRChannel.Precision p: HDRChannel.Precision.values()){
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(p.toString());
+			item.setSelected(p == FastHDR.getPrecision());
+			item.addActionListener(new ActionListener(){
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					FastHDR.setPrecision(p);
+				}
+			});
+			precisionGroup.add(item);
+			menu_tools_precision.add(item);
+		}
+		menu_tools.add(menu_tools_precision);
 		
 		// Setup the "Help" menu bar.
 		JMenu menu_help = new JMenu("Help");
@@ -274,8 +321,11 @@ public class FastHDRFrame extends JFrame {
 		EventQueue.invokeLater(new Runnable() { 
 			@Override
 			public void run() { 
-            	// Remove existing widgets
-				if(tmoToolBarComponents != null){ tmoToolBarComponents.removeWidgets(toolBar); }
+            	// Stop the previous TMO and remove its widgets
+				if(tmoToolBarComponents != null){
+					tmoToolBarComponents.cancelTMO();
+					tmoToolBarComponents.removeWidgets(toolBar);
+				}
 				
 				// Create new components
 				tmoToolBarComponents = new ToolBarLinear();
@@ -295,8 +345,11 @@ public class FastHDRFrame extends JFrame {
 		EventQueue.invokeLater(new Runnable() { 
 			@Override
 			public void run() { 
-            	// Remove existing widgets
-				if(tmoToolBarComponents != null){ tmoToolBarComponents.removeWidgets(toolBar); }
+            	// Stop the previous TMO and remove its widgets
+				if(tmoToolBarComponents != null){
+					tmoToolBarComponents.cancelTMO();
+					tmoToolBarComponents.removeWidgets(toolBar);
+				}
 				
 				// Create new components
 				tmoToolBarComponents = new ToolBarLog();
@@ -316,8 +369,11 @@ public class FastHDRFrame extends JFrame {
 		EventQueue.invokeLater(new Runnable() { 
 			@Override
 			public void run() { 
-            	// Remove existing widgets
-				if(tmoToolBarComponents != null){ tmoToolBarComponents.removeWidgets(toolBar); }
+            	// Stop the previous TMO and remove its widgets
+				if(tmoToolBarComponents != null){
+					tmoToolBarComponents.cancelTMO();
+					tmoToolBarComponents.removeWidgets(toolBar);
+				}
 				
 				// Create new components
 				tmoToolBarComponents = new ToolBarDrago();
@@ -334,8 +390,11 @@ public class FastHDRFrame extends JFrame {
 		EventQueue.invokeLater(new Runnable() { 
 			@Override
 			public void run() { 
-            	// Remove existing widgets
-				if(tmoToolBarComponents != null){ tmoToolBarComponents.removeWidgets(toolBar); }
+            	// Stop the previous TMO and remove its widgets
+				if(tmoToolBarComponents != null){
+					tmoToolBarComponents.cancelTMO();
+					tmoToolBarComponents.removeWidgets(toolBar);
+				}
 				
 				// Create new components
 				tmoToolBarComponents = new ToolBarFattal();
@@ -22,25 +22,84 @@ package fasthdr.view;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.event.InputEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.awt.image.MemoryImageSource;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
 import fasthdr.model.HDRChannel;
+import fasthdr.tmo.ProgressiveRenderer;
+import fasthdr.tmo.TMOOutputInterface;
+import fasthdr.tmo.TileSource;
+import fasthdr.util.CancelToken;
+import fasthdr.util.Parallel;
+import fasthdr.util.RenderScheduler;
 
-public class ImagePanel extends JPanel {
+public class ImagePanel extends JPanel implements TMOOutputInterface {
 	
 	private static final long serialVersionUID = 1L;
+	
+	// Width and height of the tiles rendered from a TileSource
+	public static final int TILE_SIZE = 256;
+	// Tiles kept for panning back, 256 KB each
+	public static final int MAX_CACHED_TILES = 128;
+	
+	public static final double MIN_ZOOM = 1.0 / 128;
+	public static final double MAX_ZOOM = 16;
+	// Zoom factor of a zoom in or out, and of one notch of the mouse wheel
+	public static final double ZOOM_STEP = 1.25;
 
 	private ImagePanel panel;
 	
+	// Where the image is drawn and how large, 1 is actual size. Changed on the event dispatch thread only.
 	private int imageX = 0;
 	private int imageY = 0;
-	private Image javaImage = null;
+	private double zoom = 1;
+	
+	// The image and its reductions, drawn and saved under frontLock. Images are written into a spare
+	// mipmap of their size, which is swapped with mipmap, and mipmap goes back to the spares.
+	private DisplayMipmap mipmap = null;
+	private final Object frontLock = new Object();
+	// Spare mipmaps keyed by sizeKey, least recently used first, one per progressive scale: a render
+	// publishes every scale in turn, so each finds the buffer of its size from the render before and
+	// buffers are only allocated when the frame size changes. Used under writeLock.
+	private final LinkedHashMap<Long, DisplayMipmap> spares = new LinkedHashMap<Long, DisplayMipmap>(8, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<Long, DisplayMipmap> eldest){
+			return size() > ProgressiveRenderer.MAX_SCALE + 1;
+		}
+	};
+	// Held while a spare is written
+	private final Object writeLock = new Object();
+	// Size the image is drawn at when zoom is 1, larger than the mipmap itself for progressive previews
+	private int imageWidth = 0;
+	private int imageHeight = 0;
+	
+	// Per-pixel TMOs: the visible tiles are rendered on demand, at the mipmap level of the zoom. The
+	// last image set (a preview) stays under the tiles not rendered yet.
+	private TileSource tileSource = null;
+	// Least recently drawn first, keyed by tileKey
+	private final LinkedHashMap<Long, Image> tileCache = new LinkedHashMap<Long, Image>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<Long, Image> eldest){
+			return size() > MAX_CACHED_TILES;
+		}
+	};
+	// Tiles being rendered for tileSource, null when idle
+	private ArrayList<Long> tilesRequested = null;
 	
 	public ImagePanel(){
 		this.panel = this;
@@ -74,43 +133,170 @@ public class ImagePanel extends JPanel {
 				}
 			}
 		});
+		this.addMouseWheelListener(new MouseWheelListener(){
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent arg0) {
+				// Wheel up zooms in on the pointer
+				zoomAt(arg0.getX(), arg0.getY(), zoom * Math.pow(ZOOM_STEP, -arg0.getWheelRotation()));
+			}
+		});
 	}
 	
-	public synchronized void setImage(HDRChannel r, HDRChannel g, HDRChannel b){
-		double[] rData = r.getData();
-		double[] gData = g.getData();
-		double[] bData = b.getData();
-		
+	public void setImage(HDRChannel r, HDRChannel g, HDRChannel b){
+		setImage(r, g, b, r.getWidth(), r.getHeight());
+	}
+	
+	public void setImage(HDRChannel r, HDRChannel g, HDRChannel b, int displayWidth, int displayHeight){
 		int size = r.getSize();
 	    int width = r.getWidth();
 	    int height = r.getHeight();
 	    
-	    int[] pixels = new int[size];
-	    generateImage(pixels, rData, gData, bData, 0, size - 1);
-        
-	    javaImage = createImage(new MemoryImageSource(width, height, pixels, 0, width));
-	    repaint();
+	    synchronized(writeLock){
+	    	DisplayMipmap next = spares.remove(sizeKey(width, height));
+	    	if(next == null){
+	    		next = new DisplayMipmap(width, height);
+	    	}
+	    	generateImage(next.getPixels(0), r, g, b, 0, size - 1);
+	    	next.update();
+	    	swap(next, displayWidth, displayHeight);
+	    }
+	}
+	
+	// The image last set stays as the background of the tiles until they are rendered
+	public synchronized void setTileSource(TileSource source){
+		imageWidth = source.getWidth();
+		imageHeight = source.getHeight();
+		clearTiles(source);
+		repaint();
+	}
+	
+	// Shows next in place of mipmap, which becomes a spare. Called under writeLock.
+	private void swap(DisplayMipmap next, int displayWidth, int displayHeight){
+		synchronized(this){
+			DisplayMipmap previous;
+			synchronized(frontLock){
+				previous = mipmap;
+				mipmap = next;
+			}
+			if(previous != null){
+				spares.put(sizeKey(previous.getWidth(0), previous.getHeight(0)), previous);
+			}
+			imageWidth = displayWidth;
+			imageHeight = displayHeight;
+			clearTiles(null);
+		}
+		repaint();
 	}
 	
-	private void generateImage(final int[] pixels, final double[] rData, final double[] gData, final double[] bData, final int a, final int b){
-    	// Base Case
-		if(b - a < 2000000){
-    		for(int i = a; i <= b; i++){
-    			pixels[i] = ((0xff<<24) | ((int)rData[i]<<16) | ((int)gData[i]<<8) | (int)bData[i]);
-    		}
-    		return;
-    	}
-		// Recurse
-    	final int halfSplit = (b - a) / 2 + a;
-    	Thread t1 = new Thread(){ public void run(){ generateImage(pixels, rData, gData, bData, a, halfSplit); }};
-    	Thread t2 = new Thread(){ public void run(){ generateImage(pixels, rData, gData, bData, halfSplit + 1, b); }};    	
-    	t1.start(); t2.start();
-    	try { t1.join(); } catch(InterruptedException e) { e.printStackTrace(); }
-    	try { t2.join(); } catch(InterruptedException e) { e.printStackTrace(); }
+	private static long sizeKey(int width, int height){
+		return ((long)width << 32) | height;
 	}
 	
-	public synchronized Image getImage(){
-		return javaImage;
+	private void clearTiles(TileSource source){
+		tileSource = source;
+		tileCache.clear();
+		tilesRequested = null;
+	}
+	
+	private static long tileKey(int level, int col, int row){
+		return ((long)level << 58) | ((long)row << 29) | col;
+	}
+	
+	private static int tileLevel(long key){
+		return (int)(key >>> 58);
+	}
+	
+	private static int tileRow(long key){
+		return (int)((key >>> 29) & 0x1fffffff);
+	}
+	
+	private static int tileCol(long key){
+		return (int)(key & 0x1fffffff);
+	}
+	
+	// Size of level of the tiled image, every 2^level th pixel of every 2^level th row
+	private static int levelSize(int size, int level){
+		return (size + (1 << level) - 1) >> level;
+	}
+	
+	// Renders the tiles on the RenderScheduler, after any preview queued, all in parallel, then
+	// repaints. The tiles of a source replaced in the meantime are dropped. However the job ends
+	// (done, cancelled or failed) the request is cleared, so the next paint asks again for what is missing.
+	private void renderTiles(final TileSource source, final ArrayList<Long> keys){
+		RenderScheduler.getShared().submit(this, RenderScheduler.Priority.FULL, new RenderScheduler.Job(){
+			public void run(final CancelToken token){
+				try {
+					final Image[] tiles = new Image[keys.size()];
+					Parallel.range(0, keys.size() - 1, 1, new Parallel.RangeTask(){
+						public void compute(int start, int end){
+							for(int i = start; i <= end; i++){
+								if(token.isCancelled() == true){ return; }
+								int level = tileLevel(keys.get(i));
+								int step = 1 << level;
+								int x = tileCol(keys.get(i)) * TILE_SIZE;
+								int y = tileRow(keys.get(i)) * TILE_SIZE;
+								int width = Math.min(TILE_SIZE, levelSize(source.getWidth(), level) - x);
+								int height = Math.min(TILE_SIZE, levelSize(source.getHeight(), level) - y);
+								int[] pixels = new int[width * height];
+								source.render(x * step, y * step, width, height, step, pixels, 0, width);
+								tiles[i] = DisplayMipmap.wrap(pixels, width, height);
+							}
+						}
+					});
+					synchronized(ImagePanel.this){
+						if(source != tileSource || token.isCancelled() == true){ return; }
+						for(int i = 0; i < tiles.length; i++){ tileCache.put(keys.get(i), tiles[i]); }
+					}
+					repaint();
+				}
+				finally {
+					synchronized(ImagePanel.this){
+						if(tilesRequested == keys){ tilesRequested = null; }
+					}
+				}
+			}
+		});
+	}
+	
+	private void generateImage(final int[] pixels, final HDRChannel rChannel, final HDRChannel gChannel, final HDRChannel bChannel, final int a, final int b){
+		Parallel.range(a, b, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				for(int i = start; i <= end; i++){
+					pixels[i] = ((0xff<<24) | ((int)rChannel.get(i)<<16) | ((int)gChannel.get(i)<<8) | (int)bChannel.get(i));
+				}
+			}
+		});
+	}
+	
+	public synchronized boolean hasImage(){
+		return mipmap != null || tileSource != null;
+	}
+	
+	// Writes the full resolution image with ImageIO, returns false if there is no image or no writer for
+	// format. Tiled images are rendered in full for the call.
+	public boolean write(File file, String format) throws IOException {
+		final TileSource source;
+		synchronized(this){
+			source = tileSource;
+		}
+		if(source != null){
+			return ImageIO.write(render(source), format, file);
+		}
+		// The front image is written in place, the next image goes to a spare one meanwhile
+		synchronized(frontLock){
+			return mipmap != null && ImageIO.write(mipmap.getImage(0), format, file);
+		}
+	}
+	
+	private static BufferedImage render(final TileSource source){
+		final int width = source.getWidth();
+		final int[] pixels = new int[width * source.getHeight()];
+		Parallel.rows(0, source.getHeight() - 1, width, new Parallel.RangeTask(){
+			public void compute(int start, int end){
+				source.render(0, start, width, end - start + 1, 1, pixels, start * width, width);
+			}
+		});
+		return DisplayMipmap.wrap(pixels, width, source.getHeight());
 	}
 	
 	public void centerImage(){
@@ -119,12 +305,123 @@ public class ImagePanel extends JPanel {
 	    repaint();
 	}
 	
+	public double getZoom(){
+		return zoom;
+	}
+	
+	public void zoomIn(){
+		zoomAt(getWidth() / 2, getHeight() / 2, zoom * ZOOM_STEP);
+	}
+	
+	public void zoomOut(){
+		zoomAt(getWidth() / 2, getHeight() / 2, zoom / ZOOM_STEP);
+	}
+	
+	public void actualSize(){
+		zoomAt(getWidth() / 2, getHeight() / 2, 1);
+	}
+	
+	// Zooms so the whole image fits the panel and centers it
+	public void fitToWindow(){
+		int width, height;
+		synchronized(this){
+			width = imageWidth;
+			height = imageHeight;
+		}
+		if(width == 0 || height == 0){ return; }
+		zoom = clampZoom(Math.min((double)getWidth() / width, (double)getHeight() / height));
+		imageX = (int)Math.round((getWidth() - (width * zoom)) / 2);
+		imageY = (int)Math.round((getHeight() - (height * zoom)) / 2);
+		repaint();
+	}
+	
+	// Zooms to newZoom keeping the image point under (x, y) in place
+	private void zoomAt(int x, int y, double newZoom){
+		newZoom = clampZoom(newZoom);
+		imageX = (int)Math.round(x - ((x - imageX) * newZoom / zoom));
+		imageY = (int)Math.round(y - ((y - imageY) * newZoom / zoom));
+		zoom = newZoom;
+		repaint();
+	}
+	
+	private static double clampZoom(double value){
+		return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, value));
+	}
+	
 	public void paint(Graphics g) {
 		g.setColor(Color.lightGray);
 		g.fillRect(0, 0, this.getWidth(), this.getHeight());
 		
-		if(javaImage != null){
-			g.drawImage(javaImage, imageX, imageY, this);
+		// The display size and tiles are replaced together by the TMO threads
+		int width, height;
+		TileSource source;
+		synchronized(this){
+			width = imageWidth;
+			height = imageHeight;
+			source = tileSource;
+		}
+		// Previews and zoomed views are stretched with bilinear filtering rather than showing blocks
+		((Graphics2D)g).setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		// Not swapped to the spares, and so not written, while it is drawn
+		synchronized(frontLock){
+			if(mipmap != null){
+				// The smallest level at least as large as the image on screen
+				int level = DisplayMipmap.selectLevel(zoom * width / mipmap.getWidth(0), mipmap.getLevels());
+				g.drawImage(mipmap.getImage(level), imageX, imageY, (int)Math.round(width * zoom), (int)Math.round(height * zoom), this);
+			}
+		}
+		if(source != null){
+			paintTiles(g, source);
 		}
     }
+	
+	// Draws the cached tiles in view and requests the others
+	private void paintTiles(Graphics g, TileSource source){
+		int x = imageX;
+		int y = imageY;
+		int level = DisplayMipmap.selectLevel(zoom, DisplayMipmap.levels(source.getWidth(), source.getHeight()));
+		int levelWidth = levelSize(source.getWidth(), level);
+		int levelHeight = levelSize(source.getHeight(), level);
+		// Screen pixels per pixel of the level
+		double scale = zoom * (1 << level);
+		
+		// Visible part of the level
+		int left = Math.max(0, (int)Math.floor(-x / scale));
+		int top = Math.max(0, (int)Math.floor(-y / scale));
+		int right = Math.min(levelWidth, (int)Math.ceil((this.getWidth() - x) / scale));
+		int bottom = Math.min(levelHeight, (int)Math.ceil((this.getHeight() - y) / scale));
+		if(left >= right || top >= bottom){ return; }
+		
+		ArrayList<Long> missing = new ArrayList<Long>();
+		ArrayList<Image> tiles = new ArrayList<Image>();
+		ArrayList<Long> keys = new ArrayList<Long>();
+		synchronized(this){
+			if(source != tileSource){ return; }
+			for(int row = top / TILE_SIZE; row <= (bottom - 1) / TILE_SIZE; row++){
+				for(int col = left / TILE_SIZE; col <= (right - 1) / TILE_SIZE; col++){
+					long key = tileKey(level, col, row);
+					Image tile = tileCache.get(key);
+					if(tile == null){ missing.add(key); }
+					else{
+						tiles.add(tile);
+						keys.add(key);
+					}
+				}
+			}
+			if(missing.isEmpty() || tilesRequested != null){ missing = null; }
+			else{ tilesRequested = missing; }
+		}
+		if(missing != null){ renderTiles(source, missing); }
+		
+		// Both edges of every tile are rounded from the level, so neighbouring tiles meet without gaps
+		for(int i = 0; i < tiles.size(); i++){
+			int tileLeft = tileCol(keys.get(i)) * TILE_SIZE;
+			int tileTop = tileRow(keys.get(i)) * TILE_SIZE;
+			int x0 = x + (int)Math.round(tileLeft * scale);
+			int y0 = y + (int)Math.round(tileTop * scale);
+			int x1 = x + (int)Math.round(Math.min(tileLeft + TILE_SIZE, levelWidth) * scale);
+			int y1 = y + (int)Math.round(Math.min(tileTop + TILE_SIZE, levelHeight) * scale);
+			g.drawImage(tiles.get(i), x0, y0, x1 - x0, y1 - y0, this);
+		}
+	}
 }
@@ -21,6 +21,7 @@
 package fasthdr.view;
 
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.text.NumberFormat;
@@ -33,7 +34,10 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import fasthdr.controller.FastHDR;
+import fasthdr.model.HDRFrame;
 import fasthdr.tmo.Drago;
+import fasthdr.util.CancelToken;
+import fasthdr.util.RenderScheduler;
 
 public class ToolBarDrago implements ToolBarInterface {
 	
@@ -48,11 +52,29 @@ public class ToolBarDrago implements ToolBarInterface {
 	
 	private Drago tmo = null;
 	
+	// Cancelled by cancelTMO(), which may run once the preprocessing job is done and its scheduler
+	// token is forgotten, but before the TMO is handed to the event dispatch thread
+	private final CancelToken loading = new CancelToken();
+	
 	public ToolBarDrago(){
-		if(FastHDR.getFrame() != null){
-			tmo = new Drago(FastHDR.getFrame(), FastHDR.getImagePanel());
+		// The preprocessing runs on the RenderScheduler, the TMO runs once it is ready
+		final HDRFrame frame = FastHDR.getFrame();
+		if(frame != null){
+			RenderScheduler.getShared().submit(this, RenderScheduler.Priority.PREVIEW, new RenderScheduler.Job(){
+				public void run(final CancelToken token){
+					final Drago created = new Drago(frame, FastHDR.getImagePanel(), FastHDR.getCacheKey(frame));
+					if(token.isCancelled() == true){ return; }
+					EventQueue.invokeLater(new Runnable(){
+						public void run(){
+							// cancelTMO() may have run since the check above, both run on the event dispatch thread
+							if(token.isCancelled() == true || loading.isCancelled() == true){ return; }
+							tmo = created;
+							performTMO();
+						}
+					});
+				}
+			});
 		}
-		performTMO();
 	}
 	
 	@Override
@@ -74,6 +96,8 @@ public class ToolBarDrago implements ToolBarInterface {
 
 	@Override
 	public void cancelTMO() {
+		RenderScheduler.getShared().cancel(this);
+		loading.cancel();
 		if(tmo != null){ tmo.cancel(); }
 	}
 	
@@ -21,10 +21,14 @@
 package fasthdr.view;
 
 import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.text.NumberFormat;
 
+import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JSlider;
@@ -33,7 +37,10 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import fasthdr.controller.FastHDR;
+import fasthdr.model.HDRFrame;
 import fasthdr.tmo.Fattal;
+import fasthdr.util.CancelToken;
+import fasthdr.util.RenderScheduler;
 
 public class ToolBarFattal implements ToolBarInterface {
 	
@@ -61,6 +68,7 @@ public class ToolBarFattal implements ToolBarInterface {
 	private double beta = BETA_DEFAULT;
 	private double colorSat = COLOR_SAT_DEFAULT;
 	private double noiseReduc = NOISE_REDUC_DEFAULT;
+	private Fattal.PDESolver pdeSolver = Fattal.PDESolver.MULTIGRID;
 	
 	private JFormattedTextField alphaField;
 	private JFormattedTextField betaField;
@@ -77,13 +85,34 @@ public class ToolBarFattal implements ToolBarInterface {
 	private JLabel colorSatLabel = null;
 	private JLabel noiseReducLabel = null;
 	
+	private JLabel pdeLabel = null;
+	private JComboBox<Fattal.PDESolver> pdeDropDown = null;
+	
 	private Fattal tmo;
 	
+	// Cancelled by cancelTMO(), which may run once the preprocessing job is done and its scheduler
+	// token is forgotten, but before the TMO is handed to the event dispatch thread
+	private final CancelToken loading = new CancelToken();
+	
 	public ToolBarFattal(){
-		if(FastHDR.getFrame() != null){
-			tmo = new Fattal(FastHDR.getFrame(), FastHDR.getImagePanel());
+		// The preprocessing runs on the RenderScheduler, the TMO runs once it is ready
+		final HDRFrame frame = FastHDR.getFrame();
+		if(frame != null){
+			RenderScheduler.getShared().submit(this, RenderScheduler.Priority.PREVIEW, new RenderScheduler.Job(){
+				public void run(final CancelToken token){
+					final Fattal created = new Fattal(frame, FastHDR.getImagePanel(), FastHDR.getCacheKey(frame));
+					if(token.isCancelled() == true){ return; }
+					EventQueue.invokeLater(new Runnable(){
+						public void run(){
+							// cancelTMO() may have run since the check above, both run on the event dispatch thread
+							if(token.isCancelled() == true || loading.isCancelled() == true){ return; }
+							tmo = created;
+							performTMO();
+						}
+					});
+				}
+			});
 		}
-		performTMO();
 	}
 	
 	@Override
@@ -92,6 +121,7 @@ public class ToolBarFattal implements ToolBarInterface {
 		addBetaWidget(toolBar);
 		addColorSatWidget(toolBar);
 		addNoiseReducWidget(toolBar);
+		addPDEWidget(toolBar);
 	}
 	
 	@Override
@@ -111,15 +141,23 @@ public class ToolBarFattal implements ToolBarInterface {
 		toolBar.remove(noiseReducLabel);
 		toolBar.remove(noiseReducField);
 		toolBar.remove(noiseReducSlider);
+		
+		toolBar.remove(pdeLabel);
+		toolBar.remove(pdeDropDown);
 	}
 
 	@Override
 	public void performTMO() {
-		if(tmo != null){ tmo.performTMOwithPreview(alpha, beta, colorSat, noiseReduc); }
+		if(tmo != null){
+			tmo.setPDESolver(pdeSolver);
+			tmo.performTMOwithPreview(alpha, beta, colorSat, noiseReduc);
+		}
 	}
 
 	@Override
 	public void cancelTMO() {
+		RenderScheduler.getShared().cancel(this);
+		loading.cancel();
 		if(tmo != null){ tmo.cancel(); }
 	}
 	
@@ -342,4 +380,28 @@ public class ToolBarFattal implements ToolBarInterface {
 		toolBar.add(noiseReducSlider);
 		toolBar.add(noiseReducField);
 	}
+	
+	public void addPDEWidget(JToolBar toolBar){
+		// Create a label and drop down of the PDE solvers
+		pdeDropDown = new JComboBox<Fattal.PDESolver>(Fattal.PDESolver.values());
+		pdeDropDown.setSelectedItem(pdeSolver);
+		pdeDropDown.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				// Update solver model
+				pdeSolver = (Fattal.PDESolver)pdeDropDown.getSelectedItem();
+				
+				// Run tmo!
+				performTMO();
+			}
+		});
+		
+		// Create label
+		pdeLabel = new JLabel("PDE");
+		pdeLabel.setLabelFor(pdeDropDown);
+		
+		// Add components to toolBar
+		toolBar.add(pdeLabel);
+		toolBar.add(pdeDropDown);
+	}
 }